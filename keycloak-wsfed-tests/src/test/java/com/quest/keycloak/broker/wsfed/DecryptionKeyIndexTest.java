@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.broker.wsfed;
+
+import com.quest.keycloak.common.wsfed.MockHelper;
+import com.quest.keycloak.common.wsfed.TestHelpers;
+import org.junit.Before;
+import org.junit.Test;
+import org.keycloak.common.util.CertificateUtils;
+import org.keycloak.crypto.Algorithm;
+import org.keycloak.crypto.KeyStatus;
+import org.keycloak.crypto.KeyType;
+import org.keycloak.crypto.KeyUse;
+import org.keycloak.crypto.KeyWrapper;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.util.Base64;
+import java.util.Collections;
+
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.when;
+
+public class DecryptionKeyIndexTest {
+
+    private static final String XMLENC_NS = "http://www.w3.org/2001/04/xmlenc#";
+    private static final String DSIG_NS = "http://www.w3.org/2000/09/xmldsig#";
+
+    private MockHelper mockHelper;
+    private KeyWrapper passiveKey;
+    private PrivateKey activePrivateKey;
+
+    @Before
+    public void setUp() throws Exception {
+        mockHelper = TestHelpers.getMockHelper().initializeMockValues();
+
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        KeyPair keyPair = generator.generateKeyPair();
+
+        passiveKey = new KeyWrapper();
+        passiveKey.setKid("previous-key");
+        passiveKey.setType(KeyType.RSA);
+        passiveKey.setUse(KeyUse.SIG);
+        passiveKey.setAlgorithm(Algorithm.RS256);
+        passiveKey.setStatus(KeyStatus.PASSIVE);
+        passiveKey.setPublicKey(keyPair.getPublic());
+        passiveKey.setPrivateKey(keyPair.getPrivate());
+        passiveKey.setCertificate(CertificateUtils.generateV1SelfSignedCertificate(keyPair, "previous"));
+
+        when(mockHelper.getKeyManager().getKeys(mockHelper.getRealm())).thenReturn(Collections.singletonList(passiveKey));
+        activePrivateKey = (PrivateKey) mockHelper.getKeyManager().getActiveKey(mockHelper.getRealm(), KeyUse.SIG, Algorithm.RS256).getPrivateKey();
+    }
+
+    private Element encryptedKey(String keyInfoChild, String keyInfoGrandChild, String value) throws Exception {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        Document document = factory.newDocumentBuilder().newDocument();
+        Element encryptedKey = document.createElementNS(XMLENC_NS, "xenc:EncryptedKey");
+        document.appendChild(encryptedKey);
+        if (keyInfoChild != null) {
+            Element keyInfo = document.createElementNS(DSIG_NS, "ds:KeyInfo");
+            encryptedKey.appendChild(keyInfo);
+            Element child = document.createElementNS(DSIG_NS, "ds:" + keyInfoChild);
+            keyInfo.appendChild(child);
+            if (keyInfoGrandChild != null) {
+                Element grandChild = document.createElementNS(DSIG_NS, "ds:" + keyInfoGrandChild);
+                child.appendChild(grandChild);
+                child = grandChild;
+            }
+            child.setTextContent(value);
+        }
+        return encryptedKey;
+    }
+
+    private PrivateKey resolve(Element encryptedKey) {
+        return DecryptionKeyIndex.get(mockHelper.getSession(), mockHelper.getRealm()).resolve(mockHelper.getSession(), mockHelper.getRealm(), encryptedKey);
+    }
+
+    @Test
+    public void testResolveByKeyName() throws Exception {
+        assertSame(passiveKey.getPrivateKey(), resolve(encryptedKey("KeyName", null, "previous-key")));
+    }
+
+    @Test
+    public void testResolveByCertificate() throws Exception {
+        String certificate = Base64.getEncoder().encodeToString(passiveKey.getCertificate().getEncoded());
+        assertSame(passiveKey.getPrivateKey(), resolve(encryptedKey("X509Data", "X509Certificate", certificate)));
+    }
+
+    @Test
+    public void testResolveBySubjectName() throws Exception {
+        assertSame(passiveKey.getPrivateKey(), resolve(encryptedKey("X509Data", "X509SubjectName", "CN=previous")));
+    }
+
+    @Test
+    public void testUnknownKeyUsesActiveKey() throws Exception {
+        assertSame(activePrivateKey, resolve(encryptedKey("KeyName", null, "unknown-key")));
+        assertSame(activePrivateKey, resolve(encryptedKey(null, null, null)));
+    }
+}
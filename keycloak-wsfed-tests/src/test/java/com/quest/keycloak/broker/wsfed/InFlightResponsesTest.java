@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.broker.wsfed;
+
+import org.junit.Test;
+
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+import java.net.URI;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class InFlightResponsesTest {
+
+    private static final URI LOCATION = URI.create("https://app.example.com/callback?code=123");
+    private static final String SSO_COOKIE = "KEYCLOAK_IDENTITY=token; Path=/auth/realms/realm/; HttpOnly";
+
+    /**
+     * Starts a leader that redirects once released, and returns when it is in flight
+     */
+    private Future<Response> startLeader(ExecutorService executor, String key, CountDownLatch release, AtomicInteger calls) throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        Future<Response> leader = executor.submit(() -> InFlightResponses.coalesce(key, "<wresult/>", "browser", 5000, () -> {
+            calls.incrementAndGet();
+            started.countDown();
+            release.await(5, TimeUnit.SECONDS);
+            return Response.seeOther(LOCATION).build();
+        }, () -> Collections.singletonList(SSO_COOKIE)));
+        started.await(5, TimeUnit.SECONDS);
+        return leader;
+    }
+
+    @Test
+    public void testDuplicateSharesRedirect() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            CountDownLatch release = new CountDownLatch(1);
+            AtomicInteger calls = new AtomicInteger();
+            Future<Response> leader = startLeader(executor, "realm/idp/ID_1", release, calls);
+
+            Future<Response> duplicate = executor.submit(() -> InFlightResponses.coalesce("realm/idp/ID_1", "<wresult/>", "browser", 5000, () -> {
+                calls.incrementAndGet();
+                return Response.status(Response.Status.BAD_REQUEST).build();
+            }, Collections::emptyList));
+            assertTrue(InFlightResponses.awaitFollower("realm/idp/ID_1", 5000));
+            release.countDown();
+
+            assertEquals(LOCATION, leader.get().getLocation());
+            assertEquals(Response.Status.SEE_OTHER.getStatusCode(), duplicate.get().getStatus());
+            assertEquals(LOCATION, duplicate.get().getLocation());
+            // the session cookies the leader set on the HTTP response go along with the shared redirect
+            assertEquals(Collections.singletonList(SSO_COOKIE), duplicate.get().getHeaders().get(HttpHeaders.SET_COOKIE));
+            assertEquals(1, calls.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testOtherBrowserIsProcessedOnItsOwn() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(1);
+        try {
+            CountDownLatch release = new CountDownLatch(1);
+            AtomicInteger calls = new AtomicInteger();
+            Future<Response> leader = startLeader(executor, "realm/idp/ID_2", release, calls);
+
+            Response other = InFlightResponses.coalesce("realm/idp/ID_2", "<wresult/>", "other-browser", 5000, () -> {
+                calls.incrementAndGet();
+                return Response.status(Response.Status.BAD_REQUEST).build();
+            }, Collections::emptyList);
+            release.countDown();
+
+            assertEquals(Response.Status.BAD_REQUEST.getStatusCode(), other.getStatus());
+            assertEquals(LOCATION, leader.get().getLocation());
+            assertEquals(2, calls.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testSubmissionAfterLeaderIsProcessed() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        InFlightResponses.coalesce("realm/idp/ID_3", "<wresult/>", "browser", 5000, () -> {
+            calls.incrementAndGet();
+            return Response.seeOther(LOCATION).build();
+        }, Collections::emptyList);
+        Response second = InFlightResponses.coalesce("realm/idp/ID_3", "<wresult/>", "browser", 5000, () -> {
+            calls.incrementAndGet();
+            return Response.status(Response.Status.BAD_REQUEST).build();
+        }, Collections::emptyList);
+
+        assertEquals(Response.Status.BAD_REQUEST.getStatusCode(), second.getStatus());
+        assertEquals(2, calls.get());
+    }
+}
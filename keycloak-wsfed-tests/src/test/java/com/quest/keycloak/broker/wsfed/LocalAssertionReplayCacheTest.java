@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.broker.wsfed;
+
+import org.junit.Test;
+import org.keycloak.common.util.Time;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LocalAssertionReplayCacheTest {
+
+    @Test
+    public void testReplayIsRejected() {
+        LocalAssertionReplayCache cache = new LocalAssertionReplayCache(10);
+        long expiresAt = Time.currentTimeMillis() + 60000;
+
+        assertTrue(cache.markUsed("realm/idp/ID_1", expiresAt));
+        assertFalse(cache.markUsed("realm/idp/ID_1", expiresAt));
+        assertTrue(cache.markUsed("realm/idp/ID_2", expiresAt));
+    }
+
+    @Test
+    public void testExpiredEntriesArePurged() {
+        LocalAssertionReplayCache cache = new LocalAssertionReplayCache(10);
+        long now = Time.currentTimeMillis();
+
+        assertTrue(cache.markUsed("realm/idp/ID_1", now - 1));
+        assertTrue(cache.markUsed("realm/idp/ID_2", now + 60000));
+        assertEquals(1, cache.size());
+        //An expired assertion is rejected by its conditions, not by the cache
+        assertTrue(cache.markUsed("realm/idp/ID_1", now + 60000));
+    }
+
+    @Test
+    public void testSizeIsBounded() {
+        LocalAssertionReplayCache cache = new LocalAssertionReplayCache(2);
+        long expiresAt = Time.currentTimeMillis() + 60000;
+
+        cache.markUsed("realm/idp/ID_1", expiresAt);
+        cache.markUsed("realm/idp/ID_2", expiresAt);
+        cache.markUsed("realm/idp/ID_3", expiresAt);
+
+        assertEquals(2, cache.size());
+        assertFalse(cache.markUsed("realm/idp/ID_3", expiresAt));
+    }
+}
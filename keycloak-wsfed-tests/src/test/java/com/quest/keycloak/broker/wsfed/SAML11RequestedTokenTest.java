@@ -66,7 +66,7 @@ public class SAML11RequestedTokenTest {
         RequestSecurityTokenResponseBuilder builder = generateRequestSecurityTokenResponseBuilder();
         String wsfedResponse = builder.getStringValue();
 
-        WSFedEndpoint endpoint = new WSFedEndpoint(null, null, null, null);
+        WSFedEndpoint endpoint = new WSFedEndpoint(null, null, mock(WSFedIdentityProviderConfig.class), null);
         RequestSecurityTokenResponse rstr = endpoint.getWsfedToken(wsfedResponse);
 
         return new SAML11RequestedToken(wsfedResponse, rstr.getRequestedSecurityToken().getAny().get(0));
@@ -26,6 +26,7 @@ import io.cloudtrust.keycloak.exceptions.CtRuntimeException;
 
 import org.junit.Test;
 import org.keycloak.dom.saml.v2.assertion.AssertionType;
+import org.keycloak.dom.saml.v2.assertion.EncryptedAssertionType;
 import org.keycloak.dom.saml.v2.assertion.NameIDType;
 import org.keycloak.events.Errors;
 import org.keycloak.events.EventBuilder;
@@ -34,11 +35,14 @@ import org.keycloak.saml.common.constants.GeneralConstants;
 import org.keycloak.saml.common.constants.JBossSAMLConstants;
 import org.keycloak.saml.common.constants.JBossSAMLURIConstants;
 import org.keycloak.saml.common.exceptions.ProcessingException;
+import org.keycloak.saml.common.util.DocumentUtil;
 import org.keycloak.saml.processing.core.saml.v2.util.AssertionUtil;
 import org.keycloak.saml.processing.core.util.XMLEncryptionUtil;
 import org.keycloak.services.messages.Messages;
 import org.picketlink.identity.federation.core.wstrust.wrappers.RequestSecurityTokenResponse;
 import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
 
 import javax.crypto.SecretKey;
 import javax.crypto.spec.SecretKeySpec;
@@ -95,6 +99,106 @@ public class SAML2RequestedTokenTest {
         verifyNoMoreInteractions(mockHelper.getLoginFormsProvider());
     }
 
+    @Test
+    public void testValidateStreaming() throws Exception {
+        MockHelper mockHelper = TestHelpers.getMockHelper();
+        RequestedToken rt = getStreamedSAML2RequestToken(mockHelper);
+
+        WSFedIdentityProviderConfig config = mock(WSFedIdentityProviderConfig.class);
+        when(config.getWsFedRealm()).thenReturn(mockHelper.getClientId());
+
+        Response response = rt.validate(mockHelper.getActiveKey().getPublicKey(), config, mock(EventBuilder.class), mockHelper.getSession());
+        assertNull(response);
+        verifyZeroInteractions(mockHelper.getLoginFormsProvider());
+    }
+
+    @Test
+    public void testInvalidSignatureStreaming() throws Exception {
+        MockHelper mockHelper = TestHelpers.getMockHelper();
+        RequestedToken rt = getStreamedSAML2RequestToken(mockHelper);
+
+        WSFedIdentityProviderConfig config = mock(WSFedIdentityProviderConfig.class);
+        when(config.getWsFedRealm()).thenReturn(mockHelper.getClientId());
+
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        KeyPair keyPair = generator.generateKeyPair();
+
+        EventBuilder event = mock(EventBuilder.class);
+
+        Response response = rt.validate(keyPair.getPublic(), config, event, mockHelper.getSession());
+        assertNotNull(response);
+
+        verify(event, times(1)).error(Errors.INVALID_SIGNATURE);
+        assertErrorPage(mockHelper.getLoginFormsProvider(), Messages.INVALID_FEDERATED_IDENTITY_ACTION);
+        verifyNoMoreInteractions(mockHelper.getLoginFormsProvider());
+    }
+
+    @Test
+    public void testSignatureWrappingStreaming() throws Exception {
+        MockHelper mockHelper = TestHelpers.getMockHelper();
+        String wsfedResponse = generateRequestSecurityTokenResponseBuilder(mockHelper).getStringValue();
+
+        //Move the signed assertion out of the requested token, and put an unsigned forged copy of it in its place
+        Document doc = DocumentUtil.getDocument(wsfedResponse);
+        Element signed = (Element) doc.getElementsByTagNameNS(JBossSAMLURIConstants.ASSERTION_NSURI.get(), JBossSAMLConstants.ASSERTION.get()).item(0);
+        Element forged = (Element) signed.cloneNode(true);
+        Node signature = forged.getElementsByTagNameNS(JBossSAMLURIConstants.XMLDSIG_NSURI.get(), JBossSAMLConstants.SIGNATURE.get()).item(0);
+        signature.getParentNode().removeChild(signature);
+        forged.getElementsByTagNameNS(JBossSAMLURIConstants.ASSERTION_NSURI.get(), JBossSAMLConstants.NAMEID.get()).item(0).setTextContent("attacker@example.com");
+        Node requestedToken = signed.getParentNode();
+        requestedToken.replaceChild(forged, signed);
+        Element wrapper = doc.createElementNS(null, "Wrapper");
+        wrapper.appendChild(signed);
+        requestedToken.getParentNode().appendChild(wrapper);
+        String wrappedResponse = DocumentUtil.getDocumentAsString(doc);
+
+        WSFedEndpoint endpoint = new WSFedEndpoint(null, null, mock(WSFedIdentityProviderConfig.class), null);
+        RequestSecurityTokenResponse rstr = endpoint.streamWsfedToken(wrappedResponse);
+        SAML2RequestedToken rt = new SAML2RequestedToken(mockHelper.getSession(), wrappedResponse, rstr.getRequestedSecurityToken().getAny().get(0), mockHelper.getRealm());
+        assertEquals("attacker@example.com", rt.getSubjectNameID().getValue());
+
+        WSFedIdentityProviderConfig config = mock(WSFedIdentityProviderConfig.class);
+        when(config.getWsFedRealm()).thenReturn(mockHelper.getClientId());
+        EventBuilder event = mock(EventBuilder.class);
+
+        Response response = rt.validate(mockHelper.getActiveKey().getPublicKey(), config, event, mockHelper.getSession());
+        assertNotNull(response);
+        verify(event, times(1)).error(Errors.INVALID_SIGNATURE);
+    }
+
+    @Test
+    public void testValidateEncryptedStreaming() throws Exception {
+        MockHelper mockHelper = TestHelpers.getMockHelper();
+        String wsfedResponse = generateRequestSecurityTokenResponseBuilder(mockHelper).getStringValue();
+
+        //Encrypt the signed assertion where it stands in the response
+        Document doc = DocumentUtil.getDocument(wsfedResponse);
+        Element assertion = (Element) doc.getElementsByTagNameNS(JBossSAMLURIConstants.ASSERTION_NSURI.get(), JBossSAMLConstants.ASSERTION.get()).item(0);
+        encryptAssertion(doc, assertion.getPrefix(), mockHelper);
+        String encryptedResponse = DocumentUtil.getDocumentAsString(doc);
+
+        WSFedIdentityProviderConfig config = mock(WSFedIdentityProviderConfig.class);
+        when(config.isValidateSignature()).thenReturn(true);
+        when(config.isStreamingSignatureValidation()).thenReturn(true);
+        when(config.getWsFedRealm()).thenReturn(mockHelper.getClientId());
+
+        WSFedEndpoint endpoint = new WSFedEndpoint(null, null, config, null);
+        RequestSecurityTokenResponse rstr = endpoint.streamWsfedToken(encryptedResponse);
+        Object token = rstr.getRequestedSecurityToken().getAny().get(0);
+        assertTrue(token instanceof EncryptedAssertionType);
+
+        SAML2RequestedToken rt = new SAML2RequestedToken(mockHelper.getSession(), encryptedResponse, token, mockHelper.getRealm());
+        EventBuilder event = mock(EventBuilder.class);
+        assertNull(rt.validate(mockHelper.getActiveKey().getPublicKey(), config, event, mockHelper.getSession()));
+        verify(event, never()).error(anyString());
+
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        assertNotNull(rt.validate(generator.generateKeyPair().getPublic(), config, event, mockHelper.getSession()));
+        verify(event, times(1)).error(Errors.INVALID_SIGNATURE);
+    }
+
     @Test
     public void testExpired() throws Exception {
         MockHelper mockHelper = TestHelpers.getMockHelper();
@@ -194,16 +298,45 @@ public class SAML2RequestedTokenTest {
         assertEquals(originalAssertion.getID(), decryptedAssertion.getID());
     }
 
+    @Test
+    public void testDecryptAssertionInDocument() throws Exception {
+        MockHelper mockHelper = TestHelpers.getMockHelper();
+        AssertionType originalAssertion = getSAML2RequestToken(mockHelper).getAssertionType();
+
+        Document doc = AssertionUtil.asDocument(originalAssertion);
+        encryptDocument(doc, mockHelper);
+        Element encryptedAssertion = doc.getDocumentElement();
+
+        SAML2RequestedToken rt = new SAML2RequestedToken(mockHelper.getSession(), encryptedAssertion, mockHelper.getRealm());
+        assertEquals(originalAssertion.getID(), rt.getAssertionType().getID());
+
+        //The assertion was decrypted in the document it was parsed in
+        assertEquals(JBossSAMLConstants.ASSERTION.get(), encryptedAssertion.getFirstChild().getLocalName());
+        assertEquals(originalAssertion.getID(), ((Element) encryptedAssertion.getFirstChild()).getAttribute(JBossSAMLConstants.ID.get()));
+    }
+
     protected static SAML2RequestedToken getSAML2RequestToken(MockHelper mockHelper) throws Exception {
         RequestSecurityTokenResponseBuilder builder = generateRequestSecurityTokenResponseBuilder(mockHelper);
         String wsfedResponse = builder.getStringValue();
 
-        WSFedEndpoint endpoint = new WSFedEndpoint(null, null, null, null);
+        WSFedEndpoint endpoint = new WSFedEndpoint(null, null, mock(WSFedIdentityProviderConfig.class), null);
         RequestSecurityTokenResponse rstr = endpoint.getWsfedToken(wsfedResponse);
 
         return new SAML2RequestedToken(mockHelper.getSession(), wsfedResponse, rstr.getRequestedSecurityToken().getAny().get(0), mockHelper.getRealm());
     }
 
+    protected static SAML2RequestedToken getStreamedSAML2RequestToken(MockHelper mockHelper) throws Exception {
+        RequestSecurityTokenResponseBuilder builder = generateRequestSecurityTokenResponseBuilder(mockHelper);
+        String wsfedResponse = builder.getStringValue();
+
+        WSFedEndpoint endpoint = new WSFedEndpoint(null, null, mock(WSFedIdentityProviderConfig.class), null);
+        RequestSecurityTokenResponse rstr = endpoint.streamWsfedToken(wsfedResponse);
+        Object token = rstr.getRequestedSecurityToken().getAny().get(0);
+        assertTrue(token instanceof AssertionType);
+
+        return new SAML2RequestedToken(mockHelper.getSession(), wsfedResponse, token, mockHelper.getRealm());
+    }
+
     public static RequestSecurityTokenResponseBuilder generateRequestSecurityTokenResponseBuilder(MockHelper mockHelper) throws Exception {
         mockHelper.getClientAttributes().put(WSFedSAML2AssertionTypeBuilder.SAML_FORCE_NAME_ID_FORMAT_ATTRIBUTE, "false");
         mockHelper.getClientSessionNotes().put(GeneralConstants.NAMEID_FORMAT, JBossSAMLURIConstants.NAMEID_FORMAT_EMAIL.get());
@@ -238,8 +371,13 @@ public class SAML2RequestedTokenTest {
     }
 
     protected void encryptDocument(Document samlDocument, MockHelper mockHelper) throws ProcessingException {
-        String samlNSPrefix = samlDocument.getDocumentElement().getPrefix();
+        encryptAssertion(samlDocument, samlDocument.getDocumentElement().getPrefix(), mockHelper);
+    }
 
+    /**
+     * Replaces the first assertion of the document by an EncryptedAssertion element, with the same prefix.
+     */
+    protected void encryptAssertion(Document samlDocument, String samlNSPrefix, MockHelper mockHelper) throws ProcessingException {
         try {
             QName encryptedAssertionElementQName = new QName(JBossSAMLURIConstants.ASSERTION_NSURI.get(),
                     JBossSAMLConstants.ENCRYPTED_ASSERTION.get(), samlNSPrefix);
@@ -38,6 +38,7 @@ import org.keycloak.events.EventBuilder;
 import org.keycloak.models.KeyManager;
 import org.keycloak.models.UserSessionModel;
 import org.keycloak.saml.common.ErrorCodes;
+import org.keycloak.saml.common.constants.JBossSAMLURIConstants;
 import org.keycloak.saml.common.exceptions.ConfigurationException;
 import org.keycloak.saml.common.exceptions.ParsingException;
 import org.keycloak.saml.common.exceptions.ProcessingException;
@@ -50,6 +51,7 @@ import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 import org.picketlink.identity.federation.core.wstrust.wrappers.RequestSecurityTokenResponse;
 import org.w3c.dom.Document;
+import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
@@ -57,8 +59,11 @@ import javax.ws.rs.HttpMethod;
 import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.Response;
 import javax.xml.datatype.DatatypeFactory;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
 import java.lang.reflect.Field;
 import java.net.URI;
+import java.nio.charset.StandardCharsets;
 import java.security.KeyPair;
 import java.security.KeyPairGenerator;
 import java.security.NoSuchAlgorithmException;
@@ -135,16 +140,31 @@ public class WSFedEndpointTest {
     @Test
     public void testPostBinding() {
         String action = "wa";
-        String result = "result";
+        String result = "<result a=\"b&c\"/>";
         String context = "context";
 
         doReturn(null).when(endpoint).execute(action, result, context);
 
-        endpoint.postBinding(action, result, context);
+        endpoint.postBinding(formBody("wa=wa&wresult=%3Cresult+a%3D%22b%26c%22%2F%3E&wctx=context"));
 
         verify(endpoint, times(1)).execute(eq(action), eq(result), eq(context));
     }
 
+    @Test
+    public void testPostBindingResultTooLarge() {
+        when(config.getMaxResponseSize()).thenReturn(10);
+
+        Response response = endpoint.postBinding(formBody("wa=" + WSFedConstants.WSFED_SIGNIN_ACTION + "&wresult=%3Cresult%3E12345%3C%2Fresult%3E&wctx=context"));
+        assertNotNull(response);
+
+        verify(endpoint, never()).execute(anyString(), anyString(), anyString());
+        assertErrorPage(mockHelper.getLoginFormsProvider(), Messages.INVALID_FEDERATED_IDENTITY_ACTION);
+    }
+
+    private static InputStream formBody(String body) {
+        return new ByteArrayInputStream(body.getBytes(StandardCharsets.US_ASCII));
+    }
+
     @Test
     public void testExecuteEmptySignoutAction() {
         when(config.handleEmptyActionAsLogout()).thenReturn(true);
@@ -408,7 +428,7 @@ public class WSFedEndpointTest {
         when(config.isValidateSignature()).thenReturn(true);
 
         // Use another public key when verifying signature
-        doReturn(keyPair.getPublic()).when(endpoint).getIDPKey();
+        doReturn(keyPair.getPublic()).when(endpoint).getIDPKey(any(RequestedToken.class));
 
         Response response = endpoint.handleWsFedResponse(builder.getStringValue(), builder.getContext());
 
@@ -423,7 +443,7 @@ public class WSFedEndpointTest {
         when(config.isValidateSignature()).thenReturn(true);
         when(config.getWsFedRealm()).thenReturn(mockHelper.getClientId());
 
-        doReturn(mockHelper.getActiveKey().getPublicKey()).when(endpoint).getIDPKey();
+        doReturn(mockHelper.getActiveKey().getPublicKey()).when(endpoint).getIDPKey(any(RequestedToken.class));
 
         Response success = mock(Response.class);
         doReturn(success).when(endpoint).handleLoginResponse(eq(wsfedResponse), any(RequestedToken.class), eq(builder.getContext()));
@@ -436,6 +456,23 @@ public class WSFedEndpointTest {
         verifyZeroInteractions(event);
     }
 
+    @Test
+    public void testHandleWsFedResponseReplayed() throws Exception {
+        RequestSecurityTokenResponseBuilder builder = SAML2RequestedTokenTest.generateRequestSecurityTokenResponseBuilder(mockHelper);
+        String wsfedResponse = builder.getStringValue();
+
+        Response success = mock(Response.class);
+        doReturn(success).when(endpoint).handleLoginResponse(eq(wsfedResponse), any(RequestedToken.class), eq(builder.getContext()));
+
+        assertEquals(success, endpoint.handleWsFedResponse(wsfedResponse, builder.getContext()));
+        verifyZeroInteractions(event);
+
+        Response response = endpoint.handleWsFedResponse(wsfedResponse, builder.getContext());
+        assertNotEquals(success, response);
+        verify(event, times(1)).error(Errors.INVALID_SAML_RESPONSE);
+        verify(endpoint, times(1)).handleLoginResponse(eq(wsfedResponse), any(RequestedToken.class), eq(builder.getContext()));
+    }
+
     @Test
     public void testGetIDPKey() throws Exception {
         String pem = PemUtils.encodeCertificate(mockHelper.getActiveKey().getCertificate());
@@ -446,6 +483,40 @@ public class WSFedEndpointTest {
         assertEquals(mockHelper.getActiveKey().getPublicKey(), key);
     }
 
+    @Test
+    public void testGetIDPKeyRollover() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        KeyPair keyPair = generator.generateKeyPair();
+        String nextPem = PemUtils.encodeCertificate(CertificateUtils.generateV1SelfSignedCertificate(keyPair, "next"));
+        String pem = PemUtils.encodeCertificate(mockHelper.getActiveKey().getCertificate());
+        when(config.getSigningCertificate()).thenReturn(nextPem + ",\n" + pem);
+
+        SAML2RequestedToken token = SAML2RequestedTokenTest.getSAML2RequestToken(mockHelper);
+
+        //The token is signed with the second certificate, which its KeyInfo designates
+        assertEquals(keyPair.getPublic(), endpoint.getIDPKey());
+        assertEquals(mockHelper.getActiveKey().getPublicKey(), endpoint.getIDPKey(token));
+    }
+
+    @Test
+    public void testGetIDPKeyRolloverWithoutKeyInfo() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        KeyPair keyPair = generator.generateKeyPair();
+        String nextPem = PemUtils.encodeCertificate(CertificateUtils.generateV1SelfSignedCertificate(keyPair, "next"));
+        String pem = PemUtils.encodeCertificate(mockHelper.getActiveKey().getCertificate());
+        when(config.getSigningCertificate()).thenReturn(nextPem + ",\n" + pem);
+
+        SAML2RequestedToken token = SAML2RequestedTokenTest.getSAML2RequestToken(mockHelper);
+        Element signature = token.getSignature();
+        Node keyInfo = signature.getElementsByTagNameNS(JBossSAMLURIConstants.XMLDSIG_NSURI.get(), "KeyInfo").item(0);
+        keyInfo.getParentNode().removeChild(keyInfo);
+
+        //Nothing designates the second certificate, but the signature is only valid with it
+        assertEquals(mockHelper.getActiveKey().getPublicKey(), endpoint.getIDPKey(token));
+    }
+
     @Test
     public void testGetIDPKeyInvalid() throws Exception {
         when(config.getSigningCertificate()).thenReturn("badpem");
@@ -485,6 +556,22 @@ public class WSFedEndpointTest {
         assertTrue(endpoint.hasExpired(rstr));
     }
 
+    @Test
+    public void testHasNotExpiredWithinClockSkew() throws Exception {
+        RequestSecurityTokenResponseBuilder builder = SAML2RequestedTokenTest.generateRequestSecurityTokenResponseBuilder(mockHelper);
+        RequestSecurityTokenResponse rstr = builder.build();
+
+        rstr.getLifetime().getCreated().add(DatatypeFactory.newInstance().newDuration(false, 0, 0, 0, 0, 10, 0));
+        rstr.getLifetime().getExpires().add(DatatypeFactory.newInstance().newDuration(false, 0, 0, 0, 0, 10, 0));
+        rstr.getLifetime().getExpires().add(DatatypeFactory.newInstance().newDuration(false, 0, 0, 0, 0, 0, builder.getTokenExpiration()));
+
+        when(config.getAllowedClockSkew()).thenReturn(120);
+        assertTrue(endpoint.hasExpired(rstr));
+
+        when(config.getAllowedClockSkew()).thenReturn(900);
+        assertFalse(endpoint.hasExpired(rstr));
+    }
+
     @Test
     public void testHasNotExpired() throws Exception {
         RequestSecurityTokenResponseBuilder builder = SAML2RequestedTokenTest.generateRequestSecurityTokenResponseBuilder(mockHelper);
@@ -526,6 +613,16 @@ public class WSFedEndpointTest {
         assertNotNull(rstr);
     }
 
+    @Test
+    public void testGetWsfedTokenTooDeep() throws Exception {
+        RequestSecurityTokenResponseBuilder builder = SAML2RequestedTokenTest.generateRequestSecurityTokenResponseBuilder(mockHelper);
+        String wsfedResponse = builder.getStringValue();
+        when(config.getMaxElementDepth()).thenReturn(3);
+
+        expectedException.expect(ParsingException.class);
+        endpoint.getWsfedToken(wsfedResponse);
+    }
+
     @Test
     public void testGetWsfedTokenNoCollection() throws Exception {
         RequestSecurityTokenResponseBuilder builder = SAML2RequestedTokenTest.generateRequestSecurityTokenResponseBuilder(mockHelper);
@@ -540,4 +637,17 @@ public class WSFedEndpointTest {
         RequestSecurityTokenResponse rstr = endpoint.getWsfedToken(wsfedResponse);
         assertNotNull(rstr);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testParseWsfedTokenKeepsOriginalElement() throws Exception {
+        RequestSecurityTokenResponseBuilder builder = SAML2RequestedTokenTest.generateRequestSecurityTokenResponseBuilder(mockHelper);
+        Document doc = DocumentUtil.getDocument(builder.getStringValue());
+
+        RequestSecurityTokenResponse rstr = endpoint.parseWsfedToken(doc);
+        assertNotNull(rstr);
+
+        Object token = rstr.getRequestedSecurityToken().getAny().get(0);
+        assertTrue(token instanceof Element);
+        assertSame(doc, ((Element) token).getOwnerDocument());
+    }
+}
@@ -34,6 +34,7 @@ import org.keycloak.broker.provider.util.IdentityBrokerState;
 import org.keycloak.common.util.PemUtils;
 import org.keycloak.events.EventBuilder;
 import org.keycloak.models.FederatedIdentityModel;
+import org.keycloak.models.KeycloakContext;
 import org.keycloak.services.resources.RealmsResource;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
@@ -42,6 +43,8 @@ import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 
 import javax.ws.rs.HttpMethod;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.Response;
 
 import static com.quest.keycloak.common.wsfed.TestHelpers.*;
@@ -183,4 +186,20 @@ public class WSFedIdentityProviderTest {
         node = assertNode(doc, "/ns:EntityDescriptor/ns:RoleDescriptor/fed:PassiveRequestorEndpoint/wsa:EndpointReference/wsa:Address", nsContext);
         assertEquals(identityProvider.getEndpoint(mockHelper.getUriInfo(), mockHelper.getRealm()), node.getTextContent());
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testExportNotModified() throws Exception {
+        Response response = identityProvider.export(mockHelper.getUriInfo(), mockHelper.getRealm(), null);
+        EntityTag entityTag = response.getEntityTag();
+        assertNotNull(entityTag);
+
+        HttpHeaders headers = mock(HttpHeaders.class);
+        doReturn("W/\"other\", \"" + entityTag.getValue() + "\"").when(headers).getHeaderString(HttpHeaders.IF_NONE_MATCH);
+        KeycloakContext context = mockHelper.getSession().getContext();
+        doReturn(headers).when(context).getRequestHeaders();
+
+        response = identityProvider.export(mockHelper.getUriInfo(), mockHelper.getRealm(), null);
+        assertEquals(HttpStatus.SC_NOT_MODIFIED, response.getStatus());
+        assertEquals(entityTag, response.getEntityTag());
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.common.wsfed;
+
+import com.quest.keycloak.common.wsfed.utils.MetadataTemplate;
+import org.junit.Before;
+import org.junit.Test;
+import org.keycloak.crypto.Algorithm;
+import org.keycloak.crypto.KeyUse;
+import org.keycloak.crypto.KeyWrapper;
+
+import java.util.Collections;
+import java.util.Map;
+
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class MetadataDocumentCacheTest {
+
+    private static final MetadataTemplate TEMPLATE = MetadataTemplate.load("wsfed-idp-metadata-template.xml");
+
+    private KeyWrapper key;
+
+    @Before
+    public void setUp() {
+        MockHelper mockHelper = TestHelpers.getMockHelper();
+        mockHelper.initializeMockValues();
+        key = mockHelper.getKeyManager().getActiveKey(mockHelper.getRealm(), KeyUse.SIG, Algorithm.RS256);
+    }
+
+    private MetadataDocument get(MetadataDocumentCache<String> cache, String realmId, String uri) {
+        Map<String, String> values = Collections.singletonMap("idp.entityID", uri);
+        return cache.get(realmId, uri, document -> document.isFor(key, values), () -> new MetadataDocument(TEMPLATE, key, values));
+    }
+
+    @Test
+    public void testDocumentReused() {
+        MetadataDocumentCache<String> cache = new MetadataDocumentCache<>(2);
+        MetadataDocument document = get(cache, "realm", "https://a");
+        assertSame(document, get(cache, "realm", "https://a"));
+        assertNotSame(document, get(cache, "other", "https://a"));
+    }
+
+    @Test
+    public void testDocumentsBounded() {
+        MetadataDocumentCache<String> cache = new MetadataDocumentCache<>(2);
+        MetadataDocument first = get(cache, "realm", "https://a");
+        MetadataDocument other = get(cache, "other", "https://a");
+        get(cache, "realm", "https://b");
+        assertSame(first, get(cache, "realm", "https://a"));
+
+        // a third key within the realm drops its documents, but not the ones of other realms
+        get(cache, "realm", "https://c");
+        assertNotSame(first, get(cache, "realm", "https://a"));
+        assertSame(other, get(cache, "other", "https://a"));
+    }
+
+    @Test
+    public void testInvalidate() {
+        MetadataDocumentCache<String> cache = new MetadataDocumentCache<>(4);
+        MetadataDocument a = get(cache, "realm", "https://a");
+        MetadataDocument b = get(cache, "realm", "https://b");
+        cache.invalidate("realm", uri -> uri.endsWith("a"));
+        assertNotSame(a, get(cache, "realm", "https://a"));
+        assertSame(b, get(cache, "realm", "https://b"));
+
+        cache.invalidate("realm");
+        assertNotSame(b, get(cache, "realm", "https://b"));
+    }
+}
@@ -150,6 +150,7 @@ public class MockHelper {
     }
 
     protected void initializeRealmMock() {
+        when(getRealm().getId()).thenReturn(UUID.randomUUID().toString());
         when(getRealm().getName()).thenReturn(getRealmName());
         when(getRealm().isEnabled()).thenReturn(true);
         when(getRealm().getAccessCodeLifespan()).thenReturn(getAccessCodeLifespan());
@@ -255,6 +256,7 @@ public class MockHelper {
         when(getSession().getProvider(LoginFormsProvider.class)).thenReturn(getLoginFormsProvider());
         when(getSession().getProvider(LoginFormsProvider.class).setAuthenticationSession(any())).thenReturn(getLoginFormsProvider());
         when(getSession().getKeycloakSessionFactory()).thenReturn(getSessionFactory());
+        when(getSession().getTransactionManager()).thenReturn(mock(KeycloakTransactionManager.class));
         when(getSession().users()).thenReturn(mock(UserStorageManager.class));
         when(getSession().users().getUserById(user.getId(), realm)).thenReturn(user);
         when(getSession().getProvider(StickySessionEncoderProvider.class)).thenReturn(mock(StickySessionEncoderProvider.class));
@@ -27,6 +27,7 @@ import org.w3c.dom.Document;
 import org.w3c.dom.Node;
 
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
 import javax.xml.XMLConstants;
 import javax.xml.namespace.NamespaceContext;
 import javax.xml.transform.OutputKeys;
@@ -37,7 +38,10 @@ import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
 import javax.xml.xpath.*;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateEncodingException;
@@ -131,6 +135,8 @@ public class TestHelpers {
                 return "http://www.w3.org/2005/08/addressing";
             else if ("dsig".equals(prefix))
                 return "http://www.w3.org/2000/09/xmldsig#";
+            else if ("dsig11".equals(prefix))
+                return "http://www.w3.org/2009/xmldsig11#";
             else if ("fed".equals(prefix))
                 return "http://docs.oasis-open.org/wsfed/federation/200706";
             else if ("xsi".equals(prefix))
@@ -159,7 +165,7 @@ public class TestHelpers {
     public static Document responseToDocument(Response response) throws Exception {
         assertNotNull(response);
 
-        String form = (String)response.getEntity();
+        String form = responseToString(response);
         assertNotNull(form);
 
         Document doc = DocumentUtil.getDocument(form);
@@ -168,6 +174,16 @@ public class TestHelpers {
         return doc;
     }
 
+    public static String responseToString(Response response) throws IOException {
+        Object entity = response.getEntity();
+        if (entity instanceof StreamingOutput) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ((StreamingOutput) entity).write(out);
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+        return (String) entity;
+    }
+
     public static String nodeToString(Node node) {
         StringWriter sw = new StringWriter();
         try {
@@ -89,6 +89,33 @@ public class WSFedResponseBuilderTest {
         assertInputNode(doc, WSFedConstants.WSFED_CONTEXT, "CONTEXT");
     }
 
+    @Test
+    public void testBuildStreamingResponse() throws Exception {
+        WSFedResponseBuilder builder = new WSFedResponseBuilder()
+                .setAction("ACTION")
+                .setDestination("DESTINATION")
+                .setRealm("REALM")
+                .setContext("CONTEXT")
+                .setReplyTo("REPLYTO")
+                .setMethod("METHOD");
+
+        Response response = builder.buildStreamingResponse(writer -> writer.write("<RESULT attr=\"\u00e9\"/>"));
+
+        assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+        assertEquals("no-cache", response.getMetadata().getFirst("Pragma"));
+        assertEquals("no-cache, no-store", response.getMetadata().getFirst("Cache-Control"));
+        assertEquals(builder.buildResponse("<RESULT attr=\"\u00e9\"/>").getEntity(), responseToString(response));
+
+        Document doc = responseToDocument(response);
+
+        assertFormAction(doc, "METHOD", "DESTINATION");
+        assertInputNode(doc, WSFedConstants.WSFED_ACTION, "ACTION");
+        assertInputNode(doc, WSFedConstants.WSFED_REALM, "REALM");
+        assertInputNode(doc, WSFedConstants.WSFED_RESULT, "<RESULT attr=\"\u00e9\"/>");
+        assertInputNode(doc, WSFedConstants.WSFED_REPLY, "REPLYTO");
+        assertInputNode(doc, WSFedConstants.WSFED_CONTEXT, "CONTEXT");
+    }
+
     @Test
     public void testBuildResponseEmpty() throws Exception {
         WSFedResponseBuilder builder = new WSFedResponseBuilder();
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.common.wsfed.parsers;
+
+import org.junit.Test;
+import org.picketlink.common.exceptions.ParsingException;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+
+public class ParsingLimitsTest {
+
+    private static final String XML = "<a x=\"1\" y=\"22\"><b><c/></b><b/></a>";
+
+    private static final String SAML_ATTRIBUTES = "<saml:AttributeStatement xmlns:saml=\"urn:oasis:names:tc:SAML:2.0:assertion\">"
+            + "<saml:Attribute Name=\"role\"><saml:AttributeValue>a</saml:AttributeValue><saml:AttributeValue>b</saml:AttributeValue></saml:Attribute>"
+            + "<saml:Attribute Name=\"mail\"><saml:AttributeValue>c</saml:AttributeValue></saml:Attribute>"
+            + "</saml:AttributeStatement>";
+
+    private static final String SAML11_ATTRIBUTES = "<saml:AttributeStatement xmlns:saml=\"urn:oasis:names:tc:SAML:1.0:assertion\">"
+            + "<saml:Attribute AttributeName=\"role\"><saml:AttributeValue>a</saml:AttributeValue><saml:AttributeValue>b</saml:AttributeValue></saml:Attribute>"
+            + "<saml:Attribute AttributeName=\"mail\"><saml:AttributeValue>c</saml:AttributeValue></saml:Attribute>"
+            + "</saml:AttributeStatement>";
+
+    @Test
+    public void testWithinLimits() throws Exception {
+        new ParsingLimits(XML.length(), 3, 4, 2, 2, 0, 0).check(XML);
+        ParsingLimits.DEFAULT.check(XML);
+    }
+
+    @Test(expected = ParsingException.class)
+    public void testTooLarge() throws Exception {
+        new ParsingLimits(XML.length() - 1, 0, 0, 0, 0, 0, 0).check(XML);
+    }
+
+    @Test(expected = ParsingException.class)
+    public void testTooLargeOnceEncoded() throws Exception {
+        String xml = "<a>\u00e9\u00e9\u00e9\u00e9</a>";
+        new ParsingLimits(xml.length() + 3, 0, 0, 0, 0, 0, 0).check(xml);
+    }
+
+    @Test(expected = ParsingException.class)
+    public void testTooDeep() throws Exception {
+        new ParsingLimits(0, 2, 0, 0, 0, 0, 0).check(XML);
+    }
+
+    @Test(expected = ParsingException.class)
+    public void testTooManyElements() throws Exception {
+        new ParsingLimits(0, 0, 3, 0, 0, 0, 0).check(XML);
+    }
+
+    @Test(expected = ParsingException.class)
+    public void testTooManyAttributes() throws Exception {
+        new ParsingLimits(0, 0, 0, 1, 0, 0, 0).check(XML);
+    }
+
+    @Test(expected = ParsingException.class)
+    public void testAttributeValueTooLong() throws Exception {
+        new ParsingLimits(0, 0, 0, 0, 1, 0, 0).check(XML);
+    }
+
+    @Test
+    public void testSamlAttributesWithinLimits() throws Exception {
+        new ParsingLimits(0, 0, 0, 0, 0, 2, 3).check(SAML_ATTRIBUTES);
+        new ParsingLimits(0, 0, 0, 0, 0, 2, 3).check(SAML11_ATTRIBUTES);
+    }
+
+    @Test(expected = ParsingException.class)
+    public void testTooManySamlAttributes() throws Exception {
+        new ParsingLimits(0, 0, 0, 0, 0, 1, 0).check(SAML_ATTRIBUTES);
+    }
+
+    @Test(expected = ParsingException.class)
+    public void testTooManySamlAttributeValues() throws Exception {
+        new ParsingLimits(0, 0, 0, 0, 0, 0, 2).check(SAML_ATTRIBUTES);
+    }
+
+    @Test(expected = ParsingException.class)
+    public void testTooManySaml11AttributeValues() throws Exception {
+        new ParsingLimits(0, 0, 0, 0, 0, 0, 2).check(SAML11_ATTRIBUTES);
+    }
+
+    @Test
+    public void testOtherAttributeElementsNotCounted() throws Exception {
+        new ParsingLimits(0, 0, 0, 0, 0, 1, 1).check("<a><Attribute/><Attribute><AttributeValue/><AttributeValue/></Attribute></a>");
+    }
+
+    @Test(expected = ParsingException.class)
+    public void testLimitsEnforcedWhileParsing() throws Exception {
+        String rstr = "<t:RequestSecurityTokenResponse xmlns:t=\"http://docs.oasis-open.org/ws-sx/ws-trust/200512\">"
+                + "<t:Entropy><t:BinarySecret><t:BinarySecret/></t:BinarySecret></t:Entropy>"
+                + "</t:RequestSecurityTokenResponse>";
+        new WSTrustParser(false, new ParsingLimits(0, 3, 0, 0, 0, 0, 0)).parse(new ByteArrayInputStream(rstr.getBytes(StandardCharsets.UTF_8)));
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.common.wsfed.parsers;
+
+import com.quest.keycloak.common.wsfed.utils.XMLFactories;
+import org.junit.Test;
+import org.picketlink.identity.federation.core.wstrust.wrappers.RequestSecurityTokenResponse;
+import org.picketlink.identity.federation.core.wstrust.wrappers.RequestSecurityTokenResponseCollection;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import java.io.ByteArrayInputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class WSTrustParserTest {
+
+    private static final String SAML2_NS = "urn:oasis:names:tc:SAML:2.0:assertion";
+
+    private static final String RSTR = "<t:RequestSecurityTokenResponse Context=\"ctx\" xmlns:t=\"http://schemas.xmlsoap.org/ws/2005/02/trust\">"
+            + "<t:Lifetime>"
+            + "<wsu:Created xmlns:wsu=\"http://docs.oasis-open.org/wss/2004/01/oasis-200401-wss-wssecurity-utility-1.0.xsd\">2019-01-01T00:00:00Z</wsu:Created>"
+            + "<wsu:Expires xmlns:wsu=\"http://docs.oasis-open.org/wss/2004/01/oasis-200401-wss-wssecurity-utility-1.0.xsd\">2019-01-01T01:00:00Z</wsu:Expires>"
+            + "</t:Lifetime>"
+            + "<t:Entropy><t:BinarySecret>c2VjcmV0</t:BinarySecret></t:Entropy>"
+            + "<t:RequestedProofToken><t:ComputedKey>http://schemas.xmlsoap.org/ws/2005/02/trust/CK/PSHA1</t:ComputedKey></t:RequestedProofToken>"
+            + "<t:RequestedSecurityToken>"
+            + "<saml:Assertion ID=\"_assertion\" xmlns:saml=\"" + SAML2_NS + "\"><saml:Issuer>https://idp.example.com</saml:Issuer></saml:Assertion>"
+            + "</t:RequestedSecurityToken>"
+            + "<t:TokenType>urn:oasis:names:tc:SAML:2.0:assertion</t:TokenType>"
+            + "<t:RequestType>http://schemas.xmlsoap.org/ws/2005/02/trust/Issue</t:RequestType>"
+            + "<t:KeyType>http://schemas.xmlsoap.org/ws/2005/05/identity/NoProofKey</t:KeyType>"
+            + "</t:RequestSecurityTokenResponse>";
+
+    private static RequestSecurityTokenResponse parseStream(String xml) throws Exception {
+        return (RequestSecurityTokenResponse) new WSTrustParser().parse(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static void assertResponse(RequestSecurityTokenResponse rstr) {
+        assertEquals("ctx", rstr.getContext());
+        assertEquals(URI.create("urn:oasis:names:tc:SAML:2.0:assertion"), rstr.getTokenType());
+        assertEquals(URI.create("http://schemas.xmlsoap.org/ws/2005/05/identity/NoProofKey"), rstr.getKeyType());
+        assertEquals(2019, rstr.getLifetime().getCreated().getYear());
+        assertEquals(1, rstr.getLifetime().getExpires().getHour());
+        assertNull(rstr.getEntropy());
+        assertNull(rstr.getRequestedProofToken());
+        assertEquals(1, rstr.getRequestedSecurityToken().getAny().size());
+    }
+
+    @Test
+    public void testParseDocumentKeepsTokenElement() throws Exception {
+        Document document = XMLFactories.parse(RSTR);
+        RequestSecurityTokenResponse rstr = (RequestSecurityTokenResponse) new WSTrustParser().parse(document);
+
+        assertResponse(rstr);
+        assertSame(document.getElementsByTagNameNS(SAML2_NS, "Assertion").item(0), rstr.getRequestedSecurityToken().getAny().get(0));
+    }
+
+    @Test
+    public void testParseStreamCopiesTokenElement() throws Exception {
+        RequestSecurityTokenResponse rstr = parseStream(RSTR);
+
+        assertResponse(rstr);
+        Element token = (Element) rstr.getRequestedSecurityToken().getAny().get(0);
+        assertEquals(SAML2_NS, token.getNamespaceURI());
+        assertEquals("Assertion", token.getLocalName());
+        assertEquals("_assertion", token.getAttribute("ID"));
+        assertEquals("https://idp.example.com", token.getElementsByTagNameNS(SAML2_NS, "Issuer").item(0).getTextContent());
+    }
+
+    @Test
+    public void testParseCollection() throws Exception {
+        String collection = "<trust:RequestSecurityTokenResponseCollection xmlns:trust=\"http://docs.oasis-open.org/ws-sx/ws-trust/200512\">"
+                + RSTR.replace("t:", "trust:").replace(" xmlns:t=\"http://schemas.xmlsoap.org/ws/2005/02/trust\"", "")
+                + "</trust:RequestSecurityTokenResponseCollection>";
+
+        RequestSecurityTokenResponseCollection responses = (RequestSecurityTokenResponseCollection) new WSTrustParser().parse(
+                new ByteArrayInputStream(collection.getBytes(StandardCharsets.UTF_8)));
+
+        assertEquals(1, responses.getRequestSecurityTokenResponses().size());
+        assertResponse(responses.getRequestSecurityTokenResponses().get(0));
+    }
+
+    @Test
+    public void testElementsAreMatchedOnNamespace() throws Exception {
+        String foreign = RSTR.replace("<t:KeyType>http://schemas.xmlsoap.org/ws/2005/05/identity/NoProofKey</t:KeyType>",
+                "<x:TokenType xmlns:x=\"urn:example\">urn:example:token</x:TokenType>");
+
+        RequestSecurityTokenResponse rstr = parseStream(foreign);
+
+        assertEquals(URI.create("urn:oasis:names:tc:SAML:2.0:assertion"), rstr.getTokenType());
+        assertNull(rstr.getKeyType());
+    }
+}
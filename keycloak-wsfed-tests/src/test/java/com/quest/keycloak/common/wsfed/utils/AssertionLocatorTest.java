@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.common.wsfed.utils;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class AssertionLocatorTest {
+    private static final String RSTR_COLLECTION = "<t:RequestSecurityTokenResponseCollection xmlns:t=\"http://docs.oasis-open.org/ws-sx/ws-trust/200512\">" +
+            "<t:RequestSecurityTokenResponse>" +
+            "<t:RequestedSecurityToken>" +
+            "<saml:Assertion xmlns:saml=\"urn:oasis:names:tc:SAML:2.0:assertion\" ID=\"first\"/>" +
+            "</t:RequestedSecurityToken>" +
+            "</t:RequestSecurityTokenResponse>" +
+            "</t:RequestSecurityTokenResponseCollection>";
+
+    @Test
+    public void testFindAssertionInCollection() throws Exception {
+        Document document = XMLFactories.parse(RSTR_COLLECTION);
+        Element assertion = AssertionLocator.findAssertion(document);
+
+        assertEquals("first", assertion.getAttribute("ID"));
+        assertEquals(document, assertion.getOwnerDocument());
+    }
+
+    @Test
+    public void testIgnoreAssertionOutsideRequestedToken() throws Exception {
+        Document document = XMLFactories.parse("<t:RequestSecurityTokenResponse xmlns:t=\"http://schemas.xmlsoap.org/ws/2005/02/trust\">" +
+                "<Extension><saml:Assertion xmlns:saml=\"urn:oasis:names:tc:SAML:2.0:assertion\" ID=\"injected\"/></Extension>" +
+                "</t:RequestSecurityTokenResponse>");
+
+        assertNull(AssertionLocator.findAssertion(document));
+    }
+}
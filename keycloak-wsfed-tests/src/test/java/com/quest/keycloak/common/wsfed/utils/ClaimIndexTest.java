@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.common.wsfed.utils;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.keycloak.dom.saml.v2.assertion.AssertionType;
+import org.keycloak.dom.saml.v2.assertion.AttributeStatementType;
+import org.keycloak.dom.saml.v2.assertion.AttributeType;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.saml.processing.core.saml.v2.util.XMLTimeUtil;
+import org.mockito.ArgumentCaptor;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.*;
+
+public class ClaimIndexTest {
+
+    private AssertionType assertion;
+
+    @Before
+    public void setUp() throws Exception {
+        assertion = new AssertionType("12345", XMLTimeUtil.getIssueInstant());
+        AttributeStatementType statement = new AttributeStatementType();
+        statement.addAttribute(new AttributeStatementType.ASTChoiceType(attribute("urn:oid:0.9.2342.19200300.100.1.3", "mail", "first@example.com")));
+        statement.addAttribute(new AttributeStatementType.ASTChoiceType(attribute("Role", null, "admin")));
+        statement.addAttribute(new AttributeStatementType.ASTChoiceType(attribute("Role", null, "user")));
+        statement.addAttribute(new AttributeStatementType.ASTChoiceType(attribute("http://schemas.xmlsoap.org/ws/2005/05/identity/claims/emailaddress", null, "second@example.com")));
+        assertion.addStatement(statement);
+    }
+
+    private static AttributeType attribute(String name, String friendlyName, String value) {
+        AttributeType attribute = new AttributeType(name);
+        attribute.setFriendlyName(friendlyName);
+        attribute.addAttributeValue(value);
+        return attribute;
+    }
+
+    @Test
+    public void testFindValuesOfPairsKeepsDocumentOrder() {
+        ClaimIndex index = ClaimIndex.of(assertion);
+        String claim = "http://schemas.xmlsoap.org/ws/2005/05/identity/claims/emailaddress";
+        assertEquals("first@example.com", index.findValues(new String[] {claim, null}, new String[] {null, "mail"}, a -> true).get(0));
+        assertEquals("second@example.com", index.findValues(new String[] {claim}, new String[] {null}, a -> true).get(0));
+        // a name is only matched as a name, and a friendly name as a friendly name
+        assertNull(index.findValues(new String[] {"mail", null}, new String[] {null, claim}, a -> true));
+    }
+
+    @Test
+    public void testGetFirstValueIgnoreCase() {
+        ClaimIndex index = ClaimIndex.of(assertion);
+        assertEquals("admin", index.getFirstValueIgnoreCase("role"));
+        assertNull(index.findValues("role", null, a -> true));
+        assertNull(index.getFirstValueIgnoreCase("MAIL"));
+    }
+
+    @Test
+    public void testFindValues() {
+        ClaimIndex index = ClaimIndex.of(assertion);
+        assertEquals("user", index.findValues("Role", null, a -> a.getAttributeValue().contains("user")).get(0));
+        assertEquals("first@example.com", index.findValues(null, "mail", a -> true).get(0));
+        assertEquals("first@example.com", index.findValues("urn:oid:0.9.2342.19200300.100.1.3", "mail", a -> true).get(0));
+        assertNull(index.findValues("urn:oid:0.9.2342.19200300.100.1.3", "email", a -> true));
+        assertNull(index.findValues("Role", null, a -> a.getAttributeValue().contains("guest")));
+    }
+
+    @Test
+    public void testGetSharesIndexThroughSession() {
+        KeycloakSession session = mock(KeycloakSession.class);
+        ClaimIndex index = ClaimIndex.get(session, assertion);
+
+        ArgumentCaptor<Object> stored = ArgumentCaptor.forClass(Object.class);
+        verify(session).setAttribute(anyString(), stored.capture());
+        assertSame(index, stored.getValue());
+
+        when(session.getAttribute(anyString())).thenReturn(index);
+        assertSame(index, ClaimIndex.get(session, assertion));
+
+        AssertionType other = new AssertionType("67890", XMLTimeUtil.getIssueInstant());
+        assertNotSame(index, ClaimIndex.get(session, other));
+    }
+}
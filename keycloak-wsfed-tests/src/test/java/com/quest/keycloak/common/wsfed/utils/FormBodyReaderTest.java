@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.common.wsfed.utils;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+public class FormBodyReaderTest {
+
+    private static Map<String, String> read(String body, int maxValueLength) throws IOException {
+        return FormBodyReader.read(new ByteArrayInputStream(body.getBytes(StandardCharsets.US_ASCII)), maxValueLength, "wa", "wresult", "wctx");
+    }
+
+    @Test
+    public void testReadFields() throws Exception {
+        String wresult = "<t:RequestSecurityTokenResponse a=\"b&c=d\">é€😀 +%</t:RequestSecurityTokenResponse>";
+        String body = "wa=wsignin1.0&other=x%26y&wresult=" + URLEncoder.encode(wresult, "UTF-8") + "&wctx=a%3Db%26c";
+
+        Map<String, String> form = read(body, 1000);
+        assertEquals("wsignin1.0", form.get("wa"));
+        assertEquals(wresult, form.get("wresult"));
+        assertEquals("a=b&c", form.get("wctx"));
+        assertFalse(form.containsKey("other"));
+    }
+
+    @Test
+    public void testReadLargeValue() throws Exception {
+        StringBuilder wresult = new StringBuilder();
+        while (wresult.length() < 100_000) {
+            //Characters of several bytes, split across the chunks of the reader
+            wresult.append("aé€😀");
+        }
+        Map<String, String> form = read("wresult=" + URLEncoder.encode(wresult.toString(), "UTF-8"), 1_000_000);
+        assertEquals(wresult.toString(), form.get("wresult"));
+    }
+
+    @Test
+    public void testFirstOccurrenceWins() throws Exception {
+        Map<String, String> form = read("wa=first&wa=second&wctx&wresult=", 1000);
+        assertEquals("first", form.get("wa"));
+        assertEquals("", form.get("wctx"));
+        assertEquals("", form.get("wresult"));
+    }
+
+    @Test
+    public void testMissingFields() throws Exception {
+        Map<String, String> form = read("wa=wsignout1.0", 1000);
+        assertEquals("wsignout1.0", form.get("wa"));
+        assertNull(form.get("wresult"));
+        assertNull(form.get("wctx"));
+        assertNull(read("", 1000).get("wa"));
+    }
+
+    @Test(expected = IOException.class)
+    public void testValueTooLong() throws Exception {
+        // 4 bytes once decoded from UTF-8
+        read("wresult=%C3%A9%C3%A9", 3);
+    }
+
+    @Test
+    public void testSkippedValueNotLimited() throws Exception {
+        assertEquals("ok", read("other=abcdef&wa=ok", 3).get("wa"));
+    }
+
+    @Test(expected = IOException.class)
+    public void testMalformedEscape() throws Exception {
+        read("wresult=%4", 1000);
+    }
+
+    @Test(expected = IOException.class)
+    public void testMalformedUtf8() throws Exception {
+        read("wresult=%C3%28", 1000);
+    }
+}
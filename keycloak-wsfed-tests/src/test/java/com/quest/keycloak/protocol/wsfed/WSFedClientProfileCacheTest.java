@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.protocol.wsfed;
+
+import com.quest.keycloak.common.wsfed.MockHelper;
+import com.quest.keycloak.common.wsfed.TestHelpers;
+import org.junit.Test;
+import org.keycloak.models.ClientModel;
+import org.keycloak.saml.common.constants.JBossSAMLURIConstants;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+import static com.quest.keycloak.protocol.wsfed.builders.WsFedSAMLAssertionTypeAbstractBuilder.SAML_NAME_ID_FORMAT_ATTRIBUTE;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.doReturn;
+
+public class WSFedClientProfileCacheTest {
+
+    @Test
+    public void testProfileIsCompiledOnce() throws Exception {
+        MockHelper mockHelper = TestHelpers.getMockHelper();
+        mockHelper.initializeMockValues();
+        ClientModel client = mockHelper.getClient();
+        doReturn("SAML 1.1").when(client).getAttribute(WSFedLoginProtocol.WSFED_SAML_ASSERTION_TOKEN_FORMAT);
+        doReturn("email").when(client).getAttribute(SAML_NAME_ID_FORMAT_ATTRIBUTE);
+        doReturn(new HashSet<>(Arrays.asList("https://slourl"))).when(client).getRedirectUris();
+
+        WSFedClientProfile profile = WSFedClientProfileCache.get(client);
+
+        assertSame(profile, WSFedClientProfileCache.get(client));
+        assertEquals(WsFedSAMLAssertionTokenFormat.SAML11_ASSERTION_TOKEN_FORMAT, profile.getSamlAssertionTokenFormat());
+        assertEquals(JBossSAMLURIConstants.NAMEID_FORMAT_EMAIL.get(), profile.getConfiguredNameIdFormat());
+        assertEquals("https://slourl", profile.getLogoutRedirectUri());
+        assertFalse(profile.isEncrypt());
+        assertNull(profile.getEncryptionKey());
+    }
+
+    @Test
+    public void testProfileIsRecompiledOnChange() throws Exception {
+        MockHelper mockHelper = TestHelpers.getMockHelper();
+        mockHelper.initializeMockValues();
+        ClientModel client = mockHelper.getClient();
+        doReturn("false").when(client).getAttribute(WSFedLoginProtocol.WSFED_JWT);
+
+        WSFedClientProfile profile = WSFedClientProfileCache.get(client);
+        assertFalse(profile.isUseJwt());
+
+        doReturn("true").when(client).getAttribute(WSFedLoginProtocol.WSFED_JWT);
+        WSFedClientProfile updated = WSFedClientProfileCache.get(client);
+        assertNotSame(profile, updated);
+        assertTrue(updated.isUseJwt());
+    }
+
+    @Test
+    public void testInvalidate() throws Exception {
+        MockHelper mockHelper = TestHelpers.getMockHelper();
+        mockHelper.initializeMockValues();
+        ClientModel client = mockHelper.getClient();
+
+        WSFedClientProfile profile = WSFedClientProfileCache.get(client);
+        WSFedClientProfileCache.invalidate(client.getId());
+
+        assertNotSame(profile, WSFedClientProfileCache.get(client));
+    }
+
+    @Test
+    public void testInvalidTokenFormat() throws Exception {
+        MockHelper mockHelper = TestHelpers.getMockHelper();
+        mockHelper.initializeMockValues();
+        ClientModel client = mockHelper.getClient();
+        doReturn("SAML 3.0").when(client).getAttribute(WSFedLoginProtocol.WSFED_SAML_ASSERTION_TOKEN_FORMAT);
+
+        assertEquals(WsFedSAMLAssertionTokenFormat.SAML20_ASSERTION_TOKEN_FORMAT, WSFedClientProfileCache.get(client).getSamlAssertionTokenFormat());
+    }
+}
@@ -29,6 +29,7 @@ import org.keycloak.connections.httpclient.HttpClientProvider;
 import org.keycloak.events.EventBuilder;
 import org.keycloak.models.ClientModel;
 import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakTransaction;
 import org.keycloak.models.UserSessionModel;
 import org.keycloak.protocol.LoginProtocol;
 import org.keycloak.saml.processing.core.saml.v1.SAML11Constants;
@@ -286,11 +287,14 @@ public class WSFedLoginProtocolTest {
         doReturn(200).when(sl).getStatusCode();
         doReturn(sl).when(response).getStatusLine();
         doReturn(response).when(httpClient).execute(any(HttpGet.class));
+        doReturn(new WSFedLogoutDispatcher(Runnable::run, 1000)).when(loginProtocol).getLogoutDispatcher();
 
         loginProtocol.backchannelLogout(mockHelper.getUserSessionModel(), mockHelper.getClientSessionModel());
 
         verify(sl, times(1)).getStatusCode();
         verify(response, times(0)).getFirstHeader(eq(HttpHeaders.LOCATION));
+        //The outcomes of the user session are summarized once the whole logout is over
+        verify(session.getTransactionManager(), times(1)).enlistAfterCompletion(any(KeycloakTransaction.class));
     }
 
     @Test
@@ -314,6 +318,7 @@ public class WSFedLoginProtocolTest {
         doReturn(302).when(sl).getStatusCode();
         doReturn(sl).when(response).getStatusLine();
         doReturn(response).when(httpClient).execute(any(HttpGet.class));
+        doReturn(new WSFedLogoutDispatcher(Runnable::run, 1000)).when(loginProtocol).getLogoutDispatcher();
 
         loginProtocol.backchannelLogout(mockHelper.getUserSessionModel(), mockHelper.getClientSessionModel());
 
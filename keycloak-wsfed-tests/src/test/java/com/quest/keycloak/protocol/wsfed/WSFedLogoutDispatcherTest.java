@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.protocol.wsfed;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.StatusLine;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.*;
+
+public class WSFedLogoutDispatcherTest {
+
+    private static HttpResponse mockResponse(int status) {
+        HttpResponse response = mock(HttpResponse.class);
+        StatusLine sl = mock(StatusLine.class);
+        doReturn(status).when(sl).getStatusCode();
+        doReturn(sl).when(response).getStatusLine();
+        return response;
+    }
+
+    @Test
+    public void testSuccess() throws Exception {
+        HttpClient httpClient = mock(HttpClient.class);
+        HttpResponse response = mockResponse(200);
+        doReturn(response).when(httpClient).execute(any(HttpGet.class));
+
+        WSFedLogoutDispatcher dispatcher = new WSFedLogoutDispatcher(Runnable::run, 1000);
+        assertEquals(WSFedLogoutDispatcher.Outcome.SUCCESS, dispatcher.dispatch("client", httpClient, "https://slourl").get());
+
+        ArgumentCaptor<HttpUriRequest> request = ArgumentCaptor.forClass(HttpUriRequest.class);
+        verify(httpClient).execute(request.capture());
+        assertEquals("https://slourl?wa=wsignoutcleanup1.0&wtrealm=client", request.getValue().getURI().toString());
+        assertEquals(1000, ((HttpGet) request.getValue()).getConfig().getSocketTimeout());
+    }
+
+    @Test
+    public void testFailure() throws Exception {
+        HttpClient httpClient = mock(HttpClient.class);
+        HttpResponse response = mockResponse(500);
+        doReturn(response).when(httpClient).execute(any(HttpGet.class));
+
+        WSFedLogoutDispatcher dispatcher = new WSFedLogoutDispatcher(Runnable::run, 1000);
+        assertEquals(WSFedLogoutDispatcher.Outcome.FAILED, dispatcher.dispatch("client", httpClient, "https://slourl").get());
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        HttpClient httpClient = mock(HttpClient.class);
+        doThrow(new SocketTimeoutException()).when(httpClient).execute(any(HttpGet.class));
+
+        WSFedLogoutDispatcher dispatcher = new WSFedLogoutDispatcher(Runnable::run, 1000);
+        assertEquals(WSFedLogoutDispatcher.Outcome.TIMED_OUT, dispatcher.dispatch("client", httpClient, "https://slourl").get());
+    }
+
+    @Test
+    public void testDispatchAfterShutdown() throws Exception {
+        HttpClient httpClient = mock(HttpClient.class);
+        HttpResponse response = mockResponse(200);
+        doReturn(response).when(httpClient).execute(any(HttpGet.class));
+
+        WSFedLogoutDispatcher dispatcher = new WSFedLogoutDispatcher(1, 1000);
+        dispatcher.shutdown();
+        assertEquals(WSFedLogoutDispatcher.Outcome.SUCCESS, dispatcher.dispatch("client", httpClient, "https://slourl").get(5, TimeUnit.SECONDS));
+        verify(httpClient, times(1)).execute(any(HttpGet.class));
+    }
+
+    @Test
+    public void testSlowClientDoesNotBlockOthers() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        HttpClient slowClient = mock(HttpClient.class);
+        doAnswer(invocation -> {
+            release.await(5, TimeUnit.SECONDS);
+            return mockResponse(200);
+        }).when(slowClient).execute(any(HttpGet.class));
+        HttpClient fastClient = mock(HttpClient.class);
+        HttpResponse response = mockResponse(200);
+        doReturn(response).when(fastClient).execute(any(HttpGet.class));
+
+        WSFedLogoutDispatcher dispatcher = new WSFedLogoutDispatcher(2, 1000);
+        try {
+            CompletableFuture<WSFedLogoutDispatcher.Outcome> slow = dispatcher.dispatch("slow", slowClient, "https://slow");
+            CompletableFuture<WSFedLogoutDispatcher.Outcome> fast = dispatcher.dispatch("fast", fastClient, "https://fast");
+
+            CompletableFuture<Void> summary = dispatcher.summarize("session", Arrays.asList(slow, fast));
+
+            assertEquals(WSFedLogoutDispatcher.Outcome.SUCCESS, fast.get(5, TimeUnit.SECONDS));
+            assertFalse(slow.isDone());
+            assertFalse(summary.isDone());
+
+            release.countDown();
+            assertEquals(WSFedLogoutDispatcher.Outcome.SUCCESS, slow.get(5, TimeUnit.SECONDS));
+            summary.get(5, TimeUnit.SECONDS);
+        } finally {
+            dispatcher.shutdown();
+        }
+    }
+}
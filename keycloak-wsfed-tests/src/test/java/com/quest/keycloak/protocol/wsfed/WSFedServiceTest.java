@@ -16,6 +16,7 @@
 
 package com.quest.keycloak.protocol.wsfed;
 
+import com.quest.keycloak.common.wsfed.MetadataDocument;
 import com.quest.keycloak.common.wsfed.MockHelper;
 import com.quest.keycloak.common.wsfed.TestHelpers;
 import com.quest.keycloak.common.wsfed.WSFedConstants;
@@ -36,6 +37,10 @@ import org.junit.rules.ExpectedException;
 import org.keycloak.common.ClientConnection;
 import org.keycloak.common.enums.SslRequired;
 import org.keycloak.common.util.PemUtils;
+import org.keycloak.crypto.Algorithm;
+import org.keycloak.crypto.KeyStatus;
+import org.keycloak.crypto.KeyUse;
+import org.keycloak.crypto.KeyWrapper;
 import org.keycloak.events.Errors;
 import org.keycloak.events.EventBuilder;
 import org.keycloak.models.*;
@@ -55,7 +60,14 @@ import org.w3c.dom.Node;
 import javax.ws.rs.HttpMethod;
 import javax.ws.rs.core.*;
 
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.interfaces.ECPublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.ECPoint;
 import java.util.Arrays;
+import java.util.Base64;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.UUID;
@@ -161,7 +173,12 @@ public class WSFedServiceTest {
 
     @Test
     public void testGetDescriptor() throws Exception {
-        String descriptor = service.getDescriptor();
+        Response response = service.getDescriptor();
+        assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+        assertNotNull(response.getEntityTag());
+        assertEquals(MetadataDocument.MAX_AGE, ((CacheControl) response.getMetadata().getFirst(HttpHeaders.CACHE_CONTROL)).getMaxAge());
+
+        String descriptor = (String) response.getEntity();
         Document doc = DocumentUtil.getDocument(descriptor);
 
         Element root = doc.getDocumentElement();
@@ -179,6 +196,51 @@ public class WSFedServiceTest {
         assertEquals(RealmsResource.protocolUrl(mockHelper.getUriInfo()).build(mockHelper.getRealmName(), WSFedLoginProtocol.LOGIN_PROTOCOL).toString(), node.getTextContent());
     }
 
+    @Test
+    public void testGetDescriptorEcKey() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(new ECGenParameterSpec("secp256r1"));
+        KeyPair keyPair = generator.generateKeyPair();
+        KeyWrapper ecKey = new KeyWrapper();
+        ecKey.setKid(UUID.randomUUID().toString());
+        ecKey.setAlgorithm(Algorithm.ES256);
+        ecKey.setStatus(KeyStatus.ACTIVE);
+        ecKey.setPublicKey(keyPair.getPublic());
+        ecKey.setPrivateKey(keyPair.getPrivate());
+        doReturn(Collections.singletonList(ecKey)).when(mockHelper.getKeyManager()).getKeys(eq(mockHelper.getRealm()), eq(KeyUse.SIG), eq(Algorithm.ES256));
+
+        Document doc = DocumentUtil.getDocument((String) service.getDescriptor().getEntity());
+        WSFedNamespaceContext nsContext = new WSFedNamespaceContext("urn:oasis:names:tc:SAML:2.0:metadata");
+
+        Node node = assertNode(doc, "/ns:EntityDescriptor/ns:RoleDescriptor/ns:KeyDescriptor[1]/dsig:KeyInfo/dsig:X509Data/dsig:X509Certificate", nsContext);
+        assertEquals(PemUtils.encodeCertificate(mockHelper.getActiveKey().getCertificate()), node.getTextContent().trim());
+
+        String ecKeyValue = "/ns:EntityDescriptor/ns:RoleDescriptor/ns:KeyDescriptor[2]/dsig:KeyInfo/dsig:KeyValue/dsig11:ECKeyValue";
+        node = assertNode(doc, ecKeyValue + "/dsig11:NamedCurve", nsContext);
+        assertEquals("urn:oid:1.2.840.10045.3.1.7", ((Element) node).getAttribute("URI"));
+
+        byte[] point = Base64.getDecoder().decode(assertNode(doc, ecKeyValue + "/dsig11:PublicKey", nsContext).getTextContent());
+        ECPoint w = ((ECPublicKey) keyPair.getPublic()).getW();
+        assertEquals(65, point.length);
+        assertEquals(4, point[0]);
+        assertEquals(w.getAffineX(), new BigInteger(1, Arrays.copyOfRange(point, 1, 33)));
+        assertEquals(w.getAffineY(), new BigInteger(1, Arrays.copyOfRange(point, 33, 65)));
+    }
+
+    @Test
+    public void testGetDescriptorNotModified() throws Exception {
+        EntityTag entityTag = service.getDescriptor().getEntityTag();
+
+        doReturn("\"" + entityTag.getValue() + "\"").when(headers).getHeaderString(HttpHeaders.IF_NONE_MATCH);
+        Response response = service.getDescriptor();
+        assertEquals(Response.Status.NOT_MODIFIED.getStatusCode(), response.getStatus());
+        assertNull(response.getEntity());
+        assertEquals(entityTag, response.getEntityTag());
+
+        doReturn("\"outdated\"").when(headers).getHeaderString(HttpHeaders.IF_NONE_MATCH);
+        assertEquals(Response.Status.OK.getStatusCode(), service.getDescriptor().getStatus());
+    }
+
     @Test
     public void testBasicChecksNoSsl() throws Exception {
         //Default baseUri is https so we need to change the mocks for this test
@@ -18,6 +18,7 @@ package com.quest.keycloak.protocol.wsfed.builders;
 
 import com.quest.keycloak.common.wsfed.MockHelper;
 import com.quest.keycloak.common.wsfed.TestHelpers;
+import com.quest.keycloak.protocol.wsfed.WSFedLoginProtocol;
 import com.quest.keycloak.protocol.wsfed.mappers.WSFedSAMLAttributeStatementMapper;
 import com.quest.keycloak.protocol.wsfed.mappers.WSFedSAMLRoleListMapper;
 import org.junit.Test;
@@ -26,14 +27,17 @@ import org.keycloak.dom.saml.v2.assertion.AttributeStatementType;
 import org.keycloak.dom.saml.v2.assertion.AudienceRestrictionType;
 import org.keycloak.models.AuthenticatedClientSessionModel;
 import org.keycloak.models.ProtocolMapperModel;
+import org.keycloak.models.UserModel;
 import org.keycloak.saml.common.constants.GeneralConstants;
 import org.keycloak.saml.common.constants.JBossSAMLURIConstants;
+import org.keycloak.saml.common.exceptions.ConfigurationException;
 import org.keycloak.saml.processing.core.saml.v2.util.XMLTimeUtil;
 
 import java.net.URI;
 import java.util.UUID;
 
 import static org.junit.Assert.*;
+import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.*;
 import static org.mockito.Mockito.times;
@@ -101,4 +105,47 @@ public class WSFedSAML2AssertionTypeBuilderTest {
         verify(roleListMapper, times(1)).mapRoles(org.mockito.Mockito.any(AttributeStatementType.class), eq(roleMappingModel), eq(mockHelper.getSession()), eq(mockHelper.getUserSessionModel()), eq(mockHelper.getClientSessionModel()));
         verify(attributeMapper, times(1)).transformAttributeStatement(org.mockito.Mockito.any(AttributeStatementType.class), eq(attributeMappingModel), eq(mockHelper.getSession()), eq(mockHelper.getUserSessionModel()), eq(mockHelper.getClientSessionModel()));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testPairwisePersistentNameId() throws Exception {
+        MockHelper mockHelper = TestHelpers.getMockHelper();
+        mockHelper.getClientAttributes().put(WSFedLoginProtocol.WSFED_PAIRWISE_NAME_ID, "true");
+        mockHelper.initializeMockValues();
+        doReturn("c2VjcmV0IG9mIHRoZSByZWFsbQ==").when(mockHelper.getRealm()).getAttribute(PairwiseNameIdGenerator.SECRET_ATTRIBUTE);
+
+        WSFedSAML2AssertionTypeBuilder samlBuilder = new WSFedSAML2AssertionTypeBuilder();
+        samlBuilder.setRealm(mockHelper.getRealm()).setSession(mockHelper.getSession());
+
+        String persistent = JBossSAMLURIConstants.NAMEID_FORMAT_PERSISTENT.get();
+        String nameId = samlBuilder.getNameId(persistent, mockHelper.getClientSessionModel(), mockHelper.getUserSessionModel());
+        assertTrue(nameId.startsWith("P-"));
+        assertEquals(nameId, samlBuilder.getNameId(persistent, mockHelper.getClientSessionModel(), mockHelper.getUserSessionModel()));
+        assertNotEquals(nameId, PairwiseNameIdGenerator.generate(mockHelper.getRealm(), mockHelper.getUser().getId(), "another client"));
+
+        UserModel user = mockHelper.getUser();
+        verify(user, never()).setSingleAttribute(anyString(), anyString());
+
+        // a name id stored before switching to pairwise ids is kept
+        String stored = WSFedSAML2AssertionTypeBuilder.SAML_PERSISTENT_NAME_ID_FOR + "." + mockHelper.getClientId();
+        doReturn("G-stored").when(user).getFirstAttribute(stored);
+        assertEquals("G-stored", samlBuilder.getNameId(persistent, mockHelper.getClientSessionModel(), mockHelper.getUserSessionModel()));
+    }
+
+    @Test
+    public void testPairwisePersistentNameIdWithoutSecret() throws Exception {
+        MockHelper mockHelper = TestHelpers.getMockHelper();
+        mockHelper.getClientAttributes().put(WSFedLoginProtocol.WSFED_PAIRWISE_NAME_ID, "true");
+        mockHelper.initializeMockValues();
+
+        WSFedSAML2AssertionTypeBuilder samlBuilder = new WSFedSAML2AssertionTypeBuilder();
+        samlBuilder.setRealm(mockHelper.getRealm()).setSession(mockHelper.getSession());
+
+        try {
+            samlBuilder.getNameId(JBossSAMLURIConstants.NAMEID_FORMAT_PERSISTENT.get(), mockHelper.getClientSessionModel(), mockHelper.getUserSessionModel());
+            fail("A name id was generated without a secret");
+        } catch (ConfigurationException e) {
+            // the secret is only created when the client is saved, never while signing in
+        }
+        verify(mockHelper.getRealm(), never()).setAttribute(eq(PairwiseNameIdGenerator.SECRET_ATTRIBUTE), anyString());
+    }
+}
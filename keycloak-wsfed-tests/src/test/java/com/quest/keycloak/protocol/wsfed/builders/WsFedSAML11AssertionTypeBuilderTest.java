@@ -145,6 +145,66 @@ public class WsFedSAML11AssertionTypeBuilderTest {
 
     }
 
+    @Test
+    public void testSAML11MapperWritesAttributesDirectly() throws ConfigurationException {
+        mockHelper.getClientSessionNotes().put(GeneralConstants.NAMEID_FORMAT, JBossSAMLURIConstants.NAMEID_FORMAT_UNSPECIFIED.get());
+
+        WSFedSAML11AttributeStatementMapper attributeMapper = mock(WSFedSAML11AttributeStatementMapper.class);
+        ProtocolMapperModel attributeFullName = SAMLUserFullNameAttributeStatementMapper.createAttributeMapper("SamlFullName", null, "fullName", "basic", "testClaimsNamespace", false, null);
+        attributeFullName.setId(UUID.randomUUID().toString());
+        attributeFullName.setProtocolMapper(UUID.randomUUID().toString());
+        mockHelper.getProtocolMappers().put(attributeFullName, attributeMapper);
+
+        mockHelper.initializeMockValues();
+
+        //SAML Token generation
+        WsFedSAML11AssertionTypeBuilder samlBuilder = new WsFedSAML11AssertionTypeBuilder();
+        samlBuilder.setRealm(mockHelper.getRealm())
+                .setUriInfo(mockHelper.getUriInfo())
+                .setAccessCode(mockHelper.getAccessCode())
+                .setClientSession(mockHelper.getClientSessionModel())
+                .setUserSession(mockHelper.getUserSessionModel())
+                .setSession(mockHelper.getSession());
+
+        samlBuilder.build();
+
+        verify(attributeMapper, times(1)).transformAttributeStatement(any(SAML11AttributeStatementType.class), any(SAML11AttributeTemplate.class), eq(attributeFullName), eq(mockHelper.getSession()), eq(mockHelper.getUserSessionModel()), eq(mockHelper.getClientSessionModel()));
+        verify(attributeMapper, times(0)).transformAttributeStatement(any(AttributeStatementType.class), eq(attributeFullName), eq(mockHelper.getSession()), eq(mockHelper.getUserSessionModel()), eq(mockHelper.getClientSessionModel()));
+    }
+
+    @Test
+    public void testSAMLTokenGenerationFullNameMapping() throws ConfigurationException {
+        mockHelper.getClientSessionNotes().put(GeneralConstants.NAMEID_FORMAT, JBossSAMLURIConstants.NAMEID_FORMAT_UNSPECIFIED.get());
+
+        WSFedSAMLAttributeStatementMapper fullNameMapper = new SAMLUserFullNameAttributeStatementMapper();
+        ProtocolMapperModel attributeFullName = SAMLUserFullNameAttributeStatementMapper.createAttributeMapper("SamlFullName", null, "fullName", "basic", "testClaimsNamespace", false, null);
+        attributeFullName.setId(UUID.randomUUID().toString());
+        mockHelper.getProtocolMappers().put(attributeFullName, fullNameMapper);
+
+        mockHelper.initializeMockValues();
+        when(mockHelper.getUser().getFirstName()).thenReturn("first");
+        when(mockHelper.getUser().getLastName()).thenReturn("last");
+
+        //SAML Token generation
+        WsFedSAML11AssertionTypeBuilder samlBuilder = new WsFedSAML11AssertionTypeBuilder();
+        samlBuilder.setRealm(mockHelper.getRealm())
+                .setUriInfo(mockHelper.getUriInfo())
+                .setAccessCode(mockHelper.getAccessCode())
+                .setClientSession(mockHelper.getClientSessionModel())
+                .setUserSession(mockHelper.getUserSessionModel())
+                .setSession(mockHelper.getSession());
+
+        SAML11AssertionType token = samlBuilder.build();
+
+        assertTrue(token.getStatements().get(0) instanceof SAML11AttributeStatementType);
+        SAML11AttributeStatementType attributesStatements = (SAML11AttributeStatementType)token.getStatements().get(0);
+        assertEquals(1, attributesStatements.get().size());
+        SAML11AttributeType attribute = attributesStatements.get().get(0);
+        assertEquals("fullName", attribute.getAttributeName());
+        assertEquals(URI.create("testClaimsNamespace"), attribute.getAttributeNamespace());
+        assertEquals(Collections.singletonList("first last"), attribute.get());
+    }
+
     @Test
     public  void testSAMLTokenGenerationRoleWithNamespaceInFriendlyName() throws ConfigurationException {
         mockHelper.getClientSessionNotes().put(GeneralConstants.NAMEID_FORMAT, JBossSAMLURIConstants.NAMEID_FORMAT_UNSPECIFIED.get());
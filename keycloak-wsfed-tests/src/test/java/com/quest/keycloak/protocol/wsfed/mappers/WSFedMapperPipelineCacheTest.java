@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.protocol.wsfed.mappers;
+
+import com.quest.keycloak.common.wsfed.MockHelper;
+import com.quest.keycloak.common.wsfed.TestHelpers;
+import org.junit.Test;
+import org.keycloak.models.ProtocolMapperModel;
+import org.keycloak.protocol.ProtocolMapper;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class WSFedMapperPipelineCacheTest {
+
+    private static ProtocolMapperModel mockMapperModel() {
+        ProtocolMapperModel model = mock(ProtocolMapperModel.class);
+        when(model.getId()).thenReturn(UUID.randomUUID().toString());
+        when(model.getProtocolMapper()).thenReturn(UUID.randomUUID().toString());
+        return model;
+    }
+
+    @Test
+    public void testMappersAreSorted() throws Exception {
+        MockHelper mockHelper = TestHelpers.getMockHelper();
+        ProtocolMapperModel attributeModel = mockMapperModel();
+        ProtocolMapperModel roleModel = mockMapperModel();
+        ProtocolMapperModel tokenModel = mockMapperModel();
+        mockHelper.getProtocolMappers().put(attributeModel, mock(WSFedSAMLAttributeStatementMapper.class));
+        mockHelper.getProtocolMappers().put(roleModel, mock(WSFedSAMLRoleListMapper.class));
+        mockHelper.getProtocolMappers().put(tokenModel, mock(WSFedOIDCAccessTokenMapper.class));
+        mockHelper.getProtocolMappers().put(mockMapperModel(), mock(ProtocolMapper.class));
+        mockHelper.initializeMockValues();
+
+        WSFedMapperPipeline pipeline = WSFedMapperPipelineCache.get(mockHelper.getSession(), mockHelper.getClient());
+
+        assertEquals(1, pipeline.getAttributeStatementMappers().size());
+        assertSame(attributeModel, pipeline.getAttributeStatementMappers().get(0).model);
+        assertSame(roleModel, pipeline.getRoleListMapper().model);
+        assertEquals(1, pipeline.getAccessTokenMappers().size());
+        assertSame(tokenModel, pipeline.getAccessTokenMappers().get(0).model);
+    }
+
+    @Test
+    public void testPipelineIsResolvedOnce() throws Exception {
+        MockHelper mockHelper = TestHelpers.getMockHelper();
+        ProtocolMapperModel model = mockMapperModel();
+        String providerId = model.getProtocolMapper();
+        mockHelper.getProtocolMappers().put(model, mock(WSFedSAMLAttributeStatementMapper.class));
+        mockHelper.initializeMockValues();
+
+        WSFedMapperPipeline pipeline = WSFedMapperPipelineCache.get(mockHelper.getSession(), mockHelper.getClient());
+
+        assertSame(pipeline, WSFedMapperPipelineCache.get(mockHelper.getSession(), mockHelper.getClient()));
+        verify(mockHelper.getSessionFactory(), times(1)).getProviderFactory(ProtocolMapper.class, providerId);
+    }
+
+    @Test
+    public void testPipelineIsRebuiltWhenMappersChange() throws Exception {
+        MockHelper mockHelper = TestHelpers.getMockHelper();
+        mockHelper.getProtocolMappers().put(mockMapperModel(), mock(WSFedSAMLAttributeStatementMapper.class));
+        mockHelper.initializeMockValues();
+
+        WSFedMapperPipeline pipeline = WSFedMapperPipelineCache.get(mockHelper.getSession(), mockHelper.getClient());
+        assertEquals(1, pipeline.getAttributeStatementMappers().size());
+
+        ProtocolMapperModel added = mockMapperModel();
+        String providerId = added.getProtocolMapper();
+        WSFedSAMLAttributeStatementMapper addedMapper = mock(WSFedSAMLAttributeStatementMapper.class);
+        mockHelper.getProtocolMappers().put(added, addedMapper);
+        when(mockHelper.getSessionFactory().getProviderFactory(ProtocolMapper.class, providerId)).thenReturn(addedMapper);
+
+        WSFedMapperPipeline rebuilt = WSFedMapperPipelineCache.get(mockHelper.getSession(), mockHelper.getClient());
+        assertNotSame(pipeline, rebuilt);
+        assertEquals(2, rebuilt.getAttributeStatementMappers().size());
+    }
+
+    private static ProtocolMapperModel copy(ProtocolMapperModel model, Map<String, String> config) {
+        ProtocolMapperModel copy = new ProtocolMapperModel();
+        copy.setId(model.getId());
+        copy.setName(model.getName());
+        copy.setProtocolMapper(model.getProtocolMapper());
+        copy.setConfig(config);
+        return copy;
+    }
+
+    @Test
+    public void testPipelineIsReusedForEqualModels() throws Exception {
+        MockHelper mockHelper = TestHelpers.getMockHelper();
+        ProtocolMapperModel model = mockMapperModel();
+        when(model.getConfig()).thenReturn(Collections.singletonMap("attribute.name", "mail"));
+        mockHelper.getProtocolMappers().put(model, mock(WSFedSAMLAttributeStatementMapper.class));
+        mockHelper.initializeMockValues();
+
+        WSFedMapperPipeline pipeline = WSFedMapperPipelineCache.get(mockHelper.getSession(), mockHelper.getClient());
+
+        // the realm cache hands out new model instances on each request
+        Set<ProtocolMapperModel> equal = Collections.singleton(copy(model, new HashMap<>(model.getConfig())));
+        when(mockHelper.getClient().getProtocolMappers()).thenReturn(equal);
+        assertSame(pipeline, WSFedMapperPipelineCache.get(mockHelper.getSession(), mockHelper.getClient()));
+
+        Set<ProtocolMapperModel> reconfigured = Collections.singleton(copy(model, Collections.singletonMap("attribute.name", "email")));
+        when(mockHelper.getClient().getProtocolMappers()).thenReturn(reconfigured);
+        assertNotSame(pipeline, WSFedMapperPipelineCache.get(mockHelper.getSession(), mockHelper.getClient()));
+    }
+}
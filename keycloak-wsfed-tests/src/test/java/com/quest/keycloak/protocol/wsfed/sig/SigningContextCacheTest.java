@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.protocol.wsfed.sig;
+
+import com.quest.keycloak.common.wsfed.MockHelper;
+import com.quest.keycloak.common.wsfed.TestHelpers;
+import org.junit.Test;
+import org.keycloak.common.util.Base64Url;
+import org.keycloak.crypto.Algorithm;
+import org.keycloak.crypto.KeyType;
+import org.keycloak.crypto.KeyWrapper;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.security.spec.ECGenParameterSpec;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.when;
+
+public class SigningContextCacheTest {
+
+    @Test
+    public void testContextIsReused() throws Exception {
+        MockHelper mockHelper = TestHelpers.getMockHelper();
+        mockHelper.initializeMockValues();
+
+        SigningContext context = SigningContextCache.get(mockHelper.getSession(), mockHelper.getRealm());
+
+        assertSame(context, SigningContextCache.get(mockHelper.getSession(), mockHelper.getRealm()));
+        assertEquals(mockHelper.getActiveKey().getPublicKey(), context.getKeyPair().getPublic());
+        assertEquals(mockHelper.getActiveKey().getCertificate(), context.getCertificate());
+    }
+
+    @Test
+    public void testContextIsRebuiltOnKeyRotation() throws Exception {
+        MockHelper mockHelper = TestHelpers.getMockHelper();
+        mockHelper.initializeMockValues();
+
+        SigningContext context = SigningContextCache.get(mockHelper.getSession(), mockHelper.getRealm());
+        KeyWrapper activeKey = context.getKey();
+
+        KeyWrapper rotatedKey = new KeyWrapper();
+        rotatedKey.setKid("rotated");
+        rotatedKey.setAlgorithm(activeKey.getAlgorithm());
+        rotatedKey.setPublicKey(activeKey.getPublicKey());
+        rotatedKey.setPrivateKey(activeKey.getPrivateKey());
+        rotatedKey.setCertificate(activeKey.getCertificate());
+        when(mockHelper.getKeyManager().getActiveKey(eq(mockHelper.getRealm()), any(), eq(Algorithm.RS256))).thenReturn(rotatedKey);
+
+        SigningContext rotated = SigningContextCache.get(mockHelper.getSession(), mockHelper.getRealm());
+        assertNotSame(context, rotated);
+        assertEquals("rotated", rotated.getKid());
+    }
+
+    @Test
+    public void testJwsHeaderIsReused() throws Exception {
+        MockHelper mockHelper = TestHelpers.getMockHelper();
+        mockHelper.initializeMockValues();
+
+        SigningContext context = SigningContextCache.get(mockHelper.getSession(), mockHelper.getRealm());
+        String x5t = context.getX5t();
+        assertEquals(TestHelpers.getThumbPrint(mockHelper.getActiveKey().getCertificate()), x5t);
+        assertSame(x5t, context.getX5t());
+
+        String header = context.getJwsHeader("RS256", "JWT", null, x5t);
+        assertSame(header, context.getJwsHeader("RS256", "JWT", null, x5t));
+        assertEquals("{\"typ\":\"JWT\",\"alg\":\"RS256\",\"x5t\":\"" + x5t + "\"}", new String(Base64Url.decode(header), StandardCharsets.UTF_8));
+        assertNotEquals(header, context.getJwsHeader("RS256", "JWT", null, null));
+    }
+
+    @Test
+    public void testEcdsaContext() throws Exception {
+        MockHelper mockHelper = TestHelpers.getMockHelper();
+        mockHelper.initializeMockValues();
+
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(new ECGenParameterSpec("secp256r1"));
+        KeyPair keyPair = generator.generateKeyPair();
+        KeyWrapper ecKey = new KeyWrapper();
+        ecKey.setKid("ec");
+        ecKey.setAlgorithm(Algorithm.ES256);
+        ecKey.setType(KeyType.EC);
+        ecKey.setPublicKey(keyPair.getPublic());
+        ecKey.setPrivateKey(keyPair.getPrivate());
+        when(mockHelper.getKeyManager().getActiveKey(eq(mockHelper.getRealm()), any(), eq(Algorithm.ES256))).thenReturn(ecKey);
+
+        SigningContext context = SigningContextCache.get(mockHelper.getSession(), mockHelper.getRealm(), WSFedSignatureAlgorithm.ES256);
+        assertEquals("ec", context.getKid());
+        assertNotSame(context, SigningContextCache.get(mockHelper.getSession(), mockHelper.getRealm()));
+        assertNull(context.getX5t());
+
+        SAML11Signature signature = new SAML11Signature();
+        context.configure(signature);
+        assertEquals("http://www.w3.org/2001/04/xmldsig-more#ecdsa-sha256", signature.getSignatureMethod());
+
+        byte[] data = "header.payload".getBytes(StandardCharsets.UTF_8);
+        byte[] jws = context.getJwsSigner().sign(data);
+        assertEquals(Algorithm.ES256, context.getJwsSigner().getAlgorithm());
+        assertEquals(64, jws.length);
+
+        Signature verifier = Signature.getInstance("SHA256withECDSA");
+        verifier.initVerify(keyPair.getPublic());
+        verifier.update(data);
+        assertTrue(verifier.verify(toDer(jws)));
+    }
+
+    private static byte[] toDer(byte[] concatenated) {
+        int half = concatenated.length / 2;
+        byte[] r = new BigInteger(1, Arrays.copyOfRange(concatenated, 0, half)).toByteArray();
+        byte[] s = new BigInteger(1, Arrays.copyOfRange(concatenated, half, concatenated.length)).toByteArray();
+        ByteArrayOutputStream der = new ByteArrayOutputStream();
+        der.write(0x30);
+        der.write(4 + r.length + s.length);
+        der.write(0x02);
+        der.write(r.length);
+        der.write(r, 0, r.length);
+        der.write(0x02);
+        der.write(s.length);
+        der.write(s, 0, s.length);
+        return der.toByteArray();
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.broker.wsfed;
+
+import org.keycloak.models.KeycloakSession;
+
+/**
+ * Records the assertions the broker accepted, so that an assertion posted again (replayed, or simply posted twice) is
+ * rejected before its user is imported or updated. An assertion is remembered until it expires, after which it is
+ * rejected for having expired anyway.
+ *
+ * The cache an identity provider uses is set by {@link WSFedIdentityProviderConfig#getReplayCache()}: a cache local to
+ * each node by default, or one shared by the cluster.
+ */
+public interface AssertionReplayCache {
+
+    String LOCAL = "local";
+    String CLUSTER = "cluster";
+    String DISABLED = "disabled";
+
+    /**
+     * Records an assertion, unless it is already recorded.
+     *
+     * @param key       the key of the assertion, unique per realm, identity provider and assertion
+     * @param expiresAt the time the assertion can be forgotten at, in epoch milliseconds
+     * @return true if the assertion wasn't recorded yet, false if it is replayed
+     */
+    boolean markUsed(String key, long expiresAt);
+
+    /**
+     * @return the cache the identity provider uses, or null if it doesn't check replays
+     */
+    static AssertionReplayCache forConfig(KeycloakSession session, WSFedIdentityProviderConfig config) {
+        String type = config.getReplayCache();
+        if (DISABLED.equals(type)) {
+            return null;
+        }
+        if (CLUSTER.equals(type)) {
+            return new ClusterAssertionReplayCache(session);
+        }
+        return LocalAssertionReplayCache.getInstance();
+    }
+}
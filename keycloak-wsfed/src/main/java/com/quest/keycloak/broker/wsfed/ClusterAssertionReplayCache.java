@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.broker.wsfed;
+
+import org.keycloak.common.util.Time;
+import org.keycloak.models.CodeToTokenStoreProvider;
+import org.keycloak.models.KeycloakSession;
+
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+/**
+ * Records the accepted assertions in Keycloak's single-use store (the one authorization codes are redeemed against), so
+ * that an assertion accepted by one node of the cluster is rejected by all the others.
+ */
+public class ClusterAssertionReplayCache implements AssertionReplayCache {
+
+    private final KeycloakSession session;
+
+    public ClusterAssertionReplayCache(KeycloakSession session) {
+        this.session = session;
+    }
+
+    @Override
+    public boolean markUsed(String key, long expiresAt) {
+        int lifespan = (int) Math.max(1, (expiresAt - Time.currentTimeMillis() + 999) / 1000);
+        CodeToTokenStoreProvider store = session.getProvider(CodeToTokenStoreProvider.class);
+        return store.putIfAbsent(UUID.nameUUIDFromBytes(key.getBytes(StandardCharsets.UTF_8)), lifespan);
+    }
+}
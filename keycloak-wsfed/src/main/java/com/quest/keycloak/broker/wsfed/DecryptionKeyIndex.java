@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.broker.wsfed;
+
+import com.quest.keycloak.common.wsfed.utils.KeyInfoIndex;
+import org.jboss.logging.Logger;
+import org.keycloak.crypto.Algorithm;
+import org.keycloak.crypto.KeyType;
+import org.keycloak.crypto.KeyUse;
+import org.keycloak.crypto.KeyWrapper;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.w3c.dom.Element;
+
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Finds the realm key an encrypted assertion's key was encrypted for, from the KeyInfo of its EncryptedKey, so that
+ * assertions encrypted for a key other than the active one (e.g. while the IdP hasn't picked up a key rotation yet) can
+ * still be decrypted, without trying each key in turn.
+ *
+ * The enabled RSA keys of the realm, for either use, are indexed as described in {@link KeyInfoIndex}. The index of a
+ * realm is built again once the ids or status of its keys change.
+ */
+public final class DecryptionKeyIndex {
+    private static final Logger logger = Logger.getLogger(DecryptionKeyIndex.class);
+
+    private static final ConcurrentMap<String, DecryptionKeyIndex> INDEXES = new ConcurrentHashMap<>();
+
+    private final String stamp;
+    private final KeyInfoIndex<PrivateKey> keys = new KeyInfoIndex<>();
+
+    private DecryptionKeyIndex(String stamp, List<KeyWrapper> realmKeys) {
+        this.stamp = stamp;
+        for (KeyWrapper key : realmKeys) {
+            if (isDecryptionKey(key)) {
+                keys.add(key.getKid(), (PublicKey) key.getPublicKey(), key.getCertificate(), (PrivateKey) key.getPrivateKey());
+            }
+        }
+    }
+
+    public static DecryptionKeyIndex get(KeycloakSession session, RealmModel realm) {
+        List<KeyWrapper> realmKeys = session.keys().getKeys(realm);
+        String stamp = stamp(realmKeys);
+        DecryptionKeyIndex index = INDEXES.get(realm.getId());
+        if (index != null && index.stamp.equals(stamp)) {
+            return index;
+        }
+        return INDEXES.compute(realm.getId(), (id, current) -> current != null && current.stamp.equals(stamp) ? current : new DecryptionKeyIndex(stamp, realmKeys));
+    }
+
+    public static void invalidate(String realmId) {
+        INDEXES.remove(realmId);
+    }
+
+    private static String stamp(List<KeyWrapper> realmKeys) {
+        StringBuilder stamp = new StringBuilder();
+        for (KeyWrapper key : realmKeys) {
+            stamp.append(key.getKid()).append(':').append(key.getStatus()).append(';');
+        }
+        return stamp.toString();
+    }
+
+    private static boolean isDecryptionKey(KeyWrapper key) {
+        return KeyType.RSA.equals(key.getType()) && key.getPrivateKey() instanceof PrivateKey
+                && (key.getUse() == null || key.getUse() == KeyUse.SIG || key.getUse() == KeyUse.ENC)
+                && (key.getStatus() == null || key.getStatus().isEnabled());
+    }
+
+    /**
+     * @param encryptedKey the EncryptedKey element of an encrypted assertion
+     * @return the private key designated by the KeyInfo of the EncryptedKey, or the realm's active RS256 key if the
+     * KeyInfo is missing or designates none of the realm's keys
+     */
+    public PrivateKey resolve(KeycloakSession session, RealmModel realm, Element encryptedKey) {
+        PrivateKey key = keys.resolveFrom(encryptedKey);
+        if (key != null) {
+            return key;
+        }
+        logger.debugf("No key of realm %s matches the KeyInfo of the EncryptedKey, using the active key", realm.getName());
+        return (PrivateKey) session.keys().getActiveKey(realm, KeyUse.SIG, Algorithm.RS256).getPrivateKey();
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.broker.wsfed;
+
+import org.jboss.logging.Logger;
+
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+import java.net.URI;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces the submissions of a same response the broker endpoint is processing at once, as when the auto-post form
+ * is submitted twice by the browser. The first submission (the leader) is processed as usual, while the ones that come
+ * in before it is done wait for its result instead of verifying and brokering the same assertion again, which the
+ * replay cache would then reject anyway.
+ *
+ * A submission only joins the one in flight when it posts the very same response, from the same browser (that is with
+ * the same authentication session cookie), so that a response intercepted and posted by someone else is never answered
+ * with the result of the legitimate one. Only redirects are shared, along with the cookies the leader set: the browser
+ * usually drops the response to its first submission and follows the one to its last, which must then carry the SSO
+ * cookies of the brokered session. As both submissions come from the same browser, that hands it nothing it wouldn't
+ * have received anyway. A submission that can't share the result of the leader is processed on its own.
+ */
+public final class InFlightResponses {
+    private static final Logger logger = Logger.getLogger(InFlightResponses.class);
+
+    /**
+     * How long a submission waits for the one in flight, in milliseconds
+     */
+    public static final long DEFAULT_WAIT = 10_000;
+
+    private static final ConcurrentMap<String, InFlight> IN_FLIGHT = new ConcurrentHashMap<>();
+
+    private InFlightResponses() {
+    }
+
+    /**
+     * Processes a submission, unless the same one is already in flight, in which case its result is shared.
+     *
+     * @param key           the key of the assertion, unique per realm, identity provider and assertion
+     * @param wsfedResponse the response submitted
+     * @param browser       what ties the submission to the browser it comes from, or null if there is nothing to
+     * @param waitMillis    how long to wait for the submission in flight
+     * @param work          processes the submission
+     * @param cookies       the Set-Cookie headers the work added to the HTTP response outside of the response it
+     *                      returned, read once it is done
+     */
+    public static Response coalesce(String key, String wsfedResponse, String browser, long waitMillis, Callable<Response> work,
+                                    Supplier<List<Object>> cookies) throws Exception {
+        if (browser == null) {
+            return work.call();
+        }
+
+        InFlight mine = new InFlight(wsfedResponse, browser);
+        InFlight leader = IN_FLIGHT.putIfAbsent(key, mine);
+        if (leader == null) {
+            Shared shared = null;
+            try {
+                Response response = work.call();
+                shared = new Shared(response, cookies.get());
+                return response;
+            } finally {
+                IN_FLIGHT.remove(key, mine);
+                mine.result.complete(shared);
+            }
+        }
+
+        if (leader.isSameAs(mine)) {
+            leader.followed.countDown();
+            Response shared = leader.await(waitMillis);
+            if (shared != null) {
+                logger.debugf("Sharing the result of the submission of %s in flight", key);
+                return shared;
+            }
+        }
+        return work.call();
+    }
+
+    /**
+     * Waits until a submission waits for the one in flight under the key, for tests.
+     *
+     * @return false if there was none in time
+     */
+    static boolean awaitFollower(String key, long waitMillis) throws InterruptedException {
+        InFlight inFlight = IN_FLIGHT.get(key);
+        return inFlight != null && inFlight.followed.await(waitMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private static final class Shared {
+        private final Response response;
+        private final List<Object> cookies;
+
+        private Shared(Response response, List<Object> cookies) {
+            this.response = response;
+            this.cookies = cookies;
+        }
+    }
+
+    private static final class InFlight {
+        private final String wsfedResponse;
+        private final String browser;
+        private final CompletableFuture<Shared> result = new CompletableFuture<>();
+        private final CountDownLatch followed = new CountDownLatch(1);
+
+        private InFlight(String wsfedResponse, String browser) {
+            this.wsfedResponse = wsfedResponse;
+            this.browser = browser;
+        }
+
+        private boolean isSameAs(InFlight other) {
+            return browser.equals(other.browser) && wsfedResponse.equals(other.wsfedResponse);
+        }
+
+        /**
+         * @return a copy of the redirect the leader answered with, with the cookies it set, or null if it answered with
+         * something else, failed, or didn't answer in time
+         */
+        private Response await(long waitMillis) {
+            Shared shared;
+            try {
+                shared = result.get(waitMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            } catch (ExecutionException | TimeoutException e) {
+                return null;
+            }
+            if (shared == null || shared.response == null
+                    || shared.response.getStatusInfo().getFamily() != Response.Status.Family.REDIRECTION) {
+                return null;
+            }
+            URI location = shared.response.getLocation();
+            if (location == null) {
+                return null;
+            }
+            Response.ResponseBuilder redirect = Response.status(shared.response.getStatus()).location(location);
+            addCookies(redirect, shared.response.getHeaders().get(HttpHeaders.SET_COOKIE));
+            addCookies(redirect, shared.cookies);
+            return redirect.build();
+        }
+
+        private static void addCookies(Response.ResponseBuilder redirect, List<Object> cookies) {
+            if (cookies != null) {
+                for (Object cookie : cookies) {
+                    redirect.header(HttpHeaders.SET_COOKIE, cookie);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.broker.wsfed;
+
+import org.keycloak.common.util.Time;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Keeps the assertions accepted by this node in memory, in the order they were accepted. As the assertions of an
+ * identity provider have similar lifespans, this is also roughly the order they expire in, so expired assertions are
+ * dropped from the head as new ones are recorded.
+ *
+ * The number of assertions kept is bounded: past {@link #DEFAULT_MAX_ENTRIES}, the oldest ones are forgotten before
+ * they expire.
+ */
+public final class LocalAssertionReplayCache implements AssertionReplayCache {
+
+    public static final int DEFAULT_MAX_ENTRIES = 100_000;
+
+    private static final LocalAssertionReplayCache INSTANCE = new LocalAssertionReplayCache(DEFAULT_MAX_ENTRIES);
+
+    private final int maxEntries;
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>();
+
+    LocalAssertionReplayCache(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    public static LocalAssertionReplayCache getInstance() {
+        return INSTANCE;
+    }
+
+    @Override
+    public synchronized boolean markUsed(String key, long expiresAt) {
+        long now = Time.currentTimeMillis();
+        Long expiry = entries.get(key);
+        if (expiry != null && expiry > now) {
+            return false;
+        }
+        //An expired entry is removed first, for the new one to be at the tail
+        entries.remove(key);
+        entries.put(key, expiresAt);
+        purge(now);
+        return true;
+    }
+
+    private void purge(long now) {
+        Iterator<Long> expiries = entries.values().iterator();
+        while (expiries.hasNext()) {
+            if (expiries.next() <= now || entries.size() > maxEntries) {
+                expiries.remove();
+            } else {
+                break;
+            }
+        }
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+}
@@ -16,32 +16,34 @@
 
 package com.quest.keycloak.broker.wsfed;
 
+import com.quest.keycloak.common.wsfed.utils.AssertionLocator;
+import com.quest.keycloak.common.wsfed.utils.ClaimIndex;
+import com.quest.keycloak.common.wsfed.utils.XMLFactories;
 import org.keycloak.events.EventBuilder;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.saml.common.exceptions.ProcessingException;
 import org.keycloak.saml.processing.core.util.JAXPValidationUtil;
 import org.w3c.dom.Document;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import org.xml.sax.InputSource;
+import org.w3c.dom.Element;
 import org.xml.sax.SAXException;
 
 import javax.ws.rs.core.Response;
+import javax.xml.datatype.XMLGregorianCalendar;
 import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.xpath.XPath;
-import javax.xml.xpath.XPathConstants;
-import javax.xml.xpath.XPathExpression;
 import javax.xml.xpath.XPathExpressionException;
-import javax.xml.xpath.XPathFactory;
 import java.io.IOException;
-import java.io.StringReader;
 import java.security.PublicKey;
 
 public interface RequestedToken {
     Response validate(PublicKey key, WSFedIdentityProviderConfig config, EventBuilder event, KeycloakSession session);
 
+    /**
+     * @param key the public key of the certificate the token may be signed with
+     * @return true if the signature of the token is valid with the key
+     * @throws ProcessingException if the signature can't be checked
+     */
+    boolean isSignatureValid(PublicKey key) throws ProcessingException;
+
     String getUsername();
 
     String getEmail();
@@ -56,15 +58,29 @@ public interface RequestedToken {
 
     String getLastName();
 
-    default Document createXmlDocument(String response) throws ProcessingException, ParserConfigurationException {
-        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-        factory.setNamespaceAware(true);
-        DocumentBuilder builder = factory.newDocumentBuilder();
+    /**
+     * @return the attributes of the token, indexed for the lookups of the token and of the mappers
+     */
+    ClaimIndex getClaimIndex();
+
+    /**
+     * @return the ds:Signature element of the token, or null if it isn't signed
+     */
+    Element getSignature();
+
+    /**
+     * @return the ID of the assertion
+     */
+    String getAssertionId();
 
-        InputSource source = new InputSource();
-        source.setCharacterStream(new StringReader(response));
+    /**
+     * @return the NotOnOrAfter condition of the assertion, or null if it has none
+     */
+    XMLGregorianCalendar getNotOnOrAfter();
+
+    default Document createXmlDocument(String response) throws ProcessingException, ParserConfigurationException {
         try {
-            Document document = builder.parse(source);
+            Document document = XMLFactories.parse(response);
             JAXPValidationUtil.checkSchemaValidation(document);
             return document;
         } catch (SAXException | IOException e) {
@@ -73,23 +89,12 @@ public interface RequestedToken {
     }
 
     default Document extractSamlDocument(Document document) throws ProcessingException, XPathExpressionException {
-        try {
-            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-            factory.setNamespaceAware(true);
-            XPath xpath = XPathFactory.newInstance().newXPath();
-            XPathExpression xPathExpression = xpath.compile("//*[local-name() = 'Assertion']");
-
-            NodeList samlNodes = (NodeList) xPathExpression.evaluate(document, XPathConstants.NODESET);
-            Document samlDoc = factory.newDocumentBuilder().newDocument();
-            for (int i = 0; i < samlNodes.getLength(); i++) {
-                Node node = samlNodes.item(i);
-                Node copyNode = samlDoc.importNode(node, true);
-                samlDoc.appendChild(copyNode);
-            }
-            return samlDoc;
-        } catch (XPathExpressionException | ParserConfigurationException e) {
-            throw new ProcessingException("Error while extracting SAML Assertion from WSFed XML document.");
+        Document samlDoc = XMLFactories.newDocument();
+        Element assertion = AssertionLocator.findAssertion(document);
+        if (assertion != null) {
+            samlDoc.appendChild(samlDoc.importNode(assertion, true));
         }
+        return samlDoc;
     }
 
 
@@ -18,29 +18,31 @@
 
 package com.quest.keycloak.broker.wsfed;
 
+import com.quest.keycloak.common.wsfed.parsers.DOMEventReader;
+import com.quest.keycloak.common.wsfed.utils.ClaimIndex;
 import com.quest.keycloak.protocol.wsfed.sig.SAML11Signature;
+import com.quest.keycloak.protocol.wsfed.sig.StreamingSignatureVerifier;
 import org.jboss.logging.Logger;
 import org.keycloak.dom.saml.v1.assertion.*;
 import org.keycloak.events.Errors;
 import org.keycloak.events.EventBuilder;
 import org.keycloak.events.EventType;
 import org.keycloak.models.KeycloakSession;
+import org.keycloak.saml.common.constants.JBossSAMLConstants;
 import org.keycloak.saml.common.constants.JBossSAMLURIConstants;
 import org.keycloak.saml.common.exceptions.ParsingException;
-import org.keycloak.saml.common.util.DocumentUtil;
+import org.keycloak.saml.common.exceptions.ProcessingException;
 import org.keycloak.saml.processing.core.parsers.saml.SAMLParser;
-import org.keycloak.saml.processing.core.saml.v2.util.AssertionUtil;
+import org.keycloak.saml.processing.core.saml.v1.SAML11Constants;
 import org.keycloak.services.ErrorPage;
 import org.keycloak.services.messages.Messages;
-import org.w3c.dom.Document;
 import org.w3c.dom.Element;
-import org.w3c.dom.Node;
 
 import javax.ws.rs.core.Response;
-import javax.xml.datatype.DatatypeFactory;
 import javax.xml.datatype.XMLGregorianCalendar;
-import java.io.ByteArrayInputStream;
+import javax.xml.namespace.QName;
 import java.io.IOException;
+import java.io.StringReader;
 import java.net.URI;
 import java.security.PublicKey;
 import java.util.List;
@@ -57,52 +59,103 @@ import java.util.List;
 public class SAML11RequestedToken implements RequestedToken {
     protected static final Logger logger = Logger.getLogger(SAML2RequestedToken.class);
 
+    private static final QName ASSERTION_QNAME = new QName(SAML11Constants.ASSERTION_11_NSURI, JBossSAMLConstants.ASSERTION.get());
+
     private SAML11AssertionType samlAssertion;
+    private Element assertionElement;
     private String wsfedResponse;
+    private ClaimIndex claimIndex;
+    private String subjectOrNameIdentifier;
+    private boolean subjectOrNameIdentifierFound;
+
+    /**
+     * Builds the SAMLAssertion from the passed token as the basis of the SAML11RequestedToken.
+     *
+     * @param token An object containing the SAML 1.1 assertion element, as found in the DOM of the wsfedResponse
+     * @throws IOException      Thrown if there's a problem parsing the token
+     * @throws ParsingException Thrown if there's a problem parsing the token
+     */
+    public SAML11RequestedToken(Object token) throws IOException, ParsingException {
+        this(null, token);
+    }
 
     /**
      * Builds the SAMLAssertion from the passed token as the basis of the SAML11RequestedToken.
      *
-     * @param wsfedResponse The wsfedResponse, in String format
-     * @param token         An object containing the SAML 1.1 assertion
+     * @param wsfedResponse The wsfedResponse, in String format. Only needed to validate the signature when the token
+     *                      isn't a DOM element
+     * @param token         An object containing the SAML 1.1 assertion, either as an element or as its model when the
+     *                      wsfedResponse was only streamed
      * @throws IOException      Thrown if there's a problem parsing the token
      * @throws ParsingException Thrown if there's a problem parsing the token
      */
     public SAML11RequestedToken(String wsfedResponse, Object token) throws IOException, ParsingException {
         this.wsfedResponse = wsfedResponse;
+        if (token instanceof Element) {
+            this.assertionElement = (Element) token;
+        }
         this.samlAssertion = getAssertionType(token);
     }
 
 
+    /**
+     * Validates the signature of the assertion element, in place.
+     *
+     * @param assertionElement The assertion element, within the document it was parsed in
+     * @param publicKey        The public key of the external IdP
+     * @return true if the signature is valid
+     */
     public static boolean isSignatureValid(Element assertionElement, PublicKey publicKey) {
         try {
-            Document doc = DocumentUtil.createDocument();
-            Node n = doc.importNode(assertionElement, true);
-            doc.appendChild(n);
-
-            return new SAML11Signature().validate(doc, publicKey);
+            return new SAML11Signature().validate(assertionElement, publicKey);
         } catch (Exception e) {
             logger.error("Cannot validate signature of assertion", e);
         }
         return false;
     }
 
+    /**
+     * @return true if the assertion's conditions aren't met at the time of the checker. An assertion without
+     * conditions never expires.
+     */
+    protected boolean hasExpired(ValidityChecker checker) {
+        SAML11ConditionsType conditions = samlAssertion.getConditions();
+        if (conditions == null) {
+            return false;
+        }
+        boolean expired = !checker.isValid(conditions.getNotBefore(), conditions.getNotOnOrAfter());
+        if (expired) {
+            logger.infof("Assertion %s has expired", samlAssertion.getID());
+        }
+        return expired;
+    }
+
+    /**
+     * Validates the signature of the assertion. The original element of the parsed wsfedResponse is checked where it
+     * stands, while a token which was read straight into its model is checked in a single pass over the wsfedResponse.
+     *
+     * @param key The public key of the external IdP
+     * @return true if the signature is valid
+     * @throws ProcessingException Thrown if the wsfedResponse can't be read
+     */
+    @Override
+    public boolean isSignatureValid(PublicKey key) throws ProcessingException {
+        if (assertionElement != null) {
+            return isSignatureValid(assertionElement, key);
+        }
+        return new StreamingSignatureVerifier(ASSERTION_QNAME, SAML11Constants.ASSERTIONID).validate(new StringReader(wsfedResponse), key, getAssertionId());
+    }
+
     @Override
     public Response validate(PublicKey key, WSFedIdentityProviderConfig config, EventBuilder event, KeycloakSession session) {
         try {
-            //We have to use the wsfedResponse and pull the document from it. The reason is the WSTrustParser sometimes re-organizes some attributes within the RequestedSecurityToken which breaks validation.
-            Document doc = createXmlDocument(wsfedResponse);
-            if (!isSignatureValid(extractSamlDocument(doc).getDocumentElement(), key)) {
+            if (!isSignatureValid(key)) {
                 event.event(EventType.IDENTITY_PROVIDER_RESPONSE);
                 event.error(Errors.INVALID_SIGNATURE);
                 return ErrorPage.error(session, null, Response.Status.BAD_REQUEST, Messages.INVALID_FEDERATED_IDENTITY_ACTION);
             }
 
-            XMLGregorianCalendar notBefore = samlAssertion.getConditions().getNotBefore();
-            //Add in a tiny bit of slop for small clock differences
-            notBefore.add(DatatypeFactory.newInstance().newDuration(false, 0, 0, 0, 0, 0, 10));
-
-            if (AssertionUtil.hasExpired(samlAssertion)) {
+            if (hasExpired(ValidityChecker.forConfig(config, 10))) {
                 event.event(EventType.IDENTITY_PROVIDER_RESPONSE);
                 event.error(Errors.EXPIRED_CODE);
                 return ErrorPage.error(session, null, Response.Status.BAD_REQUEST, Messages.INVALID_FEDERATED_IDENTITY_ACTION);
@@ -125,20 +178,19 @@ public class SAML11RequestedToken implements RequestedToken {
     }
 
     private String findAttribute(String attributeName, JBossSAMLURIConstants claimsName) {
-        if (samlAssertion.getStatements().isEmpty()) {
-            return null;
-        }
-        for (SAML11StatementAbstractType st : samlAssertion.getStatements()) {
-            if (st instanceof SAML11AttributeStatementType) {
-                SAML11AttributeStatementType attributeStatement = (SAML11AttributeStatementType) st;
-                for (SAML11AttributeType attribute : attributeStatement.get()) {
-                    if (!attribute.get().isEmpty() && (attributeName.equalsIgnoreCase(attribute.getAttributeName()) || claimsName.get().equalsIgnoreCase(attribute.getAttributeName()))) {
-                        return attribute.get().get(0).toString();
-                    }
-                }
-            }
+        Object value = getClaimIndex().getFirstValueIgnoreCase(attributeName, claimsName.get());
+        return value == null ? null : value.toString();
+    }
+
+    /**
+     * @return the index of the assertion's attributes, built on first use
+     */
+    @Override
+    public ClaimIndex getClaimIndex() {
+        if (claimIndex == null) {
+            claimIndex = ClaimIndex.of(samlAssertion);
         }
-        return null;
+        return claimIndex;
     }
 
     /**
@@ -204,9 +256,14 @@ public class SAML11RequestedToken implements RequestedToken {
      * @return The subject nameId or nameIdentifier from the SAML assertion
      */
     private String getSubjectOrNameIdentifier() {
-        if (samlAssertion.getStatements().isEmpty()) {
-            return null;
+        if (!subjectOrNameIdentifierFound) {
+            subjectOrNameIdentifier = findSubjectOrNameIdentifier();
+            subjectOrNameIdentifierFound = true;
         }
+        return subjectOrNameIdentifier;
+    }
+
+    private String findSubjectOrNameIdentifier() {
         for (SAML11StatementAbstractType st : samlAssertion.getStatements()) {
             if (st instanceof SAML11SubjectStatementType) {
                 SAML11SubjectStatementType subjectStatement = (SAML11SubjectStatementType) st;
@@ -297,19 +354,30 @@ public class SAML11RequestedToken implements RequestedToken {
      * @throws ParsingException Thrown if there's a problem parsing the token
      */
     private SAML11AssertionType getAssertionType(Object token) throws IOException, ParsingException {
-        SAML11AssertionType assertionType = null;
-        String assertionXml = DocumentUtil.asString(((Element) token).getOwnerDocument());
-
-        try (ByteArrayInputStream bis = new ByteArrayInputStream(assertionXml.getBytes())) {
-            SAMLParser parser = SAMLParser.getInstance();
-            Object assertion = parser.parse(bis);
-
-            assertionType = (SAML11AssertionType) assertion;
-            return assertionType;
+        if (!(token instanceof Element)) {
+            return (SAML11AssertionType) token;
         }
+        SAMLParser parser = SAMLParser.getInstance();
+        return (SAML11AssertionType) parser.parse(new DOMEventReader((Element) token));
     }
 
     public SAML11AssertionType getAssertionType() {
         return samlAssertion;
     }
+
+    @Override
+    public Element getSignature() {
+        return samlAssertion.getSignature();
+    }
+
+    @Override
+    public String getAssertionId() {
+        return samlAssertion.getID();
+    }
+
+    @Override
+    public XMLGregorianCalendar getNotOnOrAfter() {
+        SAML11ConditionsType conditions = samlAssertion.getConditions();
+        return conditions == null ? null : conditions.getNotOnOrAfter();
+    }
 }
@@ -16,14 +16,19 @@
 
 package com.quest.keycloak.broker.wsfed;
 
+import com.quest.keycloak.common.wsfed.parsers.DOMEventReader;
+import com.quest.keycloak.common.wsfed.utils.ClaimIndex;
+import com.quest.keycloak.protocol.wsfed.sig.SAML2SignatureProxy;
+import com.quest.keycloak.protocol.wsfed.sig.StreamingSignatureVerifier;
+import org.apache.xml.security.encryption.EncryptedData;
+import org.apache.xml.security.encryption.EncryptedKey;
+import org.apache.xml.security.encryption.XMLCipher;
+import org.apache.xml.security.utils.EncryptionConstants;
 import org.jboss.logging.Logger;
-import org.keycloak.crypto.Algorithm;
-import org.keycloak.crypto.KeyUse;
 import org.keycloak.dom.saml.v2.assertion.AssertionType;
-import org.keycloak.dom.saml.v2.assertion.AttributeStatementType;
-import org.keycloak.dom.saml.v2.assertion.AttributeType;
 import org.keycloak.dom.saml.v2.assertion.AudienceRestrictionType;
 import org.keycloak.dom.saml.v2.assertion.ConditionAbstractType;
+import org.keycloak.dom.saml.v2.assertion.ConditionsType;
 import org.keycloak.dom.saml.v2.assertion.EncryptedAssertionType;
 import org.keycloak.dom.saml.v2.assertion.NameIDType;
 import org.keycloak.dom.saml.v2.assertion.SubjectType;
@@ -38,13 +43,10 @@ import org.keycloak.saml.common.exceptions.ConfigurationException;
 import org.keycloak.saml.common.exceptions.ParsingException;
 import org.keycloak.saml.common.exceptions.ProcessingException;
 import org.keycloak.saml.common.util.DocumentUtil;
-import org.keycloak.saml.common.util.StaxParserUtil;
 import org.keycloak.saml.processing.api.saml.v2.response.SAML2Response;
 import org.keycloak.saml.processing.core.parsers.saml.SAMLParser;
 import org.keycloak.saml.processing.core.saml.v2.constants.X500SAMLProfileConstants;
-import org.keycloak.saml.processing.core.saml.v2.util.AssertionUtil;
 import org.keycloak.saml.processing.core.util.JAXPValidationUtil;
-import org.keycloak.saml.processing.core.util.XMLEncryptionUtil;
 import org.keycloak.services.ErrorPage;
 import org.keycloak.services.messages.Messages;
 import org.w3c.dom.Document;
@@ -52,12 +54,12 @@ import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 
 import javax.ws.rs.core.Response;
-import javax.xml.datatype.DatatypeFactory;
 import javax.xml.datatype.XMLGregorianCalendar;
 import javax.xml.namespace.QName;
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.StringReader;
 import java.net.URI;
+import java.security.Key;
 import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.util.List;
@@ -68,34 +70,58 @@ import java.util.List;
 public class SAML2RequestedToken implements RequestedToken {
     private NameIDType subjectNameID;
     protected static final Logger logger = Logger.getLogger(SAML2RequestedToken.class);
+    private static final QName ASSERTION_QNAME = new QName(JBossSAMLURIConstants.ASSERTION_NSURI.get(), JBossSAMLConstants.ASSERTION.get());
     private AssertionType saml2Assertion;
+    private Element assertionElement;
     private String wsfedResponse;
     private KeycloakSession session;
+    private ClaimIndex claimIndex;
 
+    static {
+        //XMLCipher needs the XML Security library to be initialized
+        org.apache.xml.security.Init.init();
+    }
+
+    /**
+     * @param session The keycloak session
+     * @param token   The assertion element, as found in the DOM of the wsfedResponse
+     * @param realm   The realm, whose keys are used to decrypt an encrypted assertion
+     */
+    public SAML2RequestedToken(KeycloakSession session, Object token, RealmModel realm) throws IOException, ParsingException, ProcessingException, ConfigurationException {
+        this(session, null, token, realm);
+    }
+
+    /**
+     * @param session       The keycloak session
+     * @param wsfedResponse The wsfedResponse, only needed to validate the signature when the token isn't a DOM element
+     * @param token         The assertion element, or the assertion model when the wsfedResponse was only streamed
+     * @param realm         The realm, whose keys are used to decrypt an encrypted assertion
+     */
     public SAML2RequestedToken(KeycloakSession session, String wsfedResponse, Object token, RealmModel realm) throws IOException, ParsingException, ProcessingException, ConfigurationException {
-        this.wsfedResponse = wsfedResponse;
         this.session = session;
+        this.wsfedResponse = wsfedResponse;
+        if (token instanceof Element) {
+            Element element = (Element) token;
+            if (isEncryptedAssertion(element)) {
+                //Decrypted where it stands, so that the signature of the assertion can be checked in the same document
+                element = decryptAssertionElement(element, realm);
+                token = element;
+            }
+            this.assertionElement = element;
+        }
         this.saml2Assertion = getAssertionType(token, realm);
     }
 
     @Override
     public Response validate(PublicKey key, WSFedIdentityProviderConfig config, EventBuilder event, KeycloakSession session) {
         try {
-            //We have to use the wsfedResponse and pull the document from it. The reason is the WSTrustParser sometimes re-organizes some attributes within the RequestedSecurityToken which breaks validation.
-            Document doc = createXmlDocument(wsfedResponse);
-            logger.tracef("wsfedResponse [%s].", wsfedResponse);
-
-            if(!AssertionUtil.isSignatureValid(extractSamlDocument(doc).getDocumentElement(), key)) {
+            if(!isSignatureValid(key)) {
                 event.event(EventType.IDENTITY_PROVIDER_RESPONSE);
                 event.error(Errors.INVALID_SIGNATURE);
                 return ErrorPage.error(session, null, Response.Status.BAD_REQUEST, Messages.INVALID_FEDERATED_IDENTITY_ACTION);
             }
 
-            XMLGregorianCalendar notBefore = saml2Assertion.getConditions().getNotBefore();
-            //Add in a tiny bit of slop for small clock differences
-            notBefore.add(DatatypeFactory.newInstance().newDuration(false, 0, 0, 0, 0, 0, 10));
-
-            if(AssertionUtil.hasExpired(saml2Assertion)) {
+            if (hasExpired(ValidityChecker.forConfig(config, 10))) {
                 event.event(EventType.IDENTITY_PROVIDER_RESPONSE);
                 event.error(Errors.EXPIRED_CODE);
                 return ErrorPage.error(session, null, Response.Status.BAD_REQUEST, Messages.INVALID_FEDERATED_IDENTITY_ACTION);
@@ -117,6 +143,33 @@ public class SAML2RequestedToken implements RequestedToken {
         return null;
     }
 
+    /**
+     * @return true if the assertion's conditions aren't met at the time of the checker. An assertion without
+     * conditions never expires.
+     */
+    protected boolean hasExpired(ValidityChecker checker) {
+        ConditionsType conditions = saml2Assertion.getConditions();
+        if (conditions == null) {
+            return false;
+        }
+        boolean expired = !checker.isValid(conditions.getNotBefore(), conditions.getNotOnOrAfter());
+        if (expired) {
+            logger.infof("Assertion %s has expired", saml2Assertion.getID());
+        }
+        return expired;
+    }
+
+    @Override
+    public boolean isSignatureValid(PublicKey key) throws ProcessingException {
+        if (assertionElement != null) {
+            //The token is the original element of the parsed wsfedResponse, or the one decrypted from a streamed
+            //encrypted assertion, so its signature can be checked where it stands
+            return new SAML2SignatureProxy().validate(assertionElement, key);
+        }
+        //The token was read straight into its model, so the signature is checked in a single pass over the wsfedResponse
+        return new StreamingSignatureVerifier(ASSERTION_QNAME, JBossSAMLConstants.ID.get()).validate(new StringReader(wsfedResponse), key, getAssertionId());
+    }
+
     public boolean isValidAudienceRestriction(URI...uris) {
         List<URI> audienceRestriction = getAudienceRestrictions();
 
@@ -179,23 +232,23 @@ public class SAML2RequestedToken implements RequestedToken {
             return subjectNameID.getValue();
         }
 
-        if (saml2Assertion.getAttributeStatements() == null ) {
-            return null;
-        }
-        for (AttributeStatementType attrStatement : saml2Assertion.getAttributeStatements()) {
-            for (AttributeStatementType.ASTChoiceType choice : attrStatement.getAttributes()) {
-                AttributeType attribute = choice.getAttribute();
-                if (X500SAMLProfileConstants.EMAIL.getFriendlyName().equals(attribute.getFriendlyName())
-                        || X500SAMLProfileConstants.EMAIL.get().equals(attribute.getName())
-                        || "http://schemas.xmlsoap.org/ws/2005/05/identity/claims/emailaddress".equals(attribute.getName())) {
-                    if (!attribute.getAttributeValue().isEmpty()) {
-                        return attribute.getAttributeValue().get(0).toString();
-                    }
-                }
-            }
-        }
+        //The X500 attribute is matched by its friendly name or its name, the WS-Federation claim by its name only
+        List<Object> email = getClaimIndex().findValues(
+                new String[] {null, X500SAMLProfileConstants.EMAIL.get(), JBossSAMLURIConstants.CLAIMS_EMAIL_ADDRESS_2005.get()},
+                new String[] {X500SAMLProfileConstants.EMAIL.getFriendlyName(), null, null},
+                attribute -> !attribute.getAttributeValue().isEmpty());
+        return email == null ? null : email.get(0).toString();
+    }
 
-        return null;
+    /**
+     * @return the index of the assertion's attributes, which is shared through the session with the mappers
+     */
+    @Override
+    public ClaimIndex getClaimIndex() {
+        if (claimIndex == null) {
+            claimIndex = ClaimIndex.get(session, saml2Assertion);
+        }
+        return claimIndex;
     }
 
     @Override
@@ -210,25 +263,90 @@ public class SAML2RequestedToken implements RequestedToken {
     }
 
     public AssertionType getAssertionType(Object token, RealmModel realm) throws IOException, ParsingException, ProcessingException, ConfigurationException {
-        AssertionType assertionType =  null;
-        SAMLParser parser = SAMLParser.getInstance();
-        String assertionXml = DocumentUtil.asString(((Element) token).getOwnerDocument());
-
-        try (ByteArrayInputStream bis = new ByteArrayInputStream(assertionXml.getBytes())) {
-            Object assertion = parser.parse(bis);
-
-            if (assertion instanceof EncryptedAssertionType) {
-                PrivateKey privateKey = (PrivateKey)session.keys().getActiveKey(realm, KeyUse.SIG, Algorithm.RS256).getPrivateKey();
-                assertionType = decryptAssertion((EncryptedAssertionType) assertion, privateKey);
-            } else {
-                assertionType = (AssertionType) assertion;
+        if (token instanceof Element) {
+            Element element = (Element) token;
+            if (isEncryptedAssertion(element)) {
+                element = decryptAssertionElement(element, realm);
             }
+            return (AssertionType) SAMLParser.getInstance().parse(new DOMEventReader(element));
+        }
+
+        if (token instanceof EncryptedAssertionType) {
+            return decryptAssertion((EncryptedAssertionType) token, realm);
+        }
+        return (AssertionType) token;
+    }
+
+    private static boolean isEncryptedAssertion(Element element) {
+        return JBossSAMLConstants.ENCRYPTED_ASSERTION.get().equals(element.getLocalName());
+    }
+
+    /**
+     * Decrypts an EncryptedAssertion element in its own document: the EncryptedData element is replaced by the
+     * assertion it holds, which is then validated against the schema. The realm key to decrypt with is the one designated
+     * by the KeyInfo of the EncryptedKey, see {@link DecryptionKeyIndex}.
+     *
+     * @param encryptedAssertion The EncryptedAssertion element, within the document it was parsed in
+     * @param realm              The realm, whose keys are used to decrypt the assertion
+     * @return the decrypted assertion element, now a child of the EncryptedAssertion element
+     */
+    protected Element decryptAssertionElement(Element encryptedAssertion, RealmModel realm) throws ProcessingException {
+        Element encryptedDataElement = getChildElement(encryptedAssertion, EncryptionConstants.EncryptionSpecNS, EncryptionConstants._TAG_ENCRYPTEDDATA);
+        if (encryptedDataElement == null) {
+            throw new ProcessingException("No EncryptedData element in the encrypted assertion");
+        }
+        //The EncryptedKey is either a sibling of the EncryptedData, or in its KeyInfo
+        Element encryptedKeyElement = getChildElement(encryptedAssertion, EncryptionConstants.EncryptionSpecNS, EncryptionConstants._TAG_ENCRYPTEDKEY);
+        if (encryptedKeyElement == null) {
+            encryptedKeyElement = (Element) encryptedDataElement.getElementsByTagNameNS(EncryptionConstants.EncryptionSpecNS, EncryptionConstants._TAG_ENCRYPTEDKEY).item(0);
+        }
+        if (encryptedKeyElement == null) {
+            throw new ProcessingException("No EncryptedKey element in the encrypted assertion");
+        }
+
+        PrivateKey privateKey = DecryptionKeyIndex.get(session, realm).resolve(session, realm, encryptedKeyElement);
+        Document document = encryptedAssertion.getOwnerDocument();
+        try {
+            XMLCipher cipher = XMLCipher.getInstance();
+            cipher.init(XMLCipher.DECRYPT_MODE, null);
+            EncryptedData encryptedData = cipher.loadEncryptedData(document, encryptedDataElement);
+            EncryptedKey encryptedKey = cipher.loadEncryptedKey(document, encryptedKeyElement);
+
+            XMLCipher keyCipher = XMLCipher.getInstance();
+            keyCipher.init(XMLCipher.UNWRAP_MODE, privateKey);
+            Key key = keyCipher.decryptKey(encryptedKey, encryptedData.getEncryptionMethod().getAlgorithm());
+
+            cipher = XMLCipher.getInstance();
+            cipher.init(XMLCipher.DECRYPT_MODE, key);
+            cipher.doFinal(document, encryptedDataElement);
+        } catch (Exception e) {
+            throw new ProcessingException("Failed to decrypt the assertion", e);
+        }
+
+        Element assertion = getChildElement(encryptedAssertion, JBossSAMLURIConstants.ASSERTION_NSURI.get(), JBossSAMLConstants.ASSERTION.get());
+        if (assertion == null) {
+            throw new ProcessingException("The encrypted assertion doesn't hold an assertion");
+        }
+        JAXPValidationUtil.checkSchemaValidation(assertion);
+        return assertion;
+    }
 
-            return assertionType;
+    private static Element getChildElement(Element parent, String namespace, String localName) {
+        for (Node child = parent.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (child.getNodeType() == Node.ELEMENT_NODE && localName.equals(child.getLocalName()) && namespace.equals(child.getNamespaceURI())) {
+                return (Element) child;
+            }
         }
+        return null;
     }
 
-    protected AssertionType decryptAssertion(EncryptedAssertionType encryptedAssertion, PrivateKey privateKey) throws ParsingException, ProcessingException, ConfigurationException {
+    /**
+     * Decrypts an assertion which was read straight into its model, when the wsfedResponse was only streamed: it is
+     * converted to a document, to be decrypted as the element of a parsed wsfedResponse would be. The wsfedResponse
+     * only holds the encrypted assertion, so the signature is then checked on the decrypted element rather than by
+     * streaming over the wsfedResponse.
+     */
+    protected AssertionType decryptAssertion(EncryptedAssertionType encryptedAssertion, RealmModel realm) throws ParsingException, ProcessingException, ConfigurationException {
         SAML2Response saml2Response = new SAML2Response();
         Document doc = saml2Response.convert(encryptedAssertion);
         Element enc = DocumentUtil.getElement(doc, new QName(JBossSAMLConstants.ENCRYPTED_ASSERTION.get()));
@@ -237,21 +355,31 @@ public class SAML2RequestedToken implements RequestedToken {
             return null;
         }
 
-        Document newDoc = DocumentUtil.createDocument();
-        Node importedNode = newDoc.importNode(enc, true);
-        newDoc.appendChild(importedNode);
-
-        Element decryptedDocumentElement = XMLEncryptionUtil.decryptElementInDocument(newDoc, privateKey);
-        SAMLParser parser = SAMLParser.getInstance();
-
-        JAXPValidationUtil.checkSchemaValidation(decryptedDocumentElement);
-        return (AssertionType) parser.parse(StaxParserUtil.getXMLEventReader(DocumentUtil.getNodeAsStream(decryptedDocumentElement)));
+        Element decryptedElement = decryptAssertionElement(enc, realm);
+        this.assertionElement = decryptedElement;
+        return (AssertionType) SAMLParser.getInstance().parse(new DOMEventReader(decryptedElement));
     }
 
     public AssertionType getAssertionType() {
         return saml2Assertion;
     }
 
+    @Override
+    public Element getSignature() {
+        return saml2Assertion.getSignature();
+    }
+
+    @Override
+    public String getAssertionId() {
+        return saml2Assertion.getID();
+    }
+
+    @Override
+    public XMLGregorianCalendar getNotOnOrAfter() {
+        ConditionsType conditions = saml2Assertion.getConditions();
+        return conditions == null ? null : conditions.getNotOnOrAfter();
+    }
+
     @Override
     public Object getToken() { return saml2Assertion; }
 }
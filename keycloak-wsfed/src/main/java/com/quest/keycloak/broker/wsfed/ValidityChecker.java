@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.broker.wsfed;
+
+import org.jboss.logging.Logger;
+import org.keycloak.common.util.Time;
+
+import javax.xml.datatype.DatatypeConstants;
+import javax.xml.datatype.XMLGregorianCalendar;
+import java.time.DateTimeException;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+
+/**
+ * Checks validity periods (the Lifetime of an RSTR, the Conditions of an assertion) against the time the checker was
+ * created at. The bounds are converted to epoch milliseconds and compared as such, rather than with
+ * {@link XMLGregorianCalendar} arithmetic, and the parsed values are left untouched.
+ *
+ * A period is valid if {@code notBefore - notBeforeSkew <= now < notOnOrAfter + notOnOrAfterSkew}; a missing bound
+ * isn't checked.
+ */
+public final class ValidityChecker {
+    private static final Logger logger = Logger.getLogger(ValidityChecker.class);
+
+    private final long now;
+    private final long notBeforeSkew;
+    private final long notOnOrAfterSkew;
+
+    /**
+     * @param notBeforeSkew how early a period may start, in milliseconds
+     * @param notOnOrAfterSkew how long a period may have ended already, in milliseconds
+     */
+    public ValidityChecker(long notBeforeSkew, long notOnOrAfterSkew) {
+        this.now = Time.currentTimeMillis();
+        this.notBeforeSkew = notBeforeSkew;
+        this.notOnOrAfterSkew = notOnOrAfterSkew;
+    }
+
+    /**
+     * Uses the clock skew of the identity provider for both bounds. When the identity provider has none configured,
+     * only the start of the period gets the given tolerance.
+     *
+     * @param defaultNotBeforeSkew the tolerance on the start of the period if none is configured, in seconds
+     */
+    public static ValidityChecker forConfig(WSFedIdentityProviderConfig config, int defaultNotBeforeSkew) {
+        int skew = config.getAllowedClockSkew();
+        if (skew < 0) {
+            return new ValidityChecker(defaultNotBeforeSkew * 1000L, 0);
+        }
+        return new ValidityChecker(skew * 1000L, skew * 1000L);
+    }
+
+    public long getNow() {
+        return now;
+    }
+
+    public boolean isValid(XMLGregorianCalendar notBefore, XMLGregorianCalendar notOnOrAfter) {
+        long start = notBefore == null ? Long.MIN_VALUE : toEpochMillis(notBefore) - notBeforeSkew;
+        long end = notOnOrAfter == null ? Long.MAX_VALUE : toEpochMillis(notOnOrAfter) + notOnOrAfterSkew;
+        if (logger.isTraceEnabled()) {
+            logger.tracef("Validity check: now=%d notBefore=%s notOnOrAfter=%s", now,
+                    notBefore == null ? null : notBefore.toXMLFormat(), notOnOrAfter == null ? null : notOnOrAfter.toXMLFormat());
+        }
+        return start <= now && now < end;
+    }
+
+    /**
+     * @return the end of a period, skew included, in epoch milliseconds
+     */
+    public long getEnd(XMLGregorianCalendar notOnOrAfter) {
+        return toEpochMillis(notOnOrAfter) + notOnOrAfterSkew;
+    }
+
+    /**
+     * Converts a dateTime to epoch milliseconds. A dateTime without a timezone is taken to be in UTC.
+     */
+    public static long toEpochMillis(XMLGregorianCalendar calendar) {
+        int timezone = calendar.getTimezone();
+        int millisecond = calendar.getMillisecond();
+        try {
+            if (calendar.getYear() != DatatypeConstants.FIELD_UNDEFINED && calendar.getHour() != DatatypeConstants.FIELD_UNDEFINED) {
+                long seconds = LocalDateTime.of(calendar.getYear(), calendar.getMonth(), calendar.getDay(),
+                        calendar.getHour(), calendar.getMinute(), calendar.getSecond())
+                        .toEpochSecond(timezone == DatatypeConstants.FIELD_UNDEFINED ? ZoneOffset.UTC : ZoneOffset.ofTotalSeconds(timezone * 60));
+                return seconds * 1000 + (millisecond == DatatypeConstants.FIELD_UNDEFINED ? 0 : millisecond);
+            }
+        } catch (DateTimeException e) {
+            // e.g. 24:00:00, left to the calendar below
+        }
+        return calendar.toGregorianCalendar().getTimeInMillis();
+    }
+}
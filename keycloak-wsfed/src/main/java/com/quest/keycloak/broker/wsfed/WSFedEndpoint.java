@@ -19,13 +19,19 @@ package com.quest.keycloak.broker.wsfed;
 
 import com.quest.keycloak.common.wsfed.WSFedConstants;
 import com.quest.keycloak.common.wsfed.builders.WSFedResponseBuilder;
+import com.quest.keycloak.common.wsfed.parsers.ParsingLimits;
 import com.quest.keycloak.common.wsfed.parsers.WSTrustParser;
+import com.quest.keycloak.common.wsfed.utils.FormBodyReader;
 import com.quest.keycloak.common.wsfed.utils.WSFedValidator;
+import com.quest.keycloak.common.wsfed.utils.XMLFactories;
 import org.jboss.logging.Logger;
+import org.jboss.resteasy.spi.HttpResponse;
+import org.jboss.resteasy.spi.ResteasyProviderFactory;
 import org.keycloak.broker.provider.BrokeredIdentityContext;
 import org.keycloak.broker.provider.IdentityBrokerException;
 import org.keycloak.broker.provider.IdentityProvider;
 import org.keycloak.common.ClientConnection;
+import org.keycloak.events.Details;
 import org.keycloak.events.Errors;
 import org.keycloak.events.EventBuilder;
 import org.keycloak.events.EventType;
@@ -37,10 +43,10 @@ import org.keycloak.saml.common.exceptions.NotImplementedException;
 import org.keycloak.saml.common.exceptions.ParsingException;
 import org.keycloak.saml.common.exceptions.ProcessingException;
 import org.keycloak.saml.common.util.StringUtil;
-import org.keycloak.saml.processing.core.saml.v2.util.XMLTimeUtil;
-import org.keycloak.saml.processing.core.util.XMLSignatureUtil;
+import org.keycloak.saml.processing.core.util.JAXPValidationUtil;
 import org.keycloak.services.ErrorPage;
 import org.keycloak.services.managers.AuthenticationManager;
+import org.keycloak.services.managers.AuthenticationSessionManager;
 import org.keycloak.services.managers.ClientSessionCode;
 import org.keycloak.services.messages.Messages;
 import org.keycloak.sessions.AuthenticationSessionModel;
@@ -48,19 +54,20 @@ import org.keycloak.sessions.CommonClientSessionModel;
 import org.picketlink.identity.federation.core.wstrust.wrappers.Lifetime;
 import org.picketlink.identity.federation.core.wstrust.wrappers.RequestSecurityTokenResponse;
 import org.picketlink.identity.federation.core.wstrust.wrappers.RequestSecurityTokenResponseCollection;
+import org.w3c.dom.Document;
 
 import javax.ws.rs.*;
 import javax.ws.rs.core.*;
-import javax.xml.datatype.DatatypeConfigurationException;
-import javax.xml.datatype.DatatypeFactory;
 import javax.xml.datatype.XMLGregorianCalendar;
-import java.io.ByteArrayInputStream;
+import javax.xml.stream.XMLStreamReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
 import java.net.URI;
 import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
 import java.security.PublicKey;
-import java.security.cert.X509Certificate;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -72,6 +79,10 @@ import java.util.Map;
 public class WSFedEndpoint {
     public static final String WSFED_REQUESTED_TOKEN = "WSFED_REQUESTED_TOKEN";
     protected static final Logger logger = Logger.getLogger(WSFedEndpoint.class);
+    /**
+     * How long an assertion without NotOnOrAfter (nor a lifetime in its RSTR) is remembered, in milliseconds
+     */
+    private static final long UNBOUNDED_ASSERTION_REPLAY_WINDOW = 24L * 60 * 60 * 1000;
     protected RealmModel realm;
     protected EventBuilder event;
     protected WSFedIdentityProviderConfig config;
@@ -108,25 +119,39 @@ public class WSFedEndpoint {
 
 
     /**
-     *
+     * Reads the posted form from the request body as a stream, rather than through form parameters, so that a large
+     * wresult is decoded once into its string and is rejected as soon as it crosses the maximum response size.
      */
     @POST
     @Consumes(MediaType.APPLICATION_FORM_URLENCODED)
-    public Response postBinding(@FormParam(WSFedConstants.WSFED_ACTION) String wsfedAction,
-                                @FormParam(WSFedConstants.WSFED_RESULT) String wsfedResult,
-                                @FormParam(WSFedConstants.WSFED_CONTEXT) String context) {
-        return execute(wsfedAction, wsfedResult, context);
+    public Response postBinding(InputStream body) {
+        Map<String, String> form;
+        try {
+            form = FormBodyReader.read(body, getParsingLimits().getMaxBytes(),
+                    WSFedConstants.WSFED_ACTION, WSFedConstants.WSFED_RESULT, WSFedConstants.WSFED_CONTEXT);
+        } catch (IOException e) {
+            logger.error("could not read the posted form", e);
+            event = new EventBuilder(realm, session, clientConnection);
+            event.event(EventType.IDENTITY_PROVIDER_RESPONSE);
+            event.error(Errors.INVALID_SAML_RESPONSE);
+            return ErrorPage.error(session, null, Response.Status.BAD_REQUEST, Messages.INVALID_FEDERATED_IDENTITY_ACTION);
+        }
+        return execute(form.get(WSFedConstants.WSFED_ACTION), form.get(WSFedConstants.WSFED_RESULT), form.get(WSFedConstants.WSFED_CONTEXT));
     }
 
 
+    /**
+     * @return the key of the (first) signing certificate of the identity provider
+     */
     protected PublicKey getIDPKey() throws ProcessingException, ConfigurationException {
-        X509Certificate certificate = null;
-        try {
-            certificate = XMLSignatureUtil.getX509CertificateFromKeyInfoString(config.getSigningCertificate().replaceAll("\\s", ""));
-        } catch (NullPointerException e) {
-            throw new ConfigurationException(e);
-        }
-        return certificate.getPublicKey();
+        return WSFedIdPSigningKeys.get(realm.getId(), config).getDefaultKey();
+    }
+
+    /**
+     * @return the key of the signing certificate the token was signed with, when the identity provider has several
+     */
+    protected PublicKey getIDPKey(RequestedToken token) throws ProcessingException, ConfigurationException {
+        return WSFedIdPSigningKeys.get(realm.getId(), config).select(token);
     }
 
     protected Response execute(String wsfedAction, String wsfedResult, String context) {
@@ -309,7 +334,8 @@ public class WSFedEndpoint {
 
     protected Response handleWsFedResponse(String wsfedResponse, String context) {
         try {
-            RequestSecurityTokenResponse rstr = getWsfedToken(wsfedResponse);
+            boolean streaming = config.isValidateSignature() && config.isStreamingSignatureValidation();
+            RequestSecurityTokenResponse rstr = streaming ? streamWsfedToken(wsfedResponse) : getWsfedToken(wsfedResponse);
             if (hasExpired(rstr)) {
                 event.event(EventType.IDENTITY_PROVIDER_RESPONSE);
                 event.error(Errors.EXPIRED_CODE);
@@ -331,15 +357,12 @@ public class WSFedEndpoint {
                 throw new NotImplementedException("We don't currently support a token type of " + rstr.getTokenType().toString());
             }
 
-            if (config.isValidateSignature()) {
-                Response response = token.validate(getIDPKey(), config, event, session);
-
-                if (response != null) {
-                    return response;
-                }
+            if (token.getAssertionId() == null) {
+                return acceptToken(wsfedResponse, rstr, token, context);
             }
-
-            return handleLoginResponse(wsfedResponse, token, context);
+            final RequestedToken requestedToken = token;
+            return InFlightResponses.coalesce(getAssertionKey(token), wsfedResponse, getBrowserBinding(), InFlightResponses.DEFAULT_WAIT,
+                    () -> acceptToken(wsfedResponse, rstr, requestedToken, context), this::getResponseCookies);
         } catch (Exception e) {
             logger.error("assertion parsing failed", e);
             event.event(EventType.IDENTITY_PROVIDER_RESPONSE);
@@ -348,27 +371,88 @@ public class WSFedEndpoint {
         }
     }
 
-    protected boolean hasExpired(RequestSecurityTokenResponse rstr) throws ConfigurationException, DatatypeConfigurationException {
-        boolean expiry = false;
-        Lifetime lifetime = rstr.getLifetime();
-        if (lifetime != null) {
-            XMLGregorianCalendar now = XMLTimeUtil.getIssueInstant();
-            XMLGregorianCalendar notBefore = lifetime.getCreated();
-
-            if (notBefore != null) {
-                // Add in a tiny bit of slop for small clock differences
-                notBefore.add(DatatypeFactory.newInstance().newDuration(false, 0, 0, 0, 0, 1, 0));
-                logger.trace("RequestSecurityTokenResponse: " + rstr.getContext() + " ::Now=" + now.toXMLFormat() + " ::notBefore="
-                        + notBefore.toXMLFormat());
+    /**
+     * Verifies the token, checks it isn't replayed and brokers its user.
+     */
+    protected Response acceptToken(String wsfedResponse, RequestSecurityTokenResponse rstr, RequestedToken token, String context) throws Exception {
+        if (config.isValidateSignature()) {
+            Response response = token.validate(getIDPKey(token), config, event, session);
+
+            if (response != null) {
+                return response;
             }
+        }
 
-            XMLGregorianCalendar notOnOrAfter = lifetime.getExpires();
+        if (isReplayed(rstr, token)) {
+            event.event(EventType.IDENTITY_PROVIDER_RESPONSE);
+            event.detail(Details.REASON, "assertion_replayed");
+            event.error(Errors.INVALID_SAML_RESPONSE);
+            return ErrorPage.error(session, null, Response.Status.BAD_REQUEST, Messages.INVALID_FEDERATED_IDENTITY_ACTION);
+        }
 
-            if (notOnOrAfter != null) {
-                logger.trace("RequestSecurityTokenResponse: " + rstr.getContext() + " ::Now=" + now.toXMLFormat() + " ::notOnOrAfter=" + notOnOrAfter);
-            }
+        return handleLoginResponse(wsfedResponse, token, context);
+    }
+
+    private String getAssertionKey(RequestedToken token) {
+        return realm.getId() + "/" + config.getAlias() + "/" + token.getAssertionId();
+    }
 
-            expiry = !XMLTimeUtil.isValid(now, notBefore, notOnOrAfter);
+    /**
+     * @return the authentication session cookie of the browser the response was posted from, or null if there is none
+     */
+    protected String getBrowserBinding() {
+        if (headers == null) {
+            return null;
+        }
+        Cookie cookie = headers.getCookies().get(AuthenticationSessionManager.AUTH_SESSION_ID);
+        return cookie == null ? null : cookie.getValue();
+    }
+
+    /**
+     * @return the Set-Cookie headers of the HTTP response of the current request. Keycloak sets the cookies of the
+     * sessions it creates on that response directly, not on the response returned by the endpoint.
+     */
+    protected List<Object> getResponseCookies() {
+        HttpResponse response = ResteasyProviderFactory.getContextData(HttpResponse.class);
+        if (response == null) {
+            return null;
+        }
+        List<Object> cookies = response.getOutputHeaders().get(HttpHeaders.SET_COOKIE);
+        return cookies == null ? null : new ArrayList<>(cookies);
+    }
+
+    /**
+     * Records the assertion of the token in the replay cache of the identity provider, until it expires.
+     *
+     * @return true if the assertion was already accepted before
+     */
+    protected boolean isReplayed(RequestSecurityTokenResponse rstr, RequestedToken token) {
+        AssertionReplayCache replayCache = AssertionReplayCache.forConfig(session, config);
+        if (replayCache == null || token.getAssertionId() == null) {
+            return false;
+        }
+
+        ValidityChecker checker = ValidityChecker.forConfig(config, 60);
+        XMLGregorianCalendar notOnOrAfter = token.getNotOnOrAfter();
+        if (notOnOrAfter == null && rstr.getLifetime() != null) {
+            notOnOrAfter = rstr.getLifetime().getExpires();
+        }
+        long expiresAt = notOnOrAfter != null ? checker.getEnd(notOnOrAfter) : checker.getNow() + UNBOUNDED_ASSERTION_REPLAY_WINDOW;
+
+        if (replayCache.markUsed(getAssertionKey(token), expiresAt)) {
+            return false;
+        }
+        logger.warnf("Assertion %s from identity provider %s has already been used", token.getAssertionId(), config.getAlias());
+        return true;
+    }
+
+    protected boolean hasExpired(RequestSecurityTokenResponse rstr) {
+        boolean expiry = false;
+        Lifetime lifetime = rstr.getLifetime();
+        if (lifetime != null) {
+            // Without a configured skew, add in a tiny bit of slop for small clock differences
+            ValidityChecker checker = ValidityChecker.forConfig(config, 60);
+            expiry = !checker.isValid(lifetime.getCreated(), lifetime.getExpires());
 
             if (expiry) {
                 logger.info("RequestSecurityTokenResponse has expired with context=" + rstr.getContext());
@@ -378,30 +462,90 @@ public class WSFedEndpoint {
         return expiry;
     }
 
+    /**
+     * Parses the wsfedResponse into a DOM, once. The RSTR model is then read from that DOM, and the tokens it holds are
+     * the original elements of the DOM, which can be handed as they are to the assertion parser and the signature
+     * validation. The DOM is built from a reader enforcing the {@link #getParsingLimits() parsing limits}, so that a
+     * response breaking them is rejected as soon as the offending part is read.
+     */
     protected RequestSecurityTokenResponse getWsfedToken(String wsfedResponse) throws ParsingException, IOException {
         if (StringUtil.isNullOrEmpty(wsfedResponse)) {
             throw new ParsingException("WSFed response was null");
         }
 
+        ParsingLimits limits = getParsingLimits();
+        try {
+            // Fail fast on oversized responses. Their shape is checked while the DOM is built
+            limits.checkSize(wsfedResponse);
+            Document document;
+            XMLStreamReader reader = limits.limit(XMLFactories.createXMLStreamReader(new StringReader(wsfedResponse)));
+            try {
+                document = XMLFactories.parse(reader);
+            } finally {
+                reader.close();
+            }
+            JAXPValidationUtil.checkSchemaValidation(document);
+            return parseWsfedToken(document);
+        } catch (ParsingException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new ParsingException(ex);
+        }
+    }
+
+    protected RequestSecurityTokenResponse parseWsfedToken(Document wsfedDocument) throws ParsingException {
         WSTrustParser parser = new WSTrustParser();
-        try (ByteArrayInputStream bis = new ByteArrayInputStream(wsfedResponse.getBytes())) {
+        try {
             //TODO: WSTrustParser has a problem when this is a JWT. Not really sure why but guessing it has to do with the BinarySecurityToken.
-            Object response = parser.parse(bis);
-            RequestSecurityTokenResponse rstr = null;
-
-            if (response instanceof RequestSecurityTokenResponse) {
-                rstr = (RequestSecurityTokenResponse) response;
-            } else if (response instanceof RequestSecurityTokenResponseCollection) {
-                RequestSecurityTokenResponseCollection rstrCollection = (RequestSecurityTokenResponseCollection) response;
-                List<RequestSecurityTokenResponse> responses = rstrCollection.getRequestSecurityTokenResponses();
-                //RequestSecurityTokenResponseCollection must contain at least one RequestSecurityTokenResponse per the spec
-                //TODO: For our needs this should never be more than a single response. But what to do if it for some reason was?
-                rstr = responses.get(0);
-            }
+            return getRequestSecurityTokenResponse(parser.parse(wsfedDocument));
+        } catch (Exception ex) {
+            throw new ParsingException(ex);
+        }
+    }
+
+    /**
+     * Reads the wsfedResponse in a single pass, without building a DOM. The SAML tokens are parsed straight into their
+     * models, so their signatures have to be validated by streaming over the wsfedResponse as well.
+     */
+    protected RequestSecurityTokenResponse streamWsfedToken(String wsfedResponse) throws ParsingException, IOException {
+        if (StringUtil.isNullOrEmpty(wsfedResponse)) {
+            throw new ParsingException("WSFed response was null");
+        }
 
-            return rstr;
+        ParsingLimits limits = getParsingLimits();
+        WSTrustParser parser = new WSTrustParser(true, limits);
+        try {
+            // Fail fast on oversized responses. Their shape is checked while parsing
+            limits.checkSize(wsfedResponse);
+            // Read the characters as they are, rather than a UTF-8 copy of them
+            return getRequestSecurityTokenResponse(parser.parse(new StringReader(wsfedResponse)));
         } catch (Exception ex) {
             throw new ParsingException(ex);
         }
     }
+
+    /**
+     * @return the limits on the size and shape of the responses of the identity provider
+     */
+    protected ParsingLimits getParsingLimits() {
+        return new ParsingLimits(config.getMaxResponseSize(), config.getMaxElementDepth(), config.getMaxElementCount(),
+                config.getMaxAttributeCount(), config.getMaxAttributeValueLength(),
+                config.getMaxSamlAttributeCount(), config.getMaxSamlAttributeValueCount());
+    }
+
+    private RequestSecurityTokenResponse getRequestSecurityTokenResponse(Object response) {
+        RequestSecurityTokenResponse rstr = null;
+
+        if (response instanceof RequestSecurityTokenResponse) {
+            rstr = (RequestSecurityTokenResponse) response;
+        } else if (response instanceof RequestSecurityTokenResponseCollection) {
+            RequestSecurityTokenResponseCollection rstrCollection = (RequestSecurityTokenResponseCollection) response;
+            List<RequestSecurityTokenResponse> responses = rstrCollection.getRequestSecurityTokenResponses();
+            //RequestSecurityTokenResponseCollection must contain at least one RequestSecurityTokenResponse per the spec
+            //TODO: For our needs this should never be more than a single response. But what to do if it for some reason was?
+            rstr = responses.get(0);
+        }
+
+        return rstr;
+    }
 }
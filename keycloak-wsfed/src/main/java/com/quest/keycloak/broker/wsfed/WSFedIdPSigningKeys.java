@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.broker.wsfed;
+
+import com.quest.keycloak.common.wsfed.utils.KeyInfoIndex;
+import org.keycloak.saml.common.exceptions.ConfigurationException;
+import org.keycloak.saml.common.exceptions.ProcessingException;
+import org.keycloak.saml.processing.core.util.XMLSignatureUtil;
+
+import java.security.PublicKey;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The keys of the certificates an identity provider's tokens are signed with, per realm and alias. Several certificates
+ * may be configured, separated by commas, so that tokens signed with either the current or the next certificate of the
+ * identity provider are accepted during a rollover.
+ *
+ * The certificates are decoded once, and again only when the configured value changes. The certificate a signature was
+ * made with is found from the KeyInfo of the signature, as described in {@link KeyInfoIndex}, or else by trying each of
+ * the certificates.
+ */
+public final class WSFedIdPSigningKeys {
+
+    private static final ConcurrentMap<String, WSFedIdPSigningKeys> KEYS = new ConcurrentHashMap<>();
+
+    private final String certificates;
+    private final List<PublicKey> keys;
+    private final KeyInfoIndex<PublicKey> index = new KeyInfoIndex<>();
+
+    private WSFedIdPSigningKeys(String certificates) throws ProcessingException, ConfigurationException {
+        this.certificates = certificates;
+        List<PublicKey> publicKeys = new ArrayList<>();
+        for (String value : certificates.split(",")) {
+            String certificateValue = value.replaceAll("\\s", "");
+            if (certificateValue.isEmpty()) {
+                continue;
+            }
+            X509Certificate certificate = XMLSignatureUtil.getX509CertificateFromKeyInfoString(certificateValue);
+            publicKeys.add(certificate.getPublicKey());
+            index.add(null, certificate.getPublicKey(), certificate, certificate.getPublicKey());
+        }
+        if (publicKeys.isEmpty()) {
+            throw new ConfigurationException("No signing certificate configured");
+        }
+        this.keys = Collections.unmodifiableList(publicKeys);
+    }
+
+    /**
+     * @throws ConfigurationException if the identity provider has no signing certificate
+     * @throws ProcessingException    if a signing certificate can't be decoded
+     */
+    public static WSFedIdPSigningKeys get(String realmId, WSFedIdentityProviderConfig config) throws ProcessingException, ConfigurationException {
+        String certificates = config.getSigningCertificate();
+        if (certificates == null) {
+            throw new ConfigurationException("No signing certificate configured for identity provider " + config.getAlias());
+        }
+        String cacheKey = realmId + "/" + config.getAlias();
+        WSFedIdPSigningKeys signingKeys = KEYS.get(cacheKey);
+        if (signingKeys != null && signingKeys.isFor(certificates)) {
+            return signingKeys;
+        }
+        signingKeys = new WSFedIdPSigningKeys(certificates);
+        KEYS.put(cacheKey, signingKeys);
+        return signingKeys;
+    }
+
+    public static void invalidate(String realmId) {
+        String prefix = realmId + "/";
+        KEYS.keySet().removeIf(key -> key.startsWith(prefix));
+    }
+
+    public static void invalidate(String realmId, String alias) {
+        KEYS.remove(realmId + "/" + alias);
+    }
+
+    public boolean isFor(String certificates) {
+        return this.certificates.equals(certificates);
+    }
+
+    public List<PublicKey> getKeys() {
+        return keys;
+    }
+
+    /**
+     * @return the key of the first configured certificate
+     */
+    public PublicKey getDefaultKey() {
+        return keys.get(0);
+    }
+
+    /**
+     * @param token a token, whose signature may have no KeyInfo
+     * @return the key of the certificate designated by the KeyInfo of the signature. If there is no KeyInfo, or it
+     * designates none of the certificates (e.g. a KeyName only), the first key the signature is valid with, or the key of
+     * the first configured certificate if there is none
+     * @throws ProcessingException if the signature can't be checked
+     */
+    public PublicKey select(RequestedToken token) throws ProcessingException {
+        if (keys.size() == 1) {
+            return keys.get(0);
+        }
+        PublicKey key = index.resolveFrom(token.getSignature());
+        if (key != null) {
+            return key;
+        }
+        for (PublicKey candidate : keys) {
+            if (token.isSignatureValid(candidate)) {
+                return candidate;
+            }
+        }
+        return getDefaultKey();
+    }
+}
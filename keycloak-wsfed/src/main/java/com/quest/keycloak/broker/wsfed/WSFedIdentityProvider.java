@@ -16,6 +16,7 @@
 
 package com.quest.keycloak.broker.wsfed;
 
+import com.quest.keycloak.common.wsfed.MetadataDocument;
 import com.quest.keycloak.common.wsfed.WSFedConstants;
 import com.quest.keycloak.common.wsfed.builders.WSFedResponseBuilder;
 import org.jboss.logging.Logger;
@@ -24,23 +25,16 @@ import org.keycloak.broker.provider.AuthenticationRequest;
 import org.keycloak.broker.provider.IdentityBrokerException;
 import org.keycloak.broker.provider.IdentityProviderDataMarshaller;
 import org.keycloak.broker.provider.util.SimpleHttp;
-import org.keycloak.common.util.PemUtils;
-import org.keycloak.crypto.Algorithm;
-import org.keycloak.crypto.KeyUse;
 import org.keycloak.events.EventBuilder;
 import org.keycloak.models.*;
-import org.keycloak.services.resources.RealmsResource;
 
 import javax.ws.rs.HttpMethod;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.MultivaluedMap;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.UriInfo;
-import java.io.BufferedReader;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.net.URLEncoder;
-import java.util.stream.Collectors;
 
 public class WSFedIdentityProvider extends AbstractIdentityProvider<WSFedIdentityProviderConfig> {
     protected static final Logger logger = Logger.getLogger(WSFedIdentityProvider.class);
@@ -131,17 +125,16 @@ public class WSFedIdentityProvider extends AbstractIdentityProvider<WSFedIdentit
         }
     }
 
+    /**
+     * Returns the SP metadata of this identity provider. The metadata is rendered once per key and kept, see
+     * {@link WSFedSPDescriptorCache}; a request whose If-None-Match header matches it gets a 304 response.
+     */
     @Override
     public Response export(UriInfo uriInfo, RealmModel realm, String format) {
-        try (InputStream is = getClass().getResourceAsStream("/wsfed-sp-metadata-template.xml"); BufferedReader br = new BufferedReader(new InputStreamReader(is))) {
-            KeyManager keyManager = session.keys();
-            String template = br.lines().collect(Collectors.joining("\n"));
-            template = template.replace("${idp.entityID}", RealmsResource.realmBaseUrl(uriInfo).build(realm.getName()).toString());
-            template = template.replace("${idp.display.name}", RealmsResource.realmBaseUrl(uriInfo).build(realm.getName()).toString());
-            template = template.replace("${idp.sso.sp}", getEndpoint(uriInfo, realm));
-            template = template.replace("${idp.sso.passive}", getEndpoint(uriInfo, realm));
-            template = template.replace("${idp.signing.certificate}", PemUtils.encodeCertificate(keyManager.getActiveKey(realm, KeyUse.SIG, Algorithm.RS256).getCertificate()));
-            return Response.ok(template, MediaType.APPLICATION_XML_TYPE).build();
+        try {
+            MetadataDocument descriptor = WSFedSPDescriptorCache.get(session, realm, uriInfo, getConfig().getAlias(), getEndpoint(uriInfo, realm));
+            HttpHeaders headers = session.getContext().getRequestHeaders();
+            return descriptor.toResponse(headers != null ? headers.getHeaderString(HttpHeaders.IF_NONE_MATCH) : null, MediaType.APPLICATION_XML_TYPE);
         } catch (Exception ex) {
             throw new IdentityBrokerException("Could not generate SP metadata", ex);
         }
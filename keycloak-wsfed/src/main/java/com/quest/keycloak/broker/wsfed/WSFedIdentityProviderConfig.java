@@ -51,6 +51,14 @@ public class WSFedIdentityProviderConfig extends IdentityProviderModel {
         getConfig().put("validateSignature", String.valueOf(validateSignature));
     }
 
+    public boolean isStreamingSignatureValidation() {
+        return Boolean.valueOf(getConfig().get("streamingSignatureValidation"));
+    }
+
+    public void setStreamingSignatureValidation(boolean streamingSignatureValidation) {
+        getConfig().put("streamingSignatureValidation", String.valueOf(streamingSignatureValidation));
+    }
+
     public String getSigningCertificate() {
         return getConfig().get("signingCertificate");
     }
@@ -67,6 +75,127 @@ public class WSFedIdentityProviderConfig extends IdentityProviderModel {
         getConfig().put("wsfedRealm", wsfedRealm);
     }
 
+    /**
+     * @return the tolerated clock difference with the identity provider in seconds, or -1 if none is configured
+     */
+    public int getAllowedClockSkew() {
+        String skew = getConfig().get("allowedClockSkew");
+        if (skew == null || skew.trim().isEmpty()) {
+            return -1;
+        }
+        try {
+            return Math.max(0, Integer.parseInt(skew.trim()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    public void setAllowedClockSkew(int allowedClockSkew) {
+        getConfig().put("allowedClockSkew", String.valueOf(allowedClockSkew));
+    }
+
+    /**
+     * @return the cache of accepted assertions: {@value AssertionReplayCache#LOCAL} (the default),
+     * {@value AssertionReplayCache#CLUSTER} or {@value AssertionReplayCache#DISABLED}
+     */
+    public String getReplayCache() {
+        String replayCache = getConfig().get("replayCache");
+        return replayCache == null || replayCache.isEmpty() ? AssertionReplayCache.LOCAL : replayCache;
+    }
+
+    public void setReplayCache(String replayCache) {
+        getConfig().put("replayCache", replayCache);
+    }
+
+    /**
+     * @return the maximum size of a response in bytes, or 0 for the default
+     */
+    public int getMaxResponseSize() {
+        return getLimit("maxResponseSize");
+    }
+
+    public void setMaxResponseSize(int maxResponseSize) {
+        getConfig().put("maxResponseSize", String.valueOf(maxResponseSize));
+    }
+
+    /**
+     * @return the maximum nesting depth of the elements of a response, or 0 for the default
+     */
+    public int getMaxElementDepth() {
+        return getLimit("maxElementDepth");
+    }
+
+    public void setMaxElementDepth(int maxElementDepth) {
+        getConfig().put("maxElementDepth", String.valueOf(maxElementDepth));
+    }
+
+    /**
+     * @return the maximum number of elements of a response, or 0 for the default
+     */
+    public int getMaxElementCount() {
+        return getLimit("maxElementCount");
+    }
+
+    public void setMaxElementCount(int maxElementCount) {
+        getConfig().put("maxElementCount", String.valueOf(maxElementCount));
+    }
+
+    /**
+     * @return the maximum number of XML attributes of an element of a response, or 0 for the default
+     */
+    public int getMaxAttributeCount() {
+        return getLimit("maxAttributeCount");
+    }
+
+    public void setMaxAttributeCount(int maxAttributeCount) {
+        getConfig().put("maxAttributeCount", String.valueOf(maxAttributeCount));
+    }
+
+    /**
+     * @return the maximum length of the value of an XML attribute of a response, or 0 for the default
+     */
+    public int getMaxAttributeValueLength() {
+        return getLimit("maxAttributeValueLength");
+    }
+
+    public void setMaxAttributeValueLength(int maxAttributeValueLength) {
+        getConfig().put("maxAttributeValueLength", String.valueOf(maxAttributeValueLength));
+    }
+
+    /**
+     * @return the maximum number of SAML Attribute elements (claims) of a response, or 0 for the default
+     */
+    public int getMaxSamlAttributeCount() {
+        return getLimit("maxSamlAttributeCount");
+    }
+
+    public void setMaxSamlAttributeCount(int maxSamlAttributeCount) {
+        getConfig().put("maxSamlAttributeCount", String.valueOf(maxSamlAttributeCount));
+    }
+
+    /**
+     * @return the maximum number of SAML AttributeValue elements of a response, or 0 for the default
+     */
+    public int getMaxSamlAttributeValueCount() {
+        return getLimit("maxSamlAttributeValueCount");
+    }
+
+    public void setMaxSamlAttributeValueCount(int maxSamlAttributeValueCount) {
+        getConfig().put("maxSamlAttributeValueCount", String.valueOf(maxSamlAttributeValueCount));
+    }
+
+    private int getLimit(String name) {
+        String limit = getConfig().get(name);
+        if (limit == null || limit.trim().isEmpty()) {
+            return 0;
+        }
+        try {
+            return Math.max(0, Integer.parseInt(limit.trim()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
     public boolean isBackchannelSupported() {
         return Boolean.valueOf(getConfig().get("backchannelSupported"));
     }
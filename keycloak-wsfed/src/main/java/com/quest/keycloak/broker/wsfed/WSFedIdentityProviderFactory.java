@@ -19,6 +19,8 @@ package com.quest.keycloak.broker.wsfed;
 import org.keycloak.broker.provider.AbstractIdentityProviderFactory;
 import org.keycloak.models.IdentityProviderModel;
 import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
 
 import java.io.InputStream;
 import java.util.HashMap;
@@ -44,6 +46,22 @@ public class WSFedIdentityProviderFactory extends AbstractIdentityProviderFactor
         return new HashMap<>();
     }
 
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+        factory.register(event -> {
+            if (event instanceof RealmModel.RealmRemovedEvent) {
+                String realmId = ((RealmModel.RealmRemovedEvent) event).getRealm().getId();
+                WSFedSPDescriptorCache.invalidate(realmId);
+                DecryptionKeyIndex.invalidate(realmId);
+                WSFedIdPSigningKeys.invalidate(realmId);
+            } else if (event instanceof RealmModel.IdentityProviderRemovedEvent) {
+                RealmModel.IdentityProviderRemovedEvent removed = (RealmModel.IdentityProviderRemovedEvent) event;
+                WSFedSPDescriptorCache.invalidate(removed.getRealm().getId(), removed.getRemovedIdentityProvider().getAlias());
+                WSFedIdPSigningKeys.invalidate(removed.getRealm().getId(), removed.getRemovedIdentityProvider().getAlias());
+            }
+        });
+    }
+
     @Override
     public String getId() {
         return PROVIDER_ID;
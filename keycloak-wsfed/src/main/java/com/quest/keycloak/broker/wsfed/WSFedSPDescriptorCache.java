@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.broker.wsfed;
+
+import com.quest.keycloak.common.wsfed.MetadataDocument;
+import com.quest.keycloak.common.wsfed.MetadataDocumentCache;
+import com.quest.keycloak.common.wsfed.utils.MetadataTemplate;
+import org.keycloak.crypto.Algorithm;
+import org.keycloak.crypto.KeyUse;
+import org.keycloak.crypto.KeyWrapper;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.services.resources.RealmsResource;
+
+import javax.ws.rs.core.UriInfo;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps the rendered SP metadata of each WS-Fed identity provider, per realm and alias, and per base URI the realm was
+ * reached through. The metadata is rendered again once the realm's active signing key changes, or the realm is renamed.
+ */
+public final class WSFedSPDescriptorCache {
+
+    /**
+     * One descriptor per identity provider and base URI, so a realm may hold more of them than of its IdP descriptors
+     */
+    private static final int MAX_DESCRIPTORS = 64;
+
+    private static final MetadataTemplate TEMPLATE = MetadataTemplate.load("wsfed-sp-metadata-template.xml");
+
+    private static final MetadataDocumentCache<String> DESCRIPTORS = new MetadataDocumentCache<>(MAX_DESCRIPTORS);
+
+    private WSFedSPDescriptorCache() {
+    }
+
+    /**
+     * @param endpoint the broker endpoint of the identity provider
+     */
+    public static MetadataDocument get(KeycloakSession session, RealmModel realm, UriInfo uriInfo, String alias, String endpoint) {
+        KeyWrapper activeKey = session.keys().getActiveKey(realm, KeyUse.SIG, Algorithm.RS256);
+
+        String realmUrl = RealmsResource.realmBaseUrl(uriInfo).build(realm.getName()).toString();
+        Map<String, String> values = new HashMap<>();
+        values.put("idp.entityID", realmUrl);
+        values.put("idp.display.name", realmUrl);
+        values.put("idp.sso.sp", endpoint);
+        values.put("idp.sso.passive", endpoint);
+
+        return DESCRIPTORS.get(realm.getId(), alias + " " + uriInfo.getBaseUri(), descriptor -> descriptor.isFor(activeKey, values),
+                () -> new MetadataDocument(TEMPLATE, activeKey, values));
+    }
+
+    public static void invalidate(String realmId) {
+        DESCRIPTORS.invalidate(realmId);
+    }
+
+    public static void invalidate(String realmId, String alias) {
+        DESCRIPTORS.invalidate(realmId, key -> key.startsWith(alias + " "));
+    }
+}
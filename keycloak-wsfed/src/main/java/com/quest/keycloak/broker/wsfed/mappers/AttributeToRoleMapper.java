@@ -18,7 +18,7 @@ package com.quest.keycloak.broker.wsfed.mappers;
 
 import com.quest.keycloak.broker.wsfed.WSFedEndpoint;
 import com.quest.keycloak.broker.wsfed.WSFedIdentityProviderFactory;
-import com.quest.keycloak.common.wsfed.utils.AttributeUtils;
+import com.quest.keycloak.common.wsfed.utils.ClaimIndex;
 import org.jboss.logging.Logger;
 import org.keycloak.broker.provider.AbstractIdentityProviderMapper;
 import org.keycloak.broker.provider.BrokeredIdentityContext;
@@ -101,7 +101,7 @@ public class AttributeToRoleMapper extends AbstractIdentityProviderMapper {
     @Override
     public void importNewUser(KeycloakSession session, RealmModel realm, UserModel user, IdentityProviderMapperModel mapperModel, BrokeredIdentityContext context) {
         String roleName = mapperModel.getConfig().get(ConfigConstants.ROLE);
-        if (isAttributePresent(mapperModel, context)) {
+        if (isAttributePresent(session, mapperModel, context)) {
             RoleModel role = KeycloakModelUtils.getRoleFromString(realm, roleName);
             if (role == null) throw new IdentityBrokerException("Unable to find role: " + roleName);
             user.grantRole(role);
@@ -109,6 +109,14 @@ public class AttributeToRoleMapper extends AbstractIdentityProviderMapper {
     }
 
     protected boolean isAttributePresent(IdentityProviderMapperModel mapperModel, BrokeredIdentityContext context) {
+        return isAttributePresent(null, mapperModel, context);
+    }
+
+    /**
+     * @param session the session, through which the index of the token's attributes is shared with the other mappers.
+     *                May be null, in which case the attributes are indexed for this mapper only.
+     */
+    protected boolean isAttributePresent(KeycloakSession session, IdentityProviderMapperModel mapperModel, BrokeredIdentityContext context) {
         String name = mapperModel.getConfig().get(ATTRIBUTE_NAME);
         if (name != null && name.trim().equals("")) name = null;
         String friendly = mapperModel.getConfig().get(ATTRIBUTE_FRIENDLY_NAME);
@@ -119,7 +127,7 @@ public class AttributeToRoleMapper extends AbstractIdentityProviderMapper {
             Object token = context.getContextData().get(WSFedEndpoint.WSFED_REQUESTED_TOKEN);
 
             if (token instanceof AssertionType) {
-                return isAttributePresent((AssertionType) token, name, friendly, desiredValue);
+                return isAttributePresent(ClaimIndex.get(session, (AssertionType) token), name, friendly, desiredValue);
             }
             //TODO: else if token type == JWSInput
             else {
@@ -132,8 +140,8 @@ public class AttributeToRoleMapper extends AbstractIdentityProviderMapper {
         return false;
     }
 
-    protected boolean isAttributePresent(AssertionType assertion, String name, String friendly, String desiredValue) {
-        return AttributeUtils.findAttributeValue(assertion, name, friendly, a -> a.getAttributeValue().stream().anyMatch(o -> o.equals(desiredValue))) != null;
+    protected boolean isAttributePresent(ClaimIndex claims, String name, String friendly, String desiredValue) {
+        return claims.findValues(name, friendly, a -> a.getAttributeValue().stream().anyMatch(o -> o.equals(desiredValue))) != null;
     }
 
     @Override
@@ -142,7 +150,7 @@ public class AttributeToRoleMapper extends AbstractIdentityProviderMapper {
         RoleModel role = KeycloakModelUtils.getRoleFromString(realm, roleName);
         if (role == null) throw new IdentityBrokerException("Unable to find role: " + roleName);
 
-        if (isAttributePresent(mapperModel, context)) {
+        if (isAttributePresent(session, mapperModel, context)) {
             user.grantRole(role);
         } else {
             user.deleteRoleMapping(role);
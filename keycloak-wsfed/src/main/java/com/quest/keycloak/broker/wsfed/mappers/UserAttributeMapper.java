@@ -18,7 +18,7 @@ package com.quest.keycloak.broker.wsfed.mappers;
 
 import com.quest.keycloak.broker.wsfed.WSFedEndpoint;
 import com.quest.keycloak.broker.wsfed.WSFedIdentityProviderFactory;
-import com.quest.keycloak.common.wsfed.utils.AttributeUtils;
+import com.quest.keycloak.common.wsfed.utils.ClaimIndex;
 import org.jboss.logging.Logger;
 import org.keycloak.broker.provider.AbstractIdentityProviderMapper;
 import org.keycloak.broker.provider.BrokeredIdentityContext;
@@ -95,13 +95,21 @@ public class UserAttributeMapper extends AbstractIdentityProviderMapper {
     @Override
     public void importNewUser(KeycloakSession session, RealmModel realm, UserModel user, IdentityProviderMapperModel mapperModel, BrokeredIdentityContext context) {
         String attribute = mapperModel.getConfig().get(USER_ATTRIBUTE);
-        Object value = getAttribute(mapperModel, context);
+        Object value = getAttribute(session, mapperModel, context);
         if (value != null) {
             user.setSingleAttribute(attribute, value.toString());
         }
     }
 
     protected String getAttribute(IdentityProviderMapperModel mapperModel, BrokeredIdentityContext context) {
+        return getAttribute(null, mapperModel, context);
+    }
+
+    /**
+     * @param session the session, through which the index of the token's attributes is shared with the other mappers.
+     *                May be null, in which case the attributes are indexed for this mapper only.
+     */
+    protected String getAttribute(KeycloakSession session, IdentityProviderMapperModel mapperModel, BrokeredIdentityContext context) {
         String name = mapperModel.getConfig().get(ATTRIBUTE_NAME);
         if (name != null && name.trim().equals("")) name = null;
         String friendly = mapperModel.getConfig().get(ATTRIBUTE_FRIENDLY_NAME);
@@ -111,7 +119,7 @@ public class UserAttributeMapper extends AbstractIdentityProviderMapper {
             Object token = context.getContextData().get(WSFedEndpoint.WSFED_REQUESTED_TOKEN);
 
             if (token instanceof AssertionType) {
-                return getAttribute((AssertionType) token, name, friendly);
+                return getAttribute(ClaimIndex.get(session, (AssertionType) token), name, friendly);
             }
             //TODO: else if token type == JWSInput
             else {
@@ -124,8 +132,8 @@ public class UserAttributeMapper extends AbstractIdentityProviderMapper {
         return null;
     }
 
-    protected String getAttribute(AssertionType assertion, String name, String friendly) {
-        List<Object> attrValue = AttributeUtils.findAttributeValue(assertion, name, friendly, a -> a.getAttributeValue() != null && !a.getAttributeValue().isEmpty());
+    protected String getAttribute(ClaimIndex claims, String name, String friendly) {
+        List<Object> attrValue = claims.findValues(name, friendly, a -> a.getAttributeValue() != null && !a.getAttributeValue().isEmpty());
         if (attrValue == null) {
             return null;
         }
@@ -135,7 +143,7 @@ public class UserAttributeMapper extends AbstractIdentityProviderMapper {
     @Override
     public void updateBrokeredUser(KeycloakSession session, RealmModel realm, UserModel user, IdentityProviderMapperModel mapperModel, BrokeredIdentityContext context) {
         String attribute = mapperModel.getConfig().get(USER_ATTRIBUTE);
-        Object value = getAttribute(mapperModel, context);
+        Object value = getAttribute(session, mapperModel, context);
         String current = user.getFirstAttribute(attribute);
         if (value != null && !value.equals(current)) {
             user.setSingleAttribute(attribute, value.toString());
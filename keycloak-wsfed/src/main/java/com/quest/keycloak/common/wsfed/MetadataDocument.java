@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.common.wsfed;
+
+import com.quest.keycloak.common.wsfed.utils.MetadataTemplate;
+import org.keycloak.common.util.PemUtils;
+import org.keycloak.crypto.KeyWrapper;
+
+import javax.ws.rs.core.CacheControl;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.X509Certificate;
+import java.security.interfaces.ECPublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * A rendered metadata document, along with a strong entity tag derived from its content. A document is immutable, so
+ * it is rendered once and served until the signing keys or one of the other values it was rendered with changes, see
+ * {@link #isFor(KeyWrapper, List, Map)}.
+ */
+public final class MetadataDocument {
+
+    public static final String SIGNING_CERTIFICATE = "idp.signing.certificate";
+
+    public static final String ADDITIONAL_SIGNING_KEYS = "idp.signing.additional";
+
+    private static final String XMLDSIG11_NSURI = "http://www.w3.org/2009/xmldsig11#";
+
+    /**
+     * How long, in seconds, a client may use the document without asking again. Kept short, so that a key rotation
+     * reaches the relying parties soon; revalidating with the entity tag is cheap.
+     */
+    public static final int MAX_AGE = 300;
+
+    private final String kid;
+    private final X509Certificate certificate;
+    private final List<List<Object>> additionalKeys;
+    private final Map<String, String> values;
+    private final String content;
+    private final EntityTag entityTag;
+
+    /**
+     * @param template the template to render
+     * @param key the signing key, whose certificate is substituted for {@value #SIGNING_CERTIFICATE}
+     * @param values the values of the other placeholders
+     */
+    public MetadataDocument(MetadataTemplate template, KeyWrapper key, Map<String, String> values) {
+        this(template, key, Collections.emptyList(), values);
+    }
+
+    /**
+     * @param template the template to render
+     * @param key the signing key, whose certificate is substituted for {@value #SIGNING_CERTIFICATE}
+     * @param additionalKeys other signing keys, each published in a KeyDescriptor of its own substituted for
+     *                       {@value #ADDITIONAL_SIGNING_KEYS}: by its certificate if it has one, by its EC public key
+     *                       otherwise
+     * @param values the values of the other placeholders
+     */
+    public MetadataDocument(MetadataTemplate template, KeyWrapper key, List<KeyWrapper> additionalKeys, Map<String, String> values) {
+        this.kid = key.getKid();
+        this.certificate = key.getCertificate();
+        this.additionalKeys = identify(additionalKeys);
+        this.values = new HashMap<>(values);
+
+        Map<String, String> all = new HashMap<>(values);
+        all.put(SIGNING_CERTIFICATE, PemUtils.encodeCertificate(certificate));
+        StringBuilder descriptors = new StringBuilder();
+        for (KeyWrapper additionalKey : additionalKeys) {
+            appendKeyDescriptor(descriptors, additionalKey);
+        }
+        all.put(ADDITIONAL_SIGNING_KEYS, descriptors.toString());
+        this.content = template.render(all);
+        this.entityTag = new EntityTag(digest(content));
+    }
+
+    private static List<List<Object>> identify(List<KeyWrapper> keys) {
+        List<List<Object>> identities = new ArrayList<>(keys.size());
+        for (KeyWrapper key : keys) {
+            identities.add(Arrays.asList(key.getKid(), key.getPublicKey(), key.getCertificate()));
+        }
+        return identities;
+    }
+
+    private static void appendKeyDescriptor(StringBuilder sb, KeyWrapper key) {
+        sb.append("\n\t\t<KeyDescriptor use=\"signing\">\n\t\t\t<dsig:KeyInfo xmlns:dsig=\"http://www.w3.org/2000/09/xmldsig#\">\n");
+        if (key.getCertificate() != null) {
+            sb.append("\t\t\t\t<dsig:X509Data>\n\t\t\t\t\t<dsig:X509Certificate>")
+                    .append(PemUtils.encodeCertificate(key.getCertificate()))
+                    .append("</dsig:X509Certificate>\n\t\t\t\t</dsig:X509Data>\n");
+        } else if (key.getPublicKey() instanceof ECPublicKey) {
+            ECPublicKey publicKey = (ECPublicKey) key.getPublicKey();
+            sb.append("\t\t\t\t<dsig:KeyValue>\n\t\t\t\t\t<dsig11:ECKeyValue xmlns:dsig11=\"").append(XMLDSIG11_NSURI).append("\">\n")
+                    .append("\t\t\t\t\t\t<dsig11:NamedCurve URI=\"urn:oid:").append(curveOid(publicKey)).append("\"/>\n")
+                    .append("\t\t\t\t\t\t<dsig11:PublicKey>").append(Base64.getEncoder().encodeToString(encodePoint(publicKey)))
+                    .append("</dsig11:PublicKey>\n\t\t\t\t\t</dsig11:ECKeyValue>\n\t\t\t\t</dsig:KeyValue>\n");
+        }
+        sb.append("\t\t\t</dsig:KeyInfo>\n\t\t</KeyDescriptor>");
+    }
+
+    /**
+     * @return the OID of the NIST curve of the key, from its size
+     */
+    private static String curveOid(ECPublicKey publicKey) {
+        int size = publicKey.getParams().getCurve().getField().getFieldSize();
+        switch (size) {
+            case 256:
+                return "1.2.840.10045.3.1.7";
+            case 384:
+                return "1.3.132.0.34";
+            case 521:
+                return "1.3.132.0.35";
+            default:
+                throw new IllegalArgumentException("Unsupported EC key size " + size);
+        }
+    }
+
+    /**
+     * @return the uncompressed point of the key, as the PublicKey of an ECKeyValue
+     */
+    private static byte[] encodePoint(ECPublicKey publicKey) {
+        int length = (publicKey.getParams().getCurve().getField().getFieldSize() + 7) / 8;
+        byte[] point = new byte[1 + 2 * length];
+        point[0] = 4;
+        copyUnsigned(publicKey.getW().getAffineX(), point, 1, length);
+        copyUnsigned(publicKey.getW().getAffineY(), point, 1 + length, length);
+        return point;
+    }
+
+    private static void copyUnsigned(BigInteger value, byte[] target, int offset, int length) {
+        byte[] bytes = value.toByteArray();
+        int start = bytes.length > length ? bytes.length - length : 0;
+        int count = bytes.length - start;
+        System.arraycopy(bytes, start, target, offset + length - count, count);
+    }
+
+    private static String digest(String content) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(content.getBytes(StandardCharsets.UTF_8));
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(hash);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return true if the document was rendered with this key (same id and certificate) and these values
+     */
+    public boolean isFor(KeyWrapper key, Map<String, String> values) {
+        return isFor(key, Collections.emptyList(), values);
+    }
+
+    /**
+     * @return true if the document was rendered with these keys (same ids, public keys and certificates) and these
+     * values
+     */
+    public boolean isFor(KeyWrapper key, List<KeyWrapper> additionalKeys, Map<String, String> values) {
+        return key != null && Objects.equals(kid, key.getKid()) && Objects.equals(certificate, key.getCertificate())
+                && this.additionalKeys.equals(identify(additionalKeys)) && this.values.equals(values);
+    }
+
+    public String getContent() {
+        return content;
+    }
+
+    public EntityTag getEntityTag() {
+        return entityTag;
+    }
+
+    /**
+     * @param ifNoneMatch the If-None-Match header of the request, if any
+     * @return true if the header lists the entity tag of this document. As required for If-None-Match, weak tags
+     * match too.
+     */
+    public boolean matches(String ifNoneMatch) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals("*") || tag.equals("\"" + entityTag.getValue() + "\"")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param ifNoneMatch the If-None-Match header of the request, if any
+     * @param mediaType the media type of the document
+     * @return a 304 response if the client already has this document, and the document otherwise
+     */
+    public Response toResponse(String ifNoneMatch, MediaType mediaType) {
+        CacheControl cacheControl = new CacheControl();
+        cacheControl.setMaxAge(MAX_AGE);
+        Response.ResponseBuilder builder = matches(ifNoneMatch) ? Response.notModified() : Response.ok(content, mediaType);
+        return builder.tag(entityTag).cacheControl(cacheControl).build();
+    }
+}
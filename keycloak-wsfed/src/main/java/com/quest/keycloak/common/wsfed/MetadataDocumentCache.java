@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.common.wsfed;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Keeps rendered metadata documents per realm and per key within the realm. The keys are derived from the request
+ * (e.g. the base URI the realm was reached through), so the number of documents kept for a realm is bounded: once the
+ * limit is reached, the documents of the realm are dropped before a new one is added.
+ *
+ * @param <K> the type of the keys of the documents within a realm
+ */
+public final class MetadataDocumentCache<K> {
+
+    private final int maxDocuments;
+
+    private final ConcurrentMap<String, ConcurrentMap<K, MetadataDocument>> documents = new ConcurrentHashMap<>();
+
+    /**
+     * @param maxDocuments the maximum number of documents kept for a realm
+     */
+    public MetadataDocumentCache(int maxDocuments) {
+        this.maxDocuments = maxDocuments;
+    }
+
+    /**
+     * @param realmId  the id of the realm
+     * @param key      the key of the document within the realm
+     * @param upToDate tells whether a cached document was rendered with the current keys and values
+     * @param render   renders the document, when none is cached or the cached one is outdated
+     * @return the cached document if it is up to date, a newly rendered one otherwise
+     */
+    public MetadataDocument get(String realmId, K key, Predicate<MetadataDocument> upToDate, Supplier<MetadataDocument> render) {
+        ConcurrentMap<K, MetadataDocument> realmDocuments = documents.computeIfAbsent(realmId, id -> new ConcurrentHashMap<>());
+        MetadataDocument document = realmDocuments.get(key);
+        if (document != null && upToDate.test(document)) {
+            return document;
+        }
+        if (document == null && realmDocuments.size() >= maxDocuments) {
+            realmDocuments.clear();
+        }
+        return realmDocuments.compute(key, (k, current) -> current != null && upToDate.test(current) ? current : render.get());
+    }
+
+    public void invalidate(String realmId) {
+        documents.remove(realmId);
+    }
+
+    /**
+     * Drops the documents of the realm whose key matches.
+     */
+    public void invalidate(String realmId, Predicate<K> keys) {
+        ConcurrentMap<K, MetadataDocument> realmDocuments = documents.get(realmId);
+        if (realmDocuments != null) {
+            realmDocuments.keySet().removeIf(keys);
+        }
+    }
+}
@@ -17,11 +17,19 @@
 package com.quest.keycloak.common.wsfed.builders;
 
 import com.quest.keycloak.common.wsfed.WSFedConstants;
+import com.quest.keycloak.common.wsfed.writers.AttributeEscapingWriter;
 
 import javax.ws.rs.HttpMethod;
 import javax.ws.rs.core.CacheControl;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 
 import static org.keycloak.saml.common.util.StringUtil.isNotNull;
 
@@ -33,6 +41,17 @@ import static org.keycloak.saml.common.util.StringUtil.isNotNull;
  * follow the same method as for returning security tokens.
  */
 public class WSFedResponseBuilder {
+    private static final String HTML_HEAD = "<HTML>" +
+            "<HEAD>" +
+            "<TITLE>HTTP Binding Response (Response)</TITLE>" +
+            "</HEAD>" +
+            "<BODY Onload=\"document.forms[0].submit()\">";
+    private static final String HTML_TAIL = "<NOSCRIPT>" +
+            "<P>JavaScript is disabled. We strongly recommend to enable it. Click the button below to continue.</P>" +
+            "<INPUT TYPE=\"SUBMIT\" VALUE=\"CONTINUE\" />" +
+            "</NOSCRIPT>" +
+            "</FORM></BODY></HTML>";
+
     protected String destination;
     protected String action;
     protected String realm;
@@ -159,6 +178,31 @@ public class WSFedResponseBuilder {
                 .header("Cache-Control", "no-cache, no-store").build();
     }
 
+    /**
+     * Builds the same response as {@link #buildResponse(String)}, but the form is streamed to the client rather than
+     * built as a String. The HTML around the wresult value is computed up front, and the wresult is escaped on the fly
+     * as the resultWriter writes it, so the response never has to be held in memory as a whole.
+     * @param resultWriter writes the value of the wresult field
+     * @return The 200 OK response containing the self-executing form.
+     */
+    public Response buildStreamingResponse(ResultWriter resultWriter) {
+        String prefix = appendFormStart(new StringBuilder(), destination, action, realm)
+                .append("<INPUT TYPE=\"HIDDEN\" NAME=\"").append(WSFedConstants.WSFED_RESULT).append("\" VALUE=\"").toString();
+        String suffix = appendFormEnd(new StringBuilder("\" />"), replyTo, context).toString();
+
+        StreamingOutput output = out -> {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+            writer.write(prefix);
+            resultWriter.write(new AttributeEscapingWriter(writer));
+            writer.write(suffix);
+            writer.flush();
+        };
+
+        return Response.ok(output, MediaType.TEXT_HTML_TYPE)
+                .header("Pragma", "no-cache")
+                .header("Cache-Control", "no-cache, no-store").build();
+    }
+
     /**
      * Creates the actual HTML response form as a String value.
      * FIXME There's no current actual reason to have this method seperated from the buildResponse, and even less to have all values in the method call. Either create a unit test that justifies this structure, or merge with buildResponse method
@@ -172,36 +216,32 @@ public class WSFedResponseBuilder {
      * @return a string containing the full HTML response form for the response
      */
     protected String buildHtml(String destination, String action, String result, String realm, String context, String username) {
-        StringBuilder builder = new StringBuilder();
+        StringBuilder builder = appendFormStart(new StringBuilder(), destination, action, realm);
+        appendInput(builder, WSFedConstants.WSFED_RESULT, result!=null ? escapeAttribute(result) : null);
+        return appendFormEnd(builder, replyTo, context).toString();
+    }
 
-        builder.append("<HTML>")
-            .append("<HEAD>")
-            .append("<TITLE>HTTP Binding Response (Response)</TITLE>")
-            .append("</HEAD>")
-            .append("<BODY Onload=\"document.forms[0].submit()\">")
+    private StringBuilder appendFormStart(StringBuilder builder, String destination, String action, String realm) {
+        builder.append(HTML_HEAD)
             .append("<FORM METHOD=\"").append(method).append("\" ACTION=\"").append(destination).append("\">");
 
-        String[][] params = new String[][] {
-            { WSFedConstants.WSFED_ACTION, action },
-            //FIXME check if this is necessary (i.e. actually used), as wrealm doesn't seem to be part of the protocol for responses.
-            { WSFedConstants.WSFED_REALM, realm },
-            { WSFedConstants.WSFED_RESULT, result!=null ? escapeAttribute(result) : null },
-            //FIXME check if this is necessary (i.e. actually used), as wreply doesn't seem to be part of the protocol for responses.
-            { WSFedConstants.WSFED_REPLY, replyTo },
-            { WSFedConstants.WSFED_CONTEXT, context }
-        };
-        for(String[] p : params) {
-            if (isNotNull(p[1])) {
-                builder.append("<INPUT TYPE=\"HIDDEN\" NAME=\"").append(p[0]).append("\" VALUE=\"").append(p[1]).append("\" />");
-            }
-        }
+        appendInput(builder, WSFedConstants.WSFED_ACTION, action);
+        //FIXME check if this is necessary (i.e. actually used), as wrealm doesn't seem to be part of the protocol for responses.
+        return appendInput(builder, WSFedConstants.WSFED_REALM, realm);
+    }
 
-        return builder.append("<NOSCRIPT>")
-            .append("<P>JavaScript is disabled. We strongly recommend to enable it. Click the button below to continue.</P>")
-            .append("<INPUT TYPE=\"SUBMIT\" VALUE=\"CONTINUE\" />")
-            .append("</NOSCRIPT>")
-            .append("</FORM></BODY></HTML>")
-            .toString();
+    private static StringBuilder appendFormEnd(StringBuilder builder, String replyTo, String context) {
+        //FIXME check if this is necessary (i.e. actually used), as wreply doesn't seem to be part of the protocol for responses.
+        appendInput(builder, WSFedConstants.WSFED_REPLY, replyTo);
+        appendInput(builder, WSFedConstants.WSFED_CONTEXT, context);
+        return builder.append(HTML_TAIL);
+    }
+
+    private static StringBuilder appendInput(StringBuilder builder, String name, String value) {
+        if (isNotNull(value)) {
+            builder.append("<INPUT TYPE=\"HIDDEN\" NAME=\"").append(name).append("\" VALUE=\"").append(value).append("\" />");
+        }
+        return builder;
     }
 
     /**
@@ -210,15 +250,21 @@ public class WSFedResponseBuilder {
      * @return the inpt string with "illegal" characters transformed for correctness
      */
     protected static String escapeAttribute(String s) {
-        StringBuilder out = new StringBuilder();
-        for (int i = 0; i < s.length(); i++) {
-            char c = s.charAt(i);
-            if (c > 127 || c == '"' || c == '<' || c == '>') {
-                out.append("&#" + (int) c + ";");
-            } else {
-                out.append(c);
-            }
+        StringWriter out = new StringWriter(s.length());
+        try {
+            new AttributeEscapingWriter(out).write(s);
+        } catch (IOException e) {
+            //A StringWriter doesn't throw
+            throw new IllegalStateException(e);
         }
         return out.toString();
     }
+
+    /**
+     * Writes the wresult value of a streamed response.
+     */
+    @FunctionalInterface
+    public interface ResultWriter {
+        void write(Writer writer) throws IOException;
+    }
 }
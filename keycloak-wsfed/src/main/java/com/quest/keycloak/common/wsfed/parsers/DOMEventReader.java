@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.common.wsfed.parsers;
+
+import org.w3c.dom.Node;
+
+import javax.xml.XMLConstants;
+import javax.xml.stream.Location;
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.Namespace;
+import javax.xml.stream.events.XMLEvent;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * An {@link XMLEventReader} walking an already parsed DOM element. This lets the StAX based WS-Trust and SAML parsers
+ * build their models straight from the DOM tree of a wresult, so the response only has to be parsed once and the
+ * token elements handed to the signature verification are the untouched originals.
+ * <p>
+ * The tree is walked by a {@link DOMStreamReader}, whose events are turned into event objects here: the event
+ * allocators of the StAX implementations only work over their own stream readers. So, like the filtered readers used by
+ * the parsers when reading from a stream, only element events and non whitespace character events are reported, and
+ * namespaces declared on the ancestors of the root element are reported on the root start element so that fragments
+ * copied out of the reader are self-contained.
+ */
+public class DOMEventReader implements XMLEventReader {
+
+    private static final XMLEventFactory EVENT_FACTORY = XMLEventFactory.newInstance();
+
+    static {
+        // Some consumers, such as StAXSource, expect every event to have a location
+        EVENT_FACTORY.setLocation(new Location() {
+            @Override
+            public int getLineNumber() {
+                return -1;
+            }
+
+            @Override
+            public int getColumnNumber() {
+                return -1;
+            }
+
+            @Override
+            public int getCharacterOffset() {
+                return -1;
+            }
+
+            @Override
+            public String getPublicId() {
+                return null;
+            }
+
+            @Override
+            public String getSystemId() {
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Always on the event to be returned next, or on the end of the document once all the events were returned.
+     */
+    private final DOMStreamReader reader;
+
+    private XMLEvent peeked;
+
+    public DOMEventReader(Node node) {
+        this.reader = new DOMStreamReader(node);
+        // The start document event is not reported
+        advance();
+    }
+
+    @Override
+    public XMLEvent nextEvent() throws XMLStreamException {
+        XMLEvent event = peek();
+        if (event == null) {
+            throw new NoSuchElementException();
+        }
+        peeked = null;
+        advance();
+        return event;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return peek() != null;
+    }
+
+    @Override
+    public Object next() {
+        try {
+            return nextEvent();
+        } catch (XMLStreamException e) {
+            throw new NoSuchElementException(e.getMessage());
+        }
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public XMLEvent peek() {
+        if (peeked == null) {
+            peeked = createEvent();
+        }
+        return peeked;
+    }
+
+    @Override
+    public String getElementText() throws XMLStreamException {
+        StringBuilder text = new StringBuilder();
+        while (true) {
+            XMLEvent event = nextEvent();
+            if (event.isEndElement()) {
+                return text.toString();
+            }
+            if (!event.isCharacters()) {
+                throw new XMLStreamException("Element text content may not contain " + event);
+            }
+            text.append(event.asCharacters().getData());
+        }
+    }
+
+    @Override
+    public XMLEvent nextTag() throws XMLStreamException {
+        while (true) {
+            XMLEvent event = nextEvent();
+            if (event.isStartElement() || event.isEndElement()) {
+                return event;
+            }
+            if (!event.isCharacters() || !event.asCharacters().isWhiteSpace()) {
+                throw new XMLStreamException("Expected a start or end element but found " + event);
+            }
+        }
+    }
+
+    @Override
+    public Object getProperty(String name) {
+        return null;
+    }
+
+    @Override
+    public void close() {
+        reader.close();
+        peeked = null;
+    }
+
+    private void advance() {
+        if (reader.hasNext()) {
+            reader.next();
+        }
+    }
+
+    private XMLEvent createEvent() {
+        switch (reader.getEventType()) {
+            case XMLEvent.START_ELEMENT:
+                return createStartElement();
+            case XMLEvent.END_ELEMENT:
+                return EVENT_FACTORY.createEndElement(reader.getPrefix(), reader.getNamespaceURI(), reader.getLocalName());
+            case XMLEvent.CHARACTERS:
+                return EVENT_FACTORY.createCharacters(reader.getText());
+            default:
+                return null;
+        }
+    }
+
+    private XMLEvent createStartElement() {
+        List<Attribute> attributes = new ArrayList<>();
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+            attributes.add(EVENT_FACTORY.createAttribute(reader.getAttributePrefix(i), reader.getAttributeNamespace(i),
+                    reader.getAttributeLocalName(i), reader.getAttributeValue(i)));
+        }
+        List<Namespace> namespaces = new ArrayList<>();
+        for (int i = 0; i < reader.getNamespaceCount(); i++) {
+            String prefix = reader.getNamespacePrefix(i);
+            namespaces.add(EVENT_FACTORY.createNamespace(prefix == null ? XMLConstants.DEFAULT_NS_PREFIX : prefix, reader.getNamespaceURI(i)));
+        }
+        return EVENT_FACTORY.createStartElement(reader.getPrefix(), reader.getNamespaceURI(), reader.getLocalName(),
+                attributes.iterator(), namespaces.iterator(), reader.getNamespaceContext());
+    }
+}
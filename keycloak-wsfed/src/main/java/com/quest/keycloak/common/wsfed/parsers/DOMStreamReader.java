@@ -0,0 +1,509 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.common.wsfed.parsers;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+import javax.xml.XMLConstants;
+import javax.xml.namespace.NamespaceContext;
+import javax.xml.namespace.QName;
+import javax.xml.stream.Location;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * An {@link XMLStreamReader} walking an already parsed DOM element, which {@link DOMEventReader} also walks the tree
+ * with. The WS-Trust parsers read a wresult from its DOM tree through this reader, and take the token elements out of
+ * the tree as they are with {@link #currentElement()}, so that their signatures can be validated on the originals.
+ * <p>
+ * Only element events and non whitespace character events are reported, between a start and an end document event.
+ * Namespaces declared on the ancestors of the root element are reported on the root element.
+ */
+public class DOMStreamReader implements XMLStreamReader {
+
+    private static final Location NO_LOCATION = new Location() {
+        @Override
+        public int getLineNumber() {
+            return -1;
+        }
+
+        @Override
+        public int getColumnNumber() {
+            return -1;
+        }
+
+        @Override
+        public int getCharacterOffset() {
+            return -1;
+        }
+
+        @Override
+        public String getPublicId() {
+            return null;
+        }
+
+        @Override
+        public String getSystemId() {
+            return null;
+        }
+    };
+
+    private final Element root;
+
+    private Node node;
+    private int eventType = START_DOCUMENT;
+
+    private List<Attr> attributes;
+    private List<Attr> namespaces;
+
+    public DOMStreamReader(Node node) {
+        this.root = node instanceof Document ? ((Document) node).getDocumentElement() : (Element) node;
+    }
+
+    /**
+     * @return the element of the current start element event
+     * @throws IllegalStateException if the current event is not a start element
+     */
+    public Element currentElement() {
+        if (eventType != START_ELEMENT) {
+            throw new IllegalStateException("Not on a start element");
+        }
+        return (Element) node;
+    }
+
+    /**
+     * Moves the reader from the start element event of an element to its end element event, without walking its
+     * content.
+     *
+     * @throws IllegalStateException if the current event is not a start element
+     */
+    public void skipElement() {
+        currentElement();
+        eventType = END_ELEMENT;
+    }
+
+    @Override
+    public int next() {
+        attributes = null;
+        namespaces = null;
+        switch (eventType) {
+            case START_DOCUMENT:
+                moveTo(root, null);
+                break;
+            case START_ELEMENT:
+                moveTo(node.getFirstChild(), node);
+                break;
+            case END_ELEMENT:
+                if (node == root) {
+                    node = null;
+                    eventType = END_DOCUMENT;
+                    break;
+                }
+                moveTo(node.getNextSibling(), node.getParentNode());
+                break;
+            case CHARACTERS:
+                moveTo(node.getNextSibling(), node.getParentNode());
+                break;
+            default:
+                throw new NoSuchElementException();
+        }
+        return eventType;
+    }
+
+    /**
+     * Moves to the first element or non whitespace text from candidate on, or to the end of parent if there is none.
+     */
+    private void moveTo(Node candidate, Node parent) {
+        for (; candidate != null; candidate = candidate.getNextSibling()) {
+            if (candidate.getNodeType() == Node.ELEMENT_NODE) {
+                node = candidate;
+                eventType = START_ELEMENT;
+                return;
+            }
+            if ((candidate.getNodeType() == Node.TEXT_NODE || candidate.getNodeType() == Node.CDATA_SECTION_NODE)
+                    && !isWhiteSpace(candidate.getNodeValue())) {
+                node = candidate;
+                eventType = CHARACTERS;
+                return;
+            }
+        }
+        node = parent;
+        eventType = END_ELEMENT;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return eventType != END_DOCUMENT;
+    }
+
+    @Override
+    public int nextTag() throws XMLStreamException {
+        int event = next();
+        if (event != START_ELEMENT && event != END_ELEMENT) {
+            throw new XMLStreamException("Expected a start or end element but found event " + event);
+        }
+        return event;
+    }
+
+    @Override
+    public String getElementText() throws XMLStreamException {
+        if (eventType != START_ELEMENT) {
+            throw new XMLStreamException("Not on a start element");
+        }
+        StringBuilder text = new StringBuilder();
+        while (next() != END_ELEMENT) {
+            if (eventType != CHARACTERS) {
+                throw new XMLStreamException("Element text content may not contain elements");
+            }
+            text.append(node.getNodeValue());
+        }
+        return text.toString();
+    }
+
+    @Override
+    public void require(int type, String namespaceURI, String localName) throws XMLStreamException {
+        if (type != eventType
+                || (namespaceURI != null && !namespaceURI.equals(getNamespaceURI()))
+                || (localName != null && !localName.equals(getLocalName()))) {
+            throw new XMLStreamException("Expected event " + type + " for " + new QName(namespaceURI, localName));
+        }
+    }
+
+    @Override
+    public Object getProperty(String name) {
+        return null;
+    }
+
+    @Override
+    public void close() {
+        node = null;
+        eventType = END_DOCUMENT;
+    }
+
+    @Override
+    public int getEventType() {
+        return eventType;
+    }
+
+    @Override
+    public boolean isStartElement() {
+        return eventType == START_ELEMENT;
+    }
+
+    @Override
+    public boolean isEndElement() {
+        return eventType == END_ELEMENT;
+    }
+
+    @Override
+    public boolean isCharacters() {
+        return eventType == CHARACTERS;
+    }
+
+    @Override
+    public boolean isWhiteSpace() {
+        return eventType == CHARACTERS && isWhiteSpace(node.getNodeValue());
+    }
+
+    private static boolean isWhiteSpace(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (!Character.isWhitespace(text.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean hasName() {
+        return eventType == START_ELEMENT || eventType == END_ELEMENT;
+    }
+
+    @Override
+    public QName getName() {
+        return new QName(getNamespaceURI(), getLocalName(), getPrefix());
+    }
+
+    @Override
+    public String getLocalName() {
+        return node.getLocalName() == null ? node.getNodeName() : node.getLocalName();
+    }
+
+    @Override
+    public String getNamespaceURI() {
+        return node.getNamespaceURI() == null ? XMLConstants.NULL_NS_URI : node.getNamespaceURI();
+    }
+
+    @Override
+    public String getPrefix() {
+        return node.getPrefix() == null ? XMLConstants.DEFAULT_NS_PREFIX : node.getPrefix();
+    }
+
+    @Override
+    public String getNamespaceURI(String prefix) {
+        String uri = getNamespaceContext().getNamespaceURI(prefix);
+        return XMLConstants.NULL_NS_URI.equals(uri) ? null : uri;
+    }
+
+    @Override
+    public NamespaceContext getNamespaceContext() {
+        Node element = eventType == CHARACTERS ? node.getParentNode() : node;
+        return new ElementNamespaceContext(element instanceof Element ? (Element) element : root);
+    }
+
+    private void collectAttributes() {
+        if (attributes != null) {
+            return;
+        }
+        if (!hasName()) {
+            throw new IllegalStateException("Not on a start or end element");
+        }
+        attributes = new ArrayList<>();
+        namespaces = new ArrayList<>();
+        Set<String> declared = new HashSet<>();
+        collectAttributes((Element) node, attributes, declared);
+        if (node == root) {
+            for (Node parent = root.getParentNode(); parent instanceof Element; parent = parent.getParentNode()) {
+                collectAttributes((Element) parent, null, declared);
+            }
+        }
+    }
+
+    private void collectAttributes(Element element, List<Attr> attributes, Set<String> declared) {
+        NamedNodeMap map = element.getAttributes();
+        for (int i = 0; i < map.getLength(); i++) {
+            Attr attr = (Attr) map.item(i);
+            if (XMLConstants.XMLNS_ATTRIBUTE_NS_URI.equals(attr.getNamespaceURI())) {
+                if (declared.add(namespacePrefixOf(attr))) {
+                    namespaces.add(attr);
+                }
+            } else if (attributes != null) {
+                attributes.add(attr);
+            }
+        }
+    }
+
+    private static String namespacePrefixOf(Attr attr) {
+        return attr.getPrefix() == null ? XMLConstants.DEFAULT_NS_PREFIX : attr.getLocalName();
+    }
+
+    @Override
+    public int getAttributeCount() {
+        if (eventType != START_ELEMENT) {
+            throw new IllegalStateException("Not on a start element");
+        }
+        collectAttributes();
+        return attributes.size();
+    }
+
+    private Attr getAttribute(int index) {
+        getAttributeCount();
+        return attributes.get(index);
+    }
+
+    @Override
+    public String getAttributeValue(String namespaceURI, String localName) {
+        for (int i = 0; i < getAttributeCount(); i++) {
+            Attr attr = attributes.get(i);
+            if (localName.equals(getAttributeLocalName(i)) && (namespaceURI == null || namespaceURI.equals(getAttributeNamespace(i)))) {
+                return attr.getValue();
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public QName getAttributeName(int index) {
+        return new QName(getAttributeNamespace(index), getAttributeLocalName(index), getAttributePrefix(index));
+    }
+
+    @Override
+    public String getAttributeNamespace(int index) {
+        String uri = getAttribute(index).getNamespaceURI();
+        return uri == null ? XMLConstants.NULL_NS_URI : uri;
+    }
+
+    @Override
+    public String getAttributeLocalName(int index) {
+        Attr attr = getAttribute(index);
+        return attr.getLocalName() == null ? attr.getName() : attr.getLocalName();
+    }
+
+    @Override
+    public String getAttributePrefix(int index) {
+        String prefix = getAttribute(index).getPrefix();
+        return prefix == null ? XMLConstants.DEFAULT_NS_PREFIX : prefix;
+    }
+
+    @Override
+    public String getAttributeType(int index) {
+        return getAttribute(index).isId() ? "ID" : "CDATA";
+    }
+
+    @Override
+    public String getAttributeValue(int index) {
+        return getAttribute(index).getValue();
+    }
+
+    @Override
+    public boolean isAttributeSpecified(int index) {
+        return getAttribute(index).getSpecified();
+    }
+
+    @Override
+    public int getNamespaceCount() {
+        collectAttributes();
+        return namespaces.size();
+    }
+
+    @Override
+    public String getNamespacePrefix(int index) {
+        getNamespaceCount();
+        String prefix = namespacePrefixOf(namespaces.get(index));
+        return XMLConstants.DEFAULT_NS_PREFIX.equals(prefix) ? null : prefix;
+    }
+
+    @Override
+    public String getNamespaceURI(int index) {
+        getNamespaceCount();
+        return namespaces.get(index).getValue();
+    }
+
+    @Override
+    public boolean hasText() {
+        return eventType == CHARACTERS;
+    }
+
+    @Override
+    public String getText() {
+        if (eventType != CHARACTERS) {
+            throw new IllegalStateException("Not on characters");
+        }
+        return node.getNodeValue();
+    }
+
+    @Override
+    public char[] getTextCharacters() {
+        return getText().toCharArray();
+    }
+
+    @Override
+    public int getTextCharacters(int sourceStart, char[] target, int targetStart, int length) {
+        String text = getText();
+        int count = Math.max(0, Math.min(length, text.length() - sourceStart));
+        text.getChars(sourceStart, sourceStart + count, target, targetStart);
+        return count;
+    }
+
+    @Override
+    public int getTextStart() {
+        return 0;
+    }
+
+    @Override
+    public int getTextLength() {
+        return getText().length();
+    }
+
+    @Override
+    public Location getLocation() {
+        return NO_LOCATION;
+    }
+
+    @Override
+    public String getEncoding() {
+        return null;
+    }
+
+    @Override
+    public String getVersion() {
+        return null;
+    }
+
+    @Override
+    public boolean isStandalone() {
+        return false;
+    }
+
+    @Override
+    public boolean standaloneSet() {
+        return false;
+    }
+
+    @Override
+    public String getCharacterEncodingScheme() {
+        return null;
+    }
+
+    @Override
+    public String getPITarget() {
+        return null;
+    }
+
+    @Override
+    public String getPIData() {
+        return null;
+    }
+
+    /**
+     * Resolves prefixes against the namespace declarations in scope for a DOM element.
+     */
+    private static class ElementNamespaceContext implements NamespaceContext {
+        private final Element element;
+
+        ElementNamespaceContext(Element element) {
+            this.element = element;
+        }
+
+        @Override
+        public String getNamespaceURI(String prefix) {
+            if (XMLConstants.XML_NS_PREFIX.equals(prefix)) {
+                return XMLConstants.XML_NS_URI;
+            }
+            if (XMLConstants.XMLNS_ATTRIBUTE.equals(prefix)) {
+                return XMLConstants.XMLNS_ATTRIBUTE_NS_URI;
+            }
+            String uri = element.lookupNamespaceURI(XMLConstants.DEFAULT_NS_PREFIX.equals(prefix) ? null : prefix);
+            return uri == null ? XMLConstants.NULL_NS_URI : uri;
+        }
+
+        @Override
+        public String getPrefix(String namespaceURI) {
+            if (element.isDefaultNamespace(namespaceURI)) {
+                return XMLConstants.DEFAULT_NS_PREFIX;
+            }
+            return element.lookupPrefix(namespaceURI);
+        }
+
+        @Override
+        public Iterator getPrefixes(String namespaceURI) {
+            String prefix = getPrefix(namespaceURI);
+            return prefix == null ? Collections.emptyIterator() : Collections.singletonList(prefix).iterator();
+        }
+    }
+}
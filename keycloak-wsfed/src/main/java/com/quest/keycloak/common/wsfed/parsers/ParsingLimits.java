@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.common.wsfed.parsers;
+
+import com.quest.keycloak.common.wsfed.utils.XMLFactories;
+import org.keycloak.saml.common.constants.JBossSAMLConstants;
+import org.keycloak.saml.common.constants.JBossSAMLURIConstants;
+import org.keycloak.saml.processing.core.saml.v1.SAML11Constants;
+import org.picketlink.common.exceptions.ParsingException;
+
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.util.StreamReaderDelegate;
+import java.io.StringReader;
+
+/**
+ * Bounds the size and the shape of the XML read from an identity provider, so that the memory a response takes can't
+ * grow past what a legitimate one needs: its size in bytes, the depth of its elements, the number of its elements,
+ * the number of XML attributes of an element and the length of an XML attribute value, as well as the number of SAML
+ * Attribute (claim) and AttributeValue elements of the response, whether SAML 2.0 or SAML 1.1.
+ * <p>
+ * The limits are enforced while streaming over the XML, so that a response breaking them is rejected before any DOM
+ * is built for it or any of its signatures is checked.
+ */
+public final class ParsingLimits {
+
+    public static final int DEFAULT_MAX_BYTES = 2 * 1024 * 1024;
+    public static final int DEFAULT_MAX_DEPTH = 50;
+    public static final int DEFAULT_MAX_ELEMENTS = 50_000;
+    public static final int DEFAULT_MAX_ATTRIBUTES = 100;
+    public static final int DEFAULT_MAX_ATTRIBUTE_VALUE_LENGTH = 64 * 1024;
+    public static final int DEFAULT_MAX_SAML_ATTRIBUTES = 1000;
+    public static final int DEFAULT_MAX_SAML_ATTRIBUTE_VALUES = 10_000;
+
+    public static final ParsingLimits DEFAULT = new ParsingLimits(0, 0, 0, 0, 0, 0, 0);
+
+    private final int maxBytes;
+    private final int maxDepth;
+    private final int maxElements;
+    private final int maxAttributes;
+    private final int maxAttributeValueLength;
+    private final int maxSamlAttributes;
+    private final int maxSamlAttributeValues;
+
+    /**
+     * A limit that isn't positive is set to its default.
+     *
+     * @param maxAttributes           the maximum number of XML attributes of an element
+     * @param maxAttributeValueLength the maximum length of the value of an XML attribute
+     * @param maxSamlAttributes       the maximum number of SAML Attribute elements of the response
+     * @param maxSamlAttributeValues  the maximum number of SAML AttributeValue elements of the response
+     */
+    public ParsingLimits(int maxBytes, int maxDepth, int maxElements, int maxAttributes, int maxAttributeValueLength,
+                         int maxSamlAttributes, int maxSamlAttributeValues) {
+        this.maxBytes = maxBytes > 0 ? maxBytes : DEFAULT_MAX_BYTES;
+        this.maxDepth = maxDepth > 0 ? maxDepth : DEFAULT_MAX_DEPTH;
+        this.maxElements = maxElements > 0 ? maxElements : DEFAULT_MAX_ELEMENTS;
+        this.maxAttributes = maxAttributes > 0 ? maxAttributes : DEFAULT_MAX_ATTRIBUTES;
+        this.maxAttributeValueLength = maxAttributeValueLength > 0 ? maxAttributeValueLength : DEFAULT_MAX_ATTRIBUTE_VALUE_LENGTH;
+        this.maxSamlAttributes = maxSamlAttributes > 0 ? maxSamlAttributes : DEFAULT_MAX_SAML_ATTRIBUTES;
+        this.maxSamlAttributeValues = maxSamlAttributeValues > 0 ? maxSamlAttributeValues : DEFAULT_MAX_SAML_ATTRIBUTE_VALUES;
+    }
+
+    public int getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * @throws ParsingException if the XML is larger than the maximum number of bytes once encoded in UTF-8
+     */
+    public void checkSize(String xml) throws ParsingException {
+        // Each char takes at least one byte, so most responses are accepted on their length alone
+        if (xml.length() > maxBytes || (xml.length() * 3L > maxBytes && utf8Length(xml) > maxBytes)) {
+            throw new ParsingException("The response is larger than the limit of " + maxBytes + " bytes");
+        }
+    }
+
+    private static long utf8Length(String s) {
+        long length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c)) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Streams over the whole XML, checking its size and shape, without building anything from it.
+     *
+     * @throws ParsingException if the XML breaks one of the limits, or isn't well-formed
+     */
+    public void check(String xml) throws ParsingException {
+        checkSize(xml);
+        try {
+            XMLStreamReader reader = limit(XMLFactories.createXMLStreamReader(new StringReader(xml)));
+            try {
+                while (reader.hasNext()) {
+                    reader.next();
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException e) {
+            throw new ParsingException(e);
+        }
+    }
+
+    /**
+     * @return a reader failing with an {@link XMLStreamException} as soon as the XML read breaks one of the limits on
+     * its shape. The reader must not have read past the start of the document yet.
+     */
+    public XMLStreamReader limit(XMLStreamReader reader) {
+        return new LimitedReader(reader);
+    }
+
+    private final class LimitedReader extends StreamReaderDelegate {
+        private int depth;
+        private int elements;
+        private int samlAttributes;
+        private int samlAttributeValues;
+
+        LimitedReader(XMLStreamReader reader) {
+            super(reader);
+        }
+
+        @Override
+        public int next() throws XMLStreamException {
+            int event = super.next();
+            if (event == START_ELEMENT) {
+                checkStartElement();
+            } else if (event == END_ELEMENT) {
+                depth--;
+            }
+            return event;
+        }
+
+        private void checkStartElement() throws XMLStreamException {
+            if (++depth > maxDepth) {
+                throw new XMLStreamException("Elements are nested deeper than the limit of " + maxDepth, getLocation());
+            }
+            if (++elements > maxElements) {
+                throw new XMLStreamException("The number of elements exceeds the limit of " + maxElements, getLocation());
+            }
+            int attributes = getAttributeCount();
+            if (attributes > maxAttributes) {
+                throw new XMLStreamException("The number of attributes of " + getLocalName() + " exceeds the limit of " + maxAttributes, getLocation());
+            }
+            for (int i = 0; i < attributes; i++) {
+                if (getAttributeValue(i).length() > maxAttributeValueLength) {
+                    throw new XMLStreamException("The value of attribute " + getAttributeLocalName(i) + " is longer than the limit of " + maxAttributeValueLength, getLocation());
+                }
+            }
+            if (isSamlAssertionElement()) {
+                if (JBossSAMLConstants.ATTRIBUTE.get().equals(getLocalName()) && ++samlAttributes > maxSamlAttributes) {
+                    throw new XMLStreamException("The number of SAML attributes exceeds the limit of " + maxSamlAttributes, getLocation());
+                }
+                if (JBossSAMLConstants.ATTRIBUTE_VALUE.get().equals(getLocalName()) && ++samlAttributeValues > maxSamlAttributeValues) {
+                    throw new XMLStreamException("The number of SAML attribute values exceeds the limit of " + maxSamlAttributeValues, getLocation());
+                }
+            }
+        }
+
+        private boolean isSamlAssertionElement() {
+            String nsURI = getNamespaceURI();
+            return JBossSAMLURIConstants.ASSERTION_NSURI.get().equals(nsURI) || SAML11Constants.ASSERTION_11_NSURI.equals(nsURI);
+        }
+
+        @Override
+        public int nextTag() throws XMLStreamException {
+            int event = next();
+            while ((event == CHARACTERS && isWhiteSpace()) || event == SPACE || event == COMMENT || event == PROCESSING_INSTRUCTION) {
+                event = next();
+            }
+            if (event != START_ELEMENT && event != END_ELEMENT) {
+                throw new XMLStreamException("Expected a start or end element", getLocation());
+            }
+            return event;
+        }
+
+        @Override
+        public String getElementText() throws XMLStreamException {
+            // Text only elements have no children, so only the end element has to be accounted for
+            String text = super.getElementText();
+            depth--;
+            return text;
+        }
+    }
+}
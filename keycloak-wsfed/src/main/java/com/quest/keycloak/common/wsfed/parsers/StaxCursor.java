@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.common.wsfed.parsers;
+
+import com.quest.keycloak.common.wsfed.utils.XMLFactories;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import javax.xml.XMLConstants;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.util.StreamReaderDelegate;
+
+/**
+ * Moves an {@link XMLStreamReader} through a document element by element, for the WS-Trust parsers.
+ * <p>
+ * The parser of an element is called with the reader on the start element, and leaves it on the matching end element.
+ */
+final class StaxCursor {
+
+    private StaxCursor() {
+    }
+
+    /**
+     * Moves to the root element of the document.
+     *
+     * @return false if the document has no element
+     */
+    static boolean nextStartElement(XMLStreamReader reader) throws XMLStreamException {
+        while (reader.getEventType() != XMLStreamConstants.START_ELEMENT) {
+            if (!reader.hasNext()) {
+                return false;
+            }
+            reader.next();
+        }
+        return true;
+    }
+
+    /**
+     * Moves to the next child of the current element, ignoring stray text.
+     *
+     * @return true if the reader is on the start element of the next child, false if it is on the end element of the
+     * current element
+     */
+    static boolean nextChild(XMLStreamReader reader) throws XMLStreamException {
+        while (true) {
+            switch (reader.next()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    return true;
+                case XMLStreamConstants.END_ELEMENT:
+                    return false;
+                case XMLStreamConstants.END_DOCUMENT:
+                    throw new XMLStreamException("Unexpected end of document");
+                default:
+                    break;
+            }
+        }
+    }
+
+    /**
+     * @return the trimmed text of the current element
+     */
+    static String getElementText(XMLStreamReader reader) throws XMLStreamException {
+        return reader.getElementText().trim();
+    }
+
+    /**
+     * Moves past the current element. The content of the element is not walked when reading from a DOM tree.
+     */
+    static void skipElement(XMLStreamReader reader) throws XMLStreamException {
+        if (reader instanceof DOMStreamReader) {
+            ((DOMStreamReader) reader).skipElement();
+            return;
+        }
+        int depth = 1;
+        while (depth > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+
+    /**
+     * @return an event reader over the current element only, for the StAX parsers built on the event API. Once the
+     * element is read, the reader is on its end element.
+     */
+    static XMLEventReader eventReaderOf(XMLStreamReader reader) throws XMLStreamException {
+        if (reader instanceof DOMStreamReader) {
+            // The event allocators of the StAX implementations only work over their own stream readers
+            Element element = ((DOMStreamReader) reader).currentElement();
+            ((DOMStreamReader) reader).skipElement();
+            return new DOMEventReader(element);
+        }
+        return XMLFactories.createXMLEventReader(new ElementReader(reader));
+    }
+
+    /**
+     * @return the current element: the element itself when reading from a DOM tree, a copy of it otherwise
+     */
+    static Element getDOMElement(XMLStreamReader reader) throws XMLStreamException {
+        if (reader instanceof DOMStreamReader) {
+            Element element = ((DOMStreamReader) reader).currentElement();
+            ((DOMStreamReader) reader).skipElement();
+            return element;
+        }
+
+        Document document = XMLFactories.newDocument();
+        Node parent = document;
+        int depth = 0;
+        while (true) {
+            switch (reader.getEventType()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    Element element = document.createElementNS(emptyToNull(reader.getNamespaceURI()), qualifiedName(reader.getPrefix(), reader.getLocalName()));
+                    for (int i = 0; i < reader.getNamespaceCount(); i++) {
+                        declareNamespace(element, reader.getNamespacePrefix(i), reader.getNamespaceURI(i));
+                    }
+                    for (int i = 0; i < reader.getAttributeCount(); i++) {
+                        element.setAttributeNS(emptyToNull(reader.getAttributeNamespace(i)), qualifiedName(reader.getAttributePrefix(i), reader.getAttributeLocalName(i)), reader.getAttributeValue(i));
+                    }
+                    if (depth == 0 && emptyToNull(reader.getNamespaceURI()) != null) {
+                        // The namespace of the copied element may be declared on one of its ancestors
+                        declareNamespace(element, reader.getPrefix(), reader.getNamespaceURI());
+                    }
+                    parent.appendChild(element);
+                    parent = element;
+                    depth++;
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    parent = parent.getParentNode();
+                    depth--;
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                case XMLStreamConstants.SPACE:
+                    parent.appendChild(document.createTextNode(reader.getText()));
+                    break;
+                default:
+                    break;
+            }
+            if (depth == 0) {
+                return document.getDocumentElement();
+            }
+            reader.next();
+        }
+    }
+
+    private static void declareNamespace(Element element, String prefix, String uri) {
+        String name = emptyToNull(prefix) == null ? XMLConstants.XMLNS_ATTRIBUTE : XMLConstants.XMLNS_ATTRIBUTE + ":" + prefix;
+        element.setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI, name, uri);
+    }
+
+    private static String qualifiedName(String prefix, String localName) {
+        return emptyToNull(prefix) == null ? localName : prefix + ":" + localName;
+    }
+
+    private static String emptyToNull(String value) {
+        return value == null || value.isEmpty() ? null : value;
+    }
+
+    /**
+     * Shows the current element of a reader as a whole document, so that readers layered on top of it can't read past
+     * the element.
+     */
+    private static final class ElementReader extends StreamReaderDelegate {
+        private int depth = 1;
+
+        ElementReader(XMLStreamReader reader) {
+            super(reader);
+        }
+
+        @Override
+        public boolean hasNext() throws XMLStreamException {
+            return depth > 0;
+        }
+
+        @Override
+        public int next() throws XMLStreamException {
+            if (depth == 0) {
+                throw new XMLStreamException("Read past the end of the element");
+            }
+            int event = super.next();
+            if (event == START_ELEMENT) {
+                depth++;
+            } else if (event == END_ELEMENT) {
+                depth--;
+            }
+            return event;
+        }
+
+        @Override
+        public int nextTag() throws XMLStreamException {
+            int event = next();
+            while (event != START_ELEMENT && event != END_ELEMENT) {
+                if (event == CHARACTERS && !isWhiteSpace()) {
+                    throw new XMLStreamException("Expected a start or end element but found text");
+                }
+                event = next();
+            }
+            return event;
+        }
+
+        @Override
+        public String getElementText() throws XMLStreamException {
+            String text = super.getElementText();
+            depth--;
+            return text;
+        }
+    }
+}
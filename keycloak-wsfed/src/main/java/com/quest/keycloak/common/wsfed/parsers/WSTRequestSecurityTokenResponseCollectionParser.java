@@ -17,16 +17,14 @@
  */
 package com.quest.keycloak.common.wsfed.parsers;
 
+import org.picketlink.common.PicketLinkLogger;
+import org.picketlink.common.PicketLinkLoggerFactory;
 import org.picketlink.common.constants.WSTrustConstants;
 import org.picketlink.common.exceptions.ParsingException;
-import org.picketlink.common.parsers.ParserNamespaceSupport;
-import org.picketlink.common.util.StaxParserUtil;
-import org.picketlink.identity.federation.core.wstrust.wrappers.RequestSecurityTokenResponse;
 import org.picketlink.identity.federation.core.wstrust.wrappers.RequestSecurityTokenResponseCollection;
 
-import javax.xml.namespace.QName;
-import javax.xml.stream.XMLEventReader;
-import javax.xml.stream.events.StartElement;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
 /**
  * Parse the WS-Trust RequestSecurityTokenResponse Collection
@@ -34,38 +32,39 @@ import javax.xml.stream.events.StartElement;
  * @author Anil.Saldhana@redhat.com
  * @since Nov 11, 2010
  */
-public class WSTRequestSecurityTokenResponseCollectionParser implements ParserNamespaceSupport {
+public class WSTRequestSecurityTokenResponseCollectionParser {
 
-    /**
-     * @see ParserNamespaceSupport#parse(XMLEventReader)
-     */
-    public Object parse(XMLEventReader xmlEventReader) throws ParsingException {
-        StaxParserUtil.getNextEvent(xmlEventReader);
-
-        RequestSecurityTokenResponseCollection requestCollection = new RequestSecurityTokenResponseCollection();
+    private static final PicketLinkLogger logger = PicketLinkLoggerFactory.getLogger();
 
-        // Peek at the next event
-        while (xmlEventReader.hasNext()) {
-            StartElement peekedElement = StaxParserUtil.peekNextStartElement(xmlEventReader);
-            if (peekedElement == null)
-                break;
+    private final boolean parseSamlTokens;
 
-            String tag = StaxParserUtil.getStartElementName(peekedElement);
+    public WSTRequestSecurityTokenResponseCollectionParser() {
+        this(false);
+    }
 
-            if (WSTrustConstants.RSTR.equalsIgnoreCase(tag)) {
-                WSTRequestSecurityTokenResponseParser rstrParser = new WSTRequestSecurityTokenResponseParser();
-                RequestSecurityTokenResponse rstr = (RequestSecurityTokenResponse) rstrParser.parse(xmlEventReader);
-                requestCollection.addRequestSecurityTokenResponse(rstr);
-            }
-        }
-        return requestCollection;
+    public WSTRequestSecurityTokenResponseCollectionParser(boolean parseSamlTokens) {
+        this.parseSamlTokens = parseSamlTokens;
     }
 
     /**
-     * @see ParserNamespaceSupport#supports(QName)
+     * Parses the RequestSecurityTokenResponseCollection the reader is on, leaving the reader on its end element. Only
+     * the responses in the namespace of the collection are read.
      */
-    public boolean supports(QName qname) {
-        return (qname.getNamespaceURI().equals(WSTrustConstants.BASE_NAMESPACE) && qname.getLocalPart().equals(
-                WSTrustConstants.RSTR_COLLECTION));
+    public RequestSecurityTokenResponseCollection parse(XMLStreamReader reader) throws ParsingException {
+        RequestSecurityTokenResponseCollection requestCollection = new RequestSecurityTokenResponseCollection();
+        String namespace = reader.getNamespaceURI();
+        WSTRequestSecurityTokenResponseParser rstrParser = new WSTRequestSecurityTokenResponseParser(parseSamlTokens);
+        try {
+            while (StaxCursor.nextChild(reader)) {
+                if (namespace.equals(reader.getNamespaceURI()) && WSTrustConstants.RSTR.equals(reader.getLocalName())) {
+                    requestCollection.addRequestSecurityTokenResponse(rstrParser.parse(reader));
+                } else {
+                    StaxCursor.skipElement(reader);
+                }
+            }
+        } catch (XMLStreamException e) {
+            throw logger.parserException(e);
+        }
+        return requestCollection;
     }
-}
\ No newline at end of file
+}
@@ -17,357 +17,203 @@
  */
 package com.quest.keycloak.common.wsfed.parsers;
 
+import com.quest.keycloak.common.wsfed.WSFedConstants;
+import org.keycloak.saml.common.constants.JBossSAMLURIConstants;
+import org.keycloak.saml.processing.core.parsers.saml.SAMLParser;
+import org.keycloak.saml.processing.core.saml.v1.SAML11Constants;
 import org.picketlink.common.PicketLinkLogger;
 import org.picketlink.common.PicketLinkLoggerFactory;
 import org.picketlink.common.constants.WSTrustConstants;
 import org.picketlink.common.exceptions.ParsingException;
-import org.picketlink.common.parsers.ParserNamespaceSupport;
-import org.picketlink.common.util.StaxParserUtil;
-import org.picketlink.identity.federation.core.parsers.ParserController;
-import org.picketlink.identity.federation.core.parsers.wsse.WSSecurityParser;
-import org.picketlink.identity.federation.core.parsers.wst.WSTrustOnBehalfOfParser;
-import org.picketlink.identity.federation.core.wstrust.WSTrustUtil;
 import org.picketlink.identity.federation.core.wstrust.wrappers.Lifetime;
 import org.picketlink.identity.federation.core.wstrust.wrappers.RequestSecurityTokenResponse;
-import org.picketlink.identity.federation.ws.policy.AppliesTo;
-import org.picketlink.identity.federation.ws.trust.BinarySecretType;
-import org.picketlink.identity.federation.ws.trust.ComputedKeyType;
-import org.picketlink.identity.federation.ws.trust.EntropyType;
 import org.picketlink.identity.federation.ws.trust.LifetimeType;
-import org.picketlink.identity.federation.ws.trust.OnBehalfOfType;
-import org.picketlink.identity.federation.ws.trust.RequestedProofTokenType;
-import org.picketlink.identity.federation.ws.trust.RequestedReferenceType;
 import org.picketlink.identity.federation.ws.trust.RequestedSecurityTokenType;
 import org.picketlink.identity.federation.ws.trust.RequestedTokenCancelledType;
 import org.picketlink.identity.federation.ws.trust.StatusType;
-import org.picketlink.identity.federation.ws.trust.UseKeyType;
-import org.picketlink.identity.federation.ws.wss.secext.SecurityTokenReferenceType;
 import org.picketlink.identity.federation.ws.wss.utility.AttributedDateTime;
-import org.w3c.dom.Element;
 
 import javax.xml.namespace.QName;
-import javax.xml.stream.XMLEventReader;
-import javax.xml.stream.events.Attribute;
-import javax.xml.stream.events.EndElement;
-import javax.xml.stream.events.StartElement;
-import javax.xml.stream.events.XMLEvent;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * Parse the WS-Trust RequestSecurityTokenResponse
+ * <p>
+ * The response is read with the cursor API, and each child element is dispatched on its qualified name, in either the
+ * WS-Trust 1.3 or the WS-Trust February 2005 namespace. The elements the broker has no use for (entropy, proof
+ * tokens, keys, references, ...) are skipped without being parsed.
  *
  * @author Anil.Saldhana@redhat.com
  * @since Oct 11, 2010
  */
-public class WSTRequestSecurityTokenResponseParser implements ParserNamespaceSupport {
+public class WSTRequestSecurityTokenResponseParser {
 
     private static final PicketLinkLogger logger = PicketLinkLoggerFactory.getLogger();
 
-    public static final String X509CERTIFICATE = "X509Certificate";
+    static final String[] TRUST_NAMESPACES = {WSTrustConstants.BASE_NAMESPACE, WSFedConstants.TRUST_NSURI};
+
+    private static final QName CREATED = new QName(WSTrustConstants.WSU_NS, WSTrustConstants.CREATED);
+    private static final QName EXPIRES = new QName(WSTrustConstants.WSU_NS, WSTrustConstants.EXPIRES);
+
+    private static final Map<QName, ElementParser> PARSERS = new HashMap<>();
+
+    static {
+        for (String namespace : TRUST_NAMESPACES) {
+            PARSERS.put(new QName(namespace, WSTrustConstants.REQUEST_TYPE), (parser, reader, response) -> response.setRequestType(parseURI(reader, "request type")));
+            PARSERS.put(new QName(namespace, WSTrustConstants.TOKEN_TYPE), (parser, reader, response) -> response.setTokenType(parseURI(reader, "token type")));
+            PARSERS.put(new QName(namespace, WSTrustConstants.KEY_TYPE), (parser, reader, response) -> response.setKeyType(parseURI(reader, "key type")));
+            PARSERS.put(new QName(namespace, WSTrustConstants.KEY_SIZE), (parser, reader, response) -> response.setKeySize(parseLong(reader, "key size")));
+            PARSERS.put(new QName(namespace, WSTrustConstants.LIFETIME), (parser, reader, response) -> response.setLifetime(parseLifetime(reader)));
+            PARSERS.put(new QName(namespace, WSTrustConstants.STATUS), (parser, reader, response) -> response.setStatus(parseStatus(reader)));
+            PARSERS.put(new QName(namespace, WSTrustConstants.REQUESTED_TOKEN), (parser, reader, response) -> response.setRequestedSecurityToken(parser.parseRequestedSecurityToken(reader)));
+            PARSERS.put(new QName(namespace, WSTrustConstants.REQUESTED_TOKEN_CANCELLED), (parser, reader, response) -> {
+                StaxCursor.skipElement(reader);
+                response.setRequestedTokenCancelled(new RequestedTokenCancelledType());
+            });
+        }
+    }
 
-    public static final String KEYVALUE = "KeyValue";
+    private final boolean parseSamlTokens;
 
-    public static final String JDK_TRANSFORMER_PROPERTY = "picketlink.jdk.transformer";
+    public WSTRequestSecurityTokenResponseParser() {
+        this(false);
+    }
 
     /**
-     * @see ParserNamespaceSupport#parse(XMLEventReader)
+     * @param parseSamlTokens if true, the SAML tokens of the RequestedSecurityToken are read straight into their SAML
+     *                        model instead of being handed out as DOM elements.
      */
-    public Object parse(XMLEventReader xmlEventReader) throws ParsingException {
-        StartElement startElement = StaxParserUtil.getNextStartElement(xmlEventReader);
+    public WSTRequestSecurityTokenResponseParser(boolean parseSamlTokens) {
+        this.parseSamlTokens = parseSamlTokens;
+    }
 
+    /**
+     * Parses the RequestSecurityTokenResponse the reader is on, leaving the reader on its end element.
+     */
+    public RequestSecurityTokenResponse parse(XMLStreamReader reader) throws ParsingException {
         RequestSecurityTokenResponse responseToken = new RequestSecurityTokenResponse();
 
-        QName contextQName = new QName("", WSTrustConstants.RST_CONTEXT);
-        Attribute contextAttribute = startElement.getAttributeByName(contextQName);
         //Context is optional and may be null if no RST was sent
-        if(contextAttribute != null) {
-            String contextValue = StaxParserUtil.getAttributeValue(contextAttribute);
-            responseToken.setContext(contextValue);
-        }
-        else {
-            responseToken.setContext("");
-        }
-
-        while (xmlEventReader.hasNext()) {
-            XMLEvent xmlEvent = StaxParserUtil.peek(xmlEventReader);
-            if (xmlEvent == null)
-                break;
-            if (xmlEvent instanceof EndElement) {
-                xmlEvent = StaxParserUtil.getNextEvent(xmlEventReader);
-                EndElement endElement = (EndElement) xmlEvent;
-                String endElementTag = StaxParserUtil.getEndElementName(endElement);
-                if (endElementTag.equals(WSTrustConstants.RSTR))
-                    break;
-                else
-                    throw logger.parserUnknownEndElement(endElementTag);
-            }
-
-            try {
-                StartElement subEvent = StaxParserUtil.peekNextStartElement(xmlEventReader);
-                if (subEvent == null)
-                    break;
-
-                String tag = StaxParserUtil.getStartElementName(subEvent);
-                if (tag.equals(WSTrustConstants.REQUEST_TYPE)) {
-                    subEvent = StaxParserUtil.getNextStartElement(xmlEventReader);
-
-                    if (!StaxParserUtil.hasTextAhead(xmlEventReader))
-                        throw logger.parserExpectedTextValue("request type");
-
-                    String value = StaxParserUtil.getElementText(xmlEventReader);
-                    responseToken.setRequestType(new URI(value));
-                } else if (tag.equals(WSTrustConstants.LIFETIME)) {
-                    subEvent = StaxParserUtil.getNextStartElement(xmlEventReader);
-                    StaxParserUtil.validate(subEvent, WSTrustConstants.LIFETIME);
-
-                    LifetimeType lifeTime = new LifetimeType();
-                    // Get the Created
-                    subEvent = StaxParserUtil.getNextStartElement(xmlEventReader);
-                    String subTag = StaxParserUtil.getStartElementName(subEvent);
-                    if (subTag.equals(WSTrustConstants.CREATED)) {
-                        AttributedDateTime created = new AttributedDateTime();
-                        created.setValue(StaxParserUtil.getElementText(xmlEventReader));
-                        lifeTime.setCreated(created);
-                    }
-                    subEvent = StaxParserUtil.getNextStartElement(xmlEventReader);
-                    subTag = StaxParserUtil.getStartElementName(subEvent);
-
-                    if (subTag.equals(WSTrustConstants.EXPIRES)) {
-                        AttributedDateTime expires = new AttributedDateTime();
-                        expires.setValue(StaxParserUtil.getElementText(xmlEventReader));
-                        lifeTime.setExpires(expires);
-                    } else
-                        throw logger.parserUnknownTag(subTag, subEvent.getLocation());
-
-                    responseToken.setLifetime(new Lifetime(lifeTime));
-                    EndElement lifeTimeElement = StaxParserUtil.getNextEndElement(xmlEventReader);
-                    StaxParserUtil.validate(lifeTimeElement, WSTrustConstants.LIFETIME);
-                } else if (tag.equals(WSTrustConstants.TOKEN_TYPE)) {
-                    subEvent = StaxParserUtil.getNextStartElement(xmlEventReader);
-
-                    if (!StaxParserUtil.hasTextAhead(xmlEventReader))
-                        throw logger.parserExpectedTextValue("token type");
-
-                    String value = StaxParserUtil.getElementText(xmlEventReader);
-                    responseToken.setTokenType(new URI(value));
-                } else if (tag.equals(WSTrustConstants.ON_BEHALF_OF)) {
-                    subEvent = StaxParserUtil.getNextStartElement(xmlEventReader);
-
-                    WSTrustOnBehalfOfParser wstOnBehalfOfParser = new WSTrustOnBehalfOfParser();
-                    OnBehalfOfType onBehalfOf = (OnBehalfOfType) wstOnBehalfOfParser.parse(xmlEventReader);
-                    responseToken.setOnBehalfOf(onBehalfOf);
-                    EndElement onBehalfOfEndElement = StaxParserUtil.getNextEndElement(xmlEventReader);
-                    StaxParserUtil.validate(onBehalfOfEndElement, WSTrustConstants.ON_BEHALF_OF);
-                } else if (tag.equals(WSTrustConstants.KEY_TYPE)) {
-                    subEvent = StaxParserUtil.getNextStartElement(xmlEventReader);
-                    if (!StaxParserUtil.hasTextAhead(xmlEventReader))
-                        throw logger.parserExpectedTextValue("key type");
-
-                    String keyType = StaxParserUtil.getElementText(xmlEventReader);
-                    try {
-                        URI keyTypeURI = new URI(keyType);
-                        responseToken.setKeyType(keyTypeURI);
-                    } catch (URISyntaxException e) {
-                        throw new ParsingException(e);
-                    }
-                } else if (tag.equals(WSTrustConstants.KEY_SIZE)) {
-                    subEvent = StaxParserUtil.getNextStartElement(xmlEventReader);
-
-                    if (!StaxParserUtil.hasTextAhead(xmlEventReader))
-                        throw logger.parserExpectedTextValue("key size");
-
-                    String keySize = StaxParserUtil.getElementText(xmlEventReader);
-                    try {
-                        responseToken.setKeySize(Long.parseLong(keySize));
-                    } catch (NumberFormatException e) {
-                        throw logger.parserException(e);
-                    }
-                } else if (tag.equals(WSTrustConstants.ENTROPY)) {
-                    subEvent = StaxParserUtil.getNextStartElement(xmlEventReader);
-                    EntropyType entropy = new EntropyType();
-                    subEvent = StaxParserUtil.getNextStartElement(xmlEventReader);
-                    if (StaxParserUtil.matches(subEvent, WSTrustConstants.BINARY_SECRET)) {
-                        BinarySecretType binarySecret = new BinarySecretType();
-                        Attribute typeAttribute = subEvent.getAttributeByName(new QName("", "Type"));
-                        if (typeAttribute != null) {
-                            binarySecret.setType(StaxParserUtil.getAttributeValue(typeAttribute));
-                        }
-
-                        if (!StaxParserUtil.hasTextAhead(xmlEventReader))
-                            throw logger.parserExpectedTextValue("binary secret value");
-
-                        binarySecret.setValue(StaxParserUtil.getElementText(xmlEventReader).getBytes());
-                        entropy.addAny(binarySecret);
-                    }
-                    responseToken.setEntropy(entropy);
-                    EndElement endElement = StaxParserUtil.getNextEndElement(xmlEventReader);
-                    StaxParserUtil.validate(endElement, WSTrustConstants.ENTROPY);
-                } else if (tag.equals(WSTrustConstants.USE_KEY)) {
-                    subEvent = StaxParserUtil.getNextStartElement(xmlEventReader);
-                    UseKeyType useKeyType = new UseKeyType();
-                    StaxParserUtil.validate(subEvent, WSTrustConstants.USE_KEY);
-
-                    // We peek at the next start element as the stax source has to be in the START_ELEMENT mode
-                    subEvent = StaxParserUtil.peekNextStartElement(xmlEventReader);
-                    if (StaxParserUtil.matches(subEvent, X509CERTIFICATE)) {
-                        Element domElement = StaxParserUtil.getDOMElement(xmlEventReader);
-                        // Element domElement = getX509CertificateAsDomElement( subEvent, xmlEventReader );
-
-                        useKeyType.add(domElement);
-                        responseToken.setUseKey(useKeyType);
-                    } else if (StaxParserUtil.matches(subEvent, KEYVALUE)) {
-                        Element domElement = StaxParserUtil.getDOMElement(xmlEventReader);
-                        useKeyType.add(domElement);
-                        responseToken.setUseKey(useKeyType);
-                    } else
-                        throw logger.parserUnknownStartElement(StaxParserUtil.getStartElementName(subEvent), subEvent.getLocation());
-                } else if (tag.equals(WSTrustConstants.REQUESTED_TOKEN_CANCELLED)) {
-                    StaxParserUtil.getNextEndElement(xmlEventReader);
-                    responseToken.setRequestedTokenCancelled(new RequestedTokenCancelledType());
-                } else if (tag.equals(WSTrustConstants.REQUESTED_PROOF_TOKEN)) {
-                    subEvent = StaxParserUtil.getNextStartElement(xmlEventReader);
-                    RequestedProofTokenType requestedProofToken = new RequestedProofTokenType();
-                    subEvent = StaxParserUtil.getNextStartElement(xmlEventReader);
-                    if (StaxParserUtil.matches(subEvent, WSTrustConstants.BINARY_SECRET)) {
-                        BinarySecretType binarySecret = new BinarySecretType();
-                        Attribute typeAttribute = subEvent.getAttributeByName(new QName("", "Type"));
-                        binarySecret.setType(StaxParserUtil.getAttributeValue(typeAttribute));
-
-                        if (!StaxParserUtil.hasTextAhead(xmlEventReader))
-                            throw logger.parserExpectedTextValue("binary secret value");
-
-                        binarySecret.setValue(StaxParserUtil.getElementText(xmlEventReader).getBytes());
-                        requestedProofToken.add(binarySecret);
-                    } else if (StaxParserUtil.matches(subEvent, WSTrustConstants.COMPUTED_KEY)) {
-                        ComputedKeyType computedKey = new ComputedKeyType();
-                        if (!StaxParserUtil.hasTextAhead(xmlEventReader))
-                            throw logger.parserExpectedTextValue("computed key algorithm");
-                        computedKey.setAlgorithm(StaxParserUtil.getElementText(xmlEventReader));
-                        requestedProofToken.add(computedKey);
-                    }
-                    responseToken.setRequestedProofToken(requestedProofToken);
-                    EndElement endElement = StaxParserUtil.getNextEndElement(xmlEventReader);
-                    StaxParserUtil.validate(endElement, WSTrustConstants.REQUESTED_PROOF_TOKEN);
-                } else if (tag.equals(WSTrustConstants.REQUESTED_TOKEN)) {
-                    responseToken.setRequestedSecurityToken(parseRequestedSecurityTokenType(xmlEventReader));
-                } else if (tag.equals(WSTrustConstants.REQUESTED_ATTACHED_REFERENCE)) {
-                    responseToken.setRequestedAttachedReference(parseRequestedReference(xmlEventReader, WSTrustConstants.REQUESTED_ATTACHED_REFERENCE));
-                } else if (tag.equals(WSTrustConstants.REQUESTED_UNATTACHED_REFERENCE)) {
-                    responseToken.setRequestedUnattachedReference(parseRequestedReference(xmlEventReader, WSTrustConstants.REQUESTED_UNATTACHED_REFERENCE));
-                } else if (tag.equals(WSTrustConstants.STATUS)) {
-                    responseToken.setStatus(this.parseStatusType(xmlEventReader));
-                } else if (tag.equals(WSTrustConstants.RENEWING)) {
-                    responseToken.setRenewing(WSTrustUtil.parseRenewingType(xmlEventReader));
+        String context = reader.getAttributeValue(null, WSTrustConstants.RST_CONTEXT);
+        responseToken.setContext(context != null ? context : "");
+
+        try {
+            while (StaxCursor.nextChild(reader)) {
+                ElementParser parser = PARSERS.get(reader.getName());
+                if (parser != null) {
+                    parser.parse(this, reader, responseToken);
                 } else {
-                    QName qname = subEvent.getName();
-
-                    logger.trace("Looking for parser for element: " + qname);
-
-                    ParserNamespaceSupport parser = ParserController.get(qname);
-                    if (parser == null)
-                        throw logger.parserUnknownTag(qname.getLocalPart(), subEvent.getLocation());
-
-                    Object parsedObject = parser.parse(xmlEventReader);
-                    if (parsedObject instanceof AppliesTo) {
-                        responseToken.setAppliesTo((AppliesTo) parsedObject);
+                    if (logger.isTraceEnabled()) {
+                        logger.trace("Skipping element: " + reader.getName());
                     }
+                    StaxCursor.skipElement(reader);
                 }
-            } catch (URISyntaxException e) {
-                throw logger.parserException(e);
             }
+        } catch (XMLStreamException e) {
+            throw logger.parserException(e);
         }
 
         return responseToken;
     }
 
-    /**
-     * @see ParserNamespaceSupport#supports(QName)
-     */
-    public boolean supports(QName qname) {
-        String nsURI = qname.getNamespaceURI();
-        String localPart = qname.getLocalPart();
+    private static String parseText(XMLStreamReader reader, String what) throws ParsingException, XMLStreamException {
+        String text = StaxCursor.getElementText(reader);
+        if (text.isEmpty())
+            throw logger.parserExpectedTextValue(what);
+        return text;
+    }
 
-        return WSTrustConstants.BASE_NAMESPACE.equals(nsURI) && WSTrustConstants.RST.equals(localPart);
+    private static URI parseURI(XMLStreamReader reader, String what) throws ParsingException, XMLStreamException {
+        try {
+            return new URI(parseText(reader, what));
+        } catch (URISyntaxException e) {
+            throw logger.parserException(e);
+        }
     }
 
-    private StatusType parseStatusType(XMLEventReader xmlEventReader) throws ParsingException {
-        StatusType status = new StatusType();
-        StartElement startElement = StaxParserUtil.getNextStartElement(xmlEventReader);
-        StaxParserUtil.validate(startElement, WSTrustConstants.STATUS);
+    private static long parseLong(XMLStreamReader reader, String what) throws ParsingException, XMLStreamException {
+        try {
+            return Long.parseLong(parseText(reader, what));
+        } catch (NumberFormatException e) {
+            throw logger.parserException(e);
+        }
+    }
 
-        XMLEvent xmlEvent = null;
-        while (xmlEventReader.hasNext()) {
-            xmlEvent = StaxParserUtil.peek(xmlEventReader);
-            if (xmlEvent instanceof EndElement) {
-                String endElementTag = StaxParserUtil.getEndElementName((EndElement) xmlEvent);
-                if (endElementTag.equals(WSTrustConstants.STATUS)) {
-                    xmlEvent = StaxParserUtil.getNextEndElement(xmlEventReader);
-                    break;
-                } else
-                    throw logger.parserUnknownEndElement(endElementTag);
+    private static Lifetime parseLifetime(XMLStreamReader reader) throws ParsingException, XMLStreamException {
+        LifetimeType lifeTime = new LifetimeType();
+        while (StaxCursor.nextChild(reader)) {
+            QName name = reader.getName();
+            if (CREATED.equals(name)) {
+                AttributedDateTime created = new AttributedDateTime();
+                created.setValue(StaxCursor.getElementText(reader));
+                lifeTime.setCreated(created);
+            } else if (EXPIRES.equals(name)) {
+                AttributedDateTime expires = new AttributedDateTime();
+                expires.setValue(StaxCursor.getElementText(reader));
+                lifeTime.setExpires(expires);
+            } else {
+                throw logger.parserUnknownTag(name.getLocalPart(), reader.getLocation());
             }
-            startElement = (StartElement) xmlEvent;
-            String tag = StaxParserUtil.getStartElementName(startElement);
-
-            if (tag.equals(WSTrustConstants.CODE)) {
-                startElement = StaxParserUtil.getNextStartElement(xmlEventReader);
-                StaxParserUtil.validate(startElement, WSTrustConstants.CODE);
-
-                if (!StaxParserUtil.hasTextAhead(xmlEventReader))
-                    throw logger.parserExpectedTextValue("Validation code");
-                status.setCode(StaxParserUtil.getElementText(xmlEventReader));
-            } else if (tag.equals(WSTrustConstants.REASON)) {
-                startElement = StaxParserUtil.getNextStartElement(xmlEventReader);
-                StaxParserUtil.validate(startElement, WSTrustConstants.REASON);
+        }
+        if (lifeTime.getCreated() == null || lifeTime.getExpires() == null) {
+            throw new ParsingException("A Lifetime must have both a Created and an Expires time");
+        }
+        return new Lifetime(lifeTime);
+    }
 
-                if (!StaxParserUtil.hasTextAhead(xmlEventReader))
-                    throw logger.parserExpectedTextValue("Validation reason");
-                status.setReason(StaxParserUtil.getElementText(xmlEventReader));
+    private static StatusType parseStatus(XMLStreamReader reader) throws ParsingException, XMLStreamException {
+        StatusType status = new StatusType();
+        String namespace = reader.getNamespaceURI();
+        while (StaxCursor.nextChild(reader)) {
+            if (namespace.equals(reader.getNamespaceURI()) && WSTrustConstants.CODE.equals(reader.getLocalName())) {
+                status.setCode(parseText(reader, "Validation code"));
+            } else if (namespace.equals(reader.getNamespaceURI()) && WSTrustConstants.REASON.equals(reader.getLocalName())) {
+                status.setReason(parseText(reader, "Validation reason"));
+            } else {
+                StaxCursor.skipElement(reader);
             }
         }
         return status;
     }
 
-    private RequestedSecurityTokenType parseRequestedSecurityTokenType(XMLEventReader xmlEventReader) throws ParsingException {
+    private RequestedSecurityTokenType parseRequestedSecurityToken(XMLStreamReader reader) throws ParsingException, XMLStreamException {
         RequestedSecurityTokenType requestedSecurityTokenType = new RequestedSecurityTokenType();
-
-        StartElement startElement = StaxParserUtil.getNextStartElement(xmlEventReader);
-        StaxParserUtil.validate(startElement, WSTrustConstants.REQUESTED_TOKEN);
-
-        XMLEvent xmlEvent = null;
-        while (xmlEventReader.hasNext()) {
-            xmlEvent = StaxParserUtil.peek(xmlEventReader);
-            if (xmlEvent instanceof EndElement) {
-                String endElementTag = StaxParserUtil.getEndElementName((EndElement) xmlEvent);
-                if (endElementTag.equals(WSTrustConstants.REQUESTED_TOKEN)) {
-                    xmlEvent = StaxParserUtil.getNextEndElement(xmlEventReader);
-                    break;
-                } else
-                    throw logger.parserUnknownEndElement(endElementTag);
+        while (StaxCursor.nextChild(reader)) {
+            if (parseSamlTokens && isSamlToken(reader)) {
+                requestedSecurityTokenType.add(parseSamlToken(reader));
+            } else {
+                requestedSecurityTokenType.add(StaxCursor.getDOMElement(reader));
             }
-            Element tokenElement = StaxParserUtil.getDOMElement(xmlEventReader);
-            requestedSecurityTokenType.add(tokenElement);
         }
-
         return requestedSecurityTokenType;
     }
 
-    private RequestedReferenceType parseRequestedReference(XMLEventReader xmlEventReader, String requestedReferenceTag) throws ParsingException {
-        StartElement startElement = StaxParserUtil.getNextStartElement(xmlEventReader);
-        StaxParserUtil.validate(startElement, requestedReferenceTag);
-
-        RequestedReferenceType ref = new RequestedReferenceType();
-
-        WSSecurityParser wsseParser = new WSSecurityParser();
-        SecurityTokenReferenceType secref = (SecurityTokenReferenceType) wsseParser.parse(xmlEventReader);
-
-        ref.setSecurityTokenReference(secref);
-
-        EndElement endElement = StaxParserUtil.getNextEndElement(xmlEventReader);
-        StaxParserUtil.validate(endElement, requestedReferenceTag);
+    private static boolean isSamlToken(XMLStreamReader reader) {
+        String nsURI = reader.getNamespaceURI();
+        return JBossSAMLURIConstants.ASSERTION_NSURI.get().equals(nsURI) || SAML11Constants.ASSERTION_11_NSURI.equals(nsURI);
+    }
 
-        return ref;
+    /**
+     * The SAML parser is built on the event API, so it is handed an event reader over the token element only.
+     */
+    private static Object parseSamlToken(XMLStreamReader reader) throws ParsingException, XMLStreamException {
+        try {
+            return SAMLParser.getInstance().parse(StaxCursor.eventReaderOf(reader));
+        } catch (org.keycloak.saml.common.exceptions.ParsingException e) {
+            throw logger.parserException(e);
+        }
     }
 
-}
\ No newline at end of file
+    /**
+     * Parses a child element of the response the reader is on, leaving the reader on the end element of the child.
+     */
+    @FunctionalInterface
+    private interface ElementParser {
+        void parse(WSTRequestSecurityTokenResponseParser parser, XMLStreamReader reader, RequestSecurityTokenResponse response) throws ParsingException, XMLStreamException;
+    }
+}
@@ -17,63 +17,127 @@
  */
 package com.quest.keycloak.common.wsfed.parsers;
 
+import com.quest.keycloak.common.wsfed.utils.XMLFactories;
+import org.picketlink.common.PicketLinkLogger;
+import org.picketlink.common.PicketLinkLoggerFactory;
 import org.picketlink.common.constants.WSTrustConstants;
 import org.picketlink.common.exceptions.ParsingException;
-import org.picketlink.common.parsers.AbstractParser;
-import org.picketlink.common.util.StaxParserUtil;
 import org.picketlink.identity.federation.core.parsers.wst.WSTRequestSecurityTokenCollectionParser;
 import org.picketlink.identity.federation.core.parsers.wst.WSTRequestSecurityTokenParser;
+import org.w3c.dom.Node;
 
 import javax.xml.namespace.QName;
-import javax.xml.stream.XMLEventReader;
-import javax.xml.stream.events.StartElement;
-import javax.xml.stream.events.XMLEvent;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.InputStream;
+import java.io.Reader;
+import java.util.HashMap;
+import java.util.Map;
 
 
 /**
  * Parser for WS-Trust payload
+ * <p>
+ * The payload is read with the cursor API, from a stream or from a DOM tree, and dispatched on the qualified name of
+ * its root element.
  *
  * @author Anil.Saldhana@redhat.com
  * @since Oct 11, 2010
  */
-public class WSTrustParser extends AbstractParser {
+public class WSTrustParser {
+
+    private static final PicketLinkLogger logger = PicketLinkLoggerFactory.getLogger();
+
+    private static final Map<QName, RootParser> PARSERS = new HashMap<>();
+
+    static {
+        for (String namespace : WSTRequestSecurityTokenResponseParser.TRUST_NAMESPACES) {
+            PARSERS.put(new QName(namespace, WSTrustConstants.RSTR), (parser, reader) -> new WSTRequestSecurityTokenResponseParser(parser.parseSamlTokens).parse(reader));
+            PARSERS.put(new QName(namespace, WSTrustConstants.RSTR_COLLECTION), (parser, reader) -> new WSTRequestSecurityTokenResponseCollectionParser(parser.parseSamlTokens).parse(reader));
+            PARSERS.put(new QName(namespace, WSTrustConstants.RST), (parser, reader) -> new WSTRequestSecurityTokenParser().parse(StaxCursor.eventReaderOf(reader)));
+            PARSERS.put(new QName(namespace, WSTrustConstants.RST_COLLECTION), (parser, reader) -> new WSTRequestSecurityTokenCollectionParser().parse(StaxCursor.eventReaderOf(reader)));
+        }
+    }
+
+    private final boolean parseSamlTokens;
+    private final ParsingLimits limits;
+
+    public WSTrustParser() {
+        this(false);
+    }
 
     /**
-     * @see AbstractParser#parse(XMLEventReader)
+     * @param parseSamlTokens if true, the SAML tokens of a RequestSecurityTokenResponse are read straight into their
+     *                        SAML model instead of being handed out as DOM elements.
      */
-    public Object parse(XMLEventReader xmlEventReader) throws ParsingException {
-        while (xmlEventReader.hasNext()) {
-            XMLEvent xmlEvent = StaxParserUtil.peek(xmlEventReader);
-
-            if (xmlEvent instanceof StartElement) {
-                StartElement startElement = (StartElement) xmlEvent;
-
-                String elementName = StaxParserUtil.getStartElementName(startElement);
-                if (elementName.equalsIgnoreCase(WSTrustConstants.RST_COLLECTION)) {
-                    WSTRequestSecurityTokenCollectionParser wstrcoll = new WSTRequestSecurityTokenCollectionParser();
-                    return wstrcoll.parse(xmlEventReader);
-                } else if (elementName.equalsIgnoreCase(WSTrustConstants.RST)) {
-                    WSTRequestSecurityTokenParser wst = new WSTRequestSecurityTokenParser();
-                    return wst.parse(xmlEventReader);
-                } else if (elementName.equalsIgnoreCase(WSTrustConstants.RSTR_COLLECTION)) {
-                    WSTRequestSecurityTokenResponseCollectionParser wstrcoll = new WSTRequestSecurityTokenResponseCollectionParser();
-                    return wstrcoll.parse(xmlEventReader);
-                } else if (elementName.equalsIgnoreCase(WSTrustConstants.RSTR)) {
-                    WSTRequestSecurityTokenResponseParser wst = new WSTRequestSecurityTokenResponseParser();
-                    return wst.parse(xmlEventReader);
-                }
-                throw logger.parserFailed(elementName);
-            } else {
-                StaxParserUtil.getNextEvent(xmlEventReader);
+    public WSTrustParser(boolean parseSamlTokens) {
+        this(parseSamlTokens, ParsingLimits.DEFAULT);
+    }
+
+    /**
+     * @param limits the limits enforced on the payloads read from a stream
+     */
+    public WSTrustParser(boolean parseSamlTokens, ParsingLimits limits) {
+        this.parseSamlTokens = parseSamlTokens;
+        this.limits = limits;
+    }
+
+    public Object parse(InputStream stream) throws ParsingException {
+        try {
+            return parseLimited(XMLFactories.createXMLStreamReader(stream));
+        } catch (XMLStreamException e) {
+            throw logger.parserException(e);
+        }
+    }
+
+    /**
+     * Parses a payload which is already decoded to characters, without it being encoded back to bytes.
+     */
+    public Object parse(Reader characters) throws ParsingException {
+        try {
+            return parseLimited(XMLFactories.createXMLStreamReader(characters));
+        } catch (XMLStreamException e) {
+            throw logger.parserException(e);
+        }
+    }
+
+    private Object parseLimited(XMLStreamReader streamReader) throws ParsingException {
+        XMLStreamReader reader = limits.limit(streamReader);
+        try {
+            return parse(reader);
+        } finally {
+            try {
+                reader.close();
+            } catch (XMLStreamException e) {
+                // the stream itself is closed by the caller
             }
         }
-        throw logger.parserFailed(WSTrustConstants.BASE_NAMESPACE);
     }
 
     /**
-     * @see AbstractParser#supports(QName)
+     * Parses a DOM tree. The tokens of a RequestSecurityTokenResponse are then the original elements of the tree.
      */
-    public boolean supports(QName qname) {
-        return WSTrustConstants.BASE_NAMESPACE.equals(qname.getNamespaceURI());
+    public Object parse(Node node) throws ParsingException {
+        return parse(new DOMStreamReader(node));
+    }
+
+    public Object parse(XMLStreamReader reader) throws ParsingException {
+        try {
+            if (!StaxCursor.nextStartElement(reader)) {
+                throw logger.parserFailed(WSTrustConstants.BASE_NAMESPACE);
+            }
+            RootParser parser = PARSERS.get(reader.getName());
+            if (parser == null) {
+                throw logger.parserFailed(reader.getLocalName());
+            }
+            return parser.parse(this, reader);
+        } catch (XMLStreamException e) {
+            throw logger.parserException(e);
+        }
+    }
+
+    @FunctionalInterface
+    private interface RootParser {
+        Object parse(WSTrustParser parser, XMLStreamReader reader) throws ParsingException, XMLStreamException;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.common.wsfed.utils;
+
+import org.picketlink.common.constants.WSTrustConstants;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * Finds the assertion of a WS-Fed response by walking down the RSTR structure
+ * (RequestSecurityTokenResponseCollection / RequestSecurityTokenResponse / RequestedSecurityToken), rather than
+ * searching the whole document. Like the WS-Trust parsers, elements are matched on their local name only, since the
+ * WS-Trust namespace differs between IdPs.
+ */
+public final class AssertionLocator {
+
+    private static final String ASSERTION = "Assertion";
+
+    private AssertionLocator() {
+    }
+
+    /**
+     * @param document the parsed WS-Fed response
+     * @return the first assertion held by the response, or null if there is none
+     */
+    public static Element findAssertion(Document document) {
+        Element root = document.getDocumentElement();
+        if (root == null) {
+            return null;
+        }
+        if (WSTrustConstants.RSTR_COLLECTION.equalsIgnoreCase(root.getLocalName())) {
+            for (Element rstr = firstChild(root, WSTrustConstants.RSTR); rstr != null; rstr = nextSibling(rstr, WSTrustConstants.RSTR)) {
+                Element assertion = findAssertion(rstr);
+                if (assertion != null) {
+                    return assertion;
+                }
+            }
+            return null;
+        }
+        if (WSTrustConstants.RSTR.equalsIgnoreCase(root.getLocalName())) {
+            return findAssertion(root);
+        }
+        //Not wrapped in an RSTR
+        return ASSERTION.equals(root.getLocalName()) ? root : null;
+    }
+
+    private static Element findAssertion(Element rstr) {
+        Element requestedToken = firstChild(rstr, WSTrustConstants.REQUESTED_TOKEN);
+        return requestedToken == null ? null : firstChild(requestedToken, ASSERTION);
+    }
+
+    private static Element firstChild(Element parent, String localName) {
+        for (Node child = parent.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (isElement(child, localName)) {
+                return (Element) child;
+            }
+        }
+        return null;
+    }
+
+    private static Element nextSibling(Element element, String localName) {
+        for (Node sibling = element.getNextSibling(); sibling != null; sibling = sibling.getNextSibling()) {
+            if (isElement(sibling, localName)) {
+                return (Element) sibling;
+            }
+        }
+        return null;
+    }
+
+    private static boolean isElement(Node node, String localName) {
+        return node.getNodeType() == Node.ELEMENT_NODE && localName.equalsIgnoreCase(node.getLocalName());
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.common.wsfed.utils;
+
+import org.keycloak.dom.saml.v1.assertion.SAML11AssertionType;
+import org.keycloak.dom.saml.v1.assertion.SAML11AttributeStatementType;
+import org.keycloak.dom.saml.v1.assertion.SAML11AttributeType;
+import org.keycloak.dom.saml.v1.assertion.SAML11StatementAbstractType;
+import org.keycloak.dom.saml.v2.assertion.AssertionType;
+import org.keycloak.dom.saml.v2.assertion.AttributeStatementType;
+import org.keycloak.dom.saml.v2.assertion.AttributeType;
+import org.keycloak.dom.saml.v2.assertion.StatementAbstractType;
+import org.keycloak.models.KeycloakSession;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * The attributes of an assertion, indexed by name (as is and lower cased) and by friendly name, so that the attributes
+ * of large tokens aren't scanned again for each claim the token or a mapper looks up. The index is built in a single
+ * pass over the attribute statements, and lookups keep the document order of the attributes.
+ *
+ * The index of a SAML 2.0 assertion is kept in the session, so that all the mappers run for a login share the one
+ * built along with the requested token.
+ */
+public final class ClaimIndex {
+
+    private static final String SESSION_ATTRIBUTE = ClaimIndex.class.getName();
+
+    private final Object assertion;
+    private final List<Claim> claims = new ArrayList<>();
+    private final Map<String, List<Claim>> byName = new HashMap<>();
+    private final Map<String, List<Claim>> byLowerCaseName = new HashMap<>();
+    private final Map<String, List<Claim>> byFriendlyName = new HashMap<>();
+
+    private ClaimIndex(Object assertion) {
+        this.assertion = assertion;
+    }
+
+    public static ClaimIndex of(AssertionType assertion) {
+        ClaimIndex index = new ClaimIndex(assertion);
+        // getAttributeStatements() doesn't keep the order of the statements
+        for (StatementAbstractType statement : assertion.getStatements()) {
+            if (statement instanceof AttributeStatementType) {
+                for (AttributeStatementType.ASTChoiceType choice : ((AttributeStatementType) statement).getAttributes()) {
+                    AttributeType attribute = choice.getAttribute();
+                    if (attribute != null) {
+                        index.add(new Claim(index.claims.size(), attribute.getName(), attribute.getFriendlyName(), attribute.getAttributeValue(), attribute));
+                    }
+                }
+            }
+        }
+        return index;
+    }
+
+    public static ClaimIndex of(SAML11AssertionType assertion) {
+        ClaimIndex index = new ClaimIndex(assertion);
+        for (SAML11StatementAbstractType statement : assertion.getStatements()) {
+            if (statement instanceof SAML11AttributeStatementType) {
+                for (SAML11AttributeType attribute : ((SAML11AttributeStatementType) statement).get()) {
+                    index.add(new Claim(index.claims.size(), attribute.getAttributeName(), null, attribute.get(), null));
+                }
+            }
+        }
+        return index;
+    }
+
+    /**
+     * @return the index of the assertion kept in the session, or a new one (then kept in the session) if there is none
+     * for this assertion
+     */
+    public static ClaimIndex get(KeycloakSession session, AssertionType assertion) {
+        Object current = session == null ? null : session.getAttribute(SESSION_ATTRIBUTE);
+        if (current instanceof ClaimIndex && ((ClaimIndex) current).isFor(assertion)) {
+            return (ClaimIndex) current;
+        }
+        ClaimIndex index = of(assertion);
+        if (session != null) {
+            session.setAttribute(SESSION_ATTRIBUTE, index);
+        }
+        return index;
+    }
+
+    public boolean isFor(Object assertion) {
+        return this.assertion == assertion;
+    }
+
+    private void add(Claim claim) {
+        claims.add(claim);
+        if (claim.name != null) {
+            byName.computeIfAbsent(claim.name, k -> new ArrayList<>(1)).add(claim);
+            byLowerCaseName.computeIfAbsent(claim.name.toLowerCase(Locale.ROOT), k -> new ArrayList<>(1)).add(claim);
+        }
+        if (claim.friendlyName != null) {
+            byFriendlyName.computeIfAbsent(claim.friendlyName, k -> new ArrayList<>(1)).add(claim);
+        }
+    }
+
+    /**
+     * Finds the values of the first SAML 2.0 attribute with the given name and friendly name (either of which may be
+     * null, to match any) accepted by the predicate.
+     *
+     * @return the values of the attribute, or null if there is none
+     */
+    public List<Object> findValues(String name, String friendlyName, Predicate<? super AttributeType> predicate) {
+        Claim claim = find(name, friendlyName, predicate);
+        return claim == null ? null : claim.values;
+    }
+
+    /**
+     * Same as {@link #findValues(String, String, Predicate)}, for the first attribute in document order matching any of
+     * the pairs of a name and a friendly name: {@code names[i]} and {@code friendlyNames[i]} make a pair.
+     */
+    public List<Object> findValues(String[] names, String[] friendlyNames, Predicate<? super AttributeType> predicate) {
+        Claim first = null;
+        for (int i = 0; i < names.length; i++) {
+            Claim claim = find(names[i], friendlyNames[i], predicate);
+            if (claim != null && (first == null || claim.position < first.position)) {
+                first = claim;
+            }
+        }
+        return first == null ? null : first.values;
+    }
+
+    private Claim find(String name, String friendlyName, Predicate<? super AttributeType> predicate) {
+        List<Claim> candidates = name != null ? byName.get(name)
+                : friendlyName != null ? byFriendlyName.get(friendlyName) : claims;
+        if (candidates == null) {
+            return null;
+        }
+        for (Claim claim : candidates) {
+            if (claim.attribute != null && (friendlyName == null || friendlyName.equals(claim.friendlyName)) && predicate.test(claim.attribute)) {
+                return claim;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the first value of the first attribute, in document order, with a value and with one of the given names
+     * compared case insensitively, or null if there is none. Friendly names aren't compared.
+     */
+    public Object getFirstValueIgnoreCase(String... names) {
+        Claim first = null;
+        for (String name : names) {
+            first = earliest(first, byLowerCaseName.get(name.toLowerCase(Locale.ROOT)));
+        }
+        return first == null ? null : first.values.get(0);
+    }
+
+    private static Claim earliest(Claim current, List<Claim> candidates) {
+        if (candidates == null) {
+            return current;
+        }
+        for (Claim claim : candidates) {
+            if (current != null && current.position <= claim.position) {
+                return current;
+            }
+            if (!claim.values.isEmpty()) {
+                return claim;
+            }
+        }
+        return current;
+    }
+
+    private static final class Claim {
+        private final int position;
+        private final String name;
+        private final String friendlyName;
+        private final List<Object> values;
+        private final AttributeType attribute;
+
+        private Claim(int position, String name, String friendlyName, List<Object> values, AttributeType attribute) {
+            this.position = position;
+            this.name = name;
+            this.friendlyName = friendlyName;
+            this.values = values == null ? Collections.emptyList() : values;
+            this.attribute = attribute;
+        }
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.common.wsfed.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Reads the fields of an application/x-www-form-urlencoded body in a single pass over its stream, so that a large
+ * wresult is never held as the raw body, then as its decoded value, then as the bytes of that value.
+ * <p>
+ * The values are URL-decoded and then decoded from UTF-8 as the body is read, chunk by chunk, into their string. Only
+ * the requested fields are kept: the others are read past without being held. The first occurrence of a field wins, as
+ * it does for a form parameter, and a value longer than the limit, in UTF-8 bytes, fails the read as soon as it is
+ * crossed.
+ */
+public final class FormBodyReader {
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+    private static final int MAX_NAME_LENGTH = 256;
+
+    private final InputStream body;
+    private final Set<String> names;
+    private final int maxValueLength;
+
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int position;
+    private int limit;
+
+    private FormBodyReader(InputStream body, int maxValueLength, String... names) {
+        this.body = body;
+        this.names = new HashSet<>(Arrays.asList(names));
+        this.maxValueLength = maxValueLength;
+    }
+
+    /**
+     * @param body           the form body, which is read to its end but not closed
+     * @param maxValueLength the maximum length of a value, in UTF-8 bytes
+     * @param names          the names of the fields to read
+     * @return the values of the fields found in the body, by name
+     * @throws IOException if the body can't be read, is not properly encoded or holds a value over the limit
+     */
+    public static Map<String, String> read(InputStream body, int maxValueLength, String... names) throws IOException {
+        return new FormBodyReader(body, maxValueLength, names).read();
+    }
+
+    private Map<String, String> read() throws IOException {
+        Map<String, String> fields = new HashMap<>();
+        while (true) {
+            String name = readName();
+            if (name == null) {
+                return fields;
+            }
+            if (names.contains(name) && !fields.containsKey(name)) {
+                fields.put(name, readValue(name));
+            } else {
+                skipValue();
+            }
+        }
+    }
+
+    /**
+     * @return the name of the next field, or null at the end of the body
+     */
+    private String readName() throws IOException {
+        ByteArrayOutputStream name = new ByteArrayOutputStream();
+        int b;
+        while ((b = nextDecoded()) != '=' && b != '&') {
+            if (b == -1) {
+                return name.size() == 0 ? null : name.toString(StandardCharsets.UTF_8.name());
+            }
+            if (name.size() == MAX_NAME_LENGTH) {
+                throw new IOException("Form field name too long");
+            }
+            name.write(b);
+        }
+        if (b == '&') {
+            //A field without a value, read as an empty one
+            unread();
+        }
+        return name.toString(StandardCharsets.UTF_8.name());
+    }
+
+    private String readValue(String name) throws IOException {
+        CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT);
+        ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE);
+        CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+        StringBuilder value = new StringBuilder();
+        long length = 0;
+        int b;
+        while ((b = nextDecoded()) != '&' && b != -1) {
+            if (++length > maxValueLength) {
+                throw new IOException("Form field " + name + " is longer than " + maxValueLength + " bytes");
+            }
+            bytes.put((byte) b);
+            if (!bytes.hasRemaining()) {
+                decode(decoder, bytes, chars, value, false);
+            }
+        }
+        decode(decoder, bytes, chars, value, true);
+        check(decoder.flush(chars));
+        chars.flip();
+        value.append(chars);
+        return value.toString();
+    }
+
+    private static void decode(CharsetDecoder decoder, ByteBuffer bytes, CharBuffer chars, StringBuilder value, boolean endOfInput) throws CharacterCodingException {
+        bytes.flip();
+        CoderResult result;
+        while ((result = decoder.decode(bytes, chars, endOfInput)).isOverflow()) {
+            chars.flip();
+            value.append(chars);
+            chars.clear();
+        }
+        check(result);
+        //Keep the first bytes of a character split across two chunks
+        bytes.compact();
+    }
+
+    private static void check(CoderResult result) throws CharacterCodingException {
+        if (result.isError()) {
+            result.throwException();
+        }
+    }
+
+    private void skipValue() throws IOException {
+        int b;
+        while ((b = nextRaw()) != '&' && b != -1) {
+            if (b == '%') {
+                //The escape isn't decoded, but it must be complete
+                hexValue(nextRaw());
+                hexValue(nextRaw());
+            }
+        }
+    }
+
+    /**
+     * @return the next URL-decoded byte of the body, or -1 at its end. The field separators '&' and '=' are only
+     * returned when they are not escaped.
+     */
+    private int nextDecoded() throws IOException {
+        int b = nextRaw();
+        switch (b) {
+            case '+':
+                return ' ';
+            case '%':
+                int high = hexValue(nextRaw());
+                int low = hexValue(nextRaw());
+                int decoded = high << 4 | low;
+                //An escaped separator is part of the value, mark it so it can't be taken for one
+                return decoded == '&' || decoded == '=' ? decoded | 0x100 : decoded;
+            default:
+                return b;
+        }
+    }
+
+    private static int hexValue(int b) throws IOException {
+        int value = b == -1 ? -1 : Character.digit(b, 16);
+        if (value == -1) {
+            throw new IOException("Malformed escape in form body");
+        }
+        return value;
+    }
+
+    private int nextRaw() throws IOException {
+        if (position == limit) {
+            limit = body.read(buffer);
+            position = 0;
+            if (limit <= 0) {
+                limit = 0;
+                return -1;
+            }
+        }
+        return buffer[position++] & 0xFF;
+    }
+
+    private void unread() {
+        position--;
+    }
+}
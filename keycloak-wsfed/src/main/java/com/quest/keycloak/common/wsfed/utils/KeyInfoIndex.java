@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.common.wsfed.utils;
+
+import org.jboss.logging.Logger;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import javax.security.auth.x500.X500Principal;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Finds the key designated by a ds:KeyInfo element among a set of keys, without trying each of them.
+ *
+ * The keys are indexed by key id (KeyName), by SHA-1 and SHA-256 digest of their certificate (X509Certificate,
+ * X509Digest, and the ThumbprintSHA1 KeyIdentifier of a SecurityTokenReference), by certificate issuer and serial
+ * number (X509IssuerSerial), by certificate subject (X509SubjectName) and by RSA modulus (RSAKeyValue).
+ *
+ * @param <K> the type of the keys found, e.g. the private key matching the designated public key
+ */
+public final class KeyInfoIndex<K> {
+    private static final Logger logger = Logger.getLogger(KeyInfoIndex.class);
+
+    public static final String DSIG_NS = "http://www.w3.org/2000/09/xmldsig#";
+    private static final String DSIG11_NS = "http://www.w3.org/2009/xmldsig11#";
+    private static final String THUMBPRINT_SHA1 = "#ThumbprintSHA1";
+
+    private final Map<String, K> keys = new HashMap<>();
+
+    /**
+     * Indexes a key. When two keys share a reference, the first one added is found.
+     *
+     * @param kid         the key id, may be null
+     * @param publicKey   the public key, may be null
+     * @param certificate the certificate, may be null
+     * @param key         the key to find
+     */
+    public void add(String kid, PublicKey publicKey, X509Certificate certificate, K key) {
+        if (kid != null) {
+            keys.putIfAbsent("kid:" + kid, key);
+        }
+        if (publicKey instanceof RSAPublicKey) {
+            keys.putIfAbsent("modulus:" + ((RSAPublicKey) publicKey).getModulus(), key);
+        }
+        if (certificate != null) {
+            try {
+                byte[] encoded = certificate.getEncoded();
+                keys.putIfAbsent("sha1:" + digest("SHA-1", encoded), key);
+                keys.putIfAbsent("sha256:" + digest("SHA-256", encoded), key);
+            } catch (CertificateEncodingException e) {
+                logger.warnf("Cannot index the certificate %s", certificate.getSubjectX500Principal());
+            }
+            keys.putIfAbsent("issuerSerial:" + issuerSerial(certificate.getIssuerX500Principal().getName(), certificate.getSerialNumber()), key);
+            keys.putIfAbsent("subject:" + canonical(certificate.getSubjectX500Principal().getName()), key);
+        }
+    }
+
+    public boolean isEmpty() {
+        return keys.isEmpty();
+    }
+
+    /**
+     * @param parent an element holding a ds:KeyInfo, such as a ds:Signature or a xenc:EncryptedKey. May be null.
+     * @return the key designated by the KeyInfo of the element, or null if there is no KeyInfo or it designates none of
+     * the keys
+     */
+    public K resolveFrom(Element parent) {
+        Element keyInfo = child(parent, DSIG_NS, "KeyInfo");
+        if (keyInfo == null) {
+            return null;
+        }
+        try {
+            return resolve(keyInfo);
+        } catch (RuntimeException e) {
+            logger.debug("Cannot read the KeyInfo", e);
+            return null;
+        }
+    }
+
+    private K resolve(Element keyInfo) {
+        for (Node node = keyInfo.getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (node.getNodeType() != Node.ELEMENT_NODE || node.getLocalName() == null) {
+                continue;
+            }
+            Element element = (Element) node;
+            K key = null;
+            switch (element.getLocalName()) {
+                case "KeyName":
+                    key = keys.get("kid:" + text(element));
+                    break;
+                case "KeyValue":
+                    Element modulus = child(child(element, DSIG_NS, "RSAKeyValue"), DSIG_NS, "Modulus");
+                    if (modulus != null) {
+                        key = keys.get("modulus:" + new BigInteger(1, Base64.getMimeDecoder().decode(text(modulus))));
+                    }
+                    break;
+                case "X509Data":
+                    key = resolveX509Data(element);
+                    break;
+                case "SecurityTokenReference":
+                    Element keyIdentifier = firstElement(element, "KeyIdentifier");
+                    if (keyIdentifier != null && keyIdentifier.getAttribute("ValueType").endsWith(THUMBPRINT_SHA1)) {
+                        key = keys.get("sha1:" + normalize(text(keyIdentifier)));
+                    }
+                    break;
+                default:
+                    break;
+            }
+            if (key != null) {
+                return key;
+            }
+        }
+        return null;
+    }
+
+    private K resolveX509Data(Element x509Data) {
+        for (Node node = x509Data.getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (node.getNodeType() != Node.ELEMENT_NODE || node.getLocalName() == null) {
+                continue;
+            }
+            Element element = (Element) node;
+            K key = null;
+            switch (element.getLocalName()) {
+                case "X509Certificate":
+                    key = keys.get("sha1:" + digest("SHA-1", Base64.getMimeDecoder().decode(text(element))));
+                    break;
+                case "X509Digest":
+                    if (DSIG11_NS.equals(element.getNamespaceURI())) {
+                        String algorithm = element.getAttribute("Algorithm");
+                        key = keys.get((algorithm.endsWith("sha256") ? "sha256:" : "sha1:") + normalize(text(element)));
+                    }
+                    break;
+                case "X509IssuerSerial":
+                    Element issuer = child(element, DSIG_NS, "X509IssuerName");
+                    Element serial = child(element, DSIG_NS, "X509SerialNumber");
+                    if (issuer != null && serial != null) {
+                        key = keys.get("issuerSerial:" + issuerSerial(text(issuer), new BigInteger(text(serial))));
+                    }
+                    break;
+                case "X509SubjectName":
+                    key = keys.get("subject:" + canonical(text(element)));
+                    break;
+                default:
+                    break;
+            }
+            if (key != null) {
+                return key;
+            }
+        }
+        return null;
+    }
+
+    private static String issuerSerial(String issuer, BigInteger serial) {
+        return canonical(issuer) + "|" + serial;
+    }
+
+    private static String canonical(String name) {
+        return new X500Principal(name).getName(X500Principal.CANONICAL);
+    }
+
+    private static String normalize(String base64) {
+        return Base64.getEncoder().encodeToString(Base64.getMimeDecoder().decode(base64));
+    }
+
+    private static String digest(String algorithm, byte[] value) {
+        try {
+            return Base64.getEncoder().encodeToString(MessageDigest.getInstance(algorithm).digest(value));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String text(Element element) {
+        return element.getTextContent().trim();
+    }
+
+    private static Element child(Element parent, String namespace, String localName) {
+        if (parent == null) {
+            return null;
+        }
+        for (Node node = parent.getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (node.getNodeType() == Node.ELEMENT_NODE && localName.equals(node.getLocalName()) && namespace.equals(node.getNamespaceURI())) {
+                return (Element) node;
+            }
+        }
+        return null;
+    }
+
+    private static Element firstElement(Element parent, String localName) {
+        for (Node node = parent.getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (node.getNodeType() == Node.ELEMENT_NODE && localName.equals(node.getLocalName())) {
+                return (Element) node;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.common.wsfed.utils;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * A metadata template read from the classpath, with {@code ${name}} placeholders. The template is read once; all the
+ * placeholders are then substituted in a single pass over it.
+ */
+public final class MetadataTemplate {
+
+    private final String template;
+
+    private MetadataTemplate(String template) {
+        this.template = template;
+    }
+
+    /**
+     * @param resource the name of the template, relative to the root of the classpath
+     * @throws IllegalStateException if the template can't be read
+     */
+    public static MetadataTemplate load(String resource) {
+        InputStream is = MetadataTemplate.class.getClassLoader().getResourceAsStream(resource);
+        if (is == null) {
+            throw new IllegalStateException("Missing metadata template " + resource);
+        }
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8))) {
+            return new MetadataTemplate(br.lines().collect(Collectors.joining("\n")));
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not read metadata template " + resource, e);
+        }
+    }
+
+    /**
+     * @param values the value of each placeholder, by name. Placeholders without a value are left as they are.
+     * @return the template, with its placeholders replaced
+     */
+    public String render(Map<String, String> values) {
+        StringBuilder sb = new StringBuilder(template.length() + 2048);
+        int from = 0;
+        int start;
+        while ((start = template.indexOf("${", from)) >= 0) {
+            int end = template.indexOf('}', start + 2);
+            if (end < 0) {
+                break;
+            }
+            String value = values.get(template.substring(start + 2, end));
+            sb.append(template, from, start).append(value != null ? value : template.substring(start, end + 1));
+            from = end + 1;
+        }
+        return sb.append(template, from, template.length()).toString();
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.common.wsfed.utils;
+
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+import javax.xml.transform.dom.DOMResult;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.StringReader;
+
+/**
+ * Holds the JAXP factories used on the WS-Fed request paths. The factories are looked up and hardened once, as the
+ * service loader lookup behind {@link DocumentBuilderFactory#newInstance()} is expensive. Document builders are not
+ * thread-safe, so each thread gets its own builder, which is reset before being handed out. The StAX factories are
+ * only configured once, after which they can be shared.
+ */
+public final class XMLFactories {
+
+    private static final DocumentBuilderFactory DOCUMENT_BUILDER_FACTORY = createDocumentBuilderFactory();
+
+    private static final XMLInputFactory INPUT_FACTORY = createInputFactory();
+
+    private static final XMLOutputFactory OUTPUT_FACTORY = XMLOutputFactory.newInstance();
+
+    private static final ThreadLocal<DocumentBuilder> DOCUMENT_BUILDER = ThreadLocal.withInitial(() -> {
+        try {
+            return DOCUMENT_BUILDER_FACTORY.newDocumentBuilder();
+        } catch (ParserConfigurationException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private XMLFactories() {
+    }
+
+    /**
+     * @return a namespace aware document builder refusing DTDs and external entities, for use on the calling thread only
+     */
+    public static DocumentBuilder getDocumentBuilder() {
+        DocumentBuilder builder = DOCUMENT_BUILDER.get();
+        builder.reset();
+        return builder;
+    }
+
+    public static Document newDocument() {
+        return getDocumentBuilder().newDocument();
+    }
+
+    public static Document parse(String xml) throws SAXException, IOException {
+        InputSource source = new InputSource();
+        source.setCharacterStream(new StringReader(xml));
+        return getDocumentBuilder().parse(source);
+    }
+
+    /**
+     * Builds a document from the events of the stream reader, read to its end. Unlike {@link #parse(String)}, the
+     * document is built from the reader it is given, which may for instance be a {@link
+     * com.quest.keycloak.common.wsfed.parsers.ParsingLimits#limit(XMLStreamReader) limited} one. Comments and
+     * processing instructions are kept and DTDs are refused, as the document builder does.
+     *
+     * @param reader a reader which hasn't read past the start of the document yet
+     */
+    public static Document parse(XMLStreamReader reader) throws XMLStreamException {
+        Document document = newDocument();
+        XMLStreamWriter writer = OUTPUT_FACTORY.createXMLStreamWriter(new DOMResult(document));
+        while (reader.hasNext()) {
+            switch (reader.next()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    writeStartElement(reader, writer);
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    writer.writeEndElement();
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.SPACE:
+                case XMLStreamConstants.CDATA:
+                    writer.writeCharacters(reader.getText());
+                    break;
+                case XMLStreamConstants.COMMENT:
+                    writer.writeComment(reader.getText());
+                    break;
+                case XMLStreamConstants.PROCESSING_INSTRUCTION:
+                    writer.writeProcessingInstruction(reader.getPITarget(), reader.getPIData());
+                    break;
+                case XMLStreamConstants.DTD:
+                    // Refused, as the document builder does
+                    throw new XMLStreamException("DOCTYPE is not allowed", reader.getLocation());
+                default:
+                    break;
+            }
+        }
+        writer.flush();
+        return document;
+    }
+
+    private static void writeStartElement(XMLStreamReader reader, XMLStreamWriter writer) throws XMLStreamException {
+        String namespaceURI = reader.getNamespaceURI();
+        if (namespaceURI == null || namespaceURI.isEmpty()) {
+            writer.writeStartElement(reader.getLocalName());
+        } else {
+            writer.writeStartElement(nullToEmpty(reader.getPrefix()), reader.getLocalName(), namespaceURI);
+        }
+        // The declarations are copied as they are, for canonicalization to find them on the same elements
+        for (int i = 0; i < reader.getNamespaceCount(); i++) {
+            writer.writeNamespace(nullToEmpty(reader.getNamespacePrefix(i)), nullToEmpty(reader.getNamespaceURI(i)));
+        }
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+            String attributeNamespace = reader.getAttributeNamespace(i);
+            if (attributeNamespace == null || attributeNamespace.isEmpty()) {
+                writer.writeAttribute(reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+            } else {
+                writer.writeAttribute(nullToEmpty(reader.getAttributePrefix(i)), attributeNamespace,
+                        reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+            }
+        }
+    }
+
+    private static String nullToEmpty(String s) {
+        return s == null ? "" : s;
+    }
+
+    /**
+     * @return a namespace aware, coalescing stream reader refusing DTDs and external entities
+     */
+    public static XMLStreamReader createXMLStreamReader(InputStream stream) throws XMLStreamException {
+        return INPUT_FACTORY.createXMLStreamReader(stream);
+    }
+
+    public static XMLStreamReader createXMLStreamReader(Reader reader) throws XMLStreamException {
+        return INPUT_FACTORY.createXMLStreamReader(reader);
+    }
+
+    /**
+     * @return an event reader starting at the current event of the stream reader, and leaving out whitespace only
+     * character events, as the StAX based SAML parsers expect
+     */
+    public static XMLEventReader createXMLEventReader(XMLStreamReader reader) throws XMLStreamException {
+        return INPUT_FACTORY.createFilteredReader(INPUT_FACTORY.createXMLEventReader(reader),
+                event -> !event.isCharacters() || !event.asCharacters().isWhiteSpace());
+    }
+
+    private static XMLInputFactory createInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+        return factory;
+    }
+
+    private static DocumentBuilderFactory createDocumentBuilderFactory() {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        factory.setXIncludeAware(false);
+        factory.setExpandEntityReferences(false);
+        try {
+            factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+            factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+            factory.setFeature("http://xml.org/sax/features/external-general-entities", false);
+            factory.setFeature("http://xml.org/sax/features/external-parameter-entities", false);
+            factory.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+        } catch (ParserConfigurationException e) {
+            throw new IllegalStateException(e);
+        }
+        return factory;
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.common.wsfed.writers;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * A {@link Writer} which escapes what is written to it so that it can be used as the value of a double quoted HTML
+ * attribute. Non-ASCII characters, double quotes and angle brackets are replaced by numeric character references, and
+ * runs of other characters are passed through to the underlying writer as they are.
+ */
+public class AttributeEscapingWriter extends Writer {
+
+    private final Writer out;
+
+    //"&#" + at most 5 digits + ";"
+    private final char[] reference = new char[8];
+
+    public AttributeEscapingWriter(Writer out) {
+        this.out = out;
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+        if (mustEscape((char) c)) {
+            writeReference((char) c);
+        } else {
+            out.write(c);
+        }
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        int start = off;
+        int end = off + len;
+        for (int i = off; i < end; i++) {
+            char c = cbuf[i];
+            if (mustEscape(c)) {
+                out.write(cbuf, start, i - start);
+                writeReference(c);
+                start = i + 1;
+            }
+        }
+        out.write(cbuf, start, end - start);
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+        int start = off;
+        int end = off + len;
+        for (int i = off; i < end; i++) {
+            char c = str.charAt(i);
+            if (mustEscape(c)) {
+                out.write(str, start, i - start);
+                writeReference(c);
+                start = i + 1;
+            }
+        }
+        out.write(str, start, end - start);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    /**
+     * Flushes, but doesn't close, the underlying writer, which usually has more to write after the attribute value.
+     */
+    @Override
+    public void close() throws IOException {
+        out.flush();
+    }
+
+    private static boolean mustEscape(char c) {
+        return c > 127 || c == '"' || c == '<' || c == '>';
+    }
+
+    private void writeReference(char c) throws IOException {
+        int pos = reference.length;
+        reference[--pos] = ';';
+        int value = c;
+        do {
+            reference[--pos] = (char) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        reference[--pos] = '#';
+        reference[--pos] = '&';
+        out.write(reference, pos, reference.length - pos);
+    }
+}
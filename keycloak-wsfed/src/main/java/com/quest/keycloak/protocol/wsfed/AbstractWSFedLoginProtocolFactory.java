@@ -16,11 +16,17 @@
 
 package com.quest.keycloak.protocol.wsfed;
 
+import com.quest.keycloak.protocol.wsfed.builders.PairwiseNameIdGenerator;
+import com.quest.keycloak.protocol.wsfed.installation.WSFedIDPDescriptorCache;
 import com.quest.keycloak.protocol.wsfed.mappers.OIDCFullNameMapper;
 import com.quest.keycloak.protocol.wsfed.mappers.OIDCUserPropertyMapper;
 import com.quest.keycloak.protocol.wsfed.mappers.SAMLUserPropertyAttributeStatementMapper;
+import com.quest.keycloak.protocol.wsfed.mappers.WSFedMapperPipelineCache;
+import com.quest.keycloak.protocol.wsfed.sig.SigningContextCache;
+import org.keycloak.Config;
 import org.keycloak.events.EventBuilder;
 import org.keycloak.models.ClientModel;
+import org.keycloak.models.KeycloakSessionFactory;
 import org.keycloak.models.ProtocolMapperModel;
 import org.keycloak.models.RealmModel;
 import org.keycloak.protocol.AbstractLoginProtocolFactory;
@@ -74,7 +80,9 @@ public abstract class AbstractWSFedLoginProtocolFactory extends AbstractLoginPro
 
     @Override
     public void setupClientDefaults(ClientRepresentation rep, ClientModel newClient) {
-        // Does nothing
+        if ("true".equals(newClient.getAttribute(WSFedLoginProtocol.WSFED_PAIRWISE_NAME_ID))) {
+            PairwiseNameIdGenerator.ensureSecret(newClient.getRealm());
+        }
     }
 
     @Override
@@ -104,6 +112,45 @@ public abstract class AbstractWSFedLoginProtocolFactory extends AbstractLoginPro
         ).forEach(m -> builtins.put(m.getName(), m));
     }
 
+    @Override
+    public void init(Config.Scope config) {
+        super.init(config);
+        WSFedLogoutDispatcher.configure(
+                config.getInt("backchannelLogoutConcurrency", WSFedLogoutDispatcher.DEFAULT_CONCURRENCY),
+                config.getInt("backchannelLogoutTimeout", WSFedLogoutDispatcher.DEFAULT_TIMEOUT));
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+        super.postInit(factory);
+        factory.register(event -> {
+            if (event instanceof RealmModel.RealmRemovedEvent) {
+                String realmId = ((RealmModel.RealmRemovedEvent) event).getRealm().getId();
+                SigningContextCache.invalidate(realmId);
+                WSFedIDPDescriptorCache.invalidate(realmId);
+            } else if (event instanceof RealmModel.ClientUpdatedEvent) {
+                ClientModel client = ((RealmModel.ClientUpdatedEvent) event).getUpdatedClient();
+                invalidateClient(client.getId());
+                if ("true".equals(client.getAttribute(WSFedLoginProtocol.WSFED_PAIRWISE_NAME_ID))) {
+                    PairwiseNameIdGenerator.ensureSecret(client.getRealm());
+                }
+            } else if (event instanceof RealmModel.ClientRemovedEvent) {
+                invalidateClient(((RealmModel.ClientRemovedEvent) event).getClient().getId());
+            }
+        });
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        WSFedLogoutDispatcher.getInstance().shutdown();
+    }
+
+    private static void invalidateClient(String clientId) {
+        WSFedClientProfileCache.invalidate(clientId);
+        WSFedMapperPipelineCache.invalidate(clientId);
+    }
+
     @Override
     protected void createDefaultClientScopesImpl(RealmModel newRealm) {
         // Does nothing
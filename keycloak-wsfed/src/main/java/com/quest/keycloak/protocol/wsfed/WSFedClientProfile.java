@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.protocol.wsfed;
+
+import com.quest.keycloak.protocol.wsfed.sig.WSFedSignatureAlgorithm;
+import org.jboss.logging.Logger;
+import org.keycloak.common.VerificationException;
+import org.keycloak.models.ClientModel;
+import org.keycloak.protocol.saml.SamlConfigAttributes;
+import org.keycloak.protocol.saml.SamlProtocolUtils;
+import org.keycloak.saml.common.constants.JBossSAMLURIConstants;
+
+import java.security.PublicKey;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static com.quest.keycloak.protocol.wsfed.builders.WsFedSAMLAssertionTypeAbstractBuilder.SAML_FORCE_NAME_ID_FORMAT_ATTRIBUTE;
+import static com.quest.keycloak.protocol.wsfed.builders.WsFedSAMLAssertionTypeAbstractBuilder.SAML_NAME_ID_FORMAT_ATTRIBUTE;
+
+/**
+ * The WS-Fed settings of a client, compiled once from the client's attributes: the token format, the signing options,
+ * the encryption key, the name ID policy and the redirect URI used for logout. Instances are immutable, and are
+ * shared between requests through the {@link WSFedClientProfileCache}.
+ *
+ * The raw values the profile was compiled from are kept, so that {@link #isFor(ClientModel)} can tell whether the
+ * client changed since then with plain string comparisons, i.e. without parsing anything again.
+ */
+public final class WSFedClientProfile {
+    private static final Logger logger = Logger.getLogger(WSFedClientProfile.class);
+
+    public static final String SAML_ENCRYPT_ATTRIBUTE = "saml.encrypt";
+
+    private static final List<String> ATTRIBUTES = Collections.unmodifiableList(Arrays.asList(
+            WSFedLoginProtocol.WSFED_JWT,
+            WSFedLoginProtocol.WSFED_X5T,
+            WSFedLoginProtocol.WSFED_SAML_ASSERTION_TOKEN_FORMAT,
+            SAML_ENCRYPT_ATTRIBUTE,
+            SamlConfigAttributes.SAML_ENCRYPTION_CERTIFICATE_ATTRIBUTE,
+            SAML_NAME_ID_FORMAT_ATTRIBUTE,
+            SAML_FORCE_NAME_ID_FORMAT_ATTRIBUTE,
+            WSFedLoginProtocol.WSFED_PAIRWISE_NAME_ID,
+            WSFedLoginProtocol.WSFED_SIGNATURE_ALGORITHM));
+
+    private final String[] source;
+    private final Set<String> redirectUris;
+
+    private final boolean useJwt;
+    private final boolean x5tIncluded;
+    private final WsFedSAMLAssertionTokenFormat samlAssertionTokenFormat;
+    private final WSFedSignatureAlgorithm signatureAlgorithm;
+    private final boolean encrypt;
+    private final PublicKey encryptionKey;
+    private final VerificationException encryptionKeyError;
+    private final String configuredNameIdFormat;
+    private final boolean forceNameIdFormat;
+    private final boolean pairwiseNameId;
+    private final String logoutRedirectUri;
+
+    public WSFedClientProfile(ClientModel client) {
+        this.source = new String[ATTRIBUTES.size()];
+        for (int i = 0; i < source.length; i++) {
+            source[i] = client.getAttribute(ATTRIBUTES.get(i));
+        }
+        this.redirectUris = client.getRedirectUris() == null ? Collections.emptySet() : new HashSet<>(client.getRedirectUris());
+
+        this.useJwt = Boolean.parseBoolean(client.getAttribute(WSFedLoginProtocol.WSFED_JWT));
+        this.x5tIncluded = Boolean.parseBoolean(client.getAttribute(WSFedLoginProtocol.WSFED_X5T));
+        this.samlAssertionTokenFormat = parseSamlAssertionTokenFormat(client.getAttribute(WSFedLoginProtocol.WSFED_SAML_ASSERTION_TOKEN_FORMAT));
+        this.signatureAlgorithm = parseSignatureAlgorithm(client.getAttribute(WSFedLoginProtocol.WSFED_SIGNATURE_ALGORITHM));
+
+        this.encrypt = "true".equals(client.getAttribute(SAML_ENCRYPT_ATTRIBUTE));
+        PublicKey key = null;
+        VerificationException error = null;
+        if (encrypt) {
+            try {
+                key = SamlProtocolUtils.getEncryptionKey(client);
+            } catch (VerificationException e) {
+                error = e;
+            }
+        }
+        this.encryptionKey = key;
+        this.encryptionKeyError = error;
+
+        this.configuredNameIdFormat = toNameIdFormatUri(client.getAttribute(SAML_NAME_ID_FORMAT_ATTRIBUTE));
+        this.forceNameIdFormat = "true".equals(client.getAttribute(SAML_FORCE_NAME_ID_FORMAT_ATTRIBUTE));
+        this.pairwiseNameId = "true".equals(client.getAttribute(WSFedLoginProtocol.WSFED_PAIRWISE_NAME_ID));
+
+        this.logoutRedirectUri = redirectUris.isEmpty() ? null : client.getRedirectUris().iterator().next();
+    }
+
+    private static WsFedSAMLAssertionTokenFormat parseSamlAssertionTokenFormat(String value) {
+        try {
+            if (value != null)
+                return WsFedSAMLAssertionTokenFormat.parse(value);
+            return WsFedSAMLAssertionTokenFormat.SAML20_ASSERTION_TOKEN_FORMAT;
+        } catch (RuntimeException ex) {
+            logger.error(ex.toString());
+        }
+        return WsFedSAMLAssertionTokenFormat.SAML20_ASSERTION_TOKEN_FORMAT;
+    }
+
+    private static WSFedSignatureAlgorithm parseSignatureAlgorithm(String value) {
+        try {
+            if (value != null)
+                return WSFedSignatureAlgorithm.parse(value);
+        } catch (RuntimeException ex) {
+            logger.error(ex.toString());
+        }
+        return WSFedSignatureAlgorithm.RS256;
+    }
+
+    private static String toNameIdFormatUri(String configuredNameIdFormat) {
+        if (configuredNameIdFormat == null) {
+            return null;
+        }
+        switch (configuredNameIdFormat) {
+            case "email":
+                return JBossSAMLURIConstants.NAMEID_FORMAT_EMAIL.get();
+            case "persistent":
+                return JBossSAMLURIConstants.NAMEID_FORMAT_PERSISTENT.get();
+            case "transient":
+                return JBossSAMLURIConstants.NAMEID_FORMAT_TRANSIENT.get();
+            default:
+                return JBossSAMLURIConstants.NAMEID_FORMAT_UNSPECIFIED.get();
+        }
+    }
+
+    /**
+     * @param client
+     * @return true if none of the settings this profile was compiled from changed on the given client
+     */
+    public boolean isFor(ClientModel client) {
+        for (int i = 0; i < source.length; i++) {
+            String value = client.getAttribute(ATTRIBUTES.get(i));
+            if (source[i] == null ? value != null : !source[i].equals(value)) {
+                return false;
+            }
+        }
+        Set<String> currentRedirectUris = client.getRedirectUris();
+        return currentRedirectUris == null ? redirectUris.isEmpty() : redirectUris.equals(currentRedirectUris);
+    }
+
+    public boolean isUseJwt() {
+        return useJwt;
+    }
+
+    public boolean isX5tIncluded() {
+        return x5tIncluded;
+    }
+
+    public WsFedSAMLAssertionTokenFormat getSamlAssertionTokenFormat() {
+        return samlAssertionTokenFormat;
+    }
+
+    /**
+     * @return the algorithm the tokens issued to the client are signed with, RS256 unless configured otherwise
+     */
+    public WSFedSignatureAlgorithm getSignatureAlgorithm() {
+        return signatureAlgorithm;
+    }
+
+    public boolean isEncrypt() {
+        return encrypt;
+    }
+
+    /**
+     * @return the key assertions are encrypted with, or null if the client doesn't want them encrypted
+     * @throws VerificationException if the client's encryption certificate can't be read
+     */
+    public PublicKey getEncryptionKey() throws VerificationException {
+        if (encryptionKeyError != null) {
+            throw encryptionKeyError;
+        }
+        return encryptionKey;
+    }
+
+    /**
+     * @return the URI of the name ID format configured for the client, or null if none is
+     */
+    public String getConfiguredNameIdFormat() {
+        return configuredNameIdFormat;
+    }
+
+    public boolean isForceNameIdFormat() {
+        return forceNameIdFormat;
+    }
+
+    /**
+     * @return true if persistent name IDs are derived from the user and client ids rather than stored on the user
+     */
+    public boolean isPairwiseNameId() {
+        return pairwiseNameId;
+    }
+
+    /**
+     * @return the redirect URI logout messages are sent to, or null if the client has no redirect URI
+     */
+    public String getLogoutRedirectUri() {
+        return logoutRedirectUri;
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.protocol.wsfed;
+
+import org.keycloak.models.ClientModel;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Keeps the compiled {@link WSFedClientProfile} of each client. Profiles are dropped when the client is updated or
+ * removed on this node (see {@link AbstractWSFedLoginProtocolFactory#postInit}). As updates made on other nodes of a
+ * cluster aren't published here, a cached profile is also compiled again whenever its source values no longer match
+ * the client's.
+ */
+public final class WSFedClientProfileCache {
+
+    private static final ConcurrentMap<String, WSFedClientProfile> PROFILES = new ConcurrentHashMap<>();
+
+    private WSFedClientProfileCache() {
+    }
+
+    public static WSFedClientProfile get(ClientModel client) {
+        WSFedClientProfile profile = PROFILES.get(client.getId());
+        if (profile != null && profile.isFor(client)) {
+            return profile;
+        }
+        profile = new WSFedClientProfile(client);
+        PROFILES.put(client.getId(), profile);
+        return profile;
+    }
+
+    public static void invalidate(String clientId) {
+        PROFILES.remove(clientId);
+    }
+}
@@ -21,24 +21,18 @@ import com.quest.keycloak.common.wsfed.builders.WSFedResponseBuilder;
 import com.quest.keycloak.protocol.wsfed.builders.WSFedOIDCAccessTokenBuilder;
 import com.quest.keycloak.protocol.wsfed.builders.WSFedSAML2AssertionTypeBuilder;
 import com.quest.keycloak.protocol.wsfed.builders.WsFedSAML11AssertionTypeBuilder;
+import com.quest.keycloak.protocol.wsfed.sig.SigningContext;
+import com.quest.keycloak.protocol.wsfed.sig.SigningContextCache;
 
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
 import org.apache.http.client.HttpClient;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.client.utils.URIBuilder;
 import org.jboss.logging.Logger;
 import org.keycloak.connections.httpclient.HttpClientProvider;
-import org.keycloak.crypto.Algorithm;
-import org.keycloak.crypto.KeyUse;
-import org.keycloak.crypto.KeyWrapper;
 import org.keycloak.dom.saml.v1.assertion.SAML11AssertionType;
 import org.keycloak.dom.saml.v2.assertion.AssertionType;
 import org.keycloak.events.EventBuilder;
 import org.keycloak.models.*;
 import org.keycloak.protocol.LoginProtocol;
 import org.keycloak.protocol.oidc.utils.RedirectUtils;
-import org.keycloak.protocol.saml.SamlProtocolUtils;
 import org.keycloak.saml.common.exceptions.ConfigurationException;
 import org.keycloak.services.ErrorPage;
 import org.keycloak.services.messages.Messages;
@@ -50,11 +44,10 @@ import javax.ws.rs.core.Response;
 import javax.ws.rs.core.UriInfo;
 import javax.xml.datatype.DatatypeConfigurationException;
 
-import java.io.InputStream;
 import java.security.GeneralSecurityException;
-import java.security.KeyPair;
-import java.security.PrivateKey;
-import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Implementation of keycloak's LoginProtocol. The LoginProtocol is used during the authentication steps for login AND
@@ -73,10 +66,14 @@ public class WSFedLoginProtocol implements LoginProtocol {
 
     public static final String WSFED_JWT = "wsfed.jwt";
     public static final String WSFED_X5T = "wsfed.x5t";
+    public static final String WSFED_PAIRWISE_NAME_ID = "wsfed.pairwise_name_id";
+    public static final String WSFED_SIGNATURE_ALGORITHM = "wsfed.signature_algorithm";
     public static final String WSFED_SAML_ASSERTION_TOKEN_FORMAT = "wsfed.saml_assertion_token_format";
     public static final String WSFED_LOGOUT_BINDING_URI = "WSFED_LOGOUT_BINDING_URI";
     public static final String WSFED_CONTEXT = "WSFED_CONTEXT";
 
+    private static final String BACKCHANNEL_LOGOUTS_ATTRIBUTE = "wsfed.backchannel_logouts.";
+
     private KeycloakSession session;
 
     private RealmModel realm;
@@ -204,7 +201,8 @@ public class WSFedLoginProtocol implements LoginProtocol {
         String context = clientSession.getNote(WSFedConstants.WSFED_CONTEXT);
         userSession.setNote(WSFedConstants.WSFED_REALM, client.getClientId());
         try {
-            KeyWrapper activeKey = session.keys().getActiveKey(realm, KeyUse.SIG, Algorithm.RS256);
+            WSFedClientProfile profile = WSFedClientProfileCache.get(client);
+            SigningContext signingContext = SigningContextCache.get(session, realm, profile.getSignatureAlgorithm());
 
             ctx.getBuilder().setRealm(clientSession.getClient().getClientId())
                     .setAction(WSFedConstants.WSFED_SIGNIN_ACTION)
@@ -212,15 +210,13 @@ public class WSFedLoginProtocol implements LoginProtocol {
                     .setContext(context)
                     .setTokenExpiration(realm.getAccessTokenLifespan())
                     .setRequestIssuer(clientSession.getClient().getClientId())
-                    .setSigningKeyPair(new KeyPair((PublicKey)activeKey.getPublicKey(), (PrivateKey)activeKey.getPrivateKey()))
-                    .setSigningCertificate(activeKey.getCertificate())
-                    .setSigningKeyPairId(activeKey.getKid());
+                    .setSigningContext(signingContext);
 
-            if ("true".equals(client.getAttribute("saml.encrypt"))) {
-                ctx.getBuilder().encrypt(SamlProtocolUtils.getEncryptionKey(client));
+            if (profile.isEncrypt()) {
+                ctx.getBuilder().encrypt(profile.getEncryptionKey());
             }
 
-            if (useJwt(client)) {
+            if (profile.isUseJwt()) {
                 //JSON webtoken (OIDC) set in client config
                 WSFedOIDCAccessTokenBuilder oidcBuilder = new WSFedOIDCAccessTokenBuilder();
                 oidcBuilder.setSession(session)
@@ -229,13 +225,14 @@ public class WSFedLoginProtocol implements LoginProtocol {
                         .setClient(client)
                         .setClientSession(clientSession)
                         .setRealm(realm)
-                        .setX5tIncluded(isX5tIncluded(client));
+                        .setX5tIncluded(profile.isX5tIncluded())
+                        .setSigningContext(signingContext);
 
                 String token = oidcBuilder.build();
                 ctx.getBuilder().setJwt(token);
             } else {
                 //if client wants SAML
-                WsFedSAMLAssertionTokenFormat tokenFormat = getSamlAssertionTokenFormat(client);
+                WsFedSAMLAssertionTokenFormat tokenFormat = profile.getSamlAssertionTokenFormat();
                 if (tokenFormat==WsFedSAMLAssertionTokenFormat.SAML20_ASSERTION_TOKEN_FORMAT) {
                     AssertionType saml20Token = buildSAML20AssertionToken(ctx);
                     ctx.setSamlAssertion(saml20Token);
@@ -248,6 +245,10 @@ public class WSFedLoginProtocol implements LoginProtocol {
             }
 
             return evaluateAuthenticatedResponse(ctx);
+        } catch (ConfigurationException e) {
+            //The realm or the client can't issue tokens as configured, e.g. pairwise name IDs without the realm's secret
+            logger.errorf("Can't issue a token for client %s: %s", client.getClientId(), e.getMessage());
+            return ErrorPage.error(session, null, Response.Status.BAD_REQUEST, Messages.FAILED_TO_PROCESS_RESPONSE);
         } catch (Exception e) {
             logger.error("failed", e);
             return ErrorPage.error(session, null, Response.Status.BAD_REQUEST, Messages.FAILED_TO_PROCESS_RESPONSE);
@@ -277,7 +278,7 @@ public class WSFedLoginProtocol implements LoginProtocol {
             .build();
     }
 
-    private AssertionType buildSAML20AssertionToken(WSFedLoginContext ctx) throws DatatypeConfigurationException {
+    private AssertionType buildSAML20AssertionToken(WSFedLoginContext ctx) throws DatatypeConfigurationException, ConfigurationException {
         return new WSFedSAML2AssertionTypeBuilder()
             .setRealm(realm)
             .setUriInfo(uriInfo)
@@ -289,33 +290,22 @@ public class WSFedLoginProtocol implements LoginProtocol {
     }
 
     public WsFedSAMLAssertionTokenFormat getSamlAssertionTokenFormat(ClientModel client) {
-        String value = client.getAttribute(WSFED_SAML_ASSERTION_TOKEN_FORMAT);
-        try {
-            if (value != null)
-                return WsFedSAMLAssertionTokenFormat.parse(value);
-            return WsFedSAMLAssertionTokenFormat.SAML20_ASSERTION_TOKEN_FORMAT;
-        } catch (RuntimeException ex) {
-            logger.error(ex.toString());
-        }
-        return WsFedSAMLAssertionTokenFormat.SAML20_ASSERTION_TOKEN_FORMAT;
+        return WSFedClientProfileCache.get(client).getSamlAssertionTokenFormat();
     }
 
     protected boolean useJwt(ClientModel client) {
-        return Boolean.parseBoolean(client.getAttribute(WSFED_JWT));
+        return WSFedClientProfileCache.get(client).isUseJwt();
     }
 
     protected boolean isX5tIncluded(ClientModel client) {
-        return Boolean.parseBoolean(client.getAttribute(WSFED_X5T));
+        return WSFedClientProfileCache.get(client).isX5tIncluded();
     }
 
     @Override
     public void backchannelLogout(UserSessionModel userSession, AuthenticatedClientSessionModel clientSession) {
         logger.debug("backchannelLogout");
         ClientModel client = clientSession.getClient();
-        String redirectUri = null;
-        if (!client.getRedirectUris().isEmpty()) {
-            redirectUri = client.getRedirectUris().iterator().next();
-        }
+        String redirectUri = WSFedClientProfileCache.get(client).getLogoutRedirectUri();
         String logoutUrl = RedirectUtils.verifyRedirectUri(uriInfo, redirectUri, realm, client);
         if (logoutUrl == null) {
             logger.warn("Can't do backchannel logout. No SingleLogoutService POST Binding registered for client: " + client.getClientId());
@@ -323,50 +313,54 @@ public class WSFedLoginProtocol implements LoginProtocol {
         }
 
         //Basically the same as SAML only we don't need to send an actual LogoutRequest. Just need to send the signoutcleanup1.0 action.
+        //The request is sent asynchronously, so that the other clients of the user session don't wait for this one.
         HttpClient httpClient = session.getProvider(HttpClientProvider.class).getHttpClient();
-
-        for (int i = 0; logoutUrl!=null && i < 2; i++) { // follow redirects once
-            logoutUrl = redirect(client, httpClient, logoutUrl);
-        }
+        getBackchannelLogouts(userSession).add(getLogoutDispatcher().dispatch(client.getClientId(), httpClient, logoutUrl));
     }
 
-    private String redirect(ClientModel client, HttpClient httpClient, String logoutUrl) {
-        try {
-            URIBuilder builder = new URIBuilder(logoutUrl)
-                .addParameter(WSFedConstants.WSFED_ACTION, WSFedConstants.WSFED_SIGNOUT_CLEANUP_ACTION)
-                .addParameter(WSFedConstants.WSFED_REALM, client.getClientId());
-            HttpGet get = new HttpGet(builder.build());
-            HttpResponse response = httpClient.execute(get);
-            try {
-                int status = response.getStatusLine().getStatusCode();
-                if (status == 302 && !logoutUrl.endsWith("/")) {
-                    String redirect = response.getFirstHeader(HttpHeaders.LOCATION).getValue();
-                    String withSlash = logoutUrl + "/";
-                    if (withSlash.equals(redirect)) {
-                        return withSlash;
-                    }
+    /**
+     * Keycloak logs the clients of a user session out one by one within the same KeycloakSession, so the outcomes of
+     * their requests are kept on it, and summarized once its transaction is over and all the clients were dispatched.
+     *
+     * @return the outcomes of the backchannel logouts of the user session dispatched so far
+     */
+    @SuppressWarnings("unchecked")
+    private List<CompletableFuture<WSFedLogoutDispatcher.Outcome>> getBackchannelLogouts(UserSessionModel userSession) {
+        String userSessionId = userSession.getId();
+        String attribute = BACKCHANNEL_LOGOUTS_ATTRIBUTE + userSessionId;
+        List<CompletableFuture<WSFedLogoutDispatcher.Outcome>> outcomes = (List<CompletableFuture<WSFedLogoutDispatcher.Outcome>>) session.getAttribute(attribute);
+        if (outcomes == null) {
+            List<CompletableFuture<WSFedLogoutDispatcher.Outcome>> dispatched = new ArrayList<>();
+            WSFedLogoutDispatcher dispatcher = getLogoutDispatcher();
+            session.setAttribute(attribute, dispatched);
+            session.getTransactionManager().enlistAfterCompletion(new AbstractKeycloakTransaction() {
+                @Override
+                protected void commitImpl() {
+                    dispatcher.summarize(userSessionId, dispatched);
                 }
-            } finally {
-                HttpEntity entity = response.getEntity();
-                if (entity != null) {
-                    InputStream is = entity.getContent();
-                    if (is != null) is.close();
+
+                @Override
+                protected void rollbackImpl() {
+                    dispatcher.summarize(userSessionId, dispatched);
                 }
-            }
-        } catch (Exception e) {
-            logger.warn("failed to send ws-fed logout to RP", e);
+            });
+            outcomes = dispatched;
         }
-        return null;
+        return outcomes;
+    }
+
+    /**
+     * @return the dispatcher sending the backchannel logout requests
+     */
+    protected WSFedLogoutDispatcher getLogoutDispatcher() {
+        return WSFedLogoutDispatcher.getInstance();
     }
 
     @Override
     public Response frontchannelLogout(UserSessionModel userSession, AuthenticatedClientSessionModel clientSession) {
         logger.debug("frontchannelLogout");
         ClientModel client = clientSession.getClient();
-        String redirectUri = null;
-        if (!client.getRedirectUris().isEmpty()) {
-            redirectUri = client.getRedirectUris().iterator().next();
-        }
+        String redirectUri = WSFedClientProfileCache.get(client).getLogoutRedirectUri();
         String logoutUrl = RedirectUtils.verifyRedirectUri(uriInfo, redirectUri, realm, client);
         if (logoutUrl == null) {
             logger.error("Can't finish WS-Fed logout as there is no logout binding set. Has the redirect URI being used been added to the valid redirect URIs in the client?");
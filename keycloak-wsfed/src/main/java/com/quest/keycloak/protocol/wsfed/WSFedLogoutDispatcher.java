@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.protocol.wsfed;
+
+import com.quest.keycloak.common.wsfed.WSFedConstants;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.utils.URIBuilder;
+import org.jboss.logging.Logger;
+
+import javax.ws.rs.core.HttpHeaders;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends the wsignoutcleanup1.0 requests of backchannel logouts. Keycloak asks the login protocol to log out each
+ * client of a user session in turn, so the requests are handed to a bounded pool instead of being sent by the calling
+ * thread: a slow relying party then no longer holds up the logout of the other ones.
+ *
+ * At most {@code concurrency} requests are in flight at once. Once the queue of waiting requests is full, or once the
+ * dispatcher has been shut down, the calling thread sends the request itself, so that no logout is dropped. Each
+ * request is bounded by {@code timeout} milliseconds, for getting a connection, connecting, and waiting for data each.
+ *
+ * The outcome of the requests of a user session is logged as one summary, once all of them are done (see
+ * {@link #summarize(String, Collection)}).
+ */
+public class WSFedLogoutDispatcher {
+    private static final Logger logger = Logger.getLogger(WSFedLogoutDispatcher.class);
+
+    public static final int DEFAULT_CONCURRENCY = 16;
+    public static final int DEFAULT_TIMEOUT = 5000;
+    private static final int QUEUE_CAPACITY = 1000;
+
+    public enum Outcome {
+        SUCCESS, FAILED, TIMED_OUT
+    }
+
+    private static volatile WSFedLogoutDispatcher instance;
+
+    private final Executor executor;
+    private final RequestConfig requestConfig;
+
+    public WSFedLogoutDispatcher(Executor executor, int timeout) {
+        this.executor = executor;
+        this.requestConfig = RequestConfig.custom()
+                .setConnectionRequestTimeout(timeout)
+                .setConnectTimeout(timeout)
+                .setSocketTimeout(timeout)
+                .build();
+    }
+
+    public WSFedLogoutDispatcher(int concurrency, int timeout) {
+        this(newPool(concurrency), timeout);
+    }
+
+    private static ExecutorService newPool(int concurrency) {
+        AtomicInteger count = new AtomicInteger();
+        ThreadFactory threadFactory = runnable -> {
+            Thread thread = new Thread(runnable, "wsfed-logout-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(concurrency, concurrency, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(QUEUE_CAPACITY), threadFactory, WSFedLogoutDispatcher::runInline);
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * Unlike {@link ThreadPoolExecutor.CallerRunsPolicy}, which discards the task once the pool is shut down, leaving
+     * the future of its logout pending forever, the task is run even then.
+     */
+    private static void runInline(Runnable task, ThreadPoolExecutor pool) {
+        if (pool.isShutdown()) {
+            logger.debug("ws-fed logout dispatcher is shut down, sending the logout from the calling thread");
+        }
+        task.run();
+    }
+
+    /**
+     * @return the dispatcher shared by all the realms
+     */
+    public static WSFedLogoutDispatcher getInstance() {
+        WSFedLogoutDispatcher dispatcher = instance;
+        if (dispatcher == null) {
+            synchronized (WSFedLogoutDispatcher.class) {
+                if (instance == null) {
+                    instance = new WSFedLogoutDispatcher(DEFAULT_CONCURRENCY, DEFAULT_TIMEOUT);
+                }
+                dispatcher = instance;
+            }
+        }
+        return dispatcher;
+    }
+
+    /**
+     * Replaces the shared dispatcher by one with the given settings. Requests already dispatched still complete.
+     */
+    public static synchronized void configure(int concurrency, int timeout) {
+        WSFedLogoutDispatcher previous = instance;
+        instance = new WSFedLogoutDispatcher(concurrency, timeout);
+        if (previous != null) {
+            previous.shutdown();
+        }
+    }
+
+    public void shutdown() {
+        if (executor instanceof ExecutorService) {
+            ((ExecutorService) executor).shutdown();
+        }
+    }
+
+    /**
+     * Sends the cleanup request of a client, following one redirect to the same URL with a trailing slash.
+     *
+     * @param clientId the client being logged out (its wtrealm)
+     * @param httpClient the client to send the request with, which must be usable from another thread
+     * @param logoutUrl the url to send the request to
+     * @return the outcome of the request
+     */
+    public CompletableFuture<Outcome> dispatch(String clientId, HttpClient httpClient, String logoutUrl) {
+        return CompletableFuture.supplyAsync(() -> send(clientId, httpClient, logoutUrl), executor);
+    }
+
+    /**
+     * Logs one summary of the backchannel logout of a user session.
+     *
+     * @param userSessionId the user session being logged out
+     * @param outcomes the outcomes of all the requests dispatched for the user session
+     * @return completed once all the requests are done and the summary is logged
+     */
+    public CompletableFuture<Void> summarize(String userSessionId, Collection<CompletableFuture<Outcome>> outcomes) {
+        return CompletableFuture.allOf(outcomes.toArray(new CompletableFuture<?>[0])).handle((done, error) -> {
+            Summary summary = new Summary();
+            for (CompletableFuture<Outcome> outcome : outcomes) {
+                summary.add(outcome.isCompletedExceptionally() ? Outcome.FAILED : outcome.join());
+            }
+            if (summary.succeeded == summary.dispatched) {
+                logger.debugf("ws-fed backchannel logout of user session %s: %s", userSessionId, summary);
+            } else {
+                logger.warnf("ws-fed backchannel logout of user session %s: %s", userSessionId, summary);
+            }
+            return null;
+        });
+    }
+
+    private Outcome send(String clientId, HttpClient httpClient, String logoutUrl) {
+        Outcome outcome = Outcome.FAILED;
+        String url = logoutUrl;
+        for (int i = 0; url != null && i < 2; i++) { // follow redirects once
+            try {
+                URIBuilder builder = new URIBuilder(url)
+                        .addParameter(WSFedConstants.WSFED_ACTION, WSFedConstants.WSFED_SIGNOUT_CLEANUP_ACTION)
+                        .addParameter(WSFedConstants.WSFED_REALM, clientId);
+                HttpGet get = new HttpGet(builder.build());
+                get.setConfig(requestConfig);
+                HttpResponse response = httpClient.execute(get);
+                String current = url;
+                url = null;
+                try {
+                    int status = response.getStatusLine().getStatusCode();
+                    outcome = status < 400 ? Outcome.SUCCESS : Outcome.FAILED;
+                    if (status == 302 && !current.endsWith("/")) {
+                        String redirect = response.getFirstHeader(HttpHeaders.LOCATION).getValue();
+                        String withSlash = current + "/";
+                        if (withSlash.equals(redirect)) {
+                            url = withSlash;
+                        }
+                    }
+                } finally {
+                    HttpEntity entity = response.getEntity();
+                    if (entity != null) {
+                        InputStream is = entity.getContent();
+                        if (is != null) is.close();
+                    }
+                }
+            } catch (InterruptedIOException e) {
+                logger.warnf("ws-fed logout to RP %s timed out", clientId);
+                return Outcome.TIMED_OUT;
+            } catch (Exception e) {
+                logger.warn("failed to send ws-fed logout to RP", e);
+                return Outcome.FAILED;
+            }
+        }
+        return outcome;
+    }
+
+    private static final class Summary {
+        int dispatched;
+        int succeeded;
+        int failed;
+        int timedOut;
+
+        void add(Outcome outcome) {
+            dispatched++;
+            switch (outcome) {
+                case SUCCESS:
+                    succeeded++;
+                    break;
+                case TIMED_OUT:
+                    timedOut++;
+                    break;
+                default:
+                    failed++;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d relying parties, %d succeeded, %d failed, %d timed out", dispatched, succeeded, failed, timedOut);
+        }
+    }
+}
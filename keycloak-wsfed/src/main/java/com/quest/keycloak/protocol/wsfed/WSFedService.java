@@ -16,10 +16,11 @@
 
 package com.quest.keycloak.protocol.wsfed;
 
+import com.quest.keycloak.common.wsfed.MetadataDocument;
 import com.quest.keycloak.common.wsfed.WSFedConstants;
 import com.quest.keycloak.common.wsfed.builders.WSFedResponseBuilder;
 import com.quest.keycloak.protocol.wsfed.builders.WSFedProtocolParameters;
-import com.quest.keycloak.protocol.wsfed.installation.WSFedIDPDescriptorClientInstallation;
+import com.quest.keycloak.protocol.wsfed.installation.WSFedIDPDescriptorCache;
 import org.jboss.logging.Logger;
 import org.keycloak.events.Errors;
 import org.keycloak.events.EventBuilder;
@@ -40,6 +41,7 @@ import org.keycloak.services.resources.RealmsResource;
 import org.keycloak.sessions.AuthenticationSessionModel;
 
 import javax.ws.rs.*;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.MultivaluedMap;
 import javax.ws.rs.core.Response;
@@ -102,15 +104,18 @@ public class WSFedService extends AuthorizationEndpointBase {
      * section 3.1.2.2 SecurityTokenServiceType).
      * <p>
      * FIXME replace lazy xml template substitution with JAXB handling .... probably.
+     * <p>
+     * The response carries a strong ETag and may be cached for a few minutes. A request whose If-None-Match header
+     * matches the current descriptor gets a 304 response.
      *
-     * @return a string containing the xml for the wsfed metadata
-     * @throws Exception IOException if there's a problem reading the wsfed-idp-metadata-template.xml
+     * @return a response containing the xml for the wsfed metadata, or a 304 response
      */
     @GET
     @Path("descriptor")
     @Produces(MediaType.APPLICATION_XML)
-    public String getDescriptor() throws Exception {
-        return WSFedIDPDescriptorClientInstallation.getIDPDescriptorForClient(session, realm, session.getContext().getUri().getBaseUri());
+    public Response getDescriptor() {
+        MetadataDocument descriptor = WSFedIDPDescriptorCache.get(session, realm, session.getContext().getUri().getBaseUri());
+        return descriptor.toResponse(headers.getHeaderString(HttpHeaders.IF_NONE_MATCH), MediaType.APPLICATION_XML_TYPE);
     }
 
     /**
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.protocol.wsfed.builders;
+
+import org.keycloak.models.RealmModel;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+/**
+ * Derives persistent name IDs from a keyed hash (HMAC-SHA256) of the user id and the client id, under a secret of the
+ * realm. The same user always gets the same name ID for a given client, and different ones for different clients,
+ * without anything being stored on the user.
+ *
+ * The secret is stored in the realm attribute {@value #SECRET_ATTRIBUTE}. It is only created by the admin operations
+ * which create or update a client enabling pairwise name IDs, never while a user signs in: a realm write on the login
+ * path could race with the same write on another node of a cluster, and silently change the name IDs already issued.
+ * It must never change afterwards, as changing it changes the name ID of every user for every client.
+ *
+ * The secret is only written by the transaction saving the client when the realm has none, but nothing serializes the
+ * transactions of different nodes: in a cluster, it must be provisioned once, by saving a single client enabling
+ * pairwise name IDs (or setting the realm attribute) before any other.
+ */
+public final class PairwiseNameIdGenerator {
+
+    public static final String SECRET_ATTRIBUTE = "wsfed.pairwise_name_id.secret";
+
+    private static final String PREFIX = "P-";
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private PairwiseNameIdGenerator() {
+    }
+
+    /**
+     * Creates the realm's secret, unless it already has one. Only to be called when a client is saved, within the
+     * transaction saving it.
+     */
+    public static String ensureSecret(RealmModel realm) {
+        String secret = realm.getAttribute(SECRET_ATTRIBUTE);
+        if (secret == null) {
+            byte[] bytes = new byte[32];
+            RANDOM.nextBytes(bytes);
+            secret = Base64.getEncoder().encodeToString(bytes);
+            realm.setAttribute(SECRET_ATTRIBUTE, secret);
+        }
+        return secret;
+    }
+
+    /**
+     * @return the persistent name ID of the user for the client. "P-" stands for "pairwise".
+     * @throws IllegalStateException if the realm has no secret yet
+     */
+    public static String generate(RealmModel realm, String userId, String clientId) {
+        String secret = realm.getAttribute(SECRET_ATTRIBUTE);
+        if (secret == null) {
+            throw new IllegalStateException("Realm " + realm.getName() + " has no pairwise name ID secret, save the client to create it");
+        }
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(new SecretKeySpec(Base64.getDecoder().decode(secret), ALGORITHM));
+            mac.update(userId.getBytes(StandardCharsets.UTF_8));
+            mac.update((byte) 0);
+            byte[] hash = mac.doFinal(clientId.getBytes(StandardCharsets.UTF_8));
+            return PREFIX + Base64.getUrlEncoder().withoutPadding().encodeToString(hash);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
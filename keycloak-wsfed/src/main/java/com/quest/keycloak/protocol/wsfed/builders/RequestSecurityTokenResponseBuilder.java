@@ -21,19 +21,20 @@ import com.quest.keycloak.common.wsfed.writers.WSTrustResponseWriter;
 import com.quest.keycloak.protocol.wsfed.sig.SAML11Signature;
 import com.quest.keycloak.protocol.wsfed.sig.SAML2SignatureProxy;
 import com.quest.keycloak.protocol.wsfed.sig.SAMLAbstractSignature;
+import com.quest.keycloak.protocol.wsfed.sig.SigningContext;
+import com.quest.keycloak.saml.processing.core.saml.v2.util.AssertionUtil;
 import org.apache.commons.lang.StringEscapeUtils;
 import org.apache.xml.security.keys.KeyInfo;
 import org.keycloak.dom.saml.v1.assertion.SAML11AssertionType;
 import org.keycloak.dom.saml.v2.assertion.AssertionType;
 import org.keycloak.saml.RandomSecret;
 import org.keycloak.saml.SignatureAlgorithm;
-import org.keycloak.saml.common.constants.GeneralConstants;
 import org.keycloak.saml.common.exceptions.ConfigurationException;
 import org.keycloak.saml.common.exceptions.ProcessingException;
 import org.keycloak.saml.common.util.Base64;
+import org.keycloak.saml.common.util.StaxUtil;
 import org.keycloak.saml.processing.core.saml.v1.SAML11Constants;
 import org.keycloak.saml.processing.core.saml.v2.common.IDGenerator;
-import org.keycloak.saml.processing.core.saml.v2.util.AssertionUtil;
 import org.keycloak.saml.processing.core.saml.v2.util.XMLTimeUtil;
 import org.keycloak.saml.processing.core.util.XMLEncryptionUtil;
 import org.picketlink.identity.federation.core.wstrust.wrappers.Lifetime;
@@ -48,7 +49,6 @@ import org.picketlink.identity.federation.ws.wss.secext.BinarySecurityTokenType;
 import org.picketlink.identity.federation.ws.wss.secext.KeyIdentifierType;
 import org.picketlink.identity.federation.ws.wss.secext.SecurityTokenReferenceType;
 import org.w3c.dom.Document;
-import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 
 import javax.crypto.SecretKey;
@@ -57,9 +57,10 @@ import javax.ws.rs.HttpMethod;
 import javax.ws.rs.core.Response;
 import javax.xml.crypto.dsig.CanonicalizationMethod;
 import javax.xml.datatype.XMLGregorianCalendar;
-import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.net.URI;
-import java.nio.charset.Charset;
 import java.security.KeyPair;
 import java.security.PublicKey;
 import java.security.cert.X509Certificate;
@@ -78,6 +79,7 @@ public class RequestSecurityTokenResponseBuilder extends WSFedResponseBuilder {
     protected KeyPair signingKeyPair;
     protected X509Certificate signingCertificate;
     protected String keyId;
+    protected SigningContext signingContext;
     protected String canonicalizationMethodType = CanonicalizationMethod.EXCLUSIVE;
 
     protected int encryptionKeySize = 128;
@@ -143,6 +145,22 @@ public class RequestSecurityTokenResponseBuilder extends WSFedResponseBuilder {
         return this;
     }
 
+    public SigningContext getSigningContext() {
+        return signingContext;
+    }
+
+    /**
+     * Signs with the key pair, certificate and signature settings of the given context, in place of the values set
+     * one by one with {@link #setSigningKeyPair}, {@link #setSigningCertificate} and {@link #setSigningKeyPairId}.
+     */
+    public RequestSecurityTokenResponseBuilder setSigningContext(SigningContext signingContext) {
+        this.signingContext = signingContext;
+        this.signingKeyPair = signingContext.getKeyPair();
+        this.signingCertificate = signingContext.getCertificate();
+        this.keyId = signingContext.getKid();
+        return this;
+    }
+
     public RequestSecurityTokenResponseBuilder setSigningKeyPairId(String keyId) {
         this.keyId = keyId;
         return this;
@@ -224,8 +242,18 @@ public class RequestSecurityTokenResponseBuilder extends WSFedResponseBuilder {
     }
 
 
+    /**
+     * Builds and signs the RSTR, then streams it into the wresult field of the response form.
+     */
     public Response buildResponse() throws ProcessingException, org.picketlink.common.exceptions.ProcessingException, ConfigurationException {
-        return buildResponse(getStringValue());
+        RequestSecurityTokenResponse response = build();
+        return buildStreamingResponse(writer -> {
+            try {
+                write(response, writer);
+            } catch (ProcessingException | org.picketlink.common.exceptions.ProcessingException e) {
+                throw new IOException(e);
+            }
+        });
     }
 
     public RequestSecurityTokenResponse build() throws ConfigurationException, ProcessingException {
@@ -247,9 +275,9 @@ public class RequestSecurityTokenResponseBuilder extends WSFedResponseBuilder {
         if(samlToken != null) {
             //Sign token
             Document doc = AssertionUtil.asDocument(samlToken);
-            doc = signAssertion(doc, new SAML2SignatureProxy());
+            signAssertion(doc, new SAML2SignatureProxy());
             if(encrypt){
-                doc=encryptDocument(doc);
+                encryptDocument(doc);
             }
             response.getRequestedSecurityToken().add(doc.getDocumentElement());
 
@@ -274,10 +302,10 @@ public class RequestSecurityTokenResponseBuilder extends WSFedResponseBuilder {
         }
         else if (saml11Token != null) {
             //Sign token
-            Document doc = com.quest.keycloak.saml.processing.core.saml.v2.util.AssertionUtil.asDocument(saml11Token);
-            doc = signAssertion(doc, new SAML11Signature());
+            Document doc = AssertionUtil.asDocument(saml11Token);
+            signAssertion(doc, new SAML11Signature());
             if(encrypt){
-                doc=encryptDocument(doc);
+                encryptDocument(doc);
             }
             response.getRequestedSecurityToken().add(doc.getDocumentElement());
             response.setTokenType(URI.create(SAML11Constants.ASSERTION_11_NSURI));
@@ -289,47 +317,42 @@ public class RequestSecurityTokenResponseBuilder extends WSFedResponseBuilder {
         return response;
     }
 
+    /**
+     * Signs the assertion in place. The assertion must be the document element of the samlDocument, which is the case
+     * for the documents built by {@link AssertionUtil#asDocument}.
+     */
     protected Document signAssertion(Document samlDocument, SAMLAbstractSignature signature) throws ProcessingException {
-        Element originalAssertionElement = samlDocument.getDocumentElement(); //org.keycloak.saml.common.util.DocumentUtil.getChildElement(samlDocument.getDocumentElement(), new QName(JBossSAMLURIConstants.ASSERTION_NSURI.get(), JBossSAMLConstants.ASSERTION.get()));
+        if (samlDocument.getDocumentElement() == null) return samlDocument;
 
-        if (originalAssertionElement == null) return samlDocument;
-        Node clonedAssertionElement = originalAssertionElement.cloneNode(true);
-        Document temporaryDocument;
+        signDocument(samlDocument, signature);
 
-        try {
-            temporaryDocument = org.keycloak.saml.common.util.DocumentUtil.createDocument();
-        } catch (ConfigurationException e) {
-            throw new ProcessingException(e);
-        }
-
-        temporaryDocument.adoptNode(clonedAssertionElement);
-        temporaryDocument.appendChild(clonedAssertionElement);
-
-        signDocument(temporaryDocument, signature);
-
-        return temporaryDocument;
+        return samlDocument;
     }
 
     protected void signDocument(Document samlDocument, SAMLAbstractSignature samlSignature) throws ProcessingException {
-        String signatureMethod = signatureAlgorithm.getXmlSignatureMethod();
-        String signatureDigestMethod = signatureAlgorithm.getXmlSignatureDigestMethod();
+        if (signingContext != null) {
+            signingContext.configure(samlSignature);
+        } else {
+            String signatureMethod = signatureAlgorithm.getXmlSignatureMethod();
+            String signatureDigestMethod = signatureAlgorithm.getXmlSignatureDigestMethod();
+
+            if (signatureMethod != null) {
+                samlSignature.setSignatureMethod(signatureMethod);
+            }
 
-        if (signatureMethod != null) {
-            samlSignature.setSignatureMethod(signatureMethod);
-        }
+            if (signatureDigestMethod != null) {
+                samlSignature.setDigestMethod(signatureDigestMethod);
+            }
 
-        if (signatureDigestMethod != null) {
-            samlSignature.setDigestMethod(signatureDigestMethod);
+            if (signingCertificate != null) {
+                samlSignature.setX509Certificate(signingCertificate);
+            }
         }
 
         Node nextSibling = samlSignature.getNextSiblingOfIssuer(samlDocument);
 
         samlSignature.setNextSibling(nextSibling);
 
-        if (signingCertificate != null) {
-            samlSignature.setX509Certificate(signingCertificate);
-        }
-
         samlSignature.signSAMLDocument(samlDocument, keyId, signingKeyPair, canonicalizationMethodType);
     }
 
@@ -338,12 +361,17 @@ public class RequestSecurityTokenResponseBuilder extends WSFedResponseBuilder {
     }
 
     public static String getStringValue(RequestSecurityTokenResponse response) throws ProcessingException, org.picketlink.common.exceptions.ProcessingException {
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        WSTrustResponseWriter writer = new WSTrustResponseWriter(bos);
+        //Written as characters, so the response doesn't have to be encoded to bytes and decoded again
+        StringWriter stringWriter = new StringWriter();
+        write(response, stringWriter);
+        return stringWriter.toString();
+    }
+
+    protected static void write(RequestSecurityTokenResponse response, Writer out) throws ProcessingException, org.picketlink.common.exceptions.ProcessingException {
+        WSTrustResponseWriter writer = new WSTrustResponseWriter(StaxUtil.getXMLStreamWriter(out));
         RequestSecurityTokenResponseCollection coll = new RequestSecurityTokenResponseCollection();
         coll.addRequestSecurityTokenResponse(response);
         writer.write(coll);
-        return new String(bos.toByteArray(), Charset.forName(GeneralConstants.SAML_CHARSET_NAME));
     }
 
     /**
@@ -364,7 +392,7 @@ public class RequestSecurityTokenResponseBuilder extends WSFedResponseBuilder {
             //add keyinfo to the generated EncryptedKey within the encrypted assertion
             KeyInfo keyInfo=new KeyInfo(samlDocument);
             keyInfo.add(encryptionPublicKey);
-            samlDocument.getElementsByTagName("xenc:EncryptedKey").item(0).appendChild(keyInfo.getElement().cloneNode(true));
+            samlDocument.getElementsByTagName("xenc:EncryptedKey").item(0).appendChild(keyInfo.getElement());
             return samlDocument;
         } catch (Exception e) {
             throw new ProcessingException("failed to encrypt", e);
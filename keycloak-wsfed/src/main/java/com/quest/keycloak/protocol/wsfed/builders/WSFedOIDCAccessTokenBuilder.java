@@ -16,24 +16,19 @@
 
 package com.quest.keycloak.protocol.wsfed.builders;
 
-import java.nio.charset.StandardCharsets;
-import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateEncodingException;
-import java.security.cert.X509Certificate;
-import java.util.Set;
 
 import com.quest.keycloak.protocol.wsfed.mappers.WSFedOIDCAccessTokenMapper;
+import com.quest.keycloak.protocol.wsfed.mappers.WSFedMapperPipeline;
+import com.quest.keycloak.protocol.wsfed.mappers.WSFedMapperPipelineCache;
+import com.quest.keycloak.protocol.wsfed.sig.SigningContext;
+import com.quest.keycloak.protocol.wsfed.sig.SigningContextCache;
 
-import org.keycloak.common.util.Base64Url;
-import org.keycloak.crypto.Algorithm;
-import org.keycloak.crypto.AsymmetricSignatureSignerContext;
-import org.keycloak.crypto.KeyUse;
-import org.keycloak.crypto.KeyWrapper;
 import org.keycloak.jose.jws.JWSBuilder;
 import org.keycloak.models.*;
-import org.keycloak.protocol.ProtocolMapper;
 import org.keycloak.protocol.oidc.TokenManager;
+import org.keycloak.protocol.saml.SamlProtocol;
 import org.keycloak.representations.AccessToken;
 import org.keycloak.services.managers.ClientSessionCode;
 import org.keycloak.services.util.DefaultClientSessionContext;
@@ -46,6 +41,7 @@ public class WSFedOIDCAccessTokenBuilder {
     private RealmModel realm;
     private ClientModel client;
     private boolean x5tIncluded;
+    private SigningContext signingContext;
 
     public KeycloakSession getSession() {
         return session;
@@ -103,22 +99,35 @@ public class WSFedOIDCAccessTokenBuilder {
 
     public String build() throws NoSuchAlgorithmException, CertificateEncodingException {
         TokenManager tokenManager = new TokenManager();
-        UserModel user = session.users().getUserById(userSession.getUser().getId(), realm);
-        AccessToken accessToken = tokenManager.createClientAccessToken(session, realm, client, user, userSession, DefaultClientSessionContext.fromClientSessionScopeParameter(clientSession));
+        AccessToken accessToken = tokenManager.createClientAccessToken(session, realm, client, userSession.getUser(), userSession, DefaultClientSessionContext.fromClientSessionScopeParameter(clientSession));
         accessToken = transformAccessToken(session, accessToken, userSession, clientSession);
         return encodeToken(realm, accessToken);
     }
 
     public String encodeToken(RealmModel realm, Object token) throws NoSuchAlgorithmException, CertificateEncodingException {
-        JWSBuilderExtended builder = new JWSBuilderExtended().type("JWT");
+        SigningContext context = signingContext;
+        if (context == null) {
+            context = SigningContextCache.get(session, realm);
+        }
 
-        KeyManager keyManager = session.keys();
-        KeyWrapper activeKey = keyManager.getActiveKey(realm, KeyUse.SIG, Algorithm.RS256);
+        JWSBuilderExtended builder = new JWSBuilderExtended(context).type("JWT");
         if(isX5tIncluded()) {
-            builder.x5t(activeKey.getCertificate());
+            builder.x5t();
         }
 
-        return builder.jsonContent(token).sign(new AsymmetricSignatureSignerContext(activeKey));
+        return builder.jsonContent(token).sign(context.getJwsSigner());
+    }
+
+    public SigningContext getSigningContext() {
+        return signingContext;
+    }
+
+    /**
+     * Signs with the given context instead of looking up the realm's active key again.
+     */
+    public WSFedOIDCAccessTokenBuilder setSigningContext(SigningContext signingContext) {
+        this.signingContext = signingContext;
+        return this;
     }
 
     public boolean isX5tIncluded() {
@@ -130,11 +139,19 @@ public class WSFedOIDCAccessTokenBuilder {
         return this;
     }
 
+    /**
+     * Takes the encoded header from the signing context, which builds each variant of it only once.
+     */
     protected class JWSBuilderExtended extends JWSBuilder {
+        final SigningContext context;
         String type;
         String contentType;
         String x5t;
 
+        JWSBuilderExtended(SigningContext context) {
+            this.context = context;
+        }
+
         @Override
         public JWSBuilderExtended type(String type) {
             super.type(type);
@@ -149,42 +166,22 @@ public class WSFedOIDCAccessTokenBuilder {
             return this;
         }
 
-        public JWSBuilderExtended x5t(X509Certificate certificate) throws NoSuchAlgorithmException, CertificateEncodingException {
-            this.x5t = getThumbPrint(certificate);
+        public JWSBuilderExtended x5t() throws CertificateEncodingException {
+            this.x5t = context.getX5t();
             return this;
         }
 
-        public String getThumbPrint(X509Certificate cert) throws NoSuchAlgorithmException, CertificateEncodingException {
-            MessageDigest md = MessageDigest.getInstance("SHA-1");
-            byte[] der = cert.getEncoded();
-            md.update(der);
-            byte[] digest = md.digest();
-            return Base64Url.encode(digest);
-        }
-
         @Override
         protected String encodeHeader(String algo) {
-            StringBuilder builder = new StringBuilder("{");
-            if (type != null) builder.append("\"typ\":\"").append(type).append("\",");
-            builder.append("\"alg\":\"").append(algo).append("\"");
-
-            if (contentType != null) builder.append(",\"cty\":\"").append(contentType).append("\"");
-            if (x5t != null) builder.append(",\"x5t\":\"").append(x5t).append("\"");
-            builder.append("}");
-            return Base64Url.encode(builder.toString().getBytes(StandardCharsets.UTF_8));
+            return context.getJwsHeader(algo, type, contentType, x5t);
         }
     }
 
     public AccessToken transformAccessToken(KeycloakSession session, AccessToken token, UserSessionModel userSession,
                                             AuthenticatedClientSessionModel clientSession) {
-        Set<ProtocolMapperModel> mappings = clientSession.getClient().getProtocolMappers();
-        KeycloakSessionFactory sessionFactory = session.getKeycloakSessionFactory();
-        for (ProtocolMapperModel mapping : mappings) {
-
-            ProtocolMapper mapper = (ProtocolMapper)sessionFactory.getProviderFactory(ProtocolMapper.class, mapping.getProtocolMapper());
-            if (!(mapper instanceof WSFedOIDCAccessTokenMapper)) continue;
-            token = ((WSFedOIDCAccessTokenMapper)mapper).transformAccessToken(token, mapping, session, userSession, clientSession);
-
+        WSFedMapperPipeline pipeline = WSFedMapperPipelineCache.get(session, clientSession.getClient());
+        for (SamlProtocol.ProtocolMapperProcessor<WSFedOIDCAccessTokenMapper> processor : pipeline.getAccessTokenMappers()) {
+            token = processor.mapper.transformAccessToken(token, processor.model, session, userSession, clientSession);
         }
         return token;
     }
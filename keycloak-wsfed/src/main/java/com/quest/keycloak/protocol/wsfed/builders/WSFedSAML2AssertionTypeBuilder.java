@@ -16,25 +16,27 @@
 
 package com.quest.keycloak.protocol.wsfed.builders;
 
+import com.quest.keycloak.protocol.wsfed.WSFedClientProfile;
+import com.quest.keycloak.protocol.wsfed.WSFedClientProfileCache;
+import com.quest.keycloak.protocol.wsfed.mappers.WSFedMapperPipeline;
+import com.quest.keycloak.protocol.wsfed.mappers.WSFedMapperPipelineCache;
 import com.quest.keycloak.protocol.wsfed.mappers.WSFedSAMLAttributeStatementMapper;
 import com.quest.keycloak.protocol.wsfed.mappers.WSFedSAMLRoleListMapper;
 import org.keycloak.dom.saml.v2.assertion.AssertionType;
 import org.keycloak.dom.saml.v2.assertion.AttributeStatementType;
 import org.keycloak.models.*;
-import org.keycloak.protocol.ProtocolMapper;
 import org.keycloak.protocol.saml.SamlProtocol;
 import org.keycloak.saml.common.constants.GeneralConstants;
 import org.keycloak.saml.common.constants.JBossSAMLURIConstants;
+import org.keycloak.saml.common.exceptions.ConfigurationException;
 
 import javax.xml.datatype.DatatypeConfigurationException;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Set;
 import java.util.UUID;
 
 public class WSFedSAML2AssertionTypeBuilder extends WsFedSAMLAssertionTypeAbstractBuilder<WSFedSAML2AssertionTypeBuilder> {
 
-    public AssertionType build() throws DatatypeConfigurationException {
+    public AssertionType build() throws DatatypeConfigurationException, ConfigurationException {
         String responseIssuer = getResponseIssuer(realm);
         String nameIdFormat = getNameIdFormat(clientSession);
         String nameId = getNameId(nameIdFormat, clientSession, userSession);
@@ -53,24 +55,10 @@ public class WSFedSAML2AssertionTypeBuilder extends WsFedSAMLAssertionTypeAbstra
 
         AssertionType assertion = builder.buildModel();
 
-        List<SamlProtocol.ProtocolMapperProcessor<WSFedSAMLAttributeStatementMapper>> attributeStatementMappers = new LinkedList<>();
-        SamlProtocol.ProtocolMapperProcessor<WSFedSAMLRoleListMapper> roleListMapper = null;
+        WSFedMapperPipeline pipeline = WSFedMapperPipelineCache.get(session, clientSession.getClient());
 
-        Set<ProtocolMapperModel> mappings = clientSession.getClient().getProtocolMappers();
-        for (ProtocolMapperModel mapping : mappings) {
-
-            ProtocolMapper mapper = (ProtocolMapper)session.getKeycloakSessionFactory().getProviderFactory(ProtocolMapper.class, mapping.getProtocolMapper());
-            if (mapper == null) continue;
-            if (mapper instanceof WSFedSAMLAttributeStatementMapper) {
-                attributeStatementMappers.add(new SamlProtocol.ProtocolMapperProcessor<>((WSFedSAMLAttributeStatementMapper)mapper, mapping));
-            }
-            if (mapper instanceof WSFedSAMLRoleListMapper) {
-                roleListMapper = new SamlProtocol.ProtocolMapperProcessor<>((WSFedSAMLRoleListMapper)mapper, mapping);
-            }
-        }
-
-        transformAttributeStatement(attributeStatementMappers, assertion, session, userSession, clientSession);
-        populateRoles(roleListMapper, assertion, session, userSession, clientSession);
+        transformAttributeStatement(pipeline.getAttributeStatementMappers(), assertion, session, userSession, clientSession);
+        populateRoles(pipeline.getRoleListMapper(), assertion, session, userSession, clientSession);
 
         return assertion;
     }
@@ -106,21 +94,10 @@ public class WSFedSAML2AssertionTypeBuilder extends WsFedSAMLAssertionTypeAbstra
 
     protected String getNameIdFormat(AuthenticatedClientSessionModel clientSession) {
         String nameIdFormat = clientSession.getNote(GeneralConstants.NAMEID_FORMAT);
-        ClientModel client = clientSession.getClient();
-        boolean forceFormat = forceNameIdFormat(client);
-        String configuredNameIdFormat = client.getAttribute(SAML_NAME_ID_FORMAT_ATTRIBUTE);
-        if ((nameIdFormat == null || forceFormat) && configuredNameIdFormat != null) {
-            if (configuredNameIdFormat.equals("email")) {
-                nameIdFormat = JBossSAMLURIConstants.NAMEID_FORMAT_EMAIL.get();
-            } else if (configuredNameIdFormat.equals("persistent")) {
-                nameIdFormat = JBossSAMLURIConstants.NAMEID_FORMAT_PERSISTENT.get();
-            } else if (configuredNameIdFormat.equals("transient")) {
-                nameIdFormat = JBossSAMLURIConstants.NAMEID_FORMAT_TRANSIENT.get();
-            } else if (configuredNameIdFormat.equals("username")) {
-                nameIdFormat = JBossSAMLURIConstants.NAMEID_FORMAT_UNSPECIFIED.get();
-            } else {
-                nameIdFormat = JBossSAMLURIConstants.NAMEID_FORMAT_UNSPECIFIED.get();
-            }
+        WSFedClientProfile profile = WSFedClientProfileCache.get(clientSession.getClient());
+        String configuredNameIdFormat = profile.getConfiguredNameIdFormat();
+        if ((nameIdFormat == null || profile.isForceNameIdFormat()) && configuredNameIdFormat != null) {
+            nameIdFormat = configuredNameIdFormat;
         }
         if(nameIdFormat == null) return SAML_DEFAULT_NAMEID_FORMAT;
         return nameIdFormat;
@@ -130,7 +107,10 @@ public class WSFedSAML2AssertionTypeBuilder extends WsFedSAMLAssertionTypeAbstra
         return "true".equals(client.getAttribute(SAML_FORCE_NAME_ID_FORMAT_ATTRIBUTE));
     }
 
-    protected String getNameId(String nameIdFormat, AuthenticatedClientSessionModel clientSession, UserSessionModel userSession) {
+    /**
+     * @throws ConfigurationException if the client uses pairwise name IDs and the realm has no secret to derive them
+     */
+    protected String getNameId(String nameIdFormat, AuthenticatedClientSessionModel clientSession, UserSessionModel userSession) throws ConfigurationException {
         if (nameIdFormat.equals(JBossSAMLURIConstants.NAMEID_FORMAT_EMAIL.get())) {
             return userSession.getUser().getEmail();
         } else if(nameIdFormat.equals(JBossSAMLURIConstants.NAMEID_FORMAT_TRANSIENT.get())) {
@@ -139,9 +119,18 @@ public class WSFedSAML2AssertionTypeBuilder extends WsFedSAMLAssertionTypeAbstra
         } else if(nameIdFormat.equals(JBossSAMLURIConstants.NAMEID_FORMAT_PERSISTENT.get())) {
             // generate a persistent user id specifically for each client.
             UserModel user = userSession.getUser();
-            String name = SAML_PERSISTENT_NAME_ID_FOR + "." + clientSession.getClient().getClientId();
+            ClientModel client = clientSession.getClient();
+            String name = SAML_PERSISTENT_NAME_ID_FOR + "." + client.getClientId();
             String samlPersistentId = user.getFirstAttribute(name);
             if (samlPersistentId != null) return samlPersistentId;
+            // pairwise ids are derived again on each login, only ids stored before switching to pairwise are read
+            if (WSFedClientProfileCache.get(client).isPairwiseNameId()) {
+                try {
+                    return PairwiseNameIdGenerator.generate(realm, user.getId(), client.getClientId());
+                } catch (IllegalStateException e) {
+                    throw new ConfigurationException(e.getMessage(), e);
+                }
+            }
             // "G-" stands for "generated"
             samlPersistentId = "G-" + UUID.randomUUID().toString();
             user.setSingleAttribute(name, samlPersistentId);
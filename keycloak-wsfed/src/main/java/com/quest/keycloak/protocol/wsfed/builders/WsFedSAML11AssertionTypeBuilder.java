@@ -28,20 +28,19 @@ import org.keycloak.dom.saml.v2.assertion.AttributeType;
 import org.keycloak.dom.saml.v2.assertion.EncryptedElementType;
 import org.keycloak.models.AuthenticatedClientSessionModel;
 import org.keycloak.models.KeycloakSession;
-import org.keycloak.models.ProtocolMapperModel;
 import org.keycloak.models.UserSessionModel;
-import org.keycloak.protocol.ProtocolMapper;
 import org.keycloak.protocol.saml.SamlProtocol;
-import com.quest.keycloak.protocol.wsfed.mappers.WSFedSAMLAttributeStatementMapper;
+import com.quest.keycloak.protocol.wsfed.mappers.WSFedMapperPipeline;
+import com.quest.keycloak.protocol.wsfed.mappers.WSFedMapperPipelineCache;
+import com.quest.keycloak.protocol.wsfed.mappers.SAML11AttributeTemplate;
+import com.quest.keycloak.protocol.wsfed.mappers.WSFedSAML11AttributeStatementMapper;
 import com.quest.keycloak.protocol.wsfed.mappers.WSFedSAMLRoleListMapper;
 import org.keycloak.protocol.saml.mappers.AttributeStatementHelper;
 import org.keycloak.saml.common.constants.JBossSAMLURIConstants;
 import org.keycloak.saml.common.exceptions.ConfigurationException;
 
 import java.net.URI;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Set;
 import java.util.function.Function;
 
 /**
@@ -57,8 +56,7 @@ import java.util.function.Function;
 
 public class WsFedSAML11AssertionTypeBuilder extends WsFedSAMLAssertionTypeAbstractBuilder<WsFedSAML11AssertionTypeBuilder> {
 
-    // TODO eventually make the attribute namespace configurable to support multiple dialects.
-    private static final String ATTRIBUTE_NAMESPACE = "http://schemas.xmlsoap.org/ws/2005/05/identity/claims";
+    private static final String ATTRIBUTE_NAMESPACE = SAML11AttributeTemplate.DEFAULT_ATTRIBUTE_NAMESPACE;
 
     private static final Logger logger = Logger.getLogger(WsFedSAML11AssertionTypeBuilder.class);
 
@@ -113,24 +111,10 @@ public class WsFedSAML11AssertionTypeBuilder extends WsFedSAMLAssertionTypeAbstr
 
         SAML11AssertionType assertion = builder.buildModel();
 
-        List<SamlProtocol.ProtocolMapperProcessor<WSFedSAMLAttributeStatementMapper>> attributeStatementMappers = new LinkedList<>();
-        SamlProtocol.ProtocolMapperProcessor<WSFedSAMLRoleListMapper> roleListMapper = null;
+        WSFedMapperPipeline pipeline = WSFedMapperPipelineCache.get(session, clientSession.getClient());
 
-        Set<ProtocolMapperModel> mappings = clientSession.getClient().getProtocolMappers();
-        for (ProtocolMapperModel mapping : mappings) {
-
-            ProtocolMapper mapper = (ProtocolMapper)session.getKeycloakSessionFactory().getProviderFactory(ProtocolMapper.class, mapping.getProtocolMapper());
-            if (mapper == null) continue;
-            if (mapper instanceof WSFedSAMLAttributeStatementMapper) {
-                attributeStatementMappers.add(new SamlProtocol.ProtocolMapperProcessor<>((WSFedSAMLAttributeStatementMapper)mapper, mapping));
-            }
-            if (mapper instanceof WSFedSAMLRoleListMapper) {
-                roleListMapper = new SamlProtocol.ProtocolMapperProcessor<>((WSFedSAMLRoleListMapper)mapper, mapping);
-            }
-        }
-
-        transformAttributeStatement(attributeStatementMappers, assertion, session, userSession, clientSession);
-        populateRoles(roleListMapper, assertion, session, userSession, clientSession);
+        transformAttributeStatement(pipeline.getSAML11AttributeStatementMappers(), assertion, session, userSession, clientSession);
+        populateRoles(pipeline.getRoleListMapper(), assertion, session, userSession, clientSession);
 
         return assertion;
     }
@@ -204,7 +188,8 @@ public class WsFedSAML11AssertionTypeBuilder extends WsFedSAMLAssertionTypeAbstr
      * This method adds attributes to the passed SAML assertion. The values to append are taken from the state of the
      * sessions (keycloak session, user session and client session), and processed via the mappers to get the
      * actual attributes to add to the assertion.
-     * This method will then take the values from the resulting SAML 2.0 classes and set them in SAML 1.1 classes.
+     * Mappers which implement {@link WSFedSAML11AttributeStatementMapper} write their SAML 1.1 attributes directly. For
+     * the other ones, this method takes the values from the resulting SAML 2.0 classes and sets them in SAML 1.1 classes.
      *
      * @param attributeStatementMappers The list of SAML attribute statement mappers to consider for this transformation.
      * @param assertion The SAML 1.1 assertion to build
@@ -212,37 +197,46 @@ public class WsFedSAML11AssertionTypeBuilder extends WsFedSAMLAssertionTypeAbstr
      * @param userSession The current user session
      * @param clientSession The current client session
      */
-    private void transformAttributeStatement(List<SamlProtocol.ProtocolMapperProcessor<WSFedSAMLAttributeStatementMapper>> attributeStatementMappers,
+    private void transformAttributeStatement(List<WSFedMapperPipeline.SAML11AttributeProcessor> attributeStatementMappers,
                                             SAML11AssertionType assertion,
                                             KeycloakSession session,
                                             UserSessionModel userSession, AuthenticatedClientSessionModel clientSession) {
-        //This group is still SAML 2.0
-        AttributeStatementType tempAttributeStatement = new AttributeStatementType();
-        for (SamlProtocol.ProtocolMapperProcessor<WSFedSAMLAttributeStatementMapper> processor : attributeStatementMappers) {
-            processor.mapper.transformAttributeStatement(tempAttributeStatement, processor.model, session, userSession, clientSession);
-        }
-        //From here we transform to SAML 1.1
         SAML11AttributeStatementType attributeStatement = getAttributeStatement(assertion);
+        SAML11AttributeArrayMapper samlAttributeMapper = null;
 
-        SAML11AttributeArrayMapper samlAttributeMapper = new SAML11AttributeArrayMapper(attributeStatement);
-        samlAttributeMapper.mapAttributes(tempAttributeStatement, attribute -> {
-            // TODO what is there to do with SAML2 attribute name format? Should be set to attributeNameSpace, but value to use is unclear
-            SAML11AttributeType samlAttribute = null;
-            String namespace = ATTRIBUTE_NAMESPACE;
-            if (attribute.getFriendlyName() != null && !attribute.getFriendlyName().isEmpty()) {
-                namespace = attribute.getFriendlyName();
+        for (WSFedMapperPipeline.SAML11AttributeProcessor processor : attributeStatementMappers) {
+            if (processor.saml11Mapper != null) {
+                processor.saml11Mapper.transformAttributeStatement(attributeStatement, processor.template, processor.model, session, userSession, clientSession);
+                continue;
             }
-            samlAttribute = new SAML11AttributeType(attribute.getName(), URI.create(namespace));
 
-            if (!attribute.getAttributeValue().isEmpty()) {
-                for (Object attributeValue : attribute.getAttributeValue()) {
-                    samlAttribute.add(attributeValue.toString());
-                }
-            } else {
-                logger.warnf("The attribute '%s' does not have a value", attribute.getName());
+            //This mapper is still SAML 2.0
+            AttributeStatementType tempAttributeStatement = new AttributeStatementType();
+            processor.mapper.transformAttributeStatement(tempAttributeStatement, processor.model, session, userSession, clientSession);
+
+            //From here we transform to SAML 1.1
+            if (samlAttributeMapper == null) {
+                samlAttributeMapper = new SAML11AttributeArrayMapper(attributeStatement);
             }
-            return samlAttribute;
-        });
+            samlAttributeMapper.mapAttributes(tempAttributeStatement, attribute -> {
+                // TODO what is there to do with SAML2 attribute name format? Should be set to attributeNameSpace, but value to use is unclear
+                SAML11AttributeType samlAttribute = null;
+                String namespace = ATTRIBUTE_NAMESPACE;
+                if (attribute.getFriendlyName() != null && !attribute.getFriendlyName().isEmpty()) {
+                    namespace = attribute.getFriendlyName();
+                }
+                samlAttribute = new SAML11AttributeType(attribute.getName(), URI.create(namespace));
+
+                if (!attribute.getAttributeValue().isEmpty()) {
+                    for (Object attributeValue : attribute.getAttributeValue()) {
+                        samlAttribute.add(attributeValue.toString());
+                    }
+                } else {
+                    logger.warnf("The attribute '%s' does not have a value", attribute.getName());
+                }
+                return samlAttribute;
+            });
+        }
 
         if(!attributeStatement.get().isEmpty() && assertion.getStatements().isEmpty()) {
             assertion.add(attributeStatement);
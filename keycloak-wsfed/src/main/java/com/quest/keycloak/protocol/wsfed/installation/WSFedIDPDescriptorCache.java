@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.protocol.wsfed.installation;
+
+import com.quest.keycloak.common.wsfed.MetadataDocument;
+import com.quest.keycloak.common.wsfed.MetadataDocumentCache;
+import com.quest.keycloak.common.wsfed.utils.MetadataTemplate;
+import com.quest.keycloak.protocol.wsfed.WSFedLoginProtocol;
+import org.keycloak.crypto.Algorithm;
+import org.keycloak.crypto.KeyStatus;
+import org.keycloak.crypto.KeyUse;
+import org.keycloak.crypto.KeyWrapper;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.services.resources.RealmsResource;
+
+import javax.ws.rs.core.UriBuilder;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the rendered federation metadata of each realm, per base URI the realm was reached through. A descriptor is
+ * rendered again once one of the realm's active signing keys changes, or the realm is renamed.
+ * <p>
+ * Besides the RSA certificate, the descriptor publishes the active ECDSA keys of the realm, so that relying parties
+ * configured with an ES256 or ES384 signature algorithm can pick up their key from the metadata as well.
+ */
+public final class WSFedIDPDescriptorCache {
+
+    /**
+     * One descriptor per base URI
+     */
+    private static final int MAX_BASE_URIS = 32;
+
+    private static final MetadataTemplate TEMPLATE = MetadataTemplate.load("wsfed-idp-metadata-template.xml");
+
+    private static final MetadataDocumentCache<URI> DESCRIPTORS = new MetadataDocumentCache<>(MAX_BASE_URIS);
+
+    private WSFedIDPDescriptorCache() {
+    }
+
+    public static MetadataDocument get(KeycloakSession session, RealmModel realm, URI baseUri) {
+        KeyWrapper activeKey = session.keys().getActiveKey(realm, KeyUse.SIG, Algorithm.RS256);
+        List<KeyWrapper> ecKeys = getActiveEcKeys(session, realm);
+
+        String protocolUrl = RealmsResource.protocolUrl(UriBuilder.fromUri(baseUri)).build(realm.getName(), WSFedLoginProtocol.LOGIN_PROTOCOL).toString();
+        Map<String, String> values = new HashMap<>();
+        values.put("idp.entityID", RealmsResource.realmBaseUrl(UriBuilder.fromUri(baseUri)).build(realm.getName()).toString());
+        values.put("idp.sso.sts", protocolUrl);
+        values.put("idp.sso.passive", protocolUrl);
+
+        return DESCRIPTORS.get(realm.getId(), baseUri, descriptor -> descriptor.isFor(activeKey, ecKeys, values),
+                () -> new MetadataDocument(TEMPLATE, activeKey, ecKeys, values));
+    }
+
+    /**
+     * Unlike {@link org.keycloak.models.KeyManager#getActiveKey}, this never creates a key when the realm has none,
+     * serving the metadata mustn't write to the realm.
+     */
+    private static List<KeyWrapper> getActiveEcKeys(KeycloakSession session, RealmModel realm) {
+        List<KeyWrapper> keys = new ArrayList<>();
+        for (String algorithm : new String[] { Algorithm.ES256, Algorithm.ES384 }) {
+            for (KeyWrapper key : session.keys().getKeys(realm, KeyUse.SIG, algorithm)) {
+                if (key.getStatus() == KeyStatus.ACTIVE) {
+                    keys.add(key);
+                }
+            }
+        }
+        return keys;
+    }
+
+    public static void invalidate(String realmId) {
+        DESCRIPTORS.invalidate(realmId);
+    }
+}
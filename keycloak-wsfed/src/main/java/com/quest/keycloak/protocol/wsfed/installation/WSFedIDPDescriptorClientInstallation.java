@@ -19,22 +19,12 @@ package com.quest.keycloak.protocol.wsfed.installation;
 
 import com.quest.keycloak.protocol.wsfed.WSFedLoginProtocol;
 import org.keycloak.Config;
-import org.keycloak.common.util.PemUtils;
-import org.keycloak.crypto.Algorithm;
-import org.keycloak.crypto.KeyUse;
-import org.keycloak.crypto.KeyWrapper;
 import org.keycloak.models.*;
 import org.keycloak.protocol.ClientInstallationProvider;
-import org.keycloak.services.resources.RealmsResource;
 
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
-import javax.ws.rs.core.UriBuilder;
-import java.io.BufferedReader;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.net.URI;
-import java.util.stream.Collectors;
 
 /**
  * @author <a href="mailto:bill@burkecentral.com">Bill Burke</a>
@@ -49,22 +39,13 @@ public class WSFedIDPDescriptorClientInstallation implements ClientInstallationP
      *
      * FIXME replace lazy xml template substitution with JAXB handling .... probably.
      *
+     * The descriptor is rendered once per realm and base URI, see {@link WSFedIDPDescriptorCache}.
+     *
      * @return a string containing the xml for the wsfed metadata
      * @throws Exception IOException if there's a problem reading the wsfed-idp-metadata-template.xml
      */
     public static String getIDPDescriptorForClient(KeycloakSession session, RealmModel realm, URI uri) throws Exception{
-        KeyManager keyManager = session.keys();
-        KeyWrapper activeKey = keyManager.getActiveKey(realm, KeyUse.SIG, Algorithm.RS256);
-        InputStream is = WSFedIDPDescriptorClientInstallation.class.getClassLoader().getResourceAsStream("wsfed-idp-metadata-template.xml");
-        String template = "Error getting descriptor";
-        try(BufferedReader br = new BufferedReader(new InputStreamReader(is))){
-            template = br.lines().collect(Collectors.joining("\n"));
-            template = template.replace("${idp.entityID}", RealmsResource.realmBaseUrl(UriBuilder.fromUri(uri)).build(realm.getName()).toString());
-            template = template.replace("${idp.sso.sts}", RealmsResource.protocolUrl(UriBuilder.fromUri(uri)).build(realm.getName(), WSFedLoginProtocol.LOGIN_PROTOCOL).toString());
-            template = template.replace("${idp.sso.passive}", RealmsResource.protocolUrl(UriBuilder.fromUri(uri)).build(realm.getName(), WSFedLoginProtocol.LOGIN_PROTOCOL).toString());
-            template = template.replace("${idp.signing.certificate}", PemUtils.encodeCertificate(activeKey.getCertificate()));
-        }
-        return template;
+        return WSFedIDPDescriptorCache.get(session, realm, uri).getContent();
     }
 
     @Override
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.protocol.wsfed.mappers;
+
+import org.keycloak.dom.saml.v1.assertion.SAML11AttributeStatementType;
+import org.keycloak.dom.saml.v1.assertion.SAML11AttributeType;
+import org.keycloak.models.ProtocolMapperModel;
+import org.keycloak.protocol.saml.mappers.AttributeStatementHelper;
+
+import java.net.URI;
+
+/**
+ * The name and namespace of the SAML 1.1 attribute a mapper produces, read from the mapper's configuration once. As
+ * for SAML 2.0, the name is the "SAML Attribute Name" of the mapper. The namespace is the "Friendly Name / Namespace"
+ * of the mapper, or {@link #DEFAULT_ATTRIBUTE_NAMESPACE} if it isn't set.
+ */
+public final class SAML11AttributeTemplate {
+
+    // TODO eventually make the attribute namespace configurable to support multiple dialects.
+    public static final String DEFAULT_ATTRIBUTE_NAMESPACE = "http://schemas.xmlsoap.org/ws/2005/05/identity/claims";
+
+    private final String name;
+    private final URI namespace;
+    private final IllegalArgumentException namespaceError;
+
+    public SAML11AttributeTemplate(ProtocolMapperModel mappingModel) {
+        this.name = mappingModel.getConfig().get(AttributeStatementHelper.SAML_ATTRIBUTE_NAME);
+
+        String configuredNamespace = mappingModel.getConfig().get(AttributeStatementHelper.FRIENDLY_NAME);
+        String namespaceValue = configuredNamespace == null || configuredNamespace.isEmpty() ? DEFAULT_ATTRIBUTE_NAMESPACE : configuredNamespace;
+        URI uri = null;
+        IllegalArgumentException error = null;
+        try {
+            uri = URI.create(namespaceValue);
+        } catch (IllegalArgumentException e) {
+            // Only fails the SAML 1.1 tokens which use the mapper, not the other formats sharing its pipeline
+            error = e;
+        }
+        this.namespace = uri;
+        this.namespaceError = error;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public URI getNamespace() {
+        return namespace;
+    }
+
+    /**
+     * @return a new attribute without any value
+     * @throws IllegalArgumentException if the configured namespace isn't a valid URI
+     */
+    public SAML11AttributeType createAttribute() {
+        if (namespaceError != null) {
+            throw namespaceError;
+        }
+        return new SAML11AttributeType(name, namespace);
+    }
+
+    /**
+     * Adds an attribute holding the given value to the attribute statement
+     */
+    public void addAttribute(SAML11AttributeStatementType attributeStatement, String value) {
+        SAML11AttributeType attribute = createAttribute();
+        attribute.add(value);
+        attributeStatement.add(attribute);
+    }
+
+    /**
+     * Adds a single attribute holding all the given values to the attribute statement
+     */
+    public void addAttribute(SAML11AttributeStatementType attributeStatement, Iterable<?> values) {
+        SAML11AttributeType attribute = createAttribute();
+        for (Object value : values) {
+            attribute.add(value.toString());
+        }
+        attributeStatement.add(attribute);
+    }
+}
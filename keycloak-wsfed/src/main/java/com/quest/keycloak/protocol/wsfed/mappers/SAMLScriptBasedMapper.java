@@ -1,6 +1,7 @@
 package com.quest.keycloak.protocol.wsfed.mappers;
 
 import org.jboss.logging.Logger;
+import org.keycloak.dom.saml.v1.assertion.SAML11AttributeStatementType;
 import org.keycloak.dom.saml.v2.assertion.AttributeStatementType;
 import org.keycloak.dom.saml.v2.assertion.AttributeType;
 import org.keycloak.models.*;
@@ -20,7 +21,7 @@ import java.util.*;
  *
  * @author Alistair Doswald
  */
-public class SAMLScriptBasedMapper extends AbstractWsfedProtocolMapper implements WSFedSAMLAttributeStatementMapper {
+public class SAMLScriptBasedMapper extends AbstractWsfedProtocolMapper implements WSFedSAML11AttributeStatementMapper {
 
     private static final List<ProviderConfigProperty> configProperties = new ArrayList<>();
     public static final String PROVIDER_ID = "wsfed-saml-javascript-mapper";
@@ -107,30 +108,10 @@ public class SAMLScriptBasedMapper extends AbstractWsfedProtocolMapper implement
      */
     @Override
     public void transformAttributeStatement(AttributeStatementType attributeStatement, ProtocolMapperModel mappingModel, KeycloakSession session, UserSessionModel userSession, AuthenticatedClientSessionModel clientSession) {
-        UserModel user = userSession.getUser();
-        String scriptSource = mappingModel.getConfig().get(ProviderConfigProperty.SCRIPT_TYPE);
-        RealmModel realm = userSession.getRealm();
-
-        String single = mappingModel.getConfig().get(SINGLE_GROUP_ATTRIBUTE);
-        boolean singleAttribute = Boolean.parseBoolean(single);
-
-        ScriptingProvider scripting = session.getProvider(ScriptingProvider.class);
-        ScriptModel scriptModel = scripting.createScript(realm.getId(), ScriptModel.TEXT_JAVASCRIPT, "attribute-mapper-script_" + mappingModel.getName(), scriptSource, null);
-
-        EvaluatableScriptAdapter script = scripting.prepareEvaluatableScript(scriptModel);
-        Object attributeValue;
+        boolean singleAttribute = isSingleAttribute(mappingModel);
+        EvaluatableScriptAdapter script = prepareScript(mappingModel, session, userSession);
         try {
-            attributeValue = script.eval(bindings -> {
-                bindings.put("user", user);
-                bindings.put("realm", realm);
-                bindings.put("clientSession", clientSession);
-                bindings.put("userSession", userSession);
-                bindings.put("keycloakSession", session);
-            });
-            //If the result is a an array or is iterable, get all values
-            if (attributeValue.getClass().isArray()) {
-                attributeValue = Arrays.asList((Object[]) attributeValue);
-            }
+            Object attributeValue = evaluate(script, session, userSession, clientSession);
             if (attributeValue instanceof Iterable) {
                 if (singleAttribute) {
                     AttributeType singleAttributeType = AttributeStatementHelper.createAttributeType(mappingModel);
@@ -153,6 +134,67 @@ public class SAMLScriptBasedMapper extends AbstractWsfedProtocolMapper implement
         }
     }
 
+    @Override
+    public void transformAttributeStatement(SAML11AttributeStatementType attributeStatement, SAML11AttributeTemplate attributeTemplate, ProtocolMapperModel mappingModel, KeycloakSession session, UserSessionModel userSession, AuthenticatedClientSessionModel clientSession) {
+        boolean singleAttribute = isSingleAttribute(mappingModel);
+        EvaluatableScriptAdapter script = prepareScript(mappingModel, session, userSession);
+        try {
+            Object attributeValue = evaluate(script, session, userSession, clientSession);
+            if (attributeValue instanceof Iterable) {
+                if (singleAttribute) {
+                    attributeTemplate.addAttribute(attributeStatement, (Iterable<?>) attributeValue);
+                } else {
+                    for (Object value : (Iterable<?>) attributeValue) {
+                        attributeTemplate.addAttribute(attributeStatement, value.toString());
+                    }
+                }
+            } else {
+                // single value case
+                attributeTemplate.addAttribute(attributeStatement, attributeValue.toString());
+            }
+        } catch (Exception ex) {
+            LOGGER.error("Error during execution of ProtocolMapper script", ex);
+            // SAML 1.1 attributes can't hold a null value, the attribute is left empty instead
+            attributeStatement.add(attributeTemplate.createAttribute());
+        }
+    }
+
+    private static boolean isSingleAttribute(ProtocolMapperModel mappingModel) {
+        String single = mappingModel.getConfig().get(SINGLE_GROUP_ATTRIBUTE);
+        return Boolean.parseBoolean(single);
+    }
+
+    private static EvaluatableScriptAdapter prepareScript(ProtocolMapperModel mappingModel, KeycloakSession session, UserSessionModel userSession) {
+        String scriptSource = mappingModel.getConfig().get(ProviderConfigProperty.SCRIPT_TYPE);
+        RealmModel realm = userSession.getRealm();
+
+        ScriptingProvider scripting = session.getProvider(ScriptingProvider.class);
+        ScriptModel scriptModel = scripting.createScript(realm.getId(), ScriptModel.TEXT_JAVASCRIPT, "attribute-mapper-script_" + mappingModel.getName(), scriptSource, null);
+
+        return scripting.prepareEvaluatableScript(scriptModel);
+    }
+
+    /**
+     * Evaluates the script. If the result is an array, it is returned as a list, so that the caller only has to deal
+     * with single values and iterables.
+     */
+    private static Object evaluate(EvaluatableScriptAdapter script, KeycloakSession session, UserSessionModel userSession, AuthenticatedClientSessionModel clientSession) {
+        UserModel user = userSession.getUser();
+        RealmModel realm = userSession.getRealm();
+        Object attributeValue = script.eval(bindings -> {
+            bindings.put("user", user);
+            bindings.put("realm", realm);
+            bindings.put("clientSession", clientSession);
+            bindings.put("userSession", userSession);
+            bindings.put("keycloakSession", session);
+        });
+        //If the result is a an array or is iterable, get all values
+        if (attributeValue.getClass().isArray()) {
+            attributeValue = Arrays.asList((Object[]) attributeValue);
+        }
+        return attributeValue;
+    }
+
     /**
      * Creates an protocol mapper model for the this script based mapper. This mapper model is meant to be used for
      * testing, as normally such objects are created in a different manner through the keycloak GUI.
@@ -18,16 +18,20 @@
 
 package com.quest.keycloak.protocol.wsfed.mappers;
 
+import org.keycloak.dom.saml.v1.assertion.SAML11AttributeStatementType;
 import org.keycloak.dom.saml.v2.assertion.AttributeStatementType;
 import org.keycloak.models.AuthenticatedClientSessionModel;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.ProtocolMapperModel;
 import org.keycloak.models.UserSessionModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.protocol.ProtocolMapperUtils;
 import org.keycloak.protocol.saml.mappers.UserAttributeStatementMapper;
 import com.quest.keycloak.protocol.wsfed.WSFedLoginProtocol;
 import org.keycloak.provider.ProviderConfigProperty;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 
 /**
@@ -36,7 +40,7 @@ import java.util.List;
  * @since 11/15/2016
  */
 
-public class SAMLUserAttributeStatementMapper extends AbstractWsfedProtocolMapper implements WSFedSAMLAttributeStatementMapper {
+public class SAMLUserAttributeStatementMapper extends AbstractWsfedProtocolMapper implements WSFedSAML11AttributeStatementMapper {
 
     private static final List<ProviderConfigProperty> configProperties = new ArrayList<ProviderConfigProperty>();
     public static final String PROVIDER_ID = "wsfed-saml-user-attribute-mapper";
@@ -63,6 +67,14 @@ public class SAMLUserAttributeStatementMapper extends AbstractWsfedProtocolMappe
         mapper.transformAttributeStatement(attributeStatement, mappingModel, session, userSession, clientSession);
     }
 
+    @Override
+    public void transformAttributeStatement(SAML11AttributeStatementType attributeStatement, SAML11AttributeTemplate attributeTemplate, ProtocolMapperModel mappingModel, KeycloakSession session, UserSessionModel userSession, AuthenticatedClientSessionModel clientSession) {
+        String attributeName = mappingModel.getConfig().get(ProtocolMapperUtils.USER_ATTRIBUTE);
+        Collection<String> attributeValues = KeycloakModelUtils.resolveAttribute(userSession.getUser(), attributeName);
+        if (attributeValues.isEmpty()) return;
+        attributeTemplate.addAttribute(attributeStatement, attributeValues);
+    }
+
     public static ProtocolMapperModel createAttributeMapper(String name, String userAttribute,
                                                             String samlAttributeName, String nameFormat, String friendlyName,
                                                             boolean consentRequired, String consentText) {
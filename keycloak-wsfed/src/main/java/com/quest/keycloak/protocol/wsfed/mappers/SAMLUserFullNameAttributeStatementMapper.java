@@ -18,6 +18,7 @@
 
 package com.quest.keycloak.protocol.wsfed.mappers;
 
+import org.keycloak.dom.saml.v1.assertion.SAML11AttributeStatementType;
 import org.keycloak.dom.saml.v2.assertion.AttributeStatementType;
 import org.keycloak.models.*;
 import org.keycloak.protocol.saml.mappers.AttributeStatementHelper;
@@ -34,7 +35,7 @@ import java.util.List;
  * @since 11/15/2016
  */
 
-public class SAMLUserFullNameAttributeStatementMapper extends AbstractWsfedProtocolMapper implements WSFedSAMLAttributeStatementMapper {
+public class SAMLUserFullNameAttributeStatementMapper extends AbstractWsfedProtocolMapper implements WSFedSAML11AttributeStatementMapper {
 
     private static final List<ProviderConfigProperty> configProperties = new ArrayList<ProviderConfigProperty>();
     public static final String PROVIDER_ID = "wsfed-saml-user-full-name-mapper";
@@ -61,6 +62,13 @@ public class SAMLUserFullNameAttributeStatementMapper extends AbstractWsfedProto
         AttributeStatementHelper.addAttribute(attributeStatement, mappingModel, attributeValue);
     }
 
+    @Override
+    public void transformAttributeStatement(SAML11AttributeStatementType attributeStatement, SAML11AttributeTemplate attributeTemplate, ProtocolMapperModel mappingModel, KeycloakSession session, UserSessionModel userSession, AuthenticatedClientSessionModel clientSession) {
+        String attributeValue = resolveFullName(userSession);
+        if (attributeValue == null) return;
+        attributeTemplate.addAttribute(attributeStatement, attributeValue);
+    }
+
     public static ProtocolMapperModel createAttributeMapper(String name, String userAttribute,
                                                             String samlAttributeName, String nameFormat, String friendlyName,
                                                             boolean consentRequired, String consentText) {
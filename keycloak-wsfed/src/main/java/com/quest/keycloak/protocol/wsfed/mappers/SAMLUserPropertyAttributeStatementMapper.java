@@ -17,18 +17,20 @@
 package com.quest.keycloak.protocol.wsfed.mappers;
 
 import com.quest.keycloak.protocol.wsfed.WSFedLoginProtocol;
+import org.keycloak.dom.saml.v1.assertion.SAML11AttributeStatementType;
 import org.keycloak.dom.saml.v2.assertion.AttributeStatementType;
 import org.keycloak.models.AuthenticatedClientSessionModel;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.ProtocolMapperModel;
 import org.keycloak.models.UserSessionModel;
+import org.keycloak.protocol.ProtocolMapperUtils;
 import org.keycloak.protocol.saml.mappers.UserPropertyAttributeStatementMapper;
 import org.keycloak.provider.ProviderConfigProperty;
 
 import java.util.ArrayList;
 import java.util.List;
 
-public class SAMLUserPropertyAttributeStatementMapper extends AbstractWsfedProtocolMapper implements WSFedSAMLAttributeStatementMapper {
+public class SAMLUserPropertyAttributeStatementMapper extends AbstractWsfedProtocolMapper implements WSFedSAML11AttributeStatementMapper {
     private static final List<ProviderConfigProperty> configProperties = new ArrayList<ProviderConfigProperty>();
 
     static {
@@ -68,6 +70,14 @@ public class SAMLUserPropertyAttributeStatementMapper extends AbstractWsfedProto
         mapper.transformAttributeStatement(attributeStatement, mappingModel, session, userSession, clientSession);
     }
 
+    @Override
+    public void transformAttributeStatement(SAML11AttributeStatementType attributeStatement, SAML11AttributeTemplate attributeTemplate, ProtocolMapperModel mappingModel, KeycloakSession session, UserSessionModel userSession, AuthenticatedClientSessionModel clientSession) {
+        String propertyName = mappingModel.getConfig().get(ProtocolMapperUtils.USER_ATTRIBUTE);
+        String propertyValue = ProtocolMapperUtils.getUserModelValue(userSession.getUser(), propertyName);
+        if (propertyValue == null) return;
+        attributeTemplate.addAttribute(attributeStatement, propertyValue);
+    }
+
     public static ProtocolMapperModel createAttributeMapper(String name, String userAttribute,
                                                             String samlAttributeName, String nameFormat, String friendlyName,
                                                             boolean consentRequired, String consentText) {
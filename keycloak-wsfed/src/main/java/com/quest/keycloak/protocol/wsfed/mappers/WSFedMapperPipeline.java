@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.protocol.wsfed.mappers;
+
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.ProtocolMapperModel;
+import org.keycloak.protocol.ProtocolMapper;
+import org.keycloak.protocol.saml.SamlProtocol.ProtocolMapperProcessor;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * The protocol mappers of a client, resolved to their provider and sorted by the kind of token they contribute to:
+ * SAML attribute statements, the SAML role list (SAML 1.1 and 2.0 assertions) and OIDC access tokens (JWT). Mappers
+ * keep the order in which the client returned them. For SAML 1.1, the name and namespace of the attributes are also
+ * resolved here, once.
+ *
+ * A pipeline is tied to the mapper models it was built from. Keycloak's realm cache hands out new model instances on
+ * each request, so {@link #isFor(Set)} compares the models by their id, name, provider and config instead.
+ */
+public final class WSFedMapperPipeline {
+
+    private final Map<String, MapperState> source;
+
+    private final List<ProtocolMapperProcessor<WSFedSAMLAttributeStatementMapper>> attributeStatementMappers;
+    private final List<SAML11AttributeProcessor> saml11AttributeStatementMappers;
+    private final ProtocolMapperProcessor<WSFedSAMLRoleListMapper> roleListMapper;
+    private final List<ProtocolMapperProcessor<WSFedOIDCAccessTokenMapper>> accessTokenMappers;
+
+    public WSFedMapperPipeline(KeycloakSessionFactory sessionFactory, Collection<ProtocolMapperModel> mappings) {
+        this.source = new HashMap<>();
+
+        List<ProtocolMapperProcessor<WSFedSAMLAttributeStatementMapper>> attributeMappers = new ArrayList<>();
+        ProtocolMapperProcessor<WSFedSAMLRoleListMapper> roleMapper = null;
+        List<ProtocolMapperProcessor<WSFedOIDCAccessTokenMapper>> tokenMappers = new ArrayList<>();
+
+        for (ProtocolMapperModel mapping : mappings) {
+            source.put(mapping.getId(), new MapperState(mapping));
+
+            ProtocolMapper mapper = (ProtocolMapper) sessionFactory.getProviderFactory(ProtocolMapper.class, mapping.getProtocolMapper());
+            if (mapper == null) continue;
+            if (mapper instanceof WSFedSAMLAttributeStatementMapper) {
+                attributeMappers.add(new ProtocolMapperProcessor<>((WSFedSAMLAttributeStatementMapper) mapper, mapping));
+            }
+            if (mapper instanceof WSFedSAMLRoleListMapper) {
+                roleMapper = new ProtocolMapperProcessor<>((WSFedSAMLRoleListMapper) mapper, mapping);
+            }
+            if (mapper instanceof WSFedOIDCAccessTokenMapper) {
+                tokenMappers.add(new ProtocolMapperProcessor<>((WSFedOIDCAccessTokenMapper) mapper, mapping));
+            }
+        }
+
+        List<SAML11AttributeProcessor> saml11AttributeMappers = new ArrayList<>(attributeMappers.size());
+        for (ProtocolMapperProcessor<WSFedSAMLAttributeStatementMapper> processor : attributeMappers) {
+            saml11AttributeMappers.add(new SAML11AttributeProcessor(processor.mapper, processor.model));
+        }
+
+        this.attributeStatementMappers = Collections.unmodifiableList(attributeMappers);
+        this.saml11AttributeStatementMappers = Collections.unmodifiableList(saml11AttributeMappers);
+        this.roleListMapper = roleMapper;
+        this.accessTokenMappers = Collections.unmodifiableList(tokenMappers);
+    }
+
+    /**
+     * @param mappings the client's current protocol mappers
+     * @return true if the pipeline was built from mapper models with the same ids, names, providers and configs
+     */
+    public boolean isFor(Set<ProtocolMapperModel> mappings) {
+        if (mappings.size() != source.size()) {
+            return false;
+        }
+        for (ProtocolMapperModel mapping : mappings) {
+            MapperState state = source.get(mapping.getId());
+            if (state == null || !state.matches(mapping)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public List<ProtocolMapperProcessor<WSFedSAMLAttributeStatementMapper>> getAttributeStatementMappers() {
+        return attributeStatementMappers;
+    }
+
+    public List<SAML11AttributeProcessor> getSAML11AttributeStatementMappers() {
+        return saml11AttributeStatementMappers;
+    }
+
+    /**
+     * @return the role list mapper, or null if the client has none. Should there be several, the last one is used.
+     */
+    public ProtocolMapperProcessor<WSFedSAMLRoleListMapper> getRoleListMapper() {
+        return roleListMapper;
+    }
+
+    public List<ProtocolMapperProcessor<WSFedOIDCAccessTokenMapper>> getAccessTokenMappers() {
+        return accessTokenMappers;
+    }
+
+    /**
+     * What the pipeline depends on in a mapper model, copied so that a change to the model can't go unnoticed.
+     */
+    private static final class MapperState {
+        private final String name;
+        private final String protocolMapper;
+        private final Map<String, String> config;
+
+        MapperState(ProtocolMapperModel model) {
+            this.name = model.getName();
+            this.protocolMapper = model.getProtocolMapper();
+            this.config = model.getConfig() == null ? Collections.emptyMap() : new HashMap<>(model.getConfig());
+        }
+
+        boolean matches(ProtocolMapperModel model) {
+            Map<String, String> modelConfig = model.getConfig() == null ? Collections.emptyMap() : model.getConfig();
+            return Objects.equals(name, model.getName()) && Objects.equals(protocolMapper, model.getProtocolMapper())
+                    && config.equals(modelConfig);
+        }
+    }
+
+    /**
+     * An attribute statement mapper, as used for SAML 1.1 assertions. {@code saml11Mapper} is the same mapper if it
+     * can write SAML 1.1 attributes itself, and null otherwise.
+     */
+    public static final class SAML11AttributeProcessor {
+        public final WSFedSAMLAttributeStatementMapper mapper;
+        public final WSFedSAML11AttributeStatementMapper saml11Mapper;
+        public final ProtocolMapperModel model;
+        public final SAML11AttributeTemplate template;
+
+        SAML11AttributeProcessor(WSFedSAMLAttributeStatementMapper mapper, ProtocolMapperModel model) {
+            this.mapper = mapper;
+            this.saml11Mapper = mapper instanceof WSFedSAML11AttributeStatementMapper ? (WSFedSAML11AttributeStatementMapper) mapper : null;
+            this.model = model;
+            this.template = saml11Mapper == null ? null : new SAML11AttributeTemplate(model);
+        }
+    }
+}
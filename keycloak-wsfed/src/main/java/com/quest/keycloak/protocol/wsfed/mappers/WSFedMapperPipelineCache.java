@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.protocol.wsfed.mappers;
+
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.ProtocolMapperModel;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Keeps the {@link WSFedMapperPipeline} of each client, so that the SAML 1.1, SAML 2.0 and JWT builders don't resolve
+ * the client's mappers on each login. A pipeline is built again as soon as the client's mapper models change, and is
+ * dropped when the client is updated or removed.
+ */
+public final class WSFedMapperPipelineCache {
+
+    private static final ConcurrentMap<String, WSFedMapperPipeline> PIPELINES = new ConcurrentHashMap<>();
+
+    private WSFedMapperPipelineCache() {
+    }
+
+    public static WSFedMapperPipeline get(KeycloakSession session, ClientModel client) {
+        Set<ProtocolMapperModel> mappings = client.getProtocolMappers();
+        WSFedMapperPipeline pipeline = PIPELINES.get(client.getId());
+        if (pipeline != null && pipeline.isFor(mappings)) {
+            return pipeline;
+        }
+        pipeline = new WSFedMapperPipeline(session.getKeycloakSessionFactory(), mappings);
+        PIPELINES.put(client.getId(), pipeline);
+        return pipeline;
+    }
+
+    public static void invalidate(String clientId) {
+        PIPELINES.remove(clientId);
+    }
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.protocol.wsfed.mappers;
+
+import org.keycloak.dom.saml.v1.assertion.SAML11AttributeStatementType;
+import org.keycloak.models.AuthenticatedClientSessionModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.ProtocolMapperModel;
+import org.keycloak.models.UserSessionModel;
+
+/**
+ * An attribute statement mapper which can also write SAML 1.1 attributes directly. SAML 1.1 assertions are otherwise
+ * built by letting the mapper fill a SAML 2.0 attribute statement, which is then converted.
+ */
+public interface WSFedSAML11AttributeStatementMapper extends WSFedSAMLAttributeStatementMapper {
+    void transformAttributeStatement(SAML11AttributeStatementType attributeStatement, SAML11AttributeTemplate attributeTemplate,
+                                     ProtocolMapperModel mappingModel, KeycloakSession session,
+                                     UserSessionModel userSession, AuthenticatedClientSessionModel clientSession);
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.protocol.wsfed.sig;
+
+import org.keycloak.crypto.JavaAlgorithm;
+import org.keycloak.crypto.KeyWrapper;
+import org.keycloak.crypto.SignatureException;
+import org.keycloak.crypto.SignatureSignerContext;
+
+import java.security.PrivateKey;
+import java.security.Signature;
+
+/**
+ * Signs JWSs with an EC key. The JCA produces DER encoded ECDSA signatures, while JWS (RFC 7518, section 3.4) wants the
+ * R and S values concatenated, each padded to the size of the curve, so the signature is converted.
+ */
+public class ECDSAJwsSignerContext implements SignatureSignerContext {
+
+    private final KeyWrapper key;
+    private final int valueLength;
+
+    /**
+     * @param key the EC key
+     * @param valueLength the length in bytes of each of R and S: 32 for ES256, 48 for ES384
+     */
+    public ECDSAJwsSignerContext(KeyWrapper key, int valueLength) {
+        this.key = key;
+        this.valueLength = valueLength;
+    }
+
+    @Override
+    public String getKid() {
+        return key.getKid();
+    }
+
+    @Override
+    public String getAlgorithm() {
+        return key.getAlgorithm();
+    }
+
+    @Override
+    public byte[] sign(byte[] data) throws SignatureException {
+        try {
+            Signature signature = Signature.getInstance(JavaAlgorithm.getJavaAlgorithm(key.getAlgorithm()));
+            signature.initSign((PrivateKey) key.getPrivateKey());
+            signature.update(data);
+            return toConcatenated(signature.sign(), valueLength);
+        } catch (Exception e) {
+            throw new SignatureException("Signing failed", e);
+        }
+    }
+
+    /**
+     * Converts a DER encoded ECDSA signature, i.e. SEQUENCE { INTEGER r, INTEGER s }, to R|S.
+     */
+    static byte[] toConcatenated(byte[] der, int valueLength) {
+        int offset = 2;
+        if (der[1] == (byte) 0x81) {
+            offset = 3; // long form length, for the signatures of P-521 keys
+        }
+        byte[] result = new byte[2 * valueLength];
+
+        int rLength = der[offset + 1];
+        copyValue(der, offset + 2, rLength, result, 0, valueLength);
+        offset += 2 + rLength;
+
+        int sLength = der[offset + 1];
+        copyValue(der, offset + 2, sLength, result, valueLength, valueLength);
+        return result;
+    }
+
+    private static void copyValue(byte[] der, int from, int length, byte[] result, int to, int valueLength) {
+        // INTEGER values are signed, so they may have a leading zero, and they have no leading zeros otherwise
+        while (length > valueLength && der[from] == 0) {
+            from++;
+            length--;
+        }
+        System.arraycopy(der, from, result, to + valueLength - length, length);
+    }
+}
@@ -18,6 +18,7 @@
 
 package com.quest.keycloak.protocol.wsfed.sig;
 
+import com.quest.keycloak.saml.processing.core.saml.v2.util.AssertionUtil;
 import org.keycloak.rotation.HardcodedKeyLocator;
 import org.keycloak.rotation.KeyLocator;
 import org.keycloak.saml.common.PicketLinkLogger;
@@ -185,6 +186,19 @@ public class SAML11Signature implements SAMLAbstractSignature {
         }
     }
 
+    /**
+     * Validate the signature of a SAML11 assertion element in place, within the document it was parsed in
+     *
+     * @param assertionElement
+     * @param publicKey
+     * @return
+     * @throws ProcessingException
+     */
+    @Override
+    public boolean validate(Element assertionElement, PublicKey publicKey) throws ProcessingException {
+        return AssertionUtil.isSignatureValid(assertionElement, SAML11Constants.ASSERTIONID, new HardcodedKeyLocator(publicKey));
+    }
+
     @Override
     public Node getNextSiblingOfIssuer(Document doc) {
         return getNextSiblingOfConditions(doc);
@@ -18,12 +18,17 @@
 
 package com.quest.keycloak.protocol.wsfed.sig;
 
+import com.quest.keycloak.saml.processing.core.saml.v2.util.AssertionUtil;
+import org.keycloak.rotation.HardcodedKeyLocator;
+import org.keycloak.saml.common.constants.JBossSAMLConstants;
 import org.keycloak.saml.common.exceptions.ProcessingException;
 import org.keycloak.saml.processing.api.saml.v2.sig.SAML2Signature;
 import org.w3c.dom.Document;
+import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 
 import java.security.KeyPair;
+import java.security.PublicKey;
 import java.security.cert.X509Certificate;
 
 /**
@@ -69,4 +74,9 @@ public class SAML2SignatureProxy implements SAMLAbstractSignature {
     public void signSAMLDocument(Document samlDocument, String keyName, KeyPair keypair, String canonicalizationMethodType) throws ProcessingException {
         samlSignature.signSAMLDocument(samlDocument, keyName, keypair, canonicalizationMethodType);
     }
+
+    @Override
+    public boolean validate(Element assertionElement, PublicKey publicKey) throws ProcessingException {
+        return AssertionUtil.isSignatureValid(assertionElement, JBossSAMLConstants.ID.get(), new HardcodedKeyLocator(publicKey));
+    }
 }
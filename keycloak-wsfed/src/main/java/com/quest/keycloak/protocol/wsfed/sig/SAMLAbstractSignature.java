@@ -20,9 +20,11 @@ package com.quest.keycloak.protocol.wsfed.sig;
 
 import org.keycloak.saml.common.exceptions.ProcessingException;
 import org.w3c.dom.Document;
+import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 
 import java.security.KeyPair;
+import java.security.PublicKey;
 import java.security.cert.X509Certificate;
 
 /**
@@ -39,4 +41,5 @@ public interface SAMLAbstractSignature {
     void setNextSibling(Node sibling);
     void setX509Certificate(X509Certificate x509Certificate);
     void signSAMLDocument(Document samlDocument, String keyName, KeyPair keypair, String canonicalizationMethodType) throws ProcessingException;
+    boolean validate(Element assertionElement, PublicKey publicKey) throws ProcessingException;
 }
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.protocol.wsfed.sig;
+
+import org.keycloak.common.util.Base64Url;
+import org.keycloak.crypto.AsymmetricSignatureSignerContext;
+import org.keycloak.crypto.KeyWrapper;
+import org.keycloak.crypto.SignatureSignerContext;
+
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Everything needed to sign the tokens issued with one of the realm's keys: the key pair, its certificate and the XML
+ * signature settings, along with the signer used for JWTs. A context is immutable, so it is built once per key and
+ * shared between requests, see {@link SigningContextCache}. What is derived from the key on first use (the x5t
+ * thumbprint, the JWS headers) is kept in the context too, so it goes away with the context when the key is rotated.
+ */
+public class SigningContext {
+    private final KeyWrapper key;
+    private final KeyPair keyPair;
+    private final WSFedSignatureAlgorithm signatureAlgorithm;
+    private final SignatureSignerContext jwsSigner;
+    private final ConcurrentMap<String, String> jwsHeaders = new ConcurrentHashMap<>();
+    private volatile String x5t;
+
+    public SigningContext(KeyWrapper key) {
+        this(key, WSFedSignatureAlgorithm.RS256);
+    }
+
+    /**
+     * @param key the realm key, of the algorithm required by the signature algorithm
+     */
+    public SigningContext(KeyWrapper key, WSFedSignatureAlgorithm signatureAlgorithm) {
+        this.key = key;
+        this.keyPair = new KeyPair((PublicKey) key.getPublicKey(), (PrivateKey) key.getPrivateKey());
+        this.signatureAlgorithm = signatureAlgorithm;
+        switch (signatureAlgorithm) {
+            case ES256:
+                this.jwsSigner = new ECDSAJwsSignerContext(key, 32);
+                break;
+            case ES384:
+                this.jwsSigner = new ECDSAJwsSignerContext(key, 48);
+                break;
+            default:
+                this.jwsSigner = new AsymmetricSignatureSignerContext(key);
+        }
+    }
+
+    public String getKid() {
+        return key.getKid();
+    }
+
+    public KeyWrapper getKey() {
+        return key;
+    }
+
+    public KeyPair getKeyPair() {
+        return keyPair;
+    }
+
+    public X509Certificate getCertificate() {
+        return key.getCertificate();
+    }
+
+    public WSFedSignatureAlgorithm getSignatureAlgorithm() {
+        return signatureAlgorithm;
+    }
+
+    public SignatureSignerContext getJwsSigner() {
+        return jwsSigner;
+    }
+
+    /**
+     * @return the base64url encoded SHA-1 thumbprint of the certificate, as used in the x5t JWS header, or null if the
+     * key has no certificate (as is the case for generated EC keys). It is only computed once.
+     */
+    public String getX5t() throws CertificateEncodingException {
+        String thumbprint = x5t;
+        if (thumbprint == null && getCertificate() != null) {
+            try {
+                thumbprint = Base64Url.encode(MessageDigest.getInstance("SHA-1").digest(getCertificate().getEncoded()));
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+            x5t = thumbprint;
+        }
+        return thumbprint;
+    }
+
+    /**
+     * Returns the encoded header of the JWSs signed with this context. Only a handful of combinations are ever used,
+     * so each one is encoded once and kept.
+     *
+     * @param algorithm the signature algorithm (alg)
+     * @param type the type of the token (typ), or null
+     * @param contentType the content type of the token (cty), or null
+     * @param x5t the thumbprint of the certificate (x5t), or null
+     * @return the base64url encoded JSON header
+     */
+    public String getJwsHeader(String algorithm, String type, String contentType, String x5t) {
+        String key = algorithm + '\n' + type + '\n' + contentType + '\n' + x5t;
+        return jwsHeaders.computeIfAbsent(key, k -> encodeJwsHeader(algorithm, type, contentType, x5t));
+    }
+
+    private static String encodeJwsHeader(String algorithm, String type, String contentType, String x5t) {
+        StringBuilder builder = new StringBuilder("{");
+        if (type != null) builder.append("\"typ\":\"").append(type).append("\",");
+        builder.append("\"alg\":\"").append(algorithm).append("\"");
+
+        if (contentType != null) builder.append(",\"cty\":\"").append(contentType).append("\"");
+        if (x5t != null) builder.append(",\"x5t\":\"").append(x5t).append("\"");
+        builder.append("}");
+        return Base64Url.encode(builder.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Applies the signature and digest methods and the certificate of this context to a signature object, which is
+     * then ready to sign a document.
+     */
+    public void configure(SAMLAbstractSignature signature) {
+        signature.setSignatureMethod(signatureAlgorithm.getXmlSignatureMethod());
+        signature.setDigestMethod(signatureAlgorithm.getXmlSignatureDigestMethod());
+        if (getCertificate() != null) {
+            signature.setX509Certificate(getCertificate());
+        }
+    }
+
+    /**
+     * @return true if this context was built for the given key, i.e. the realm's active key hasn't changed since
+     */
+    public boolean isFor(KeyWrapper activeKey) {
+        return activeKey != null && Objects.equals(getKid(), activeKey.getKid())
+                && Objects.equals(getCertificate(), activeKey.getCertificate());
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.protocol.wsfed.sig;
+
+import org.keycloak.crypto.KeyUse;
+import org.keycloak.crypto.KeyWrapper;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Keeps the {@link SigningContext} of each realm's active signing key, per signature algorithm. The realm's active key
+ * is still asked for on each call, as the key providers already cache it, but the context derived from it is only
+ * built again once the key id (or the certificate) of the active key changes, i.e. when the realm's keys are rotated.
+ */
+public final class SigningContextCache {
+
+    private static final ConcurrentMap<String, Map<WSFedSignatureAlgorithm, SigningContext>> CONTEXTS = new ConcurrentHashMap<>();
+
+    private SigningContextCache() {
+    }
+
+    public static SigningContext get(KeycloakSession session, RealmModel realm) {
+        return get(session, realm, WSFedSignatureAlgorithm.RS256);
+    }
+
+    /**
+     * @throws RuntimeException if the realm has no active key for the algorithm
+     */
+    public static SigningContext get(KeycloakSession session, RealmModel realm, WSFedSignatureAlgorithm algorithm) {
+        KeyWrapper activeKey = session.keys().getActiveKey(realm, KeyUse.SIG, algorithm.getKeyAlgorithm());
+        Map<WSFedSignatureAlgorithm, SigningContext> contexts = CONTEXTS.computeIfAbsent(realm.getId(), id -> Collections.synchronizedMap(new EnumMap<>(WSFedSignatureAlgorithm.class)));
+        SigningContext context = contexts.get(algorithm);
+        if (context != null && context.isFor(activeKey)) {
+            return context;
+        }
+        return contexts.compute(algorithm, (alg, current) -> current != null && current.isFor(activeKey) ? current : new SigningContext(activeKey, alg));
+    }
+
+    public static void invalidate(String realmId) {
+        CONTEXTS.remove(realmId);
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.protocol.wsfed.sig;
+
+import com.quest.keycloak.common.wsfed.WSFedConstants;
+import org.apache.xml.security.exceptions.XMLSecurityException;
+import org.apache.xml.security.stax.ext.InboundXMLSec;
+import org.apache.xml.security.stax.ext.XMLSec;
+import org.apache.xml.security.stax.ext.XMLSecurityProperties;
+import org.apache.xml.security.stax.ext.stax.XMLSecEvent;
+import org.apache.xml.security.stax.securityEvent.SecurityEvent;
+import org.apache.xml.security.stax.securityEvent.SecurityEventConstants;
+import org.apache.xml.security.stax.securityEvent.SignedElementSecurityEvent;
+import org.keycloak.saml.common.PicketLinkLogger;
+import org.keycloak.saml.common.PicketLinkLoggerFactory;
+import org.keycloak.saml.common.exceptions.ProcessingException;
+import org.picketlink.common.constants.WSTrustConstants;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.events.Attribute;
+import java.io.Reader;
+import java.security.PublicKey;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Validates the enveloped signature of the assertions held by a WS-Fed response in a single forward pass over the
+ * response, with the streaming API of Santuario. Unlike {@link SAML11Signature} and {@link SAML2SignatureProxy}, no
+ * DOM of the response or of the assertion is needed: the signature and the digests are computed as the events are
+ * read, and only the events up to the signature element are buffered.
+ *
+ * @see SAMLAbstractSignature#validate(org.w3c.dom.Element, PublicKey)
+ */
+public class StreamingSignatureVerifier {
+
+    private static final PicketLinkLogger logger = PicketLinkLoggerFactory.getLogger();
+
+    private static final XMLInputFactory XML_INPUT_FACTORY = createXMLInputFactory();
+
+    private final QName assertionName;
+
+    private final String idAttributeName;
+
+    /**
+     * @param assertionName   the qualified name of the signed assertion element
+     * @param idAttributeName the name of the assertion's ID attribute ("ID" for SAML 2.0, "AssertionID" for SAML 1.1)
+     */
+    public StreamingSignatureVerifier(QName assertionName, String idAttributeName) {
+        this.assertionName = assertionName;
+        this.idAttributeName = idAttributeName;
+    }
+
+    /**
+     * Reads the whole response, validating every signature it holds. The response is valid if no signature or digest
+     * fails, and the assertion it holds was covered by a signature.
+     * <p>
+     * The signed assertion must be the one the response was parsed into: the response must hold a single assertion,
+     * with the ID of the parsed one, as the RequestedSecurityToken of the RequestSecurityTokenResponse. Otherwise a
+     * genuinely signed assertion could be moved elsewhere in the response, next to a forged one read in its place.
+     *
+     * @param response    the WS-Fed response
+     * @param publicKey   the public key of the external IdP
+     * @param assertionId the ID of the assertion the response was parsed into
+     * @return true if the assertion carries a valid signature
+     * @throws ProcessingException if the response can't be read
+     */
+    public boolean validate(Reader response, PublicKey publicKey, String assertionId) throws ProcessingException {
+        XMLSecurityProperties properties = new XMLSecurityProperties();
+        properties.setSignatureVerificationKey(publicKey);
+        properties.setIdAttributeNS(new QName(idAttributeName));
+
+        List<SecurityEvent> securityEvents = new ArrayList<>();
+        List<List<QName>> assertionPaths = new ArrayList<>();
+        List<String> assertionIds = new ArrayList<>();
+        XMLStreamReader reader = null;
+        try {
+            InboundXMLSec inboundXMLSec = XMLSec.getInboundWSSec(properties);
+            reader = inboundXMLSec.processInMessage(XML_INPUT_FACTORY.createXMLStreamReader(response), new ArrayList<>(), securityEvents::add);
+            Deque<QName> path = new ArrayDeque<>();
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    path.addLast(reader.getName());
+                    if (assertionName.equals(reader.getName())) {
+                        assertionPaths.add(new ArrayList<>(path));
+                        assertionIds.add(reader.getAttributeValue(null, idAttributeName));
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    path.removeLast();
+                }
+            }
+        } catch (XMLStreamException e) {
+            if (e.getCause() instanceof XMLSecurityException) {
+                logger.trace("Streaming signature validation failed: " + e.getCause().getMessage());
+                return false;
+            }
+            throw logger.processingError(e);
+        } catch (XMLSecurityException e) {
+            throw logger.processingError(e);
+        } finally {
+            close(reader);
+        }
+
+        if (assertionPaths.size() != 1) {
+            logger.trace("Streaming signature validation failed: the response holds " + assertionPaths.size() + " assertions");
+            return false;
+        }
+        if (assertionId == null || !assertionId.equals(assertionIds.get(0)) || !isRequestedSecurityToken(assertionPaths.get(0))) {
+            logger.trace("Streaming signature validation failed: the assertion isn't the requested security token");
+            return false;
+        }
+        return isAssertionSigned(securityEvents, assertionPaths.get(0), assertionId);
+    }
+
+    /**
+     * @return true if the path is the one of the token of a RequestSecurityTokenResponse, either on its own or as the
+     * first level of a RequestSecurityTokenResponseCollection
+     */
+    private static boolean isRequestedSecurityToken(List<QName> path) {
+        int size = path.size();
+        if (size != 3 && size != 4) {
+            return false;
+        }
+        if (size == 4 && !isTrustElement(path.get(0), WSTrustConstants.RSTR_COLLECTION)) {
+            return false;
+        }
+        return isTrustElement(path.get(size - 3), WSTrustConstants.RSTR)
+                && isTrustElement(path.get(size - 2), WSTrustConstants.REQUESTED_TOKEN);
+    }
+
+    private static boolean isTrustElement(QName name, String localName) {
+        return localName.equals(name.getLocalPart())
+                && (WSTrustConstants.BASE_NAMESPACE.equals(name.getNamespaceURI()) || WSFedConstants.TRUST_NSURI.equals(name.getNamespaceURI()));
+    }
+
+    private boolean isAssertionSigned(List<SecurityEvent> securityEvents, List<QName> assertionPath, String assertionId) {
+        for (SecurityEvent securityEvent : securityEvents) {
+            if (SecurityEventConstants.SignedElement.equals(securityEvent.getSecurityEventType())) {
+                SignedElementSecurityEvent signedElement = (SignedElementSecurityEvent) securityEvent;
+                if (signedElement.isSigned() && assertionPath.equals(signedElement.getElementPath())
+                        && assertionId.equals(getId(signedElement.getXmlSecEvent()))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private String getId(XMLSecEvent signedElement) {
+        if (signedElement == null || !signedElement.isStartElement()) {
+            return null;
+        }
+        Attribute id = signedElement.asStartElement().getAttributeByName(new QName(idAttributeName));
+        return id == null ? null : id.getValue();
+    }
+
+    private static void close(XMLStreamReader reader) {
+        if (reader != null) {
+            try {
+                reader.close();
+            } catch (XMLStreamException e) {
+                logger.trace("Unable to close the streaming signature reader: " + e.getMessage());
+            }
+        }
+    }
+
+    private static XMLInputFactory createXMLInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        return factory;
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2015 Dell, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.quest.keycloak.protocol.wsfed.sig;
+
+import io.cloudtrust.keycloak.exceptions.CtRuntimeException;
+import org.keycloak.crypto.Algorithm;
+import org.keycloak.saml.SignatureAlgorithm;
+
+import javax.xml.crypto.dsig.DigestMethod;
+
+/**
+ * The algorithms the tokens issued to a client can be signed with, along with the realm key algorithm they need and
+ * their XML signature and digest methods. The ECDSA algorithms use the realm's EC keys.
+ */
+public enum WSFedSignatureAlgorithm {
+
+    RS256(Algorithm.RS256, SignatureAlgorithm.RSA_SHA256.getXmlSignatureMethod(), SignatureAlgorithm.RSA_SHA256.getXmlSignatureDigestMethod()),
+    ES256(Algorithm.ES256, "http://www.w3.org/2001/04/xmldsig-more#ecdsa-sha256", DigestMethod.SHA256),
+    ES384(Algorithm.ES384, "http://www.w3.org/2001/04/xmldsig-more#ecdsa-sha384", "http://www.w3.org/2001/04/xmldsig-more#sha384");
+
+    private final String keyAlgorithm;
+    private final String xmlSignatureMethod;
+    private final String xmlSignatureDigestMethod;
+
+    WSFedSignatureAlgorithm(String keyAlgorithm, String xmlSignatureMethod, String xmlSignatureDigestMethod) {
+        this.keyAlgorithm = keyAlgorithm;
+        this.xmlSignatureMethod = xmlSignatureMethod;
+        this.xmlSignatureDigestMethod = xmlSignatureDigestMethod;
+    }
+
+    /**
+     * @return the algorithm of the realm key used, which is also the JWS algorithm (alg)
+     */
+    public String getKeyAlgorithm() {
+        return keyAlgorithm;
+    }
+
+    public String getXmlSignatureMethod() {
+        return xmlSignatureMethod;
+    }
+
+    public String getXmlSignatureDigestMethod() {
+        return xmlSignatureDigestMethod;
+    }
+
+    public boolean isEcdsa() {
+        return this != RS256;
+    }
+
+    public static WSFedSignatureAlgorithm parse(String algorithm) {
+        for (WSFedSignatureAlgorithm value : WSFedSignatureAlgorithm.values()) {
+            if (value.name().equalsIgnoreCase(algorithm)) {
+                return value;
+            }
+        }
+        throw new CtRuntimeException("Invalid signature algorithm " + algorithm);
+    }
+}
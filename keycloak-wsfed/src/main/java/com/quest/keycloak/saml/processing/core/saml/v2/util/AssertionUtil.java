@@ -1,16 +1,24 @@
 package com.quest.keycloak.saml.processing.core.saml.v2.util;
 
+import com.quest.keycloak.common.wsfed.utils.XMLFactories;
 import org.keycloak.dom.saml.v1.assertion.SAML11AssertionType;
+import org.keycloak.dom.saml.v2.assertion.AssertionType;
+import org.keycloak.rotation.KeyLocator;
 import org.keycloak.saml.common.PicketLinkLogger;
 import org.keycloak.saml.common.PicketLinkLoggerFactory;
 import org.keycloak.saml.common.exceptions.ProcessingException;
-import org.keycloak.saml.common.util.DocumentUtil;
 import org.keycloak.saml.common.util.StaxUtil;
 import org.keycloak.saml.processing.core.saml.v1.writers.SAML11AssertionWriter;
+import org.keycloak.saml.processing.core.saml.v2.writers.SAMLAssertionWriter;
+import org.keycloak.saml.processing.core.util.XMLSignatureUtil;
 import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import javax.xml.crypto.MarshalException;
+import javax.xml.crypto.dsig.XMLSignature;
+import javax.xml.crypto.dsig.XMLSignatureException;
+import javax.xml.transform.dom.DOMResult;
 
 /**
  * @author <a href="mailto:brat000012001@gmail.com">Peter Nalyvayko</a>
@@ -21,7 +29,27 @@ import java.io.ByteArrayOutputStream;
 public class AssertionUtil {
     private static final PicketLinkLogger logger = PicketLinkLoggerFactory.getLogger();
     /**
-     * Given {@code AssertionType}, convert it into a DOM Document.
+     * Given {@code AssertionType}, convert it into a DOM Document. The assertion is written straight into the
+     * document, rather than serialized and parsed again.
+     *
+     * @param assertion
+     *
+     * @return
+     *
+     * @throws ProcessingException
+     */
+    public static Document asDocument(AssertionType assertion) throws ProcessingException {
+        Document document = XMLFactories.newDocument();
+        SAMLAssertionWriter writer = new SAMLAssertionWriter(StaxUtil.getXMLStreamWriter(new DOMResult(document)));
+
+        writer.write(assertion);
+
+        return document;
+    }
+
+    /**
+     * Given {@code SAML11AssertionType}, convert it into a DOM Document. The assertion is written straight into the
+     * document, rather than serialized and parsed again.
      *
      * @param assertion
      *
@@ -30,15 +58,58 @@ public class AssertionUtil {
      * @throws ProcessingException
      */
     public static Document asDocument(SAML11AssertionType assertion) throws ProcessingException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        SAML11AssertionWriter writer = new SAML11AssertionWriter(StaxUtil.getXMLStreamWriter(baos));
+        Document document = XMLFactories.newDocument();
+        SAML11AssertionWriter writer = new SAML11AssertionWriter(StaxUtil.getXMLStreamWriter(new DOMResult(document)));
 
         writer.write(assertion);
 
+        return document;
+    }
+
+    /**
+     * Validates the enveloped signature of an assertion element where it stands, i.e. without importing it into a
+     * new document first. Only a signature which is a direct child of the assertion is considered, and only the
+     * assertion is given IDness, so the signature can't reference any other element of the enclosing document.
+     *
+     * @param assertionElement the signed assertion
+     * @param idAttributeName the name of the assertion's ID attribute ("ID" for SAML 2.0, "AssertionID" for SAML 1.1)
+     * @param keyLocator locator of the key used to validate the signature
+     *
+     * @return true if the assertion carries a valid signature
+     *
+     * @throws ProcessingException
+     */
+    public static boolean isSignatureValid(Element assertionElement, String idAttributeName, KeyLocator keyLocator) throws ProcessingException {
+        Element signature = getSignature(assertionElement);
+        if (signature == null) {
+            return false;
+        }
+
+        if (assertionElement.hasAttribute(idAttributeName)) {
+            assertionElement.setIdAttribute(idAttributeName, true);
+        }
+
         try {
-            return DocumentUtil.getDocument(new ByteArrayInputStream(baos.toByteArray()));
-        } catch (Exception e) {
+            return XMLSignatureUtil.validateSingleNode(signature, keyLocator);
+        } catch (MarshalException | XMLSignatureException e) {
             throw logger.processingError(e);
         }
     }
+
+    /**
+     * Returns the ds:Signature child of the given assertion element, or null if it isn't signed.
+     *
+     * @param assertionElement
+     *
+     * @return
+     */
+    public static Element getSignature(Element assertionElement) {
+        for (Node child = assertionElement.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (child.getNodeType() == Node.ELEMENT_NODE && XMLSignature.XMLNS.equals(child.getNamespaceURI())
+                    && "Signature".equals(child.getLocalName())) {
+                return (Element) child;
+            }
+        }
+        return null;
+    }
 }
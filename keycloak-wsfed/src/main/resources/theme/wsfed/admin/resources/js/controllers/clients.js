@@ -955,6 +955,11 @@ module.controller('ClientDetailCtrl', function($scope, realm, client, flows, $ro
         "SAML 2.0",
         "SAML 1.1"
     ];
+    $scope.wsfedSignatureAlgorithms = [
+        "RS256",
+        "ES256",
+        "ES384"
+    ];
 
     $scope.canonicalization = [
         {name: "EXCLUSIVE", value:  "http://www.w3.org/2001/10/xml-exc-c14n#"  },
@@ -973,7 +978,9 @@ module.controller('ClientDetailCtrl', function($scope, realm, client, flows, $ro
     $scope.realm = realm;
     $scope.wsfedJwt = false;
     $scope.wsfedX5t = false;
+    $scope.wsfedPairwiseNameId = false;
     $scope.wsfedSamlAssertionTokenFormat = $scope.wsfedSamlAssertionTokenFormats[0];
+    $scope.wsfedSignatureAlgorithm = $scope.wsfedSignatureAlgorithms[0];
     $scope.samlAuthnStatement = false;
     $scope.samlOneTimeUseCondition = false;
     $scope.samlMultiValuedRoles = false;
@@ -1063,12 +1070,24 @@ module.controller('ClientDetailCtrl', function($scope, realm, client, flows, $ro
             }
         }
 
+        if ($scope.client.attributes["wsfed.pairwise_name_id"]) {
+            if ($scope.client.attributes["wsfed.pairwise_name_id"] == "true") {
+                $scope.wsfedPairwiseNameId = true;
+            } else {
+                $scope.wsfedPairwiseNameId = false;
+            }
+        }
+
         if ($scope.client.attributes['wsfed.saml_assertion_token_format'] == 'SAML 2.0') {
             $scope.wsfedSamlAssertionTokenFormat = $scope.wsfedSamlAssertionTokenFormats[0];
         } else if ($scope.client.attributes['wsfed.saml_assertion_token_format'] == 'SAML 1.1') {
             $scope.wsfedSamlAssertionTokenFormat = $scope.wsfedSamlAssertionTokenFormats[1];
         }
 
+        if ($scope.wsfedSignatureAlgorithms.indexOf($scope.client.attributes['wsfed.signature_algorithm']) >= 0) {
+            $scope.wsfedSignatureAlgorithm = $scope.client.attributes['wsfed.signature_algorithm'];
+        }
+
         if ($scope.client.attributes["saml.server.signature"]) {
             if ($scope.client.attributes["saml.server.signature"] == "true") {
                 $scope.samlServerSignature = true;
@@ -1291,6 +1310,10 @@ module.controller('ClientDetailCtrl', function($scope, realm, client, flows, $ro
         $scope.clientEdit.attributes['wsfed.saml_assertion_token_format'] = $scope.wsfedSamlAssertionTokenFormat;
     };
 
+    $scope.changeWsFedSignatureAlgorithm = function() {
+        $scope.clientEdit.attributes['wsfed.signature_algorithm'] = $scope.wsfedSignatureAlgorithm;
+    };
+
     $scope.changeRequestObjectRequired = function() {
         if ($scope.requestObjectRequired === 'not required') {
             $scope.clientEdit.attributes['request.object.required'] = null;
@@ -1399,7 +1422,14 @@ module.controller('ClientDetailCtrl', function($scope, realm, client, flows, $ro
             $scope.clientEdit.attributes["wsfed.x5t"] = "false";
         }
 
+        if ($scope.wsfedPairwiseNameId == true) {
+            $scope.clientEdit.attributes["wsfed.pairwise_name_id"] = "true";
+        } else {
+            $scope.clientEdit.attributes["wsfed.pairwise_name_id"] = "false";
+        }
+
         $scope.clientEdit.attributes['wsfed.saml_assertion_token_format'] = $scope.wsfedSamlAssertionTokenFormat;
+        $scope.clientEdit.attributes['wsfed.signature_algorithm'] = $scope.wsfedSignatureAlgorithm;
 
         if ($scope.samlServerSignature == true) {
             $scope.clientEdit.attributes["saml.server.signature"] = "true";